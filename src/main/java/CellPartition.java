@@ -0,0 +1,234 @@
+import java.util.Arrays;
+
+/**
+ * A multilevel partition of a GraphDB into cells, for customizable route planning (see
+ * Overlay). Level 0 cuts the map into small cells of nearby vertices, and each level
+ * above merges neighbouring cells of the one below into bigger ones, so every cell lies
+ * wholly inside one cell of each level above it. A boundary vertex of a level has an
+ * edge to or from another cell of that level; only boundary vertices take part in the
+ * overlay at that level.
+ * <p>
+ * Cells come from recursive coordinate bisection: the vertices are split in half by
+ * longitude or latitude, whichever way the group is wider, and each half again, until
+ * the cells of the lowest level are no bigger than the first of the cell sizes. The
+ * higher levels are the bigger groups further up the same bisection. This depends only on
+ * the vertices and edges, not on any weights, so the partition is done once and any
+ * number of weightings are customized on it afterwards, each in seconds.
+ */
+class CellPartition {
+    /** The largest cell of each level, lowest level first. Levels that would be a
+     * single cell are left out. */
+    static final int[] CELL_SIZES = {256, 4096, 65536, 1 << 20};
+
+    /* The fingerprint of the vertices and edges of the graph this was made for (see
+     * GraphDB.fingerprint). */
+    final long topologyFingerprint;
+    /* The cell of vertex v at level l is cellCodes[v] >>> shifts[l]; the cells of a level
+     * are numbered from 0. */
+    final int[] cellCodes;
+    final int[] shifts;
+    /* The boundary vertices of cell c at level l are boundaryVertices[l][boundaryOffsets[l][c]]
+     * up to (but not including) boundaryVertices[l][boundaryOffsets[l][c + 1]], and
+     * boundaryIndex[l][v] is where vertex v is among those of its cell, or -1 if it isn't
+     * a boundary vertex at level l. */
+    final int[][] boundaryOffsets;
+    final int[][] boundaryVertices;
+    final int[][] boundaryIndex;
+    /* Where the clique of each cell starts in a customized overlay's cliques for the
+     * level: a cell with k boundary vertices takes k * k distances. */
+    final int[][] cliqueOffsets;
+
+    private CellPartition(long topologyFingerprint, int[] cellCodes, int[] shifts,
+                          int[][] boundaryOffsets, int[][] boundaryVertices,
+                          int[][] boundaryIndex, int[][] cliqueOffsets) {
+        this.topologyFingerprint = topologyFingerprint;
+        this.cellCodes = cellCodes;
+        this.shifts = shifts;
+        this.boundaryOffsets = boundaryOffsets;
+        this.boundaryVertices = boundaryVertices;
+        this.boundaryIndex = boundaryIndex;
+        this.cliqueOffsets = cliqueOffsets;
+    }
+
+    int levels() {
+        return shifts.length;
+    }
+
+    /**
+     * Returns the number of cells at the given level.
+     */
+    int cells(int level) {
+        return boundaryOffsets[level].length - 1;
+    }
+
+    /**
+     * Returns the cell of vertex v at the given level.
+     */
+    int cell(int level, int v) {
+        return cellCodes[v] >>> shifts[level];
+    }
+
+    /**
+     * Partitions g with the default CELL_SIZES, printing how it went if
+     * GraphDB.VERBOSE_PROPERTY is set.
+     */
+    static CellPartition build(GraphDB g) {
+        return build(g, CELL_SIZES);
+    }
+
+    /**
+     * Partitions g into levels of cells no bigger than the given sizes, smallest first,
+     * printing how it went if GraphDB.VERBOSE_PROPERTY is set.
+     */
+    static CellPartition build(GraphDB g, int... cellSizes) {
+        long start = System.nanoTime();
+        int n = g.V();
+        // How many times the vertices are halved for each level; each level must be
+        // halved fewer times than the one below it
+        int[] depths = new int[cellSizes.length];
+        int levels = 0;
+        for (int size : cellSizes) {
+            int depth = 0;
+            while (depth < 30 && (long) size << depth < n) {
+                depth++;
+            }
+            if (depth > 0 && (levels == 0 || depth < depths[levels - 1])) {
+                depths[levels++] = depth;
+            }
+        }
+        int deepest = levels > 0 ? depths[0] : 0;
+        int[] shifts = new int[levels];
+        for (int l = 0; l < levels; l++) {
+            shifts[l] = deepest - depths[l];
+        }
+
+        int[] cellCodes = new int[n];
+        long[] keys = new long[n];
+        for (int v = 0; v < n; v++) {
+            keys[v] = v;
+        }
+        bisect(g, keys, 0, n, 0, deepest, 0, cellCodes);
+
+        // A vertex is on the boundary of its cell if an edge crosses to another cell
+        boolean[][] isBoundary = new boolean[levels][n];
+        for (int u = 0; u < n; u++) {
+            for (int e = g.edgeStart(u); e < g.edgeEnd(u); e++) {
+                int w = g.edgeTarget(e);
+                for (int l = 0; l < levels; l++) {
+                    if (cellCodes[u] >>> shifts[l] != cellCodes[w] >>> shifts[l]) {
+                        isBoundary[l][u] = true;
+                        isBoundary[l][w] = true;
+                    }
+                }
+            }
+        }
+        int[][] boundaryOffsets = new int[levels][];
+        int[][] boundaryVertices = new int[levels][];
+        int[][] boundaryIndex = new int[levels][];
+        int[][] cliqueOffsets = new int[levels][];
+        StringBuilder summary = new StringBuilder();
+        for (int l = 0; l < levels; l++) {
+            int cells = 1 << depths[l];
+            int[] offsets = new int[cells + 1];
+            for (int v = 0; v < n; v++) {
+                if (isBoundary[l][v]) {
+                    offsets[(cellCodes[v] >>> shifts[l]) + 1]++;
+                }
+            }
+            for (int c = 0; c < cells; c++) {
+                offsets[c + 1] += offsets[c];
+            }
+            int[] vertices = new int[offsets[cells]];
+            int[] index = new int[n];
+            Arrays.fill(index, -1);
+            int[] next = Arrays.copyOf(offsets, cells);
+            for (int v = 0; v < n; v++) {
+                if (isBoundary[l][v]) {
+                    int c = cellCodes[v] >>> shifts[l];
+                    index[v] = next[c] - offsets[c];
+                    vertices[next[c]++] = v;
+                }
+            }
+            int[] cliques = new int[cells + 1];
+            for (int c = 0; c < cells; c++) {
+                int k = offsets[c + 1] - offsets[c];
+                cliques[c + 1] = Math.addExact(cliques[c], k * k);
+            }
+            boundaryOffsets[l] = offsets;
+            boundaryVertices[l] = vertices;
+            boundaryIndex[l] = index;
+            cliqueOffsets[l] = cliques;
+            summary.append(String.format("%n  level %d: %d cells, %d boundary vertices, "
+                    + "%d clique entries", l, cells, vertices.length, cliques[cells]));
+        }
+        if (GraphDB.verbose()) {
+            System.out.println(String.format("Partitioned %d vertices into %d levels in %.1f ms:%s",
+                    n, levels, (System.nanoTime() - start) / 1e6, summary));
+        }
+        return new CellPartition(g.fingerprint(null), cellCodes, shifts, boundaryOffsets,
+                boundaryVertices, boundaryIndex, cliqueOffsets);
+    }
+
+    /* Splits the vertices in keys[lo..hi) (in the low 32 bits) in half by coordinate, and
+     * each half again, until they have been halved deepest times, and records the cell
+     * they end up in. */
+    private static void bisect(GraphDB g, long[] keys, int lo, int hi, int depth,
+                               int deepest, int code, int[] cellCodes) {
+        if (depth == deepest || hi - lo <= 1) {
+            int cellCode = code << (deepest - depth);
+            for (int i = lo; i < hi; i++) {
+                cellCodes[(int) keys[i]] = cellCode;
+            }
+            return;
+        }
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        for (int i = lo; i < hi; i++) {
+            int v = (int) keys[i];
+            minLat = Math.min(minLat, g.latAt(v));
+            maxLat = Math.max(maxLat, g.latAt(v));
+            minLon = Math.min(minLon, g.lonAt(v));
+            maxLon = Math.max(maxLon, g.lonAt(v));
+        }
+        // Degrees of longitude shrink away from the equator
+        boolean byLon = (maxLon - minLon) * Math.cos(Math.toRadians((minLat + maxLat) / 2))
+                > maxLat - minLat;
+        for (int i = lo; i < hi; i++) {
+            int v = (int) keys[i];
+            int coordinate = GraphDB.toFixedPoint(byLon ? g.lonAt(v) : g.latAt(v));
+            keys[i] = (long) coordinate << 32 | v;
+        }
+        Arrays.sort(keys, lo, hi);
+        for (int i = lo; i < hi; i++) {
+            keys[i] &= 0xFFFFFFFFL;
+        }
+        int mid = (lo + hi) >>> 1;
+        bisect(g, keys, lo, mid, depth + 1, deepest, code << 1, cellCodes);
+        bisect(g, keys, mid, hi, depth + 1, deepest, code << 1 | 1, cellCodes);
+    }
+
+    /**
+     * Customizes an overlay on this partition for routing on g by metric.
+     */
+    Overlay customize(GraphDB g, Metric metric) {
+        float[] weights = g.weights(metric);
+        if (weights == null) {
+            weights = new float[g.E()];
+            for (int e = 0; e < weights.length; e++) {
+                weights[e] = g.weight(metric, e);
+            }
+        }
+        return customize(g, weights);
+    }
+
+    /**
+     * Customizes an overlay on this partition for routing on g with the given weight for
+     * each edge, such as a metric's weights with closed roads set to infinity. g must
+     * have the vertices and edges this partition was made for.
+     */
+    Overlay customize(GraphDB g, float[] weights) {
+        return Overlay.customize(this, g, weights);
+    }
+}
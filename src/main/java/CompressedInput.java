@@ -0,0 +1,254 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Opens OSM files that may be compressed with gzip (.gz) or bzip2 (.bz2), so extracts
+ * can stay compressed on disk. The compression is recognized from the first bytes of the
+ * file, not its name.
+ * <p>
+ * A compressed file is inflated on a background thread into a RingBufferInputStream,
+ * and the reader takes bytes out of the ring. As long as the ring isn't empty the reader
+ * never waits on the decompressor, and the decompressor keeps working while the reader
+ * is busy building the graph.
+ */
+class CompressedInput {
+    /** Bytes of decompressed data the background thread may get ahead by. */
+    static final int RING_SIZE = 4 << 20;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** The compression formats we recognize. */
+    enum Format {
+        NONE, GZIP, BZIP2
+    }
+
+    /**
+     * Returns the compression of a file starting with the given bytes.
+     */
+    static Format detect(byte[] magic, int length) {
+        if (length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            return Format.GZIP;
+        }
+        if (length >= 3 && magic[0] == 'B' && magic[1] == 'Z' && magic[2] == 'h') {
+            return Format.BZIP2;
+        }
+        return Format.NONE;
+    }
+
+    /**
+     * Returns path without a trailing .gz or .bz2, so the name of the data format inside
+     * (.osm.xml, .osm.pbf) can be checked.
+     */
+    static String stripCompressionExtension(String path) {
+        if (path.endsWith(".gz")) {
+            return path.substring(0, path.length() - ".gz".length());
+        } else if (path.endsWith(".bz2")) {
+            return path.substring(0, path.length() - ".bz2".length());
+        }
+        return path;
+    }
+
+    /**
+     * Opens file for reading, decompressing it in the background if it is compressed.
+     *
+     * @param file The file to read.
+     * @return A stream of the (decompressed) contents, which the caller must close.
+     * @throws IOException If the file can't be opened.
+     */
+    static InputStream open(File file) throws IOException {
+        InputStream raw = new BufferedInputStream(new FileInputStream(file), BUFFER_SIZE);
+        try {
+            byte[] magic = new byte[3];
+            raw.mark(magic.length);
+            int length = 0;
+            while (length < magic.length) {
+                int n = raw.read(magic, length, magic.length - length);
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+            }
+            raw.reset();
+
+            switch (detect(magic, length)) {
+                case GZIP:
+                    return new RingBufferInputStream(new GZIPInputStream(raw, BUFFER_SIZE),
+                            RING_SIZE, "gzip");
+                case BZIP2:
+                    return new RingBufferInputStream(new BZip2CompressorInputStream(raw, true),
+                            RING_SIZE, "bzip2");
+                default:
+                    return raw;
+            }
+        } catch (IOException | RuntimeException e) {
+            raw.close();
+            throw e;
+        }
+    }
+
+    /**
+     * An input stream fed by a background thread that copies another stream into a ring
+     * buffer. The producer thread reads straight into the free part of the ring, and the
+     * consumer copies out of the filled part; the two only synchronize to move the
+     * counters along, or to wait when the ring is full or empty. An exception thrown by
+     * the source is rethrown to the consumer once it has read everything before it.
+     */
+    static class RingBufferInputStream extends InputStream {
+        private final InputStream source;
+        private final String name;
+        private final byte[] ring;
+        private final Thread producer;
+
+        /* Total bytes ever written to and read from the ring; guarded by this. */
+        private long written;
+        private long read;
+        private boolean finished;
+        private boolean closed;
+        private IOException error;
+
+        /* Time the producer spent reading the source, and the consumer spent waiting. */
+        private long produceNanos;
+        private long consumerWaitNanos;
+
+        RingBufferInputStream(InputStream source, int size, String name) {
+            this.source = source;
+            this.name = name;
+            this.ring = new byte[size];
+            this.producer = new Thread(this::produce, "decompress-" + name);
+            producer.setDaemon(true);
+            producer.start();
+        }
+
+        private void produce() {
+            try {
+                while (true) {
+                    int start;
+                    int length;
+                    synchronized (this) {
+                        while (!closed && written - read == ring.length) {
+                            wait();
+                        }
+                        if (closed) {
+                            return;
+                        }
+                        start = (int) (written % ring.length);
+                        length = (int) Math.min(ring.length - start,
+                                ring.length - (written - read));
+                    }
+
+                    long t = System.nanoTime();
+                    int n = source.read(ring, start, length);
+                    produceNanos += System.nanoTime() - t;
+
+                    synchronized (this) {
+                        if (n < 0) {
+                            finished = true;
+                            notifyAll();
+                            return;
+                        }
+                        written += n;
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                finish(e);
+            } catch (RuntimeException e) {
+                finish(new IOException("Decompressing " + name + " failed", e));
+            } catch (InterruptedException e) {
+                finish(new IOException("Interrupted while decompressing " + name, e));
+            } finally {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    finish(e);
+                }
+            }
+        }
+
+        private synchronized void finish(IOException e) {
+            if (error == null && !finished) {
+                error = e;
+            }
+            finished = true;
+            notifyAll();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] one = new byte[1];
+            int n = read(one, 0, 1);
+            return n < 0 ? -1 : one[0] & 0xff;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            if (len == 0) {
+                return 0;
+            }
+            if (written == read) {
+                long t = System.nanoTime();
+                while (written == read && !finished) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted while waiting for " + name, e);
+                    }
+                }
+                consumerWaitNanos += System.nanoTime() - t;
+                if (written == read) {
+                    if (error != null) {
+                        throw error;
+                    }
+                    return -1;
+                }
+            }
+            int start = (int) (read % ring.length);
+            int n = (int) Math.min(len, Math.min(written - read, ring.length - start));
+            System.arraycopy(ring, start, b, off, n);
+            read += n;
+            notifyAll();
+            return n;
+        }
+
+        @Override
+        public synchronized int available() {
+            return (int) Math.min(Integer.MAX_VALUE, written - read);
+        }
+
+        /**
+         * Stops the background thread and closes the source. If the whole stream was
+         * read and GraphDB.VERBOSE_PROPERTY is set, prints how long decompressing took
+         * and how long the reader waited on it.
+         */
+        @Override
+        public void close() throws IOException {
+            boolean complete;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                complete = finished && error == null && written == read;
+                notifyAll();
+            }
+            try {
+                producer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (complete && GraphDB.verbose()) {
+                System.out.println(String.format(
+                        "Decompressed %.1f MB of %s in %.1f ms; reader waited %.1f ms",
+                        written / 1e6, name, produceNanos / 1e6, consumerWaitNanos / 1e6));
+            }
+        }
+    }
+}
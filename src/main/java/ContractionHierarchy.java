@@ -0,0 +1,615 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A contraction hierarchy over a GraphDB for one Metric. It answers route queries by
+ * searching only a small part of the graph, however long the route.
+ * <p>
+ * Preprocessing contracts the vertices one at a time, least important first. Each
+ * contracted vertex is taken out of the graph. Wherever the best route between two of
+ * its remaining neighbours went through it, a shortcut edge between them is added in its
+ * place, unless a local search (the witness search) finds another route that is as good.
+ * A vertex's importance is the edge difference (shortcuts added minus edges taken out)
+ * plus how many of its neighbours are already contracted and how many levels of
+ * shortcuts it would sit on, which keeps contraction spread evenly over the map.
+ * Priorities are first computed on several threads (WORKERS_PROPERTY) and then updated
+ * lazily: whenever a vertex is contracted, and again when it comes up for contraction.
+ * <p>
+ * Every edge and shortcut that remains goes from a vertex to one contracted after it
+ * (a higher rank). A query is two Dijkstra searches that only go up: forward from the
+ * start, and backward from the destination along edges in reverse. They meet at the
+ * highest vertex of the best route. A search skips vertices that the other side of the
+ * hierarchy shows it reached the long way round (stall-on-demand). Shortcuts remember
+ * the vertex they bypass, so the route is unpacked back into edges of the graph.
+ * <p>
+ * Building one takes a while, so it is done offline (see main) and written next to the
+ * OSM file, and GraphDB.load attaches it to the graph if it was built for the same
+ * graph. See
+ * <a href="https://en.wikipedia.org/wiki/Contraction_hierarchies">Contraction hierarchies</a>.
+ */
+class ContractionHierarchy {
+    /**
+     * System property for the number of threads that compute the initial vertex
+     * priorities. Defaults to the number of cores.
+     */
+    static final String WORKERS_PROPERTY = "bearmaps.ch.workers";
+
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int MAGIC = 0x424D4348; // "BMCH"
+    /** Bump whenever the layout below changes so old hierarchies are rebuilt. */
+    static final int VERSION = 2;
+    /** A witness search gives up after settling this many vertices and the shortcut
+     * is added anyway, which costs an edge but never a wrong route. */
+    private static final int WITNESS_SETTLE_LIMIT = 500;
+    /** The same when only working out a priority, where a few extra shortcuts counted
+     * just make the vertex look a little less attractive. */
+    private static final int PRIORITY_SETTLE_LIMIT = 50;
+    /** Vertices per task when computing the initial priorities. */
+    private static final int PRIORITY_BATCH = 1024;
+
+    final Metric metric;
+    /* rank[v] is the order vertex v was contracted in, from 0. */
+    final int[] rank;
+    /* The upward edges, in CSR form. Vertex v's edges to higher vertices go to
+     * upTargets[upOffsets[v]] up to (but not including) upTargets[upOffsets[v + 1]],
+     * weighing upWeights and bypassing upMiddles (-1 for an edge of the graph itself).
+     * downSources and the rest likewise list, for each v, the higher vertices with an
+     * edge to v. */
+    final int[] upOffsets;
+    final int[] upTargets;
+    final double[] upWeights;
+    final int[] upMiddles;
+    final int[] downOffsets;
+    final int[] downSources;
+    final double[] downWeights;
+    final int[] downMiddles;
+    /* The fingerprint of the graph this was built for (see GraphDB.fingerprint). */
+    final long graphFingerprint;
+
+    private ContractionHierarchy(Metric metric, int[] rank, int[] upOffsets, int[] upTargets,
+                                 double[] upWeights, int[] upMiddles, int[] downOffsets,
+                                 int[] downSources, double[] downWeights, int[] downMiddles,
+                                 long graphFingerprint) {
+        this.metric = metric;
+        this.rank = rank;
+        this.upOffsets = upOffsets;
+        this.upTargets = upTargets;
+        this.upWeights = upWeights;
+        this.upMiddles = upMiddles;
+        this.downOffsets = downOffsets;
+        this.downSources = downSources;
+        this.downWeights = downWeights;
+        this.downMiddles = downMiddles;
+        this.graphFingerprint = graphFingerprint;
+    }
+
+    /**
+     * Builds the hierarchy for routing on g by metric, printing how it went if
+     * GraphDB.VERBOSE_PROPERTY is set.
+     */
+    static ContractionHierarchy build(GraphDB g, Metric metric) {
+        long start = System.nanoTime();
+        Contraction contraction = new Contraction(g, metric);
+        int workers = Integer.getInteger(WORKERS_PROPERTY,
+                Runtime.getRuntime().availableProcessors());
+        contraction.initialPriorities(Math.max(1, workers));
+        long prioritized = System.nanoTime();
+        contraction.contractAll();
+        ContractionHierarchy ch = contraction.finish(g.fingerprint(metric));
+        if (GraphDB.verbose()) {
+            System.out.println(String.format("Built %s contraction hierarchy for %d vertices "
+                            + "and %d edges: %d shortcuts, %d upward edges; priorities on %d "
+                            + "threads in %.1f ms, contraction in %.1f ms", metric, g.V(), g.E(),
+                    contraction.shortcuts, ch.upTargets.length + ch.downSources.length,
+                    Math.max(1, workers), (prioritized - start) / 1e6,
+                    (System.nanoTime() - prioritized) / 1e6));
+        }
+        return ch;
+    }
+
+    /**
+     * The best route from any of the sources to any of the targets, like Router's
+     * searches: source i starts with sourceDist[i] already travelled, and finishing at
+     * target j costs an extra targetDist[j]. If stats isn't null, the vertices settled
+     * are recorded in it.
+     *
+     * @return The dense vertices of the route, from a source to a target, or an empty
+     * array if no target can be reached.
+     */
+    int[] route(int[] sources, double[] sourceDist, int[] targets, double[] targetDist,
+                Router.SearchStats stats) {
+        try (SearchWorkspace forward = SearchWorkspace.borrow(rank.length);
+             SearchWorkspace backward = SearchWorkspace.borrow(rank.length)) {
+            return route(sources, sourceDist, targets, targetDist, stats, forward, backward);
+        }
+    }
+
+    private int[] route(int[] sources, double[] sourceDist, int[] targets,
+                        double[] targetDist, Router.SearchStats stats,
+                        SearchWorkspace forward, SearchWorkspace backward) {
+        // Best complete route found so far, and the vertex the two sides meet at on it
+        double best = Double.POSITIVE_INFINITY;
+        int meet = -1;
+        for (int i = 0; i < sources.length; i++) {
+            int s = sources[i];
+            if (sourceDist[i] < forward.dist(s)) {
+                forward.reach(s, sourceDist[i], -1);
+                forward.heap.push(s, sourceDist[i]);
+            }
+        }
+        for (int i = 0; i < targets.length; i++) {
+            int t = targets[i];
+            if (targetDist[i] < backward.dist(t)) {
+                backward.reach(t, targetDist[i], -1);
+                backward.heap.push(t, targetDist[i]);
+                if (forward.dist(t) + targetDist[i] < best) {
+                    best = forward.dist(t) + targetDist[i];
+                    meet = t;
+                }
+            }
+        }
+
+        // Unlike bidirectional A*, neither side can stop for the other: the best route
+        // may climb much further on one side than on the other. Each side stops once
+        // nothing left in its fringe can beat the best route.
+        int settled = 0;
+        while (true) {
+            boolean forwardOpen = !forward.heap.isEmpty() && forward.heap.minKey() < best;
+            boolean backwardOpen = !backward.heap.isEmpty() && backward.heap.minKey() < best;
+            if (!forwardOpen && !backwardOpen) {
+                break;
+            }
+            boolean isForward = forwardOpen
+                    && (!backwardOpen || forward.heap.size() <= backward.heap.size());
+            SearchWorkspace side = isForward ? forward : backward;
+            SearchWorkspace other = isForward ? backward : forward;
+            int[] offsets = isForward ? upOffsets : downOffsets;
+            int[] ends = isForward ? upTargets : downSources;
+            double[] weights = isForward ? upWeights : downWeights;
+
+            int v = side.heap.pop();
+            settled++;
+            double distToV = side.dist(v);
+            if (stalled(v, distToV, side, isForward)) {
+                continue;
+            }
+            for (int a = offsets[v]; a < offsets[v + 1]; a++) {
+                int w = ends[a];
+                double distToW = distToV + weights[a];
+                if (distToW < side.dist(w)) {
+                    side.reach(w, distToW, v);
+                    side.heap.push(w, distToW);
+                    if (distToW + other.dist(w) < best) {
+                        best = distToW + other.dist(w);
+                        meet = w;
+                    }
+                }
+            }
+        }
+        if (stats != null) {
+            stats.settled = settled;
+        }
+
+        if (meet < 0) {
+            // Some roads do NOT connect to others
+            System.out.println("No valid path to that destination; try flying");
+            return new int[0];
+        }
+
+        // Up from a source to the meeting vertex, then down to a target
+        int length = 0;
+        for (int v = meet; v != -1; v = forward.parent(v)) {
+            length++;
+        }
+        int[] hops = new int[length];
+        for (int v = meet; v != -1; v = forward.parent(v)) {
+            hops[--length] = v;
+        }
+        Path path = new Path();
+        path.add(hops[0]);
+        for (int i = 1; i < hops.length; i++) {
+            unpack(hops[i - 1], hops[i], path);
+        }
+        for (int v = meet; backward.parent(v) != -1; v = backward.parent(v)) {
+            unpack(v, backward.parent(v), path);
+        }
+        return path.toArray();
+    }
+
+    /* True if a search can reach v more cheaply than distToV by coming down to it from a
+     * higher vertex, which means the route it reached v by isn't a best one and needn't
+     * be followed further up. */
+    private boolean stalled(int v, double distToV, SearchWorkspace side, boolean isForward) {
+        int[] offsets = isForward ? downOffsets : upOffsets;
+        int[] ends = isForward ? downSources : upTargets;
+        double[] weights = isForward ? downWeights : upWeights;
+        for (int a = offsets[v]; a < offsets[v + 1]; a++) {
+            if (side.dist(ends[a]) + weights[a] < distToV) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Adds the graph vertices after u along the edge or shortcut from u to w, ending
+     * with w. */
+    private void unpack(int u, int w, Path path) {
+        int middle = rank[u] < rank[w]
+                ? upMiddles[find(upOffsets, upTargets, u, w)]
+                : downMiddles[find(downOffsets, downSources, w, u)];
+        if (middle < 0) {
+            path.add(w);
+        } else {
+            unpack(u, middle, path);
+            unpack(middle, w, path);
+        }
+    }
+
+    /* The index of the edge between v and end in v's list in the given CSR arrays. */
+    private static int find(int[] offsets, int[] ends, int v, int end) {
+        for (int a = offsets[v]; a < offsets[v + 1]; a++) {
+            if (ends[a] == end) {
+                return a;
+            }
+        }
+        throw new IllegalStateException("No edge between " + v + " and " + end);
+    }
+
+    /**
+     * Returns where the hierarchy for the given OSM file and metric lives.
+     */
+    static File hierarchyFile(String dbPath, Metric metric) {
+        return new File(dbPath + ".ch-" + metric.name().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Writes the hierarchy to file (see PreprocessedFile). The payload: the upward and
+     * downward edge counts, rank, then the offsets, ends, weights and middles of the
+     * upward edges and of the downward lists.
+     *
+     * @throws IOException If the file could not be written.
+     */
+    void write(File file) throws IOException {
+        PreprocessedFile.write(file, MAGIC, VERSION, metric, rank.length, graphFingerprint,
+                out -> {
+                    out.writeInt(upTargets.length);
+                    out.writeInt(downSources.length);
+                    PreprocessedFile.writeInts(out, rank);
+                    PreprocessedFile.writeInts(out, upOffsets);
+                    PreprocessedFile.writeInts(out, upTargets);
+                    PreprocessedFile.writeDoubles(out, upWeights);
+                    PreprocessedFile.writeInts(out, upMiddles);
+                    PreprocessedFile.writeInts(out, downOffsets);
+                    PreprocessedFile.writeInts(out, downSources);
+                    PreprocessedFile.writeDoubles(out, downWeights);
+                    PreprocessedFile.writeInts(out, downMiddles);
+                });
+    }
+
+    /**
+     * Reads a hierarchy written by write, if it was built for routing on g by metric.
+     *
+     * @return The hierarchy, or null if the file is missing, from another format version,
+     * fails its checksum, or was built for another metric or graph.
+     * @throws IOException If the file exists but could not be read.
+     */
+    static ContractionHierarchy read(File file, GraphDB g, Metric metric) throws IOException {
+        PreprocessedFile in = PreprocessedFile.read(file, MAGIC, VERSION, g, metric);
+        if (in == null) {
+            return null;
+        }
+        ByteBuffer buf = in.payload;
+        int n = g.V();
+        int numUp = buf.getInt();
+        int numDown = buf.getInt();
+        int[] rank = PreprocessedFile.readInts(buf, n);
+        int[] upOffsets = PreprocessedFile.readInts(buf, n + 1);
+        int[] upTargets = PreprocessedFile.readInts(buf, numUp);
+        double[] upWeights = PreprocessedFile.readDoubles(buf, numUp);
+        int[] upMiddles = PreprocessedFile.readInts(buf, numUp);
+        int[] downOffsets = PreprocessedFile.readInts(buf, n + 1);
+        int[] downSources = PreprocessedFile.readInts(buf, numDown);
+        double[] downWeights = PreprocessedFile.readDoubles(buf, numDown);
+        int[] downMiddles = PreprocessedFile.readInts(buf, numDown);
+        return new ContractionHierarchy(metric, rank, upOffsets, upTargets, upWeights,
+                upMiddles, downOffsets, downSources, downWeights, downMiddles,
+                in.graphFingerprint);
+    }
+
+    /**
+     * Builds the hierarchies for an OSM file and writes them next to it, for GraphDB.load
+     * to pick up. Usage: ContractionHierarchy [osm file] [metric...]; with no metrics
+     * given, builds one for every metric. Set GraphDB.VERBOSE_PROPERTY to see how each
+     * build went.
+     */
+    public static void main(String[] args) throws IOException {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        List<Metric> metrics = PreprocessedFile.metrics(args, 1);
+        GraphDB g = GraphDB.load(path);
+        for (Metric metric : metrics) {
+            File file = hierarchyFile(path, metric);
+            build(g, metric).write(file);
+            System.out.println(String.format("Wrote %s (%.1f MB)", file, file.length() / 1e6));
+        }
+    }
+
+    /* A growable list of vertices, for unpacking a route into. */
+    private static class Path {
+        private int[] vertices = new int[64];
+        private int size;
+
+        void add(int v) {
+            if (size == vertices.length) {
+                vertices = Arrays.copyOf(vertices, 2 * size);
+            }
+            vertices[size++] = v;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(vertices, size);
+        }
+    }
+
+    /* Edges to or from one vertex of the graph being contracted: the vertex at the other
+     * end, the weight, and the vertex a shortcut bypasses (-1 for an edge of the graph).
+     * There is at most one edge per other end, the lightest. */
+    private static class Arcs {
+        int[] ends = new int[4];
+        double[] weights = new double[4];
+        int[] middles = new int[4];
+        int size;
+
+        int indexOf(int end) {
+            for (int i = 0; i < size; i++) {
+                if (ends[i] == end) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        /* Adds an edge to end, or lowers the weight of the one there is. Returns false if
+         * there already is one at least as light. */
+        boolean lower(int end, double weight, int middle) {
+            int i = indexOf(end);
+            if (i >= 0) {
+                if (weights[i] <= weight) {
+                    return false;
+                }
+                weights[i] = weight;
+                middles[i] = middle;
+                return true;
+            }
+            if (size == ends.length) {
+                ends = Arrays.copyOf(ends, 2 * size);
+                weights = Arrays.copyOf(weights, 2 * size);
+                middles = Arrays.copyOf(middles, 2 * size);
+            }
+            ends[size] = end;
+            weights[size] = weight;
+            middles[size] = middle;
+            size++;
+            return true;
+        }
+
+        void remove(int end) {
+            int i = indexOf(end);
+            if (i >= 0) {
+                size--;
+                ends[i] = ends[size];
+                weights[i] = weights[size];
+                middles[i] = middles[size];
+            }
+        }
+    }
+
+    /* The state of a hierarchy being built: the graph of vertices not yet contracted,
+     * with the shortcuts added so far, and the contraction order. Contracted vertices
+     * keep their lists, which then hold just their edges to higher vertices. */
+    private static class Contraction {
+        final int n;
+        final Metric metric;
+        final Arcs[] out;
+        final Arcs[] in;
+        final int[] rank;
+        final int[] contractedNeighbours;
+        final int[] level;
+        final VertexHeap queue;
+        int shortcuts;
+
+        Contraction(GraphDB g, Metric metric) {
+            this.n = g.V();
+            this.metric = metric;
+            out = new Arcs[n];
+            in = new Arcs[n];
+            for (int v = 0; v < n; v++) {
+                out[v] = new Arcs();
+                in[v] = new Arcs();
+            }
+            for (int v = 0; v < n; v++) {
+                for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                    int w = g.edgeTarget(e);
+                    if (w != v && out[v].lower(w, g.weight(metric, e), -1)) {
+                        in[w].lower(v, g.weight(metric, e), -1);
+                    }
+                }
+            }
+            rank = new int[n];
+            contractedNeighbours = new int[n];
+            level = new int[n];
+            queue = new VertexHeap(n);
+        }
+
+        /* Works out every vertex's priority, on the given number of threads. Simulating
+         * a contraction only reads the graph, so the vertices can go in any order. */
+        void initialPriorities(int workers) {
+            double[] priorities = new double[n];
+            ExecutorService pool = Executors.newFixedThreadPool(workers);
+            try {
+                List<Future<?>> batches = new ArrayList<>();
+                for (int first = 0; first < n; first += PRIORITY_BATCH) {
+                    int from = first;
+                    int to = Math.min(n, first + PRIORITY_BATCH);
+                    batches.add(pool.submit(() -> {
+                        for (int v = from; v < to; v++) {
+                            priorities[v] = priority(v);
+                        }
+                    }));
+                }
+                for (Future<?> batch : batches) {
+                    batch.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while computing priorities", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Computing priorities failed", e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+            for (int v = 0; v < n; v++) {
+                queue.push(v, priorities[v]);
+            }
+        }
+
+        void contractAll() {
+            int next = 0;
+            while (!queue.isEmpty()) {
+                int v = queue.pop();
+                // Its priority may have gone up since it was last worked out; if so,
+                // put it back and look again
+                double priority = priority(v);
+                if (!queue.isEmpty() && priority > queue.minKey()) {
+                    queue.push(v, priority);
+                    continue;
+                }
+                rank[v] = next++;
+                contract(v);
+            }
+        }
+
+        private void contract(int v) {
+            shortcuts += shortcuts(v, true);
+            Arcs outs = out[v];
+            Arcs ins = in[v];
+            for (int i = 0; i < ins.size; i++) {
+                out[ins.ends[i]].remove(v);
+            }
+            for (int i = 0; i < outs.size; i++) {
+                in[outs.ends[i]].remove(v);
+            }
+            for (int pass = 0; pass < 2; pass++) {
+                Arcs arcs = pass == 0 ? ins : outs;
+                for (int i = 0; i < arcs.size; i++) {
+                    int u = arcs.ends[i];
+                    if (pass == 1 && ins.indexOf(u) >= 0) {
+                        continue;
+                    }
+                    contractedNeighbours[u]++;
+                    level[u] = Math.max(level[u], level[v] + 1);
+                    queue.set(u, priority(u));
+                }
+            }
+        }
+
+        /* How much contracting v would cost the hierarchy; the lowest goes first. */
+        double priority(int v) {
+            int edgeDifference = shortcuts(v, false) - in[v].size - out[v].size;
+            return 2 * edgeDifference + contractedNeighbours[v] + level[v];
+        }
+
+        /* Counts the shortcuts that contracting v needs, and adds them if add is set. */
+        private int shortcuts(int v, boolean add) {
+            Arcs ins = in[v];
+            Arcs outs = out[v];
+            double maxOut = 0;
+            for (int j = 0; j < outs.size; j++) {
+                maxOut = Math.max(maxOut, outs.weights[j]);
+            }
+            int count = 0;
+            for (int i = 0; i < ins.size; i++) {
+                int u = ins.ends[i];
+                double toV = ins.weights[i];
+                try (SearchWorkspace workspace = SearchWorkspace.borrow(n)) {
+                    witnessSearch(u, v, toV + maxOut,
+                            add ? WITNESS_SETTLE_LIMIT : PRIORITY_SETTLE_LIMIT, workspace);
+                    for (int j = 0; j < outs.size; j++) {
+                        int w = outs.ends[j];
+                        double via = toV + outs.weights[j];
+                        if (w == u || workspace.dist(w) <= via) {
+                            continue;
+                        }
+                        count++;
+                        if (add && out[u].lower(w, via, v)) {
+                            in[w].lower(u, via, v);
+                        }
+                    }
+                }
+            }
+            return count;
+        }
+
+        /* Dijkstra from u over the graph without v, until it passes maxDist or settles
+         * settleLimit vertices. Any distance it finds, settled or not, is the
+         * length of a route that avoids v. */
+        private void witnessSearch(int u, int v, double maxDist, int settleLimit,
+                                   SearchWorkspace workspace) {
+            VertexHeap fringe = workspace.heap;
+            workspace.reach(u, 0, -1);
+            fringe.push(u, 0);
+            int settled = 0;
+            while (!fringe.isEmpty() && fringe.minKey() <= maxDist
+                    && settled < settleLimit) {
+                int x = fringe.pop();
+                settled++;
+                double distToX = workspace.dist(x);
+                Arcs arcs = out[x];
+                for (int i = 0; i < arcs.size; i++) {
+                    int y = arcs.ends[i];
+                    double distToY = distToX + arcs.weights[i];
+                    if (y != v && distToY < workspace.dist(y)) {
+                        workspace.reach(y, distToY, x);
+                        fringe.push(y, distToY);
+                    }
+                }
+            }
+        }
+
+        ContractionHierarchy finish(long graphFingerprint) {
+            int[] upOffsets = new int[n + 1];
+            int[] downOffsets = new int[n + 1];
+            for (int v = 0; v < n; v++) {
+                upOffsets[v + 1] = upOffsets[v] + out[v].size;
+                downOffsets[v + 1] = downOffsets[v] + in[v].size;
+            }
+            int[] upTargets = new int[upOffsets[n]];
+            double[] upWeights = new double[upOffsets[n]];
+            int[] upMiddles = new int[upOffsets[n]];
+            int[] downSources = new int[downOffsets[n]];
+            double[] downWeights = new double[downOffsets[n]];
+            int[] downMiddles = new int[downOffsets[n]];
+            for (int v = 0; v < n; v++) {
+                Arcs arcs = out[v];
+                System.arraycopy(arcs.ends, 0, upTargets, upOffsets[v], arcs.size);
+                System.arraycopy(arcs.weights, 0, upWeights, upOffsets[v], arcs.size);
+                System.arraycopy(arcs.middles, 0, upMiddles, upOffsets[v], arcs.size);
+                arcs = in[v];
+                System.arraycopy(arcs.ends, 0, downSources, downOffsets[v], arcs.size);
+                System.arraycopy(arcs.weights, 0, downWeights, downOffsets[v], arcs.size);
+                System.arraycopy(arcs.middles, 0, downMiddles, downOffsets[v], arcs.size);
+            }
+            return new ContractionHierarchy(metric, rank, upOffsets, upTargets, upWeights,
+                    upMiddles, downOffsets, downSources, downWeights, downMiddles,
+                    graphFingerprint);
+        }
+    }
+}
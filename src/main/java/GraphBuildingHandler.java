@@ -4,8 +4,7 @@ import org.xml.sax.helpers.DefaultHandler;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.List;
 
 /**
  * Parses OSM XML files using an XML SAX parser. Used to construct the graph of roads for
@@ -23,6 +22,11 @@ import java.util.Set;
  * file, and your override method tells Java what to do every time it gets to the next
  * element in the file. This is a very common but strange-when-you-first-see it pattern.
  * It is similar to the Visitor pattern we discussed for graphs.
+ * <p>
+ * The SAX methods only pick the attributes out of the XML; the actual graph building
+ * happens in the typed callbacks (node, startWay, wayNode, wayTag, endWay). Other
+ * readers, such as OsmXmlScanner and the multi-threaded OsmPipeline, feed those callbacks
+ * directly.
  *
  * @author Alan Yao, Maurice Lee
  */
@@ -32,19 +36,20 @@ public class GraphBuildingHandler extends DefaultHandler {
      * possible. Note that in Berkeley, many of the campus roads are tagged as motor vehicle
      * roads, but in practice we walk all over them with such impunity that we forget cars can
      * actually drive on them.
+     * <p>
+     * A type's position in this list is its highway class number (see highwayClass).
      */
-    private static final Set<String> ALLOWED_HIGHWAY_TYPES = new HashSet<>(Arrays.asList
+    private static final List<String> ALLOWED_HIGHWAY_TYPES = Arrays.asList
             ("motorway", "trunk", "primary", "secondary", "tertiary", "unclassified",
                     "residential", "living_street", "motorway_link", "trunk_link", "primary_link",
-                    "secondary_link", "tertiary_link"));
+                    "secondary_link", "tertiary_link");
     private final GraphDB g;
     private String activeState = "";
     // @Source: Flag inspired by project videos
     // Use it to indicate if we hit all the conditions such that we add edges to route graph
-//    private boolean flag = false;
-//    ArrayList<Long> potentialEdges = new ArrayList<>();
     private ArrayList<Long> potentialEdges = new ArrayList<>();
-    private boolean isHighway = false;
+    private WayTags tags = new WayTags();
+    private long wayId;
 
 
     /**
@@ -56,6 +61,21 @@ public class GraphBuildingHandler extends DefaultHandler {
         this.g = g;
     }
 
+    /**
+     * Returns true if a way with the given highway tag value is a road we route on.
+     */
+    static boolean isAllowedHighway(String type) {
+        return highwayClass(type) >= 0;
+    }
+
+    /**
+     * Returns the class number of a highway tag value, or -1 if it isn't a road we route
+     * on. Classes are numbered from 0 for motorway, roughly from fast to slow roads.
+     */
+    static int highwayClass(String type) {
+        return ALLOWED_HIGHWAY_TYPES.indexOf(type);
+    }
+
     /**
      * Called at the beginning of an element. Typically, you will want to handle each element in
      * here, and you may want to track the parent element.
@@ -74,86 +94,20 @@ public class GraphBuildingHandler extends DefaultHandler {
     @Override
     public void startElement(String uri, String localName, String qName, Attributes attributes)
             throws SAXException {
-        /* Some example code on how you might begin to parse XML files. */
         if (qName.equals("node")) {
             /* We encountered a new <node...> tag. */
-            activeState = "node";
-//            System.out.println("Node id: " + attributes.getValue("id"));
-//            System.out.println("Node lon: " + attributes.getValue("lon"));
-//            System.out.println("Node lat: " + attributes.getValue("lat"));
-            /* TODO ~DONE~ Use the above information to save a "node" to somewhere. */
-            /* Hint: A graph-like structure would be nice. */
-            double[] coordinates = {Double.parseDouble(attributes.getValue("lat")),
-                    Double.parseDouble(attributes.getValue("lon"))};
-            // ADD NODE OVERWRITES ADJ NOTES REMEMBER IF YOU ADD SOMEWHERE ELSE!
-            g.addNode(Long.parseLong(attributes.getValue("id")),
+            node(Long.parseLong(attributes.getValue("id")),
                     Double.parseDouble(attributes.getValue("lat")),
                     Double.parseDouble(attributes.getValue("lon")));
-//            g.nodes.put(Long.parseLong(attributes.getValue("id")), coordinates);
-
-
         } else if (qName.equals("way")) {
             /* We encountered a new <way...> tag. */
-            activeState = "way";
-
-            // Need to reset our flag and data structure of potential edges
-            potentialEdges = new ArrayList<>();
-            isHighway = false;
-
-//            System.out.println("Beginning a way...");
+            startWay(Long.parseLong(attributes.getValue("id")));
         } else if (activeState.equals("way") && qName.equals("nd")) {
             /* While looking at a way, we found a <nd...> tag. */
-//            System.out.println("Id of a node in this way: " + attributes.getValue("ref"));
-
-            /* TODO Use the above id to make "possible" connections between the nodes in this way */
-            /* Hint1: It would be useful to remember what was the last node in this way. */
-            /* Hint2: Not all ways are valid. So, directly connecting the nodes here would be
-            cumbersome since you might have to remove the connections if you later see a tag that
-            makes this way invalid. Instead, think of keeping a list of possible connections and
-            remember whether this way is valid or not. */
-//            ArrayList<Long> potentialEdges = new ArrayList<>();
-            this.potentialEdges.add(Long.parseLong(attributes.getValue("ref")));
-
-//            System.out.println("added " + Long.parseLong(attributes.getValue("ref"))); // my stmt
-
+            wayNode(Long.parseLong(attributes.getValue("ref")));
         } else if (activeState.equals("way") && qName.equals("tag")) {
             /* While looking at a way, we found a <tag...> tag. */
-            String k = attributes.getValue("k");
-            String v = attributes.getValue("v");
-//            if (k.equals("maxspeed")) {
-//                //System.out.println("Max Speed: " + v);
-//                /* TODO set the max speed of the "current way" here. */
-//                // TODO Come back to this for pathfinding
-            if (k.equals("highway")) { //was else if
-                //System.out.println("Highway type: " + v);
-                /* TODO Figure out whether this way and its connections are valid. */
-                for (String allowedType : ALLOWED_HIGHWAY_TYPES) {
-                    if (v.equals(allowedType)) {
-                        /* TODO add to graph */
-                        isHighway = true;
-//                        g.adj.put(Long.parseLong(attributes.getValue("id")), potentialEdges);
-//                        System.out.println("Did something!");
-                    }
-                }
-                /* Hint: Setting a "flag" is good enough! */
-//            } else if (k.equals("name")) {
-////                System.out.println("Way Name: " + v);
-//            }
-//            System.out.println("Tag with k=" + k + ", v=" + v + ".");
-            }
-            else if (activeState.equals("node") && qName.equals("tag")
-             && attributes.getValue("k")
-                   .equals("name")) {
-                    /* While looking at a node, we found a <tag...> with k="name". */
-                    /* TODO Create a location. */
-            /* Hint: Since we found this <tag...>
-            INSIDattributes.getValue("lon")E a node, we should probably remember which
-            node this tag belongs to. Remember XML is parsed top-to-bottom, so probably it's the
-            last node that you looked at (check the first if-case). */
-//                    System.out.println("Node's name: " + attributes.getValue("v"));
-                g.addLocation((attributes.getValue("v")), Double.parseDouble(attributes.getValue("lat")),
-                        Double.parseDouble(attributes.getValue("lon")));
-                }
+            wayTag(attributes.getValue("k"), attributes.getValue("v"));
         }
     }
 
@@ -172,24 +126,60 @@ public class GraphBuildingHandler extends DefaultHandler {
     @Override
     public void endElement(String uri, String localName, String qName) throws SAXException {
         if (qName.equals("way")) {
-            // TODO
-            /* We are done looking at a way. (We finished looking at the nodes, speeds, etc...)*/
-            /* Hint1: If you have stored the possible connections for this way, here's your
-            chance to actually connect the nodes together if the way is valid. */
-//            System.out.println("Finishing a way...");
-//            System.out.println(isHighway);
-            if (isHighway) {
-//                g.adj.put(currentID, potentialEdges);
-                int i = 0;
-                while (i < potentialEdges.size() - 1) {
-//                    System.out.println("adding " + potentialEdges.get(i) + " and " +
-//                    potentialEdges.get(i + 1) +" together");
-                    g.addEdge(potentialEdges.get(i), potentialEdges.get(i + 1));
-                    i++;
-                }
-//                potentialEdges = new ArrayList<>();
-//                isHighway = false;
+            endWay();
+        }
+    }
+
+    /**
+     * A node element with the given id and coordinates.
+     */
+    void node(long id, double lat, double lon) {
+        activeState = "node";
+        g.addNode(id, lat, lon);
+    }
+
+    /**
+     * The start of the way element with the given id.
+     */
+    void startWay(long id) {
+        activeState = "way";
+        wayId = id;
+
+        // Need to reset our tags and data structure of potential edges
+        potentialEdges = new ArrayList<>();
+        tags = new WayTags();
+    }
+
+    /**
+     * An nd element inside the current way. Not all ways are valid, so we only remember
+     * the possible connection until we know whether this way is a road.
+     */
+    void wayNode(long ref) {
+        this.potentialEdges.add(ref);
+    }
+
+    /**
+     * A tag element inside the current way. The highway tag decides whether it is a
+     * road; the name, maxspeed and oneway tags are kept with it (see WayTags).
+     */
+    void wayTag(String k, String v) {
+        tags.tag(k, v);
+    }
+
+    /**
+     * The end of the current way: we are done looking at its nodes and tags, so if it's a
+     * valid road we can actually connect the nodes together.
+     */
+    void endWay() {
+        if (tags.isRoad()) {
+            int i = 0;
+            while (i < potentialEdges.size() - 1) {
+                g.addEdge(potentialEdges.get(i), potentialEdges.get(i + 1));
+                i++;
             }
+            // Remember the road itself too, so later OsmChanges can find its edges
+            // and directions can name it
+            g.addWay(wayId, potentialEdges, tags);
         }
     }
 
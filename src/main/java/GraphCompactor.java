@@ -0,0 +1,130 @@
+/**
+ * Rebuilds a finished GraphDB without the dead weight that GraphPatch leaves behind: the
+ * vertices and ways it marked removed (GraphDB.removed, removedWays), vertices with no
+ * edges, and repeated edges between the same two vertices. Everything is renumbered
+ * densely and the indexes are built afresh instead of layered, so the result is like a
+ * graph parsed from scratch, and can be written to a GraphSnapshot.
+ * <p>
+ * Routes stay the same, except that ties between equally good routes may be broken
+ * differently. GraphReloader compacts a patched graph once enough has been removed
+ * (see worthCompacting).
+ */
+class GraphCompactor {
+    /** Compact once removed vertices or ways reach this fraction of all of them. */
+    private static final double REMOVED_FRACTION = 1.0 / 16;
+
+    private GraphCompactor() {
+    }
+
+    /**
+     * Returns true if g carries enough removed vertices or ways to be worth compacting.
+     */
+    static boolean worthCompacting(GraphDB g) {
+        int removedVertices = g.removed == null ? 0 : g.removed.cardinality();
+        int removedWays = g.removedWays == null ? 0 : g.removedWays.cardinality();
+        return removedVertices >= REMOVED_FRACTION * g.V()
+                || removedWays >= REMOVED_FRACTION * g.wayIds.length;
+    }
+
+    /**
+     * Returns a compacted copy of g, with the same version. g itself is not modified.
+     */
+    static GraphDB compact(GraphDB g) {
+        long start = System.nanoTime();
+        int n = g.V();
+
+        // Each vertex's edges without repeats and loops, and the vertices that keep any
+        int[] degree = new int[n];
+        boolean[] keep = new boolean[g.E()];
+        int[] vertexMap = new int[n];
+        int numVerts = 0;
+        int numEdges = 0;
+        for (int v = 0; v < n; v++) {
+            int first = g.edgeStart(v);
+            for (int e = first; e < g.edgeEnd(v); e++) {
+                int w = g.edgeTarget(e);
+                boolean repeat = w == v;
+                for (int f = first; f < e && !repeat; f++) {
+                    repeat = keep[f] && g.edgeTarget(f) == w;
+                }
+                if (!repeat) {
+                    keep[e] = true;
+                    degree[v]++;
+                }
+            }
+            vertexMap[v] = degree[v] > 0 && !g.isRemoved(v) ? numVerts++ : -1;
+            numEdges += vertexMap[v] >= 0 ? degree[v] : 0;
+        }
+
+        int[] wayMap = new int[g.wayIds.length];
+        WayTable.Builder table = new WayTable.Builder();
+        int numWays = 0;
+        int numWayRefs = 0;
+        for (int way = 0; way < wayMap.length; way++) {
+            if (g.removedWays != null && g.removedWays.get(way)) {
+                wayMap[way] = -1;
+                continue;
+            }
+            wayMap[way] = numWays++;
+            table.add(g.wayTable, way);
+            numWayRefs += g.wayOffsets[way + 1] - g.wayOffsets[way];
+        }
+
+        long[] ids = new long[numVerts];
+        double[] lats = new double[numVerts];
+        double[] lons = new double[numVerts];
+        int[] offsets = new int[numVerts + 1];
+        int[] targets = new int[numEdges];
+        int[] edgeWays = new int[numEdges];
+        int e = 0;
+        for (int v = 0; v < n; v++) {
+            int m = vertexMap[v];
+            if (m < 0) {
+                continue;
+            }
+            ids[m] = g.id(v);
+            lats[m] = g.latAt(v);
+            lons[m] = g.lonAt(v);
+            offsets[m] = e;
+            for (int f = g.edgeStart(v); f < g.edgeEnd(v); f++) {
+                if (keep[f]) {
+                    targets[e] = vertexMap[g.edgeTarget(f)];
+                    edgeWays[e] = g.edgeWay(f) >= 0 ? wayMap[g.edgeWay(f)] : -1;
+                    e++;
+                }
+            }
+        }
+        offsets[numVerts] = e;
+
+        long[] wayIds = new long[numWays];
+        int[] wayOffsets = new int[numWays + 1];
+        int[] wayRefs = new int[numWayRefs];
+        int r = 0;
+        for (int way = 0; way < wayMap.length; way++) {
+            int m = wayMap[way];
+            if (m < 0) {
+                continue;
+            }
+            wayIds[m] = g.wayIds[way];
+            wayOffsets[m] = r;
+            for (int ref = g.wayOffsets[way]; ref < g.wayOffsets[way + 1]; ref++) {
+                wayRefs[r++] = g.wayRefs[ref] >= 0 ? vertexMap[g.wayRefs[ref]] : -1;
+            }
+        }
+        wayOffsets[numWays] = r;
+
+        GraphDB compacted = new GraphDB(ids, lats, lons, offsets, targets, wayIds, wayOffsets,
+                wayRefs, table.build(), edgeWays, g.locations);
+        compacted.version = g.version;
+        compacted.locationNameTrie = g.locationNameTrie;
+
+        if (GraphDB.verbose()) {
+            System.out.println(String.format("Compacted graph version %d from %d vertices, %d "
+                            + "edges and %d ways (%.1f MB) to %d, %d and %d (%.1f MB) in %.1f ms",
+                    g.version, n, g.E(), g.wayIds.length, g.storageBytes() / 1e6,
+                    numVerts, numEdges, numWays, compacted.storageBytes() / 1e6,
+                    (System.nanoTime() - start) / 1e6));
+        }
+        return compacted;
+    }
+}
@@ -1,14 +1,20 @@
-import org.xml.sax.SAXException;
-
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
 
 /**
  * Graph for storing all of the intersection (vertex) and road (edge) information.
@@ -20,6 +26,50 @@ import java.util.LinkedList;
  * @author Alan Yao, Josh Hug
  */
 public class GraphDB {
+    /**
+     * System property for the number of worker threads used to read the OSM file: the
+     * OsmPipeline parse workers for XML, or the OsmPbfReader decode workers for PBF.
+     * Defaults to the spare cores; 0 reads it on a single thread.
+     */
+    static final String INGEST_WORKERS_PROPERTY = "bearmaps.ingest.workers";
+
+    /**
+     * System property that, when "true", stores vertex coordinates as 32-bit fixed-point
+     * ints of 1e-7 degrees (fixedLats, fixedLons) instead of doubles. That is the
+     * precision OSM publishes coordinates in, and decoding divides the int by 1e7, which
+     * gives the same double as parsing the 7 decimal OSM value. So for OSM data the
+     * coordinates, and everything computed from them, come out exactly the same.
+     */
+    static final String FIXED_POINT_PROPERTY = "bearmaps.coordinates.fixedPoint";
+    /** Fixed-point units per degree. */
+    static final double FIXED_POINT_SCALE = 1e7;
+
+    /**
+     * System property that, when "true", keeps the coordinates, the CSR offsets and
+     * targets, and the edge weights off the Java heap (see OffHeapArrays). A graph loaded
+     * from a GraphSnapshot then reads them straight from the mapped file. Everything is
+     * read through the same accessors, so nothing else changes; routing gets a little
+     * slower in exchange for a much smaller heap for the garbage collector to deal with.
+     */
+    static final String OFF_HEAP_PROPERTY = "bearmaps.storage.offHeap";
+
+    /**
+     * System property that, when "true", numbers the vertices in Hilbert curve order
+     * (see HilbertCurve) instead of in the order the OSM file gave them, so that the
+     * coordinates, adjacency and weights of nearby intersections sit close together in
+     * memory. Routes and everything else come out the same; only the dense vertex
+     * numbers change. A GraphSnapshot keeps the order it was written with.
+     */
+    static final String HILBERT_ORDER_PROPERTY = "bearmaps.layout.hilbert";
+
+    /**
+     * System property that, when "true", prints how loading and preprocessing the graph
+     * went: the ingestion stages, patches, shards, compaction and the routing
+     * preprocessing, with their counts and timings. Off by default, so a server or test
+     * run only prints what it is asked for.
+     */
+    static final String VERBOSE_PROPERTY = "bearmaps.verbose";
+
     /** Your instance variables for storing the graph. You should consider
      * creating helper classes, e.g. Node, Edge, etc. */
 
@@ -31,21 +81,96 @@ public class GraphDB {
      */
     // @Source Princeton Graph Implementation in our textbook for inspiration
 
-    // HashMap of all Node IDs and their adjacent Nodes (key: ID, value: List of adj IDs)
+    // HashMap of Node IDs and their adjacent Nodes (key: ID, value: List of adj IDs); nodes
+    // get a list when their first edge is added, so nodes on no road never have one.
+    // Only used while the handler is adding nodes and edges; buildCSR() drops it.
     HashMap<Long, ArrayList<Long>> adj = new HashMap<>();
 
     // HashMap of all Nodes and their coordinates(key: ID, value: List (2 items) of lat, lon)
+    // Only used while the handler is adding nodes and edges; buildCSR() drops it.
     HashMap<Long, double[]> nodes = new HashMap<>();
 
-    // Attempt at a spacial hashmap
+    // Road ways and their node ids, as the handler finds them.
+    // Only used while the handler is adding nodes and edges; buildCSR() drops it.
+    LinkedHashMap<Long, long[]> ways = new LinkedHashMap<>();
+    HashMap<Long, WayTags> wayTags = new HashMap<>();
+
+    /* Compressed sparse row (CSR) form of the graph, built once parsing is done.
+     * Vertex i has OSM id ids[i] and coordinates lats[i], lons[i]; its neighbours are
+     * targets[offsets[i]] up to (but not including) targets[offsets[i + 1]].
+     * With FIXED_POINT_PROPERTY set, lats and lons are null and the coordinates are in
+     * fixedLats and fixedLons instead; use latAt and lonAt to read either. */
+    long[] ids;
+    double[] lats;
+    double[] lons;
+    int[] fixedLats;
+    int[] fixedLons;
+    int[] offsets;
+    int[] targets;
+    /* Edge weights for each Metric, parallel to targets: edge e weighs
+     * weights[metric.ordinal()][e]. Computed once when the CSR arrays are made. */
+    float[][] weights;
+
+    /* With OFF_HEAP_PROPERTY set, the coordinates, offsets, targets and weights are kept
+     * here instead, and the arrays above are null. */
+    OffHeapArrays offHeap;
+
+    // OSM id <-> dense vertex number (position in the CSR arrays)
+    NodeIndex nodeIndex;
+
+    /* The road ways, kept so that an OsmChange can find the edges each one made. Way i
+     * has OSM id wayIds[i] and runs through the dense vertices wayRefs[wayOffsets[i]] up
+     * to (but not including) wayRefs[wayOffsets[i + 1]]; -1 stands for a node the graph
+     * doesn't have. wayIndex maps way ids to way numbers. */
+    long[] wayIds;
+    int[] wayOffsets;
+    int[] wayRefs;
+    NodeIndex wayIndex;
+
+    /* The names, speed limits, classes and flags of the ways, by way number; and for
+     * each edge, parallel to targets, the number of the way it belongs to (-1 if none
+     * does, which only happens to edges of graphs stitched from overlapping shards). */
+    WayTable wayTable;
+    int[] edgeWays;
+
+    /* Vertices taken out by an OsmChange (see GraphPatch). Their numbers are not reused
+     * and they have no edges, but they stay in the arrays; null if there are none.
+     * removedWays likewise marks the way entries that were deleted or replaced. */
+    BitSet removed;
+    BitSet removedWays;
+
+    // Starts at 0, and each GraphPatch makes a new graph one version on
+    long version;
+
+    // Spatial index used by closest(), built along with the CSR arrays
     // @Source jHug on a piazza comment gave me the idea
-    private HashMap<Integer, double[]> spatialHash = new HashMap<>();
+    KdTree spatialIndex;
+
+    // Road segment index used by snapToEdge(); built the first time it's needed
+    SegmentRTree edgeIndex;
+
+    // The edges turned around, for backward searches; built the first time they're needed
+    ReverseEdges reverseEdges;
+
+    /* Contraction hierarchies for routing, by Metric ordinal; null where none was loaded
+     * (see ContractionHierarchy). A patched graph starts without any, since its edges
+     * differ from the ones they were built for. */
+    ContractionHierarchy[] hierarchies = new ContractionHierarchy[Metric.values().length];
+    /* Likewise the landmark distance tables for A* (see Landmarks). */
+    Landmarks[] landmarks = new Landmarks[Metric.values().length];
+    /* And the hub labels for routeDistance (see HubLabels). */
+    HubLabels[] hubLabels = new HubLabels[Metric.values().length];
+    /* The multilevel partition for customizable routing and the overlays customized on
+     * it, by Metric ordinal (see CellPartition and Overlay); made the first time they're
+     * needed, and guarded by this. */
+    CellPartition cellPartition;
+    Overlay[] overlays = new Overlay[Metric.values().length];
 
     HashMap<String, LinkedList<double[]>> locations = new HashMap<>();
 
     Trie locationNameTrie = new Trie();
 
-    private int numVerts;
+    int numVerts;
 
 
     // Deprecated
@@ -62,24 +187,213 @@ public class GraphDB {
 //    }
 
     public GraphDB(String dbPath) {
-        try {
-            File inputFile = new File(dbPath);
-            FileInputStream inputStream = new FileInputStream(inputFile);
-//             GZIPInputStream stream = new GZIPInputStream(inputStream);
-
-            SAXParserFactory factory = SAXParserFactory.newInstance();
-            SAXParser saxParser = factory.newSAXParser();
+        File inputFile = new File(dbPath);
+        try (InputStream inputStream = CompressedInput.open(inputFile)) {
             GraphBuildingHandler gbh = new GraphBuildingHandler(this);
-            saxParser.parse(inputStream, gbh);
-        } catch (ParserConfigurationException | SAXException | IOException e) {
+            int workers = Integer.getInteger(INGEST_WORKERS_PROPERTY,
+                    OsmPipeline.defaultWorkers());
+            if (isPbf(dbPath)) {
+                new OsmPbfReader(gbh, workers).run(inputStream);
+            } else if (workers > 0) {
+                new OsmPipeline(gbh, workers).run(inputStream);
+            } else {
+                new OsmXmlScanner(inputStream, new OsmXmlScanner.HandlerListener(gbh)).scan();
+            }
+        } catch (IOException e) {
             e.printStackTrace();
         }
         clean();
+        buildCSR();
+    }
+
+    /**
+     * Returns true if the OSM file at path is in the PBF format rather than XML, going by
+     * its extension (ignoring any .gz or .bz2 after it).
+     */
+    static boolean isPbf(String path) {
+        return CompressedInput.stripCompressionExtension(path).endsWith(".pbf");
     }
 
     // Use this in distance as lazy way to instantiate a node
     public GraphDB(double lat, double lon) {
         this.addNode(1, lat, lon);
+        buildCSR();
+    }
+
+    /**
+     * Creates a graph directly from finished CSR and way arrays, e.g. ones read back from
+     * a GraphSnapshot. The arrays are used as is, not copied.
+     *
+     * @param edgeWays The way of each edge, or null to work them out from the ways.
+     */
+    GraphDB(long[] ids, double[] lats, double[] lons, int[] offsets, int[] targets,
+            long[] wayIds, int[] wayOffsets, int[] wayRefs, WayTable wayTable,
+            int[] edgeWays, HashMap<String, LinkedList<double[]>> locations) {
+        this(ids, lats, lons, offsets, targets, wayIds, wayOffsets, wayRefs, wayTable,
+                edgeWays, locations, null, null, null, null);
+    }
+
+    /**
+     * Likewise, but also given the indexes and weights that would otherwise be worked out
+     * from the arrays, as saved in a GraphSnapshot. Each of them may be null to work it
+     * out after all.
+     *
+     * @param nodeIndex The index of ids.
+     * @param wayIndex  The index of wayIds.
+     * @param treeOrder The KdTree order of the vertices (see KdTree.order).
+     * @param weights   The weights of the edges by Metric ordinal, worked out from these
+     *                  coordinates as they will be stored (see FIXED_POINT_PROPERTY).
+     */
+    GraphDB(long[] ids, double[] lats, double[] lons, int[] offsets, int[] targets,
+            long[] wayIds, int[] wayOffsets, int[] wayRefs, WayTable wayTable,
+            int[] edgeWays, HashMap<String, LinkedList<double[]>> locations,
+            NodeIndex nodeIndex, NodeIndex wayIndex, int[] treeOrder, float[][] weights) {
+        this.ids = ids;
+        this.lats = lats;
+        this.lons = lons;
+        this.offsets = offsets;
+        this.targets = targets;
+        this.wayIds = wayIds;
+        this.wayOffsets = wayOffsets;
+        this.wayRefs = wayRefs;
+        this.wayTable = wayTable;
+        this.edgeWays = edgeWays;
+        this.locations = locations;
+        this.nodeIndex = nodeIndex != null ? nodeIndex : new NodeIndex(ids);
+        this.wayIndex = wayIndex != null ? wayIndex : new NodeIndex(wayIds);
+        this.numVerts = ids.length;
+        this.nodes = null;
+        this.adj = null;
+        this.ways = null;
+        this.wayTags = null;
+        if (edgeWays == null) {
+            computeEdgeWays();
+        }
+        if (Boolean.getBoolean(FIXED_POINT_PROPERTY)) {
+            toFixedPoint();
+        }
+        this.spatialIndex = new KdTree(this, treeOrder);
+        if (weights != null) {
+            this.weights = weights;
+        } else {
+            computeWeights();
+        }
+        if (Boolean.getBoolean(OFF_HEAP_PROPERTY)) {
+            moveOffHeap();
+        }
+    }
+
+    /**
+     * Creates a graph whose coordinates and adjacency are already off the heap, e.g. in a
+     * memory-mapped GraphSnapshot. If offHeap has no weights, they are computed into
+     * direct buffers. The indexes and tree order are as for the constructor above.
+     */
+    GraphDB(long[] ids, OffHeapArrays offHeap, long[] wayIds, int[] wayOffsets,
+            int[] wayRefs, WayTable wayTable, int[] edgeWays,
+            HashMap<String, LinkedList<double[]>> locations, NodeIndex nodeIndex,
+            NodeIndex wayIndex, int[] treeOrder) {
+        this.ids = ids;
+        this.offHeap = offHeap;
+        this.wayIds = wayIds;
+        this.wayOffsets = wayOffsets;
+        this.wayRefs = wayRefs;
+        this.wayTable = wayTable;
+        this.edgeWays = edgeWays;
+        this.locations = locations;
+        this.nodeIndex = nodeIndex != null ? nodeIndex : new NodeIndex(ids);
+        this.wayIndex = wayIndex != null ? wayIndex : new NodeIndex(wayIds);
+        this.numVerts = ids.length;
+        this.nodes = null;
+        this.adj = null;
+        this.ways = null;
+        this.wayTags = null;
+        this.spatialIndex = new KdTree(this, treeOrder);
+        if (offHeap.weights[0] == null) {
+            computeWeights();
+        }
+    }
+
+    /**
+     * Starts the next version of base for GraphPatch to fill in. Everything is shared
+     * with base until the patch replaces it, so base itself never changes.
+     */
+    GraphDB(GraphDB base) {
+        this.ids = base.ids;
+        this.lats = base.lats;
+        this.lons = base.lons;
+        this.fixedLats = base.fixedLats;
+        this.fixedLons = base.fixedLons;
+        this.offsets = base.offsets;
+        this.targets = base.targets;
+        this.weights = base.weights;
+        this.offHeap = base.offHeap;
+        this.nodeIndex = base.nodeIndex;
+        this.wayIds = base.wayIds;
+        this.wayOffsets = base.wayOffsets;
+        this.wayRefs = base.wayRefs;
+        this.wayIndex = base.wayIndex;
+        this.wayTable = base.wayTable;
+        this.edgeWays = base.edgeWays;
+        this.removed = base.removed;
+        this.removedWays = base.removedWays;
+        this.version = base.version + 1;
+        this.spatialIndex = base.spatialIndex;
+        this.locations = base.locations;
+        this.locationNameTrie = base.locationNameTrie;
+        this.numVerts = base.numVerts;
+        this.nodes = null;
+        this.adj = null;
+        this.ways = null;
+        this.wayTags = null;
+    }
+
+    /**
+     * Loads the graph for an OSM file, preferring its binary snapshot (see GraphSnapshot)
+     * over parsing the OSM data. If the snapshot is missing or out of date, the OSM file is
+     * read and a fresh snapshot is written next to it for the next start. Any contraction
+     * hierarchies, landmark tables and hub labels built for the graph (see the main
+     * methods of ContractionHierarchy, Landmarks and HubLabels) are loaded with it.
+     *
+     * @param dbPath Path to the OSM file, either XML or PBF (.osm.pbf), optionally
+     *               compressed with gzip or bzip2.
+     * @return The graph.
+     */
+    public static GraphDB load(String dbPath) {
+        File source = new File(dbPath);
+        File snapshot = GraphSnapshot.snapshotFile(dbPath);
+        GraphDB g = null;
+        try {
+            g = GraphSnapshot.read(snapshot, source);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+
+        if (g == null) {
+            g = new GraphDB(dbPath);
+            if (source.isFile()) {
+                try {
+                    GraphSnapshot.write(g, snapshot, source);
+                } catch (IOException e) {
+                    // The graph is still fine, we just have to parse again next time
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        for (Metric metric : Metric.values()) {
+            try {
+                g.hierarchies[metric.ordinal()] = ContractionHierarchy.read(
+                        ContractionHierarchy.hierarchyFile(dbPath, metric), g, metric);
+                g.landmarks[metric.ordinal()] = Landmarks.read(
+                        Landmarks.landmarksFile(dbPath, metric), g, metric);
+                g.hubLabels[metric.ordinal()] = HubLabels.read(
+                        HubLabels.labelsFile(dbPath, metric), g, metric);
+            } catch (IOException e) {
+                // Routing falls back to searching without it
+                e.printStackTrace();
+            }
+        }
+        return g;
     }
 
     /**
@@ -96,14 +410,573 @@ public class GraphDB {
      * Remove nodes with no connections from the graph.
      * While this does not guarantee that any two nodes in the remaining graph are connected,
      * we can reasonably assume this since typically roads are connected.
+     * <p>
+     * Most nodes in an OSM file are on buildings, paths and the like rather than roads,
+     * so this is where most of the parsed data goes. Edges are compacted too: an edge to
+     * a node the file has no coordinates for is dropped, and so are repeats of an edge
+     * (where ways overlap) and edges from a node to itself, none of which can ever be
+     * part of a shortest path. With VERBOSE_PROPERTY set, prints the counts and array
+     * sizes before and after.
      */
     void clean() {
-        // hint from vid look at adj list
-        for (Long x : adj.keySet()) {
-            if (adj.get(x).size() == 0 || adj.get(x) == null) {
-                deleteNode(x);
+        int parsedNodes = nodes.size();
+        long parsedEdges = 0;
+        long keptEdges = 0;
+        Iterator<Map.Entry<Long, ArrayList<Long>>> lists = adj.entrySet().iterator();
+        while (lists.hasNext()) {
+            Map.Entry<Long, ArrayList<Long>> entry = lists.next();
+            long id = entry.getKey();
+            ArrayList<Long> list = entry.getValue();
+            parsedEdges += list.size();
+            ArrayList<Long> kept = new ArrayList<>(list.size());
+            if (nodes.containsKey(id)) {
+                for (long w : list) {
+                    // Lists are a handful of entries long, so contains is cheap
+                    if (w != id && nodes.containsKey(w) && !kept.contains(w)) {
+                        kept.add(w);
+                    }
+                }
+            }
+            if (kept.isEmpty()) {
+                lists.remove();
+            } else {
+                entry.setValue(kept);
+                keptEdges += kept.size();
             }
         }
+        nodes.keySet().retainAll(adj.keySet());
+        numVerts = nodes.size();
+        if (verbose()) {
+            System.out.println(String.format("Compacted the graph from %d nodes and %d edges "
+                            + "(%.1f MB of arrays) to %d vertices and %d edges (%.1f MB)",
+                    parsedNodes, parsedEdges, csrBytes(parsedNodes, parsedEdges) / 1e6,
+                    numVerts, keptEdges, csrBytes(numVerts, keptEdges) / 1e6));
+        }
+    }
+
+    /**
+     * Returns roughly how many bytes the graph's arrays take up, on or off the heap. The
+     * indexes (NodeIndex, KdTree, SegmentRTree) and the named locations aren't counted.
+     */
+    long storageBytes() {
+        return csrBytes(numVerts, E()) + 8L * wayIds.length + 4L * wayOffsets.length
+                + 4L * wayRefs.length + (wayTable == null ? 0 : wayTable.bytes());
+    }
+
+    /* Bytes of the per-vertex and per-edge arrays for a graph of the given size. */
+    private long csrBytes(long vertices, long edges) {
+        int coordinateBytes = isFixedPoint() || Boolean.getBoolean(FIXED_POINT_PROPERTY)
+                ? 4 + 4 : 8 + 8;
+        // ids, coordinates and offsets; targets, edgeWays and a weight per metric
+        return vertices * (8 + coordinateBytes + 4)
+                + edges * (4 + 4 + 4L * Metric.values().length);
+    }
+
+    /**
+     * Packs the parsed nodes and edges into the immutable CSR arrays and releases
+     * the HashMaps the handler filled in. Neighbour order is kept the same as the
+     * order the edges were added in.
+     */
+    private void buildCSR() {
+        int n = nodes.size();
+        ids = new long[n];
+        lats = new double[n];
+        lons = new double[n];
+        offsets = new int[n + 1];
+
+        int i = 0;
+        int numEdges = 0;
+        for (long id : nodes.keySet()) {
+            double[] coordinates = nodes.get(id);
+            ids[i] = id;
+            lats[i] = coordinates[0];
+            lons[i] = coordinates[1];
+            numEdges += adj.containsKey(id) ? adj.get(id).size() : 0;
+            i++;
+        }
+        if (Boolean.getBoolean(HILBERT_ORDER_PROPERTY)) {
+            // Everything below is laid out by vertex number, so this is all it takes
+            HilbertCurve.sort(ids, lats, lons);
+        }
+        nodeIndex = new NodeIndex(ids);
+
+        targets = new int[numEdges];
+        int e = 0;
+        for (i = 0; i < n; i++) {
+            offsets[i] = e;
+            if (!adj.containsKey(ids[i])) {
+                // Only in the one-vertex graph, which isn't cleaned
+                continue;
+            }
+            for (long w : adj.get(ids[i])) {
+                targets[e] = nodeIndex.indexOf(w);
+                e++;
+            }
+        }
+        offsets[n] = e;
+
+        wayIds = new long[ways.size()];
+        wayOffsets = new int[ways.size() + 1];
+        int numRefs = 0;
+        for (long[] refs : ways.values()) {
+            numRefs += refs.length;
+        }
+        wayRefs = new int[numRefs];
+        WayTable.Builder table = new WayTable.Builder();
+        int way = 0;
+        int r = 0;
+        for (Map.Entry<Long, long[]> entry : ways.entrySet()) {
+            wayIds[way] = entry.getKey();
+            wayOffsets[way] = r;
+            for (long ref : entry.getValue()) {
+                wayRefs[r++] = nodeIndex.indexOf(ref);
+            }
+            table.add(wayTags.get(entry.getKey()));
+            way++;
+        }
+        wayOffsets[way] = r;
+        wayIndex = new NodeIndex(wayIds);
+        wayTable = table.build();
+
+        numVerts = n;
+        nodes = null;
+        adj = null;
+        ways = null;
+        wayTags = null;
+        computeEdgeWays();
+        if (Boolean.getBoolean(FIXED_POINT_PROPERTY)) {
+            toFixedPoint();
+        }
+        spatialIndex = new KdTree(this);
+        computeWeights();
+        if (Boolean.getBoolean(OFF_HEAP_PROPERTY)) {
+            moveOffHeap();
+        }
+    }
+
+    /**
+     * Works out which way each edge came from by walking the ways' segments. Each
+     * segment made one edge in each direction, so it claims the first edge between its
+     * two vertices that no earlier segment has claimed.
+     */
+    private void computeEdgeWays() {
+        edgeWays = new int[E()];
+        Arrays.fill(edgeWays, -1);
+        for (int way = 0; way < wayIds.length; way++) {
+            for (int r = wayOffsets[way]; r + 1 < wayOffsets[way + 1]; r++) {
+                int u = wayRefs[r];
+                int v = wayRefs[r + 1];
+                if (u >= 0 && v >= 0) {
+                    claimEdge(u, v, way);
+                    claimEdge(v, u, way);
+                }
+            }
+        }
+    }
+
+    private void claimEdge(int u, int v, int way) {
+        for (int e = edgeStart(u); e < edgeEnd(u); e++) {
+            if (edgeWays[e] < 0 && edgeTarget(e) == v) {
+                edgeWays[e] = way;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Copies the coordinates, offsets, targets and weights into direct buffers and drops
+     * the arrays.
+     */
+    void moveOffHeap() {
+        offHeap = new OffHeapArrays(
+                lats != null ? OffHeapArrays.direct(lats) : null,
+                lons != null ? OffHeapArrays.direct(lons) : null,
+                fixedLats != null ? OffHeapArrays.direct(fixedLats) : null,
+                fixedLons != null ? OffHeapArrays.direct(fixedLons) : null,
+                OffHeapArrays.direct(offsets), OffHeapArrays.direct(targets));
+        for (int m = 0; m < weights.length; m++) {
+            offHeap.weights[m] = OffHeapArrays.direct(weights[m]);
+        }
+        lats = null;
+        lons = null;
+        fixedLats = null;
+        fixedLons = null;
+        offsets = null;
+        targets = null;
+        weights = null;
+    }
+
+    /**
+     * Returns true if the coordinates, adjacency and weights are kept off the heap.
+     */
+    boolean isOffHeap() {
+        return offHeap != null;
+    }
+
+    /**
+     * Switches the coordinates over to fixed-point storage, dropping the doubles.
+     */
+    private void toFixedPoint() {
+        fixedLats = new int[numVerts];
+        fixedLons = new int[numVerts];
+        for (int v = 0; v < numVerts; v++) {
+            fixedLats[v] = toFixedPoint(lats[v]);
+            fixedLons[v] = toFixedPoint(lons[v]);
+        }
+        lats = null;
+        lons = null;
+    }
+
+    /**
+     * Returns degrees in fixed-point units, rounded to the nearest.
+     */
+    static int toFixedPoint(double degrees) {
+        return (int) Math.round(degrees * FIXED_POINT_SCALE);
+    }
+
+    /**
+     * Returns the degrees represented by a fixed-point coordinate.
+     */
+    static double fromFixedPoint(int fixed) {
+        return fixed / FIXED_POINT_SCALE;
+    }
+
+    /**
+     * Returns true if this graph stores its coordinates as fixed-point ints.
+     */
+    boolean isFixedPoint() {
+        return fixedLats != null || (offHeap != null && offHeap.fixedLats != null);
+    }
+
+    /**
+     * Works out the weight of every edge under every Metric.
+     */
+    private void computeWeights() {
+        Metric[] metrics = Metric.values();
+        if (offHeap != null) {
+            for (Metric metric : metrics) {
+                FloatBuffer w = OffHeapArrays.directFloats(E());
+                for (int v = 0; v < numVerts; v++) {
+                    for (int e = edgeStart(v); e < edgeEnd(v); e++) {
+                        w.put(e, Metric.roundUp(metric.weight(this, v, e)));
+                    }
+                }
+                offHeap.weights[metric.ordinal()] = w;
+            }
+            return;
+        }
+        weights = new float[metrics.length][];
+        for (Metric metric : metrics) {
+            float[] w = new float[targets.length];
+            for (int v = 0; v < numVerts; v++) {
+                for (int e = offsets[v]; e < offsets[v + 1]; e++) {
+                    w[e] = Metric.roundUp(metric.weight(this, v, e));
+                }
+            }
+            weights[metric.ordinal()] = w;
+        }
+    }
+
+    /**
+     * Returns the position of the vertex with OSM id v in the CSR arrays.
+     */
+    private int indexOf(long v) {
+        int i = index(v);
+        if (i < 0) {
+            throw new NoSuchElementException("No vertex with id " + v);
+        }
+        return i;
+    }
+
+    /* Dense vertex API. Vertices are numbered 0..V()-1 and edges 0..E()-1; the edges
+     * leaving v are edgeStart(v) up to (but not including) edgeEnd(v). Hot paths such as
+     * Router use these so they can index plain arrays, and only translate back to OSM ids
+     * with id() when they hand results out. */
+
+    /**
+     * Returns the dense vertex number of the vertex with OSM id v, or -1 if there is none.
+     */
+    int index(long v) {
+        int i = nodeIndex.indexOf(v);
+        return i >= 0 && !isRemoved(i) ? i : -1;
+    }
+
+    /**
+     * Returns the OSM id of dense vertex v.
+     */
+    long id(int v) {
+        return ids[v];
+    }
+
+    int E() {
+        return targets != null ? targets.length : offHeap.targets.capacity();
+    }
+
+    double latAt(int v) {
+        if (lats != null) {
+            return lats[v];
+        }
+        return fixedLats != null ? fromFixedPoint(fixedLats[v]) : offHeap.latAt(v);
+    }
+
+    double lonAt(int v) {
+        if (lons != null) {
+            return lons[v];
+        }
+        return fixedLons != null ? fromFixedPoint(fixedLons[v]) : offHeap.lonAt(v);
+    }
+
+    int edgeStart(int v) {
+        return offsets != null ? offsets[v] : offHeap.offsets.get(v);
+    }
+
+    int edgeEnd(int v) {
+        return offsets != null ? offsets[v + 1] : offHeap.offsets.get(v + 1);
+    }
+
+    /**
+     * Returns the dense vertex number that edge e points to.
+     */
+    int edgeTarget(int e) {
+        return targets != null ? targets[e] : offHeap.targets.get(e);
+    }
+
+    /**
+     * Returns the number of the way edge e belongs to (see wayTable), or -1 if unknown.
+     */
+    int edgeWay(int e) {
+        return edgeWays[e];
+    }
+
+    /**
+     * Returns the name of the way edge e belongs to, "" if the way has no name, or
+     * null if the edge's way isn't known.
+     */
+    String edgeName(int e) {
+        int way = edgeWays[e];
+        return way >= 0 ? wayTable.name(way) : null;
+    }
+
+    /**
+     * Returns the speed in km/h to expect on edge e (see WayTable.speed).
+     */
+    int edgeSpeed(int e) {
+        int way = edgeWays[e];
+        return way >= 0 ? wayTable.speed(way) : WayTags.DEFAULT_SPEED;
+    }
+
+    /**
+     * Returns the first edge from dense vertex u to dense vertex v, or -1 if none.
+     */
+    int edgeBetween(int u, int v) {
+        for (int e = edgeStart(u); e < edgeEnd(u); e++) {
+            if (edgeTarget(e) == v) {
+                return e;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the contraction hierarchy for routing by metric, or null if none was loaded.
+     */
+    ContractionHierarchy contractionHierarchy(Metric metric) {
+        return hierarchies[metric.ordinal()];
+    }
+
+    /**
+     * Returns the landmark distance tables for routing by metric, or null if none were
+     * loaded.
+     */
+    Landmarks landmarks(Metric metric) {
+        return landmarks[metric.ordinal()];
+    }
+
+    /**
+     * Returns the hub labels for route distances by metric, or null if none were loaded.
+     */
+    HubLabels hubLabels(Metric metric) {
+        return hubLabels[metric.ordinal()];
+    }
+
+    /**
+     * Returns the overlay for routing by metric, customizing it (and partitioning the
+     * graph, the first time) if there is none yet. That takes seconds; customize or
+     * customizeLike can do it ahead of time.
+     */
+    Overlay overlay(Metric metric) {
+        CellPartition partition;
+        synchronized (this) {
+            if (overlays[metric.ordinal()] != null) {
+                return overlays[metric.ordinal()];
+            }
+            if (cellPartition == null) {
+                cellPartition = CellPartition.build(this);
+            }
+            partition = cellPartition;
+        }
+        Overlay overlay = partition.customize(this, metric);
+        synchronized (this) {
+            if (overlays[metric.ordinal()] == null) {
+                overlays[metric.ordinal()] = overlay;
+            }
+            return overlays[metric.ordinal()];
+        }
+    }
+
+    /**
+     * Replaces the overlay for routing by metric with one customized for the given weight
+     * of each edge, such as the metric's weights with closed roads set to infinity or
+     * with the speeds of the time of day. Routes already being searched finish on the
+     * old overlay.
+     */
+    void customize(Metric metric, float[] weights) {
+        CellPartition partition;
+        synchronized (this) {
+            if (cellPartition == null) {
+                cellPartition = CellPartition.build(this);
+            }
+            partition = cellPartition;
+        }
+        Overlay overlay = partition.customize(this, weights);
+        synchronized (this) {
+            overlays[metric.ordinal()] = overlay;
+        }
+    }
+
+    /**
+     * Customizes overlays for the metrics base has them for, by this graph's weights, so a
+     * new version of the graph is ready to route on before it replaces base. If the
+     * vertices and edges are the same as base's, base's partition is kept and only the
+     * customization is redone; otherwise the graph is partitioned again. Does nothing if
+     * base has no partition.
+     */
+    void customizeLike(GraphDB base) {
+        CellPartition partition;
+        Overlay[] baseOverlays;
+        synchronized (base) {
+            partition = base.cellPartition;
+            baseOverlays = base.overlays.clone();
+        }
+        if (partition == null) {
+            return;
+        }
+        if (partition.cellCodes.length != V()
+                || partition.topologyFingerprint != fingerprint(null)) {
+            partition = CellPartition.build(this);
+        }
+        Overlay[] customized = new Overlay[baseOverlays.length];
+        for (Metric metric : Metric.values()) {
+            if (baseOverlays[metric.ordinal()] != null) {
+                customized[metric.ordinal()] = partition.customize(this, metric);
+            }
+        }
+        synchronized (this) {
+            cellPartition = partition;
+            overlays = customized;
+        }
+    }
+
+    /**
+     * Returns the partition for customizable routing if it has been made, or null.
+     */
+    synchronized CellPartition builtCellPartition() {
+        return cellPartition;
+    }
+
+    /**
+     * Returns a checksum of the vertex ids, edges and weights by metric: everything that
+     * routing preprocessing (ContractionHierarchy, Landmarks, HubLabels) depends on.
+     * Preprocessing whose fingerprint differs was done for another graph, or another
+     * numbering of it. With metric null, the weights are left out, for preprocessing
+     * that only depends on the shape of the graph (CellPartition).
+     */
+    long fingerprint(Metric metric) {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        for (int v = 0; v < V(); v++) {
+            if (buf.remaining() < 12) {
+                buf.flip();
+                crc.update(buf);
+                buf.clear();
+            }
+            buf.putLong(id(v));
+            buf.putInt(edgeEnd(v));
+            for (int e = edgeStart(v); e < edgeEnd(v); e++) {
+                if (buf.remaining() < 8) {
+                    buf.flip();
+                    crc.update(buf);
+                    buf.clear();
+                }
+                buf.putInt(edgeTarget(e));
+                if (metric != null) {
+                    buf.putFloat(weight(metric, e));
+                }
+            }
+        }
+        buf.flip();
+        crc.update(buf);
+        return crc.getValue();
+    }
+
+    /**
+     * Returns the weight of edge e under metric.
+     */
+    float weight(Metric metric, int e) {
+        return weights != null ? weights[metric.ordinal()][e]
+                : offHeap.weights[metric.ordinal()].get(e);
+    }
+
+    /**
+     * Returns the weights of all edges under metric, indexed by edge. For tight loops;
+     * the array must not be modified. Returns null if the weights are off the heap, in
+     * which case use weight(metric, e).
+     */
+    float[] weights(Metric metric) {
+        return weights != null ? weights[metric.ordinal()] : null;
+    }
+
+    /* Bulk copies out of the storage, whichever kind it is; for GraphPatch. */
+
+    void copyCoordinates(double[] toLats, double[] toLons) {
+        for (int v = 0; v < numVerts; v++) {
+            toLats[v] = latAt(v);
+            toLons[v] = lonAt(v);
+        }
+    }
+
+    void copyFixedPoint(int[] toLats, int[] toLons) {
+        if (fixedLats != null) {
+            System.arraycopy(fixedLats, 0, toLats, 0, numVerts);
+            System.arraycopy(fixedLons, 0, toLons, 0, numVerts);
+        } else {
+            IntBuffer sourceLats = offHeap.fixedLats.duplicate();
+            IntBuffer sourceLons = offHeap.fixedLons.duplicate();
+            sourceLats.position(0);
+            sourceLons.position(0);
+            sourceLats.get(toLats, 0, numVerts);
+            sourceLons.get(toLons, 0, numVerts);
+        }
+    }
+
+    void copyTargets(int from, int[] to, int at, int length) {
+        if (targets != null) {
+            System.arraycopy(targets, from, to, at, length);
+        } else {
+            IntBuffer source = offHeap.targets.duplicate();
+            source.position(from);
+            source.get(to, at, length);
+        }
+    }
+
+    void copyWeights(Metric metric, int from, float[] to, int at, int length) {
+        if (weights != null) {
+            System.arraycopy(weights[metric.ordinal()], from, to, at, length);
+        } else {
+            FloatBuffer source = offHeap.weights[metric.ordinal()].duplicate();
+            source.position(from);
+            source.get(to, at, length);
+        }
     }
 
     /**
@@ -112,15 +985,32 @@ public class GraphDB {
      * @return An iterable of id's of all vertices in the graph.
      */
     Iterable<Long> vertices() {
-        //YOUR CODE HERE, this currently returns only an empty list.
-//        return new ArrayList<Long>();
-        return new ArrayList<Long>(nodes.keySet());
+        return () -> new IdIterator(0, ids.length, false);
     }
 
+    /**
+     * Returns the number of dense vertex numbers in use. After a GraphPatch this counts
+     * the removed vertices too, so it is a bound for arrays indexed by vertex rather than
+     * the number of vertices; see isRemoved.
+     */
     int V() {
         return numVerts;
     }
 
+    /**
+     * Returns true if dense vertex v was taken out of the graph by a GraphPatch.
+     */
+    boolean isRemoved(int v) {
+        return removed != null && removed.get(v);
+    }
+
+    /**
+     * Returns the number of vertices that are still in the graph.
+     */
+    int liveVertexCount() {
+        return removed == null ? numVerts : numVerts - removed.cardinality();
+    }
+
     /**
      * Returns ids of all vertices adjacent to v.
      *
@@ -128,8 +1018,44 @@ public class GraphDB {
      * @return An iterable of the ids of the neighbors of v.
      */
     Iterable<Long> adjacent(long v) {
-        return new ArrayList<Long>(adj.get(v));
+        int i = indexOf(v);
+        return () -> new IdIterator(edgeStart(i), edgeEnd(i), true);
+    }
 
+    /**
+     * Walks a range of vertices or edges without copying it. For vertices, removed ones
+     * are skipped; for edges, the ids are those of their targets.
+     */
+    private class IdIterator implements Iterator<Long> {
+        private int pos;
+        private final int end;
+        private final boolean edges;
+
+        IdIterator(int start, int end, boolean edges) {
+            this.pos = start;
+            this.end = end;
+            this.edges = edges;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (!edges) {
+                while (pos < end && isRemoved(pos)) {
+                    pos++;
+                }
+            }
+            return pos < end;
+        }
+
+        @Override
+        public Long next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int vertex = edges ? edgeTarget(pos) : pos;
+            pos++;
+            return ids[vertex];
+        }
     }
 
     /**
@@ -145,6 +1071,41 @@ public class GraphDB {
         return distance(lon(v), lat(v), lon(w), lat(w));
     }
 
+    /**
+     * Returns the length by metric of the best route from vertex v to vertex w, or
+     * infinity if w can't be reached. It is looked up in the graph's HubLabels for the
+     * metric if it has them, which takes microseconds; otherwise the route is searched
+     * for.
+     *
+     * @param v The id of the first vertex.
+     * @param w The id of the second vertex.
+     */
+    double routeDistance(Metric metric, long v, long w) {
+        int from = indexOf(v);
+        int to = indexOf(w);
+        HubLabels labels = hubLabels(metric);
+        if (labels != null) {
+            return labels.distance(from, to);
+        }
+        int[] path = Router.shortestPathVertices(this, metric,
+                Router.SearchMode.CONTRACTION_HIERARCHY, from, to, null);
+        if (path.length == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double length = 0;
+        for (int i = 1; i < path.length; i++) {
+            // The route takes the lightest of any repeated edges
+            double lightest = Double.POSITIVE_INFINITY;
+            for (int e = edgeStart(path[i - 1]); e < edgeEnd(path[i - 1]); e++) {
+                if (edgeTarget(e) == path[i]) {
+                    lightest = Math.min(lightest, weight(metric, e));
+                }
+            }
+            length += lightest;
+        }
+        return length;
+    }
+
     static double distance(double lonV, double latV, double lonW, double latW) {
         double phi1 = Math.toRadians(latV);
         double phi2 = Math.toRadians(latW);
@@ -157,18 +1118,6 @@ public class GraphDB {
         return 3963 * c;
     }
 
-    private double distance2(long v, double lat, double lon) {
-        double phi1 = Math.toRadians(lat(v));
-        double phi2 = Math.toRadians(lat);
-        double dphi = Math.toRadians(lat - lat(v));
-        double dlambda = Math.toRadians(lon - lon(v));
-
-        double a = Math.sin(dphi / 2.0) * Math.sin(dphi / 2.0);
-        a += Math.cos(phi1) * Math.cos(phi2) * Math.sin(dlambda / 2.0) * Math.sin(dlambda / 2.0);
-        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
-        return 3963 * c;
-    }
-
     /**
      * Returns the initial bearing (angle) between vertices v and w in degrees.
      * The initial bearing is the angle that, if followed in a straight line
@@ -205,19 +1154,76 @@ public class GraphDB {
      * @return The id of the node in the graph closest to the target.
      */
     long closest(double lon, double lat) {
-        // This is the dumb brute force method for now; not suave and cool
-        // but works hey it works (☞ﾟヮﾟ)☞
-        // Will use a spatial hash after if performance is needed! Cool idea
-        double closestDist = 999999999;
-        long closestID = 1;
-        for (long node : nodes.keySet()) {
-            double dist = distance2(node, lat, lon);
-            if (dist < closestDist) {
-                closestID = node;
-                closestDist = dist;
+        return ids[closestIndex(lon, lat)];
+    }
+
+    /**
+     * Returns the dense vertex number of the vertex closest to the given point.
+     */
+    int closestIndex(double lon, double lat) {
+        int closest = spatialIndex.nearest(lon, lat);
+        if (closest < 0) {
+            throw new NoSuchElementException("The graph has no vertices");
+        }
+        return closest;
+    }
+
+    /**
+     * Returns the dense vertex numbers of the k vertices closest to the given point,
+     * closest first.
+     */
+    int[] closestIndices(double lon, double lat, int k) {
+        return spatialIndex.nearest(lon, lat, k);
+    }
+
+    /**
+     * Snaps the given point onto the nearest road segment, rather than the nearest
+     * intersection like closest does. The result can be handed to
+     * Router.shortestPath(g, start, end).
+     *
+     * @param lon The target longitude.
+     * @param lat The target latitude.
+     * @return The nearest point on any edge of the graph.
+     */
+    PhantomNode snapToEdge(double lon, double lat) {
+        SegmentRTree index;
+        synchronized (this) {
+            if (edgeIndex == null) {
+                edgeIndex = new SegmentRTree(this);
+            }
+            index = edgeIndex;
+        }
+        PhantomNode snapped = index.nearest(lon, lat);
+        if (snapped == null) {
+            throw new NoSuchElementException("The graph has no edges");
+        }
+        return snapped;
+    }
+
+    /**
+     * Returns true if VERBOSE_PROPERTY asks for the build statistics to be printed.
+     */
+    static boolean verbose() {
+        return Boolean.getBoolean(VERBOSE_PROPERTY);
+    }
+
+    /**
+     * Returns the edges into each vertex (see ReverseEdges), making them the first time.
+     */
+    ReverseEdges reverseEdges() {
+        synchronized (this) {
+            if (reverseEdges == null) {
+                reverseEdges = new ReverseEdges(this);
             }
+            return reverseEdges;
         }
-        return closestID;
+    }
+
+    /**
+     * Returns the road segment index if snapToEdge has built it, or null.
+     */
+    synchronized SegmentRTree builtEdgeIndex() {
+        return edgeIndex;
     }
 
     /**
@@ -227,7 +1233,7 @@ public class GraphDB {
      * @return The longitude of the vertex.
      */
     double lon(long v) {
-        return nodes.get(v)[1];
+        return lonAt(indexOf(v));
     }
 
     /**
@@ -237,34 +1243,37 @@ public class GraphDB {
      * @return The latitude of the vertex.
      */
     double lat(long v) {
-        return nodes.get(v)[0];
+        return latAt(indexOf(v));
     }
 
     public void addNode(long id, double lat, double lon) {
         // 0 is Lat, 1 is Lon
         double[] coordinates = {lat, lon};
         nodes.put(id, coordinates);
-
-        // This ALWAYS must be called first otherwise overwrites!
-        ArrayList<Long> adjNodeInit = new ArrayList<>();
-        adj.put(id, adjNodeInit);
-
         numVerts++;
     }
 
+    /**
+     * Records road way id running through the given nodes, whose edges have been added,
+     * with the tags to keep for it.
+     */
+    void addWay(long id, List<Long> refs, WayTags tags) {
+        if (refs.size() < 2) {
+            // Made no edges, so there is nothing a change could need to undo
+            return;
+        }
+        long[] wayRefs = new long[refs.size()];
+        for (int i = 0; i < wayRefs.length; i++) {
+            wayRefs[i] = refs.get(i);
+        }
+        ways.put(id, wayRefs);
+        wayTags.put(id, tags);
+    }
+
     void addEdge(long v, long w) {
-        // Add to both adj lists
-        adj.get(v).add(w);
-        adj.get(w).add(v);
-    }
-
-    private void deleteNode(long id) {
-        // Just remove key from HashMap
-        // MAJOR NOTE: This deleteNode method assumes the
-        // node we're deleting has NO ADJACENT NODES
-        nodes.remove(id);
-        numVerts--;
-        // adj.remove(id); // deleted for efficiency see note
+        // Add to both adj lists, making them on first use
+        adj.computeIfAbsent(v, k -> new ArrayList<>(2)).add(w);
+        adj.computeIfAbsent(w, k -> new ArrayList<>(2)).add(v);
     }
 
     void addLocation(String s, double lat, double lon) {
@@ -0,0 +1,456 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Applies an OsmChange to a GraphDB, giving the graph's next version. The old version
+ * is left as it was, so requests already routing on it can finish there.
+ * <p>
+ * Only the vertices the change touches are worked on: those on the changed ways, the
+ * moved nodes and their neighbours. Their adjacency lists are rebuilt from the old lists
+ * and the way records (GraphDB.wayIds etc.), and everything in between is bulk copied
+ * from the old arrays, so the cost is a few array copies plus time proportional to the
+ * size of the change. The node and way indexes, the KdTree and the road segment index
+ * are layered over the old ones rather than rebuilt (see their withChanges methods).
+ * <p>
+ * Vertex numbers stay stable: new vertices are appended, and vertices left without
+ * edges are marked removed (GraphDB.removed) instead of being taken out of the arrays.
+ * A later removed vertex that a new road uses again comes back with its old number.
+ * Nodes that were never in the graph, because no road used them, are only known if the
+ * change lists them; roads through other unknown nodes lose those segments.
+ * <p>
+ * Where ways overlap, the graph keeps one edge for the shared segment, belonging to one
+ * of them (see GraphDB.clean). So when a deleted way takes a segment's edge with it, the
+ * remaining ways are checked for that segment, and if one still has it the edge is put
+ * back for that way. This is a scan of the way records, only needed when a change
+ * deletes or replaces ways.
+ */
+class GraphPatch {
+    private final GraphDB base;
+    private final OsmChange change;
+    private final int baseV;
+
+    /* Rebuilt adjacency lists of the touched vertices, each edge packed with its way
+     * (see edge). Vertices absent from it keep their old edges. */
+    private final HashMap<Integer, ArrayList<Long>> lists = new HashMap<>();
+
+    // Appended vertices, numbered from baseV up
+    private final ArrayList<Long> addedIds = new ArrayList<>();
+    private final ArrayList<double[]> addedCoordinates = new ArrayList<>();
+    private final HashMap<Long, Integer> added = new HashMap<>();
+    // Old vertices with new coordinates, as {lat, lon}; and removed ones back in use
+    private final HashMap<Integer, double[]> moved = new HashMap<>();
+    private final BitSet revived = new BitSet();
+
+    // Ways appended, numbered from base.wayIds.length up, and ways taken out
+    private final ArrayList<Long> addedWayIds = new ArrayList<>();
+    private final ArrayList<int[]> addedWayRefs = new ArrayList<>();
+    private final HashMap<Long, Integer> addedWays = new HashMap<>();
+    private final BitSet deletedWays = new BitSet();
+    // Segments whose edges went with a deleted way, as segment(u, v)
+    private final HashSet<Long> orphaned = new HashSet<>();
+
+    private int missingNodes;
+    private int keptNodes;
+
+    private GraphPatch(GraphDB base, OsmChange change) {
+        this.base = base;
+        this.change = change;
+        this.baseV = base.V();
+    }
+
+    /**
+     * Returns the next version of g with change applied. g itself is not modified. With
+     * GraphDB.VERBOSE_PROPERTY set, prints what the change did.
+     */
+    static GraphDB apply(GraphDB g, OsmChange change) {
+        return new GraphPatch(g, change).apply();
+    }
+
+    private GraphDB apply() {
+        long start = System.nanoTime();
+
+        // Take out the old edges of every way the change deletes or replaces
+        for (long id : change.deletedWays) {
+            deleteWay(id);
+        }
+        for (long id : change.roads.keySet()) {
+            deleteWay(id);
+        }
+
+        for (Map.Entry<Long, long[]> road : change.roads.entrySet()) {
+            long[] refs = road.getValue();
+            int[] vertices = new int[refs.length];
+            for (int i = 0; i < refs.length; i++) {
+                vertices[i] = vertex(refs[i]);
+            }
+            int way = base.wayIds.length + addedWayIds.size();
+            for (int i = 0; i + 1 < vertices.length; i++) {
+                int u = vertices[i];
+                int v = vertices[i + 1];
+                // Like GraphDB.clean, one edge per segment however many ways share it
+                if (u >= 0 && v >= 0 && u != v && !hasEdge(list(u), v)) {
+                    list(u).add(edge(v, way));
+                    list(v).add(edge(u, way));
+                }
+            }
+            addedWays.put(road.getKey(), way);
+            addedWayIds.add(road.getKey());
+            addedWayRefs.add(vertices);
+        }
+        restoreSharedSegments();
+
+        // Moving a node changes the weights of its edges in both directions
+        for (Map.Entry<Long, double[]> node : change.nodes.entrySet()) {
+            int v = base.nodeIndex.indexOf(node.getKey());
+            if (v < 0 || (base.isRemoved(v) && !revived.get(v))) {
+                continue;
+            }
+            double[] coordinates = node.getValue();
+            if (coordinates[0] != base.latAt(v) || coordinates[1] != base.lonAt(v)) {
+                moved.put(v, coordinates);
+                for (long edge : list(v)) {
+                    list(target(edge));
+                }
+            }
+        }
+
+        for (long id : change.deletedNodes) {
+            int v = base.index(id);
+            if (v >= 0 && (lists.containsKey(v) ? !lists.get(v).isEmpty()
+                    : base.edgeEnd(v) > base.edgeStart(v))) {
+                // Still on a road that the change didn't touch
+                keptNodes++;
+            }
+        }
+
+        GraphDB g = build();
+
+        if (GraphDB.verbose()) {
+            long elapsed = System.nanoTime() - start;
+            System.out.println(String.format(
+                    "Applied %d changes for version %d: %d vertices added, %d moved, %d "
+                            + "removed, %d ways replaced or deleted, %d adjacency lists "
+                            + "rebuilt in %.1f ms",
+                    change.size(), g.version, addedIds.size(), moved.size(),
+                    (g.removed == null ? 0 : g.removed.cardinality())
+                            - (base.removed == null ? 0 : base.removed.cardinality()),
+                    deletedWays.cardinality(), lists.size(), elapsed / 1e6));
+            if (missingNodes > 0) {
+                System.out.println("Skipped " + missingNodes
+                        + " road nodes with unknown coordinates");
+            }
+            if (keptNodes > 0) {
+                System.out.println("Kept " + keptNodes + " deleted nodes still used by roads");
+            }
+        }
+        return g;
+    }
+
+    /**
+     * Returns the adjacency list of v as this patch has it so far, copying it from the
+     * base graph the first time.
+     */
+    private ArrayList<Long> list(int v) {
+        ArrayList<Long> list = lists.get(v);
+        if (list == null) {
+            list = new ArrayList<>();
+            if (v < baseV) {
+                for (int e = base.edgeStart(v); e < base.edgeEnd(v); e++) {
+                    list.add(edge(base.edgeTarget(e), base.edgeWay(e)));
+                }
+            }
+            lists.put(v, list);
+        }
+        return list;
+    }
+
+    /* An adjacency list entry: the target vertex in the low half, the way in the high. */
+    private static long edge(int target, int way) {
+        return (long) way << 32 | (target & 0xFFFFFFFFL);
+    }
+
+    private static int target(long edge) {
+        return (int) edge;
+    }
+
+    private static int way(long edge) {
+        return (int) (edge >> 32);
+    }
+
+    /* Takes the edge to v that way made out of list, or failing that an edge to v whose
+     * way isn't known. Returns true if it was the way's own edge. */
+    private static boolean removeEdge(ArrayList<Long> list, int v, int way) {
+        if (list.remove(Long.valueOf(edge(v, way)))) {
+            return true;
+        }
+        list.remove(Long.valueOf(edge(v, -1)));
+        return false;
+    }
+
+    private static boolean hasEdge(ArrayList<Long> list, int v) {
+        for (long edge : list) {
+            if (target(edge) == v) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Either direction of the segment between u and v, as one key. */
+    private static long segment(int u, int v) {
+        return (long) Math.min(u, v) << 32 | Math.max(u, v);
+    }
+
+    /**
+     * Puts back the edges of orphaned segments that a way the change left alone still
+     * runs along, as that way's edges.
+     */
+    private void restoreSharedSegments() {
+        if (orphaned.isEmpty()) {
+            return;
+        }
+        for (int way = 0; way < base.wayIds.length; way++) {
+            if (deletedWays.get(way) || (base.removedWays != null && base.removedWays.get(way))) {
+                continue;
+            }
+            for (int r = base.wayOffsets[way]; r + 1 < base.wayOffsets[way + 1]; r++) {
+                int u = base.wayRefs[r];
+                int v = base.wayRefs[r + 1];
+                if (u < 0 || v < 0 || !orphaned.contains(segment(u, v))) {
+                    continue;
+                }
+                if (!hasEdge(list(u), v)) {
+                    list(u).add(edge(v, way));
+                }
+                if (!hasEdge(list(v), u)) {
+                    list(v).add(edge(u, way));
+                }
+            }
+        }
+    }
+
+    private void deleteWay(long id) {
+        int way = base.wayIndex.indexOf(id);
+        if (way < 0 || (base.removedWays != null && base.removedWays.get(way))
+                || deletedWays.get(way)) {
+            return;
+        }
+        deletedWays.set(way);
+        for (int r = base.wayOffsets[way]; r + 1 < base.wayOffsets[way + 1]; r++) {
+            int u = base.wayRefs[r];
+            int v = base.wayRefs[r + 1];
+            if (u >= 0 && v >= 0) {
+                boolean owned = removeEdge(list(u), v, way);
+                owned |= removeEdge(list(v), u, way);
+                if (owned) {
+                    orphaned.add(segment(u, v));
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the vertex for the node with the given id, adding it (or bringing it back)
+     * if needed. Returns -1 if the node's coordinates are unknown.
+     */
+    private int vertex(long id) {
+        Integer v = added.get(id);
+        if (v != null) {
+            return v;
+        }
+        int old = base.nodeIndex.indexOf(id);
+        if (old >= 0) {
+            if (base.isRemoved(old) && !revived.get(old)) {
+                revived.set(old);
+                list(old);
+            }
+            return old;
+        }
+        double[] coordinates = change.nodes.get(id);
+        if (coordinates == null) {
+            missingNodes++;
+            return -1;
+        }
+        int vertex = baseV + addedIds.size();
+        addedIds.add(id);
+        addedCoordinates.add(coordinates);
+        added.put(id, vertex);
+        return vertex;
+    }
+
+    private GraphDB build() {
+        GraphDB g = new GraphDB(base);
+        int n = baseV + addedIds.size();
+        g.numVerts = n;
+        // Built on the heap, and moved off it at the end if base was
+        g.offHeap = null;
+
+        g.ids = Arrays.copyOf(base.ids, n);
+        for (int i = 0; i < addedIds.size(); i++) {
+            g.ids[baseV + i] = addedIds.get(i);
+        }
+        if (base.isFixedPoint()) {
+            g.fixedLats = new int[n];
+            g.fixedLons = new int[n];
+            base.copyFixedPoint(g.fixedLats, g.fixedLons);
+        } else {
+            g.lats = new double[n];
+            g.lons = new double[n];
+            base.copyCoordinates(g.lats, g.lons);
+        }
+        for (Map.Entry<Integer, double[]> entry : moved.entrySet()) {
+            setCoordinates(g, entry.getKey(), entry.getValue());
+        }
+        for (int i = 0; i < addedIds.size(); i++) {
+            setCoordinates(g, baseV + i, addedCoordinates.get(i));
+        }
+
+        // Touched vertices in order; everything between them is copied as is
+        int[] touched = new int[lists.size()];
+        int t = 0;
+        int numEdges = base.E();
+        for (Map.Entry<Integer, ArrayList<Long>> entry : lists.entrySet()) {
+            int v = entry.getKey();
+            touched[t++] = v;
+            numEdges += entry.getValue().size();
+            if (v < baseV) {
+                numEdges -= base.edgeEnd(v) - base.edgeStart(v);
+            }
+        }
+        Arrays.sort(touched);
+
+        g.offsets = new int[n + 1];
+        g.targets = new int[numEdges];
+        g.edgeWays = new int[numEdges];
+        Metric[] metrics = Metric.values();
+        g.weights = new float[metrics.length][numEdges];
+        int e = 0;
+        int v = 0;
+        t = 0;
+        while (v < n) {
+            int next = t < touched.length ? touched[t] : n;
+            int runEnd = Math.min(next, baseV);
+            if (v < runEnd) {
+                int from = base.edgeStart(v);
+                int length = base.edgeStart(runEnd) - from;
+                base.copyTargets(from, g.targets, e, length);
+                System.arraycopy(base.edgeWays, from, g.edgeWays, e, length);
+                for (Metric metric : metrics) {
+                    base.copyWeights(metric, from, g.weights[metric.ordinal()], e, length);
+                }
+                int shift = e - from;
+                for (; v < runEnd; v++) {
+                    g.offsets[v] = base.edgeStart(v) + shift;
+                }
+                e += length;
+            }
+            // Appended vertices no road ended up using
+            for (; v < next; v++) {
+                g.offsets[v] = e;
+            }
+            if (next < n) {
+                g.offsets[v] = e;
+                for (long edge : lists.get(v)) {
+                    g.targets[e] = target(edge);
+                    g.edgeWays[e] = way(edge);
+                    e++;
+                }
+                v++;
+                t++;
+            }
+        }
+        g.offsets[n] = e;
+
+        // Tags of the new ways, numbered after the old ones like their ids below
+        WayTable.Builder table = new WayTable.Builder(base.wayTable);
+        for (long id : addedWayIds) {
+            table.add(change.roadTags.get(id));
+        }
+        g.wayTable = table.build();
+
+        // Weights of the rebuilt lists, now that the coordinates and ways are in place
+        for (int u : touched) {
+            for (int edge = g.offsets[u]; edge < g.offsets[u + 1]; edge++) {
+                for (Metric metric : metrics) {
+                    g.weights[metric.ordinal()][edge] =
+                            Metric.roundUp(metric.weight(g, u, edge));
+                }
+            }
+        }
+
+        BitSet removed = base.removed == null ? new BitSet() : (BitSet) base.removed.clone();
+        removed.andNot(revived);
+        for (int u : touched) {
+            if (g.offsets[u + 1] == g.offsets[u]) {
+                removed.set(u);
+            }
+        }
+        for (v = baseV; v < n; v++) {
+            if (g.offsets[v + 1] == g.offsets[v]) {
+                removed.set(v);
+            }
+        }
+        g.removed = removed.isEmpty() ? null : removed;
+        g.nodeIndex = base.nodeIndex.withChanges(g.ids, added, g.removed);
+
+        int numWays = base.wayIds.length + addedWayIds.size();
+        int numWayRefs = base.wayRefs.length;
+        for (int[] refs : addedWayRefs) {
+            numWayRefs += refs.length;
+        }
+        g.wayIds = Arrays.copyOf(base.wayIds, numWays);
+        g.wayOffsets = Arrays.copyOf(base.wayOffsets, numWays + 1);
+        g.wayRefs = Arrays.copyOf(base.wayRefs, numWayRefs);
+        int r = base.wayRefs.length;
+        for (int i = 0; i < addedWayIds.size(); i++) {
+            int way = base.wayIds.length + i;
+            g.wayIds[way] = addedWayIds.get(i);
+            g.wayOffsets[way] = r;
+            int[] refs = addedWayRefs.get(i);
+            System.arraycopy(refs, 0, g.wayRefs, r, refs.length);
+            r += refs.length;
+        }
+        g.wayOffsets[numWays] = r;
+        BitSet removedWays = base.removedWays == null ? new BitSet()
+                : (BitSet) base.removedWays.clone();
+        removedWays.or(deletedWays);
+        g.removedWays = removedWays.isEmpty() ? null : removedWays;
+        g.wayIndex = base.wayIndex.withChanges(g.wayIds, addedWays, g.removedWays);
+
+        // The KdTree only cares about vertices that moved, came or went
+        BitSet changed = new BitSet();
+        for (int u : moved.keySet()) {
+            changed.set(u);
+        }
+        changed.or(revived);
+        changed.set(baseV, n);
+        for (int u : touched) {
+            if (removed.get(u)) {
+                changed.set(u);
+            }
+        }
+        g.spatialIndex = base.spatialIndex.withChanges(g, changed.stream().toArray());
+        SegmentRTree edgeIndex = base.builtEdgeIndex();
+        if (edgeIndex != null) {
+            g.edgeIndex = edgeIndex.withChanges(g, touched);
+        }
+        if (base.isOffHeap()) {
+            g.moveOffHeap();
+        }
+        return g;
+    }
+
+    private static void setCoordinates(GraphDB g, int v, double[] coordinates) {
+        if (g.isFixedPoint()) {
+            g.fixedLats[v] = GraphDB.toFixedPoint(coordinates[0]);
+            g.fixedLons[v] = GraphDB.toFixedPoint(coordinates[1]);
+        } else {
+            g.lats[v] = coordinates[0];
+            g.lons[v] = coordinates[1];
+        }
+    }
+}
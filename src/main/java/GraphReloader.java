@@ -0,0 +1,212 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Holds the GraphDB the server is answering requests from, and replaces it without a
+ * restart. A reload builds (or loads the snapshot of) a new graph on a background thread,
+ * or applies an OsmChange to the current one with GraphPatch (compacting the result with
+ * GraphCompactor once enough of it has been removed), and then swaps the result in with
+ * a single atomic write. If the current graph has customized overlays (see
+ * GraphDB.customizeLike), the new one gets them before it is swapped in.
+ * <p>
+ * Requests call current() once and use that graph throughout, so a request that started
+ * before a swap finishes on the version it started with. Nothing else keeps the old
+ * version, so it is garbage once those requests are done. Building a new graph needs
+ * room for both versions at once for a while.
+ * <p>
+ * Only one reload runs at a time; status() describes the running one, if any, and the
+ * last one to finish.
+ */
+class GraphReloader {
+    private final AtomicReference<GraphDB> current;
+    private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "graph-reload");
+        t.setDaemon(true);
+        return t;
+    });
+
+    /* Bumped by every swap, so clients can tell a new graph is in. */
+    private long generation;
+
+    /* The running reload: what it is doing and since when; guarded by this. */
+    private boolean running;
+    private String source;
+    private String phase;
+    private long startedMillis;
+    private long phaseStartNanos;
+    private final Map<String, Double> phaseMillis = new LinkedHashMap<>();
+
+    /* How the last finished reload went; guarded by this. */
+    private Map<String, Object> last;
+
+    GraphReloader(GraphDB graph) {
+        this.current = new AtomicReference<>(graph);
+    }
+
+    /**
+     * Returns the graph requests should use right now.
+     */
+    GraphDB current() {
+        return current.get();
+    }
+
+    /**
+     * Starts replacing the graph with one loaded from an OSM file, in the background.
+     *
+     * @param dbPath The OSM file to load, as for GraphDB.load.
+     * @return False if another reload is still running, in which case nothing happens.
+     * @throws IllegalArgumentException If there is no such file.
+     */
+    boolean reload(String dbPath) {
+        if (!new File(dbPath).isFile()) {
+            throw new IllegalArgumentException("No OSM file at " + dbPath);
+        }
+        if (!start(dbPath)) {
+            return false;
+        }
+        worker.execute(() -> {
+            try {
+                phase("loading");
+                GraphDB g = GraphDB.load(dbPath);
+                if (g.liveVertexCount() == 0) {
+                    throw new IOException("No roads in " + dbPath);
+                }
+                customize(g);
+                swap(g);
+            } catch (Throwable e) {
+                // Anything let through would leave the reload running for good
+                e.printStackTrace();
+                fail(e);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Starts replacing the graph with the current one plus the changes in an OsmChange
+     * file, in the background.
+     *
+     * @param changePath The .osc file, optionally compressed.
+     * @return False if another reload is still running, in which case nothing happens.
+     * @throws IllegalArgumentException If there is no such file.
+     */
+    boolean applyChange(String changePath) {
+        if (!new File(changePath).isFile()) {
+            throw new IllegalArgumentException("No change file at " + changePath);
+        }
+        if (!start(changePath)) {
+            return false;
+        }
+        worker.execute(() -> {
+            try {
+                phase("reading change");
+                OsmChange change = OsmChange.read(new File(changePath));
+                phase("patching");
+                GraphDB g = GraphPatch.apply(current.get(), change);
+                if (GraphCompactor.worthCompacting(g)) {
+                    phase("compacting");
+                    g = GraphCompactor.compact(g);
+                }
+                customize(g);
+                swap(g);
+            } catch (Throwable e) {
+                // Anything let through would leave the reload running for good
+                e.printStackTrace();
+                fail(e);
+            }
+        });
+        return true;
+    }
+
+    private synchronized boolean start(String path) {
+        if (running) {
+            return false;
+        }
+        running = true;
+        source = path;
+        phase = "queued";
+        startedMillis = System.currentTimeMillis();
+        phaseStartNanos = System.nanoTime();
+        phaseMillis.clear();
+        return true;
+    }
+
+    private synchronized void phase(String name) {
+        long now = System.nanoTime();
+        phaseMillis.put(phase, (now - phaseStartNanos) / 1e6);
+        phase = name;
+        phaseStartNanos = now;
+    }
+
+    /* Customizes overlays for g like the current graph's, if it has any. */
+    private void customize(GraphDB g) {
+        GraphDB base = current.get();
+        if (base.builtCellPartition() != null) {
+            phase("customizing");
+            g.customizeLike(base);
+        }
+    }
+
+    private void swap(GraphDB g) {
+        phase("swapping");
+        current.set(g);
+        synchronized (this) {
+            generation++;
+            Map<String, Object> result = finish("done");
+            result.put("vertices", g.liveVertexCount());
+            result.put("edges", g.E());
+            result.put("version", g.version);
+            System.out.println("Swapped in graph generation " + generation + " from "
+                    + source + " in " + result.get("totalMs") + " ms");
+        }
+    }
+
+    private synchronized void fail(Throwable e) {
+        finish("failed").put("error", String.valueOf(e));
+    }
+
+    /* Records the running reload as the last one and returns its entry. */
+    private Map<String, Object> finish(String outcome) {
+        phase(outcome);
+        phaseMillis.remove(outcome);
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("outcome", outcome);
+        result.put("source", source);
+        result.put("startedAt", startedMillis);
+        result.put("totalMs", (double) (System.currentTimeMillis() - startedMillis));
+        result.put("phasesMs", new LinkedHashMap<>(phaseMillis));
+        last = result;
+        running = false;
+        return result;
+    }
+
+    /**
+     * Returns what the reloader is doing, for the admin endpoint: the current graph's
+     * generation and size, the running reload's phase and elapsed time, and the outcome
+     * and per-phase timings of the last one to finish.
+     */
+    synchronized Map<String, Object> status() {
+        GraphDB g = current.get();
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("generation", generation);
+        status.put("version", g.version);
+        status.put("vertices", g.liveVertexCount());
+        status.put("edges", g.E());
+        status.put("reloading", running);
+        if (running) {
+            status.put("source", source);
+            status.put("phase", phase);
+            status.put("phaseMs", (System.nanoTime() - phaseStartNanos) / 1e6);
+            status.put("elapsedMs", (double) (System.currentTimeMillis() - startedMillis));
+        }
+        if (last != null) {
+            status.put("last", last);
+        }
+        return status;
+    }
+}
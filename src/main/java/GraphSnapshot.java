@@ -0,0 +1,380 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary snapshot of a finished GraphDB, so the server does not have to re-parse the OSM
+ * XML on every boot. The snapshot is the CSR arrays written out back to back, along with
+ * everything GraphDB would otherwise work out from them: the edge weights of every
+ * Metric, the hash tables of the node and way indexes and the KdTree order. So loading
+ * it is a memory map plus bulk copies instead of a scan of the XML, with nothing to
+ * compute.
+ * <p>
+ * Layout (big endian): a fixed size header with the magic number, format version, the
+ * length and modification time of the OSM file the graph was built from, the vertex,
+ * edge, way, way node, way name and location counts, the number of metrics, whether the
+ * coordinates were fixed-point, the sizes of the two index tables, and a CRC32 of
+ * everything after the header. Then the payload: ids, lats, lons, offsets, targets,
+ * wayIds, wayOffsets, wayRefs, the WayTable's name pool and columns, edgeWays, the
+ * weights by Metric ordinal, the KdTree order, the node and way index tables, and
+ * finally the named locations.
+ * <p>
+ * A snapshot whose version, source file or checksum does not match is treated as
+ * missing, and the caller falls back to parsing the XML. With GraphDB.OFF_HEAP_PROPERTY
+ * set, the coordinates, adjacency and weights are used in place in the mapped file
+ * instead of being copied out. On the heap they are copied into arrays, since that is
+ * what an on-heap GraphDB is made of. The weights are worked out again only if
+ * GraphDB.FIXED_POINT_PROPERTY rounds coordinates that were saved unrounded.
+ */
+class GraphSnapshot {
+    private static final int MAGIC = 0x424D4753; // "BMGS"
+    /** Bump whenever the layout below changes so old snapshots are rebuilt. */
+    static final int VERSION = 4;
+    private static final int HEADER_BYTES =
+            4 + 4 + 8 + 8 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 4 + 8 + 8;
+    /** The most one mapping of the file covers. */
+    private static final long MAX_SECTION_BYTES = Integer.MAX_VALUE;
+
+    /**
+     * Returns where the snapshot for the given OSM file lives.
+     */
+    static File snapshotFile(String dbPath) {
+        return new File(dbPath + ".snapshot");
+    }
+
+    /**
+     * Writes g to file, tagged with the OSM file it was built from. The snapshot is
+     * written to a temporary file first and moved into place, so a server starting up at
+     * the same time never sees half a snapshot.
+     *
+     * @param g      The graph to save. Must not have removed vertices or ways left by a
+     *               GraphPatch, since the snapshot has no room for them; compact a
+     *               patched graph with GraphCompactor first.
+     * @param file   Where to write the snapshot.
+     * @param source The OSM file g was built from.
+     * @throws IOException If the snapshot could not be written.
+     */
+    static void write(GraphDB g, File file, File source) throws IOException {
+        if (g.removed != null || g.removedWays != null) {
+            throw new IllegalArgumentException("Can't snapshot a patched graph; compact it first");
+        }
+        File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(0);
+            raf.seek(HEADER_BYTES);
+
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(raf.getChannel()), 1 << 16),
+                    crc));
+            int n = g.ids.length;
+            for (int v = 0; v < n; v++) {
+                out.writeLong(g.ids[v]);
+            }
+            for (int v = 0; v < n; v++) {
+                out.writeDouble(g.latAt(v));
+            }
+            for (int v = 0; v < n; v++) {
+                out.writeDouble(g.lonAt(v));
+            }
+            for (int v = 0; v <= n; v++) {
+                out.writeInt(g.edgeStart(v));
+            }
+            for (int e = 0; e < g.E(); e++) {
+                out.writeInt(g.edgeTarget(e));
+            }
+            int numWays = g.wayIds.length;
+            for (int w = 0; w < numWays; w++) {
+                out.writeLong(g.wayIds[w]);
+            }
+            for (int w = 0; w <= numWays; w++) {
+                out.writeInt(g.wayOffsets[w]);
+            }
+            for (int r = 0; r < g.wayRefs.length; r++) {
+                out.writeInt(g.wayRefs[r]);
+            }
+            WayTable table = g.wayTable;
+            for (String s : table.strings) {
+                byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            for (int w = 0; w < numWays; w++) {
+                out.writeInt(table.names[w]);
+            }
+            for (int w = 0; w < numWays; w++) {
+                out.writeShort(table.maxSpeeds[w]);
+            }
+            out.write(table.classes);
+            out.write(table.flags);
+            for (int e = 0; e < g.E(); e++) {
+                out.writeInt(g.edgeWay(e));
+            }
+            for (Metric metric : Metric.values()) {
+                for (int e = 0; e < g.E(); e++) {
+                    out.writeFloat(g.weight(metric, e));
+                }
+            }
+            // A compacted graph may still have the indexes of the patches before it
+            int[] treeOrder = g.spatialIndex.order();
+            if (treeOrder == null) {
+                treeOrder = new KdTree(g).order();
+            }
+            int[] nodeSlots = g.nodeIndex.table();
+            if (nodeSlots == null) {
+                nodeSlots = new NodeIndex(g.ids).table();
+            }
+            int[] waySlots = g.wayIndex.table();
+            if (waySlots == null) {
+                waySlots = new NodeIndex(g.wayIds).table();
+            }
+            for (int v : treeOrder) {
+                out.writeInt(v);
+            }
+            for (int slot : nodeSlots) {
+                out.writeInt(slot);
+            }
+            for (int slot : waySlots) {
+                out.writeInt(slot);
+            }
+            for (Map.Entry<String, LinkedList<double[]>> location : g.locations.entrySet()) {
+                byte[] name = location.getKey().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(name.length);
+                out.write(name);
+                out.writeInt(location.getValue().size());
+                for (double[] coords : location.getValue()) {
+                    out.writeDouble(coords[0]);
+                    out.writeDouble(coords[1]);
+                }
+            }
+            out.flush();
+            long payloadBytes = raf.length() - HEADER_BYTES;
+
+            raf.seek(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeLong(source.length());
+            raf.writeLong(source.lastModified());
+            raf.writeInt(n);
+            raf.writeInt(g.E());
+            raf.writeInt(numWays);
+            raf.writeInt(g.wayRefs.length);
+            raf.writeInt(table.strings.length);
+            raf.writeInt(g.locations.size());
+            raf.writeInt(Metric.values().length);
+            raf.writeInt(g.isFixedPoint() ? 1 : 0);
+            raf.writeInt(nodeSlots.length);
+            raf.writeInt(waySlots.length);
+            raf.writeLong(payloadBytes);
+            raf.writeLong(crc.getValue());
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Opens a snapshot written by write.
+     *
+     * @param file   The snapshot file.
+     * @param source The OSM file the snapshot should have been built from. If it exists
+     *               and its length or modification time differ from what the snapshot
+     *               recorded, the snapshot is stale.
+     * @return The graph, or null if the snapshot is missing, stale, from another format
+     * version, or fails its checksum.
+     * @throws IOException If the snapshot exists but could not be read, or holds a single
+     * array over 2 GB.
+     */
+    static GraphDB read(File file, File source) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            if (channel.size() < HEADER_BYTES) {
+                return null;
+            }
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES);
+            if (buf.getInt() != MAGIC || buf.getInt() != VERSION) {
+                return null;
+            }
+            long sourceLength = buf.getLong();
+            long sourceModified = buf.getLong();
+            if (source.isFile() && (source.length() != sourceLength
+                    || source.lastModified() != sourceModified)) {
+                return null;
+            }
+            int n = buf.getInt();
+            int numEdges = buf.getInt();
+            int numWays = buf.getInt();
+            int numWayRefs = buf.getInt();
+            int numStrings = buf.getInt();
+            int numLocations = buf.getInt();
+            int numMetrics = buf.getInt();
+            boolean fixedPoint = buf.getInt() != 0;
+            int nodeSlotCount = buf.getInt();
+            int waySlotCount = buf.getInt();
+            long payloadBytes = buf.getLong();
+            long checksum = buf.getLong();
+            if (payloadBytes != channel.size() - HEADER_BYTES
+                    || numMetrics != Metric.values().length) {
+                return null;
+            }
+
+            // Mapped a section at a time, since one mapping can't be over 2 GB
+            Sections sections = new Sections(channel, HEADER_BYTES);
+            CRC32 crc = new CRC32();
+            for (long at = HEADER_BYTES; at < channel.size(); at += MAX_SECTION_BYTES) {
+                crc.update(channel.map(FileChannel.MapMode.READ_ONLY, at,
+                        Math.min(MAX_SECTION_BYTES, channel.size() - at)));
+            }
+            if (crc.getValue() != checksum) {
+                return null;
+            }
+
+            long[] ids = new long[n];
+            sections.next(8L * n).asLongBuffer().get(ids);
+
+            // Off the heap, the coordinates and adjacency stay where they are in the map
+            boolean offHeap = Boolean.getBoolean(GraphDB.OFF_HEAP_PROPERTY);
+            OffHeapArrays mapped = null;
+            double[] lats = null;
+            double[] lons = null;
+            int[] offsets = null;
+            int[] targets = null;
+            if (offHeap) {
+                DoubleBuffer latBuffer = sections.next(8L * n).asDoubleBuffer();
+                DoubleBuffer lonBuffer = sections.next(8L * n).asDoubleBuffer();
+                IntBuffer offsetBuffer = sections.next(4L * (n + 1)).asIntBuffer();
+                IntBuffer targetBuffer = sections.next(4L * numEdges).asIntBuffer();
+                mapped = new OffHeapArrays(latBuffer, lonBuffer, null, null, offsetBuffer,
+                        targetBuffer);
+            } else {
+                lats = new double[n];
+                lons = new double[n];
+                offsets = new int[n + 1];
+                targets = new int[numEdges];
+                sections.next(8L * n).asDoubleBuffer().get(lats);
+                sections.next(8L * n).asDoubleBuffer().get(lons);
+                sections.next(4L * (n + 1)).asIntBuffer().get(offsets);
+                sections.next(4L * numEdges).asIntBuffer().get(targets);
+            }
+
+            long[] wayIds = new long[numWays];
+            int[] wayOffsets = new int[numWays + 1];
+            int[] wayRefs = new int[numWayRefs];
+            sections.next(8L * numWays).asLongBuffer().get(wayIds);
+            sections.next(4L * (numWays + 1)).asIntBuffer().get(wayOffsets);
+            sections.next(4L * numWayRefs).asIntBuffer().get(wayRefs);
+
+            buf = sections.rest();
+            String[] strings = new String[numStrings];
+            for (int i = 0; i < numStrings; i++) {
+                byte[] bytes = new byte[buf.getInt()];
+                buf.get(bytes);
+                strings[i] = new String(bytes, StandardCharsets.UTF_8);
+            }
+            int[] names = new int[numWays];
+            short[] maxSpeeds = new short[numWays];
+            byte[] classes = new byte[numWays];
+            byte[] flags = new byte[numWays];
+            sections.skip(buf.position());
+            sections.next(4L * numWays).asIntBuffer().get(names);
+            sections.next(2L * numWays).asShortBuffer().get(maxSpeeds);
+            sections.next(numWays).get(classes);
+            sections.next(numWays).get(flags);
+            WayTable table = new WayTable(strings, names, maxSpeeds, classes, flags);
+            int[] edgeWays = new int[numEdges];
+            sections.next(4L * numEdges).asIntBuffer().get(edgeWays);
+
+            // Weights worked out from unrounded coordinates don't fit rounded ones
+            boolean keepWeights = fixedPoint || !Boolean.getBoolean(GraphDB.FIXED_POINT_PROPERTY);
+            float[][] weights = keepWeights && !offHeap ? new float[numMetrics][] : null;
+            for (int m = 0; m < numMetrics; m++) {
+                if (offHeap) {
+                    mapped.weights[m] = sections.next(4L * numEdges).asFloatBuffer();
+                } else if (weights != null) {
+                    weights[m] = new float[numEdges];
+                    sections.next(4L * numEdges).asFloatBuffer().get(weights[m]);
+                } else {
+                    sections.skip(4L * numEdges);
+                }
+            }
+            int[] treeOrder = new int[n];
+            sections.next(4L * n).asIntBuffer().get(treeOrder);
+            int[] nodeSlots = new int[nodeSlotCount];
+            sections.next(4L * nodeSlotCount).asIntBuffer().get(nodeSlots);
+            int[] waySlots = new int[waySlotCount];
+            sections.next(4L * waySlotCount).asIntBuffer().get(waySlots);
+            NodeIndex nodeIndex = new NodeIndex(ids, nodeSlots);
+            NodeIndex wayIndex = new NodeIndex(wayIds, waySlots);
+
+            buf = sections.rest();
+            HashMap<String, LinkedList<double[]>> locations = new HashMap<>();
+            for (int i = 0; i < numLocations; i++) {
+                byte[] name = new byte[buf.getInt()];
+                buf.get(name);
+                int count = buf.getInt();
+                LinkedList<double[]> coords = new LinkedList<>();
+                for (int j = 0; j < count; j++) {
+                    coords.add(new double[]{buf.getDouble(), buf.getDouble()});
+                }
+                locations.put(new String(name, StandardCharsets.UTF_8), coords);
+            }
+            if (offHeap) {
+                return new GraphDB(ids, mapped, wayIds, wayOffsets, wayRefs, table, edgeWays,
+                        locations, nodeIndex, wayIndex, treeOrder);
+            }
+            return new GraphDB(ids, lats, lons, offsets, targets, wayIds, wayOffsets, wayRefs,
+                    table, edgeWays, locations, nodeIndex, wayIndex, treeOrder, weights);
+        }
+    }
+
+    /* Maps a file one section at a time, from front to back. Each mapping has to be
+     * under 2 GB, while a snapshot of a large extract can be much bigger than that. A
+     * mapping stays valid once the channel is closed. */
+    private static class Sections {
+        final FileChannel channel;
+        long position;
+
+        Sections(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        /* The next bytes of the file, as a buffer of their own. */
+        ByteBuffer next(long bytes) throws IOException {
+            if (bytes > MAX_SECTION_BYTES || position + bytes > channel.size()) {
+                throw new IOException("Snapshot section of " + bytes + " bytes at "
+                        + position + " does not fit");
+            }
+            ByteBuffer section = channel.map(FileChannel.MapMode.READ_ONLY, position, bytes);
+            position += bytes;
+            return section;
+        }
+
+        /* The rest of the file, or as much of it as one mapping holds, for reading parts
+         * whose length is only known as they are read; skip past what was read after. */
+        ByteBuffer rest() throws IOException {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position,
+                    Math.min(MAX_SECTION_BYTES, channel.size() - position));
+        }
+
+        void skip(long bytes) {
+            position += bytes;
+        }
+    }
+}
@@ -0,0 +1,93 @@
+import java.util.Arrays;
+
+/**
+ * Orders points along a Hilbert curve, which visits every cell of a grid so that cells
+ * close together on the curve are close together on the map. GraphDB uses it to number
+ * vertices (see GraphDB.HILBERT_ORDER_PROPERTY) so that the intersections a search
+ * settles one after another tend to sit next to each other in the arrays, and share
+ * cache lines, instead of being scattered by OSM id.
+ * See <a href="https://en.wikipedia.org/wiki/Hilbert_curve">Hilbert curve</a>.
+ */
+class HilbertCurve {
+    /** Bits per axis: the bounding box is cut into a 2^ORDER by 2^ORDER grid. */
+    static final int ORDER = 16;
+
+    private HilbertCurve() {
+    }
+
+    /**
+     * Returns the position of grid cell (x, y) along the curve, for 0 <= x, y < 2^ORDER.
+     */
+    static long index(int x, int y) {
+        return index(ORDER, x, y);
+    }
+
+    /**
+     * Returns the position of grid cell (x, y) along the curve through a 2^order by
+     * 2^order grid, for 0 <= x, y < 2^order.
+     */
+    static long index(int order, int x, int y) {
+        int n = 1 << order;
+        long d = 0;
+        for (int s = n / 2; s > 0; s /= 2) {
+            int rx = (x & s) > 0 ? 1 : 0;
+            int ry = (y & s) > 0 ? 1 : 0;
+            d += (long) s * s * ((3 * rx) ^ ry);
+            // Rotate the quadrant so the curve inside it starts where the last one ended
+            if (ry == 0) {
+                if (rx == 1) {
+                    x = n - 1 - x;
+                    y = n - 1 - y;
+                }
+                int t = x;
+                x = y;
+                y = t;
+            }
+        }
+        return d;
+    }
+
+    /**
+     * Sorts the points (lats[i], lons[i]), along with their ids, into curve order over
+     * their bounding box. Points in the same grid cell keep their relative order.
+     */
+    static void sort(long[] ids, double[] lats, double[] lons) {
+        int n = ids.length;
+        if (n < 2) {
+            return;
+        }
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < n; i++) {
+            minLat = Math.min(minLat, lats[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+            minLon = Math.min(minLon, lons[i]);
+            maxLon = Math.max(maxLon, lons[i]);
+        }
+        int cells = (1 << ORDER) - 1;
+        double latScale = maxLat > minLat ? cells / (maxLat - minLat) : 0;
+        double lonScale = maxLon > minLon ? cells / (maxLon - minLon) : 0;
+
+        // Curve position (2 * ORDER bits) above the old position (31 bits), so one
+        // primitive sort gives the permutation
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            int x = (int) ((lons[i] - minLon) * lonScale);
+            int y = (int) ((lats[i] - minLat) * latScale);
+            keys[i] = index(x, y) << 31 | i;
+        }
+        Arrays.sort(keys);
+
+        long[] oldIds = ids.clone();
+        double[] oldLats = lats.clone();
+        double[] oldLons = lons.clone();
+        for (int i = 0; i < n; i++) {
+            int from = (int) (keys[i] & Integer.MAX_VALUE);
+            ids[i] = oldIds[from];
+            lats[i] = oldLats[from];
+            lons[i] = oldLons[from];
+        }
+    }
+}
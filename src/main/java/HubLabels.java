@@ -0,0 +1,356 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A hub labeling of a GraphDB for one Metric: a distance oracle that answers how far the
+ * best route between two vertices is, without finding the route. Every vertex v has an
+ * out label, a sorted list of hubs with the distance from v to each, and an in label
+ * with the distance from each hub to v. The labels are built so that for any two
+ * vertices s and t, some vertex on the best route from s to t is in both the out label of
+ * s and the in label of t. The distance is then the least sum over the hubs the two
+ * labels share, found by walking the two sorted lists side by side; no searching at all.
+ * <p>
+ * The labels are built by pruned landmark labeling. Vertices are taken in order of
+ * importance, most important first, and from each a Dijkstra search runs forward and one
+ * backward. Wherever the labels so far already give a distance as short as the one the
+ * search found, the search goes no further there; elsewhere it adds the vertex as a hub
+ * to the labels. With the contraction order of a ContractionHierarchy as the importance,
+ * the major roads end up in most labels and the searches from minor vertices stop almost
+ * at once, so labels stay small. The hierarchy is only needed while building.
+ * <p>
+ * Like a hierarchy, labels are built offline (see main), written next to the OSM file,
+ * and attached by GraphDB.load if they were built for the same graph.
+ */
+class HubLabels {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int MAGIC = 0x424D484C; // "BMHL"
+    /** Bump whenever the layout below changes so old labels are rebuilt. */
+    static final int VERSION = 2;
+
+    final Metric metric;
+    /* The labels in CSR form. Vertex v's out label is the hubs outHubs[outOffsets[v]] up to
+     * (but not including) outHubs[outOffsets[v + 1]], at distances outDists; inHubs and
+     * the rest likewise hold the in labels. A hub is numbered by the order labeling took
+     * it in, and each label is sorted by that number. */
+    final int[] outOffsets;
+    final int[] outHubs;
+    final double[] outDists;
+    final int[] inOffsets;
+    final int[] inHubs;
+    final double[] inDists;
+    /* The fingerprint of the graph these were built for (see GraphDB.fingerprint). */
+    final long graphFingerprint;
+
+    private HubLabels(Metric metric, int[] outOffsets, int[] outHubs, double[] outDists,
+                      int[] inOffsets, int[] inHubs, double[] inDists,
+                      long graphFingerprint) {
+        this.metric = metric;
+        this.outOffsets = outOffsets;
+        this.outHubs = outHubs;
+        this.outDists = outDists;
+        this.inOffsets = inOffsets;
+        this.inHubs = inHubs;
+        this.inDists = inDists;
+        this.graphFingerprint = graphFingerprint;
+    }
+
+    /**
+     * Returns the length by metric of the best route from vertex s to vertex t, or
+     * infinity if there is none.
+     */
+    double distance(int s, int t) {
+        double best = Double.POSITIVE_INFINITY;
+        int i = outOffsets[s];
+        int iEnd = outOffsets[s + 1];
+        int j = inOffsets[t];
+        int jEnd = inOffsets[t + 1];
+        while (i < iEnd && j < jEnd) {
+            int a = outHubs[i];
+            int b = inHubs[j];
+            if (a == b) {
+                best = Math.min(best, outDists[i++] + inDists[j++]);
+            } else if (a < b) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns the length of the best route from any of the sources to any of the targets,
+     * where source i starts with sourceDist[i] already travelled and finishing at target
+     * j costs an extra targetDist[j], as for points snapped onto roads.
+     */
+    double distance(int[] sources, double[] sourceDist, int[] targets, double[] targetDist) {
+        double best = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < sources.length; i++) {
+            for (int j = 0; j < targets.length; j++) {
+                best = Math.min(best, sourceDist[i] + distance(sources[i], targets[j])
+                        + targetDist[j]);
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Returns a line of label size statistics: the average and largest label, and the
+     * memory the labels take.
+     */
+    String stats() {
+        int n = outOffsets.length - 1;
+        int largest = 0;
+        for (int v = 0; v < n; v++) {
+            largest = Math.max(largest, Math.max(outOffsets[v + 1] - outOffsets[v],
+                    inOffsets[v + 1] - inOffsets[v]));
+        }
+        long bytes = 4L * (outOffsets.length + inOffsets.length)
+                + 12L * (outHubs.length + inHubs.length);
+        return String.format("%.1f out and %.1f in hubs per vertex on average, %d at most, "
+                        + "%.1f MB", (double) outHubs.length / Math.max(1, n),
+                (double) inHubs.length / Math.max(1, n), largest, bytes / 1e6);
+    }
+
+    /**
+     * Labels g by metric, taking vertices in the contraction order of g's hierarchy for
+     * the metric, or of a new one if g has none, printing how it went if
+     * GraphDB.VERBOSE_PROPERTY is set.
+     */
+    static HubLabels build(GraphDB g, Metric metric) {
+        ContractionHierarchy ch = g.contractionHierarchy(metric);
+        if (ch == null) {
+            ch = ContractionHierarchy.build(g, metric);
+        }
+        return build(g, metric, ch.rank);
+    }
+
+    /**
+     * Labels g by metric, taking vertices from the highest rank down, printing how it
+     * went if GraphDB.VERBOSE_PROPERTY is set.
+     */
+    static HubLabels build(GraphDB g, Metric metric, int[] rank) {
+        long start = System.nanoTime();
+        Labeling labeling = new Labeling(g, metric);
+        int[] order = new int[g.V()];
+        for (int v = 0; v < g.V(); v++) {
+            order[g.V() - 1 - rank[v]] = v;
+        }
+        for (int hub = 0; hub < order.length; hub++) {
+            labeling.label(hub, order[hub]);
+        }
+        HubLabels labels = labeling.finish(g.fingerprint(metric));
+        if (GraphDB.verbose()) {
+            System.out.println(String.format("Built %s hub labels for %d vertices in %.1f ms "
+                            + "(%d vertices settled): %s", metric, g.V(),
+                    (System.nanoTime() - start) / 1e6, labeling.settled, labels.stats()));
+        }
+        return labels;
+    }
+
+    /**
+     * Returns where the labels for the given OSM file and metric live.
+     */
+    static File labelsFile(String dbPath, Metric metric) {
+        return new File(dbPath + ".hl-" + metric.name().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Writes the labels to file (see PreprocessedFile). The payload: the out and in label
+     * entry counts, then the offsets, hubs and distances of the out labels, then of the
+     * in labels.
+     *
+     * @throws IOException If the file could not be written.
+     */
+    void write(File file) throws IOException {
+        PreprocessedFile.write(file, MAGIC, VERSION, metric, outOffsets.length - 1,
+                graphFingerprint, out -> {
+                    out.writeInt(outHubs.length);
+                    out.writeInt(inHubs.length);
+                    PreprocessedFile.writeInts(out, outOffsets);
+                    PreprocessedFile.writeInts(out, outHubs);
+                    PreprocessedFile.writeDoubles(out, outDists);
+                    PreprocessedFile.writeInts(out, inOffsets);
+                    PreprocessedFile.writeInts(out, inHubs);
+                    PreprocessedFile.writeDoubles(out, inDists);
+                });
+    }
+
+    /**
+     * Reads labels written by write, if they were built for g by metric.
+     *
+     * @return The labels, or null if the file is missing, from another format version,
+     * fails its checksum, or was built for another metric or graph.
+     * @throws IOException If the file exists but could not be read.
+     */
+    static HubLabels read(File file, GraphDB g, Metric metric) throws IOException {
+        PreprocessedFile in = PreprocessedFile.read(file, MAGIC, VERSION, g, metric);
+        if (in == null) {
+            return null;
+        }
+        ByteBuffer buf = in.payload;
+        int n = g.V();
+        int numOut = buf.getInt();
+        int numIn = buf.getInt();
+        int[] outOffsets = PreprocessedFile.readInts(buf, n + 1);
+        int[] outHubs = PreprocessedFile.readInts(buf, numOut);
+        double[] outDists = PreprocessedFile.readDoubles(buf, numOut);
+        int[] inOffsets = PreprocessedFile.readInts(buf, n + 1);
+        int[] inHubs = PreprocessedFile.readInts(buf, numIn);
+        double[] inDists = PreprocessedFile.readDoubles(buf, numIn);
+        return new HubLabels(metric, outOffsets, outHubs, outDists, inOffsets, inHubs,
+                inDists, in.graphFingerprint);
+    }
+
+    /**
+     * Builds the labels for an OSM file and writes them next to it, for GraphDB.load to
+     * pick up. Usage: HubLabels [osm file] [metric...]; with no metrics given, builds them
+     * for every metric. Vertices are ordered by the hierarchies already built for the
+     * file (see ContractionHierarchy.main), or by new ones. Set GraphDB.VERBOSE_PROPERTY
+     * to see how each build went.
+     */
+    public static void main(String[] args) throws IOException {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        List<Metric> metrics = PreprocessedFile.metrics(args, 1);
+        GraphDB g = GraphDB.load(path);
+        for (Metric metric : metrics) {
+            File file = labelsFile(path, metric);
+            build(g, metric).write(file);
+            System.out.println(String.format("Wrote %s (%.1f MB)", file, file.length() / 1e6));
+        }
+    }
+
+    /* The labels while they are being built, one growable list per vertex and direction,
+     * and the pruned searches that fill them. */
+    private static class Labeling {
+        final GraphDB g;
+        final Metric metric;
+        final int n;
+        final float[] weight;
+        /* Edges into each vertex, for the backward searches. */
+        final ReverseEdges reverse;
+        final Label[] out;
+        final Label[] in;
+        /* The distance to or from the hub being labeled from each hub of its own label,
+         * by hub number; infinity for the rest. */
+        final double[] hubDist;
+        long settled;
+
+        Labeling(GraphDB g, Metric metric) {
+            this.g = g;
+            this.metric = metric;
+            this.n = g.V();
+            this.weight = g.weights(metric);
+            this.reverse = g.reverseEdges();
+            out = new Label[n];
+            in = new Label[n];
+            for (int v = 0; v < n; v++) {
+                out[v] = new Label();
+                in[v] = new Label();
+            }
+            hubDist = new double[n];
+            Arrays.fill(hubDist, Double.POSITIVE_INFINITY);
+        }
+
+        /* Adds vertex h, numbered hub, to the in labels of the vertices it reaches and
+         * the out labels of the vertices that reach it, where the labels so far fall
+         * short. */
+        void label(int hub, int h) {
+            search(hub, h, false);
+            search(hub, h, true);
+        }
+
+        /* The forward search from h checks what the out label of h and the in label of
+         * each vertex it reaches say, and adds to the in labels; the backward search the
+         * other way round. */
+        private void search(int hub, int h, boolean backward) {
+            Label own = backward ? in[h] : out[h];
+            for (int i = 0; i < own.size; i++) {
+                hubDist[own.hubs[i]] = own.dists[i];
+            }
+            try (SearchWorkspace workspace = SearchWorkspace.borrow(n)) {
+                VertexHeap fringe = workspace.heap;
+                workspace.reach(h, 0, -1);
+                fringe.push(h, 0);
+                while (!fringe.isEmpty()) {
+                    int v = fringe.pop();
+                    settled++;
+                    double d = workspace.dist(v);
+                    Label label = backward ? out[v] : in[v];
+                    if (covered(label, d)) {
+                        continue;
+                    }
+                    label.add(hub, d);
+                    int first = backward ? reverse.offsets[v] : g.edgeStart(v);
+                    int end = backward ? reverse.offsets[v + 1] : g.edgeEnd(v);
+                    for (int i = first; i < end; i++) {
+                        int w = backward ? reverse.sources[i] : g.edgeTarget(i);
+                        int e = backward ? reverse.edges[i] : i;
+                        double dw = d + (weight != null ? weight[e] : g.weight(metric, e));
+                        if (dw < workspace.dist(w)) {
+                            workspace.reach(w, dw, v);
+                            fringe.push(w, dw);
+                        }
+                    }
+                }
+            }
+            for (int i = 0; i < own.size; i++) {
+                hubDist[own.hubs[i]] = Double.POSITIVE_INFINITY;
+            }
+        }
+
+        /* Whether the labels already give a distance of at most d between the hub being
+         * labeled and a vertex with the given label. */
+        private boolean covered(Label label, double d) {
+            for (int i = 0; i < label.size; i++) {
+                if (hubDist[label.hubs[i]] + label.dists[i] <= d) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        HubLabels finish(long graphFingerprint) {
+            int[] outOffsets = new int[n + 1];
+            int[] inOffsets = new int[n + 1];
+            for (int v = 0; v < n; v++) {
+                outOffsets[v + 1] = outOffsets[v] + out[v].size;
+                inOffsets[v + 1] = inOffsets[v] + in[v].size;
+            }
+            int[] outHubs = new int[outOffsets[n]];
+            double[] outDists = new double[outOffsets[n]];
+            int[] inHubs = new int[inOffsets[n]];
+            double[] inDists = new double[inOffsets[n]];
+            for (int v = 0; v < n; v++) {
+                // Hubs were added in order, so the labels are sorted already
+                System.arraycopy(out[v].hubs, 0, outHubs, outOffsets[v], out[v].size);
+                System.arraycopy(out[v].dists, 0, outDists, outOffsets[v], out[v].size);
+                System.arraycopy(in[v].hubs, 0, inHubs, inOffsets[v], in[v].size);
+                System.arraycopy(in[v].dists, 0, inDists, inOffsets[v], in[v].size);
+            }
+            return new HubLabels(metric, outOffsets, outHubs, outDists, inOffsets, inHubs,
+                    inDists, graphFingerprint);
+        }
+    }
+
+    /* One vertex's label in one direction while building: hubs and their distances. */
+    private static class Label {
+        int[] hubs = new int[4];
+        double[] dists = new double[4];
+        int size;
+
+        void add(int hub, double dist) {
+            if (size == hubs.length) {
+                hubs = Arrays.copyOf(hubs, 2 * size);
+                dists = Arrays.copyOf(dists, 2 * size);
+            }
+            hubs[size] = hub;
+            dists[size] = dist;
+            size++;
+        }
+    }
+}
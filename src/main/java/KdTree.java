@@ -0,0 +1,404 @@
+import java.util.BitSet;
+
+/**
+ * Balanced 2-d tree over the vertices of a GraphDB, used to snap a clicked point to its
+ * nearest intersection in O(log V) instead of scanning every node.
+ * <p>
+ * The tree is implicit: vertices are stored in tree order, and the node for the range
+ * [lo, hi) is its median (lo + hi) / 2, split on latitude at even depths and longitude at
+ * odd depths. Coordinates are copied into that order so a query walks memory that is
+ * mostly contiguous. If the graph keeps fixed-point coordinates, so does the copy.
+ * <p>
+ * Queries work in two steps. Bounding boxes in plain degrees (a planar pre-filter)
+ * decide which subtrees and points could still beat the best distance so far. Only the
+ * points that pass get the exact great-circle distance from GraphDB.distance. The boxes
+ * are sized conservatively: the latitude bound uses the fact that the central angle is at
+ * least the latitude difference, and the longitude bound uses the smallest cos(lat) in the
+ * tree. So the pre-filter never throws away the true answer. Ties go to the lower vertex
+ * number, which is what a linear scan in vertex order would return. Longitudes are
+ * assumed not to wrap around the antimeridian, which holds for regional extracts.
+ * <p>
+ * After a GraphPatch the next version's tree comes from withChanges: it shares this
+ * tree's arrays, skips the vertices that moved or went away, and checks the moved and
+ * new ones one by one. Once those are more than a sixteenth of the tree it is rebuilt.
+ */
+class KdTree {
+    private static final double EARTH_RADIUS = 3963;
+    /** Widen the pruning radius a touch so rounding never prunes an exact tie. */
+    private static final double SLACK = 1 + 1e-9;
+    private static final int MIN_OVERLAY = 1024;
+
+    private final int[] vertex;
+    /* Coordinates in tree order: lat and lon, or if the graph is fixed-point, fixedLat
+     * and fixedLon. Read them with latOf and lonOf. */
+    private final double[] lat;
+    private final double[] lon;
+    private final int[] fixedLat;
+    private final int[] fixedLon;
+    /** Smallest cos(latitude) of any point in the tree. */
+    private final double minCosLat;
+
+    /* Changes since the tree was built: tree entries for vertices in stale are skipped,
+     * and the vertices in extra, at extraLat and extraLon, are checked one by one.
+     * stale is null and extra empty for a freshly built tree. */
+    private final BitSet stale;
+    private final int[] extra;
+    private final double[] extraLat;
+    private final double[] extraLon;
+    private final int size;
+
+    /* Per-query state, reset by each query; the tree itself is never modified. */
+    private static class Search {
+        final double qLon;
+        final double qLat;
+        final double cosQLat;
+        final int k;
+        // Max-heap of the k best (vertex, distance) pairs found so far
+        final int[] bestVertex;
+        final double[] bestDist;
+        int size;
+        // Current pruning box half-widths, in degrees
+        double latRadius = Double.POSITIVE_INFINITY;
+        double lonRadius = Double.POSITIVE_INFINITY;
+
+        Search(double qLon, double qLat, int k) {
+            this.qLon = qLon;
+            this.qLat = qLat;
+            this.cosQLat = Math.cos(Math.toRadians(qLat));
+            this.k = k;
+            this.bestVertex = new int[k];
+            this.bestDist = new double[k];
+        }
+    }
+
+    /**
+     * Builds a tree over all vertices of g, leaving out removed ones.
+     */
+    KdTree(GraphDB g) {
+        this(g, null);
+    }
+
+    /**
+     * Builds a tree over the vertices of g in the given tree order, as returned by order
+     * for the same vertices, e.g. one saved in a GraphSnapshot. If order is null, works
+     * it out, leaving out removed vertices. The array is kept, not copied.
+     */
+    KdTree(GraphDB g, int[] order) {
+        if (order == null) {
+            order = new int[g.liveVertexCount()];
+            double[] lats = new double[g.V()];
+            double[] lons = new double[g.V()];
+            int n = 0;
+            for (int v = 0; v < g.V(); v++) {
+                if (g.isRemoved(v)) {
+                    continue;
+                }
+                order[n++] = v;
+                lats[v] = g.latAt(v);
+                lons[v] = g.lonAt(v);
+            }
+            build(order, lats, lons, 0, n, 0);
+        }
+        int n = order.length;
+
+        vertex = order;
+        double cosMin = 1;
+        if (g.isFixedPoint()) {
+            lat = null;
+            lon = null;
+            fixedLat = new int[n];
+            fixedLon = new int[n];
+            for (int i = 0; i < n; i++) {
+                fixedLat[i] = GraphDB.toFixedPoint(g.latAt(order[i]));
+                fixedLon[i] = GraphDB.toFixedPoint(g.lonAt(order[i]));
+                cosMin = Math.min(cosMin, Math.cos(Math.toRadians(latOf(i))));
+            }
+        } else {
+            fixedLat = null;
+            fixedLon = null;
+            lat = new double[n];
+            lon = new double[n];
+            for (int i = 0; i < n; i++) {
+                lat[i] = g.latAt(order[i]);
+                lon[i] = g.lonAt(order[i]);
+                cosMin = Math.min(cosMin, Math.cos(Math.toRadians(lat[i])));
+            }
+        }
+        minCosLat = Math.max(cosMin, 0);
+        stale = null;
+        extra = new int[0];
+        extraLat = new double[0];
+        extraLon = new double[0];
+        size = n;
+    }
+
+    private KdTree(KdTree base, BitSet stale, int[] extra, double[] extraLat,
+                   double[] extraLon, int size) {
+        this.vertex = base.vertex;
+        this.lat = base.lat;
+        this.lon = base.lon;
+        this.fixedLat = base.fixedLat;
+        this.fixedLon = base.fixedLon;
+        this.minCosLat = base.minCosLat;
+        this.stale = stale;
+        this.extra = extra;
+        this.extraLat = extraLat;
+        this.extraLon = extraLon;
+        this.size = size;
+    }
+
+    /**
+     * Returns a tree for g, the graph this tree was built for after a GraphPatch.
+     *
+     * @param g       The patched graph.
+     * @param changed The vertices the patch moved, added or removed.
+     */
+    KdTree withChanges(GraphDB g, int[] changed) {
+        BitSet newStale = stale == null ? new BitSet() : (BitSet) stale.clone();
+        BitSet outside = new BitSet();
+        for (int v : extra) {
+            outside.set(v);
+        }
+        for (int v : changed) {
+            newStale.set(v);
+            outside.set(v);
+        }
+        int count = 0;
+        for (int v = outside.nextSetBit(0); v >= 0; v = outside.nextSetBit(v + 1)) {
+            if (!g.isRemoved(v)) {
+                count++;
+            }
+        }
+        if (count > Math.max(MIN_OVERLAY, vertex.length / 16)) {
+            return new KdTree(g);
+        }
+
+        int[] newExtra = new int[count];
+        double[] newLat = new double[count];
+        double[] newLon = new double[count];
+        int i = 0;
+        for (int v = outside.nextSetBit(0); v >= 0; v = outside.nextSetBit(v + 1)) {
+            if (!g.isRemoved(v)) {
+                newExtra[i] = v;
+                newLat[i] = g.latAt(v);
+                newLon[i] = g.lonAt(v);
+                i++;
+            }
+        }
+        return new KdTree(this, newStale, newExtra, newLat, newLon, g.liveVertexCount());
+    }
+
+    private double latOf(int i) {
+        return lat != null ? lat[i] : GraphDB.fromFixedPoint(fixedLat[i]);
+    }
+
+    private double lonOf(int i) {
+        return lon != null ? lon[i] : GraphDB.fromFixedPoint(fixedLon[i]);
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the vertices in tree order, for saving with the graph and handing back to
+     * the constructor; null if this tree came from withChanges. Must not be modified.
+     */
+    int[] order() {
+        return stale == null ? vertex : null;
+    }
+
+    private static void build(int[] order, double[] lats, double[] lons, int lo, int hi,
+                              int depth) {
+        if (hi - lo <= 1) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        select(order, depth % 2 == 0 ? lats : lons, lo, hi - 1, mid);
+        build(order, lats, lons, lo, mid, depth + 1);
+        build(order, lats, lons, mid + 1, hi, depth + 1);
+    }
+
+    /**
+     * Quickselect: rearranges order[lo..hi] so that order[k] holds the vertex with the
+     * k-th smallest key, with smaller-or-equal keys before it and larger-or-equal after.
+     */
+    private static void select(int[] order, double[] key, int lo, int hi, int k) {
+        while (hi > lo) {
+            double pivot = key[order[(lo + hi) >>> 1]];
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (key[order[i]] < pivot) {
+                    i++;
+                }
+                while (key[order[j]] > pivot) {
+                    j--;
+                }
+                if (i <= j) {
+                    int tmp = order[i];
+                    order[i] = order[j];
+                    order[j] = tmp;
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j) {
+                hi = j;
+            } else if (k >= i) {
+                lo = i;
+            } else {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns the vertex nearest to the given point by great-circle distance, or -1 if
+     * the tree is empty.
+     */
+    int nearest(double lon, double lat) {
+        if (size == 0) {
+            return -1;
+        }
+        Search s = new Search(lon, lat, 1);
+        searchExtra(s);
+        search(s, 0, vertex.length, 0);
+        return s.bestVertex[0];
+    }
+
+    /**
+     * Returns the k vertices nearest to the given point, closest first. Returns fewer
+     * than k if the tree is smaller than that.
+     */
+    int[] nearest(double lon, double lat, int k) {
+        k = Math.min(k, size);
+        if (k <= 0) {
+            return new int[0];
+        }
+        Search s = new Search(lon, lat, k);
+        searchExtra(s);
+        search(s, 0, vertex.length, 0);
+
+        // Pop the max-heap from the back to get the answer in ascending order
+        int[] result = new int[s.size];
+        while (s.size > 0) {
+            result[s.size - 1] = s.bestVertex[0];
+            removeWorst(s);
+        }
+        return result;
+    }
+
+    private void searchExtra(Search s) {
+        for (int i = 0; i < extra.length; i++) {
+            offer(s, extra[i], extraLat[i], extraLon[i]);
+        }
+    }
+
+    private void search(Search s, int lo, int hi, int depth) {
+        if (hi <= lo) {
+            return;
+        }
+        int mid = (lo + hi) >>> 1;
+        double dLat = s.qLat - latOf(mid);
+        double dLon = s.qLon - lonOf(mid);
+        if (Math.abs(dLat) <= s.latRadius && Math.abs(dLon) <= s.lonRadius
+                && (stale == null || !stale.get(vertex[mid]))) {
+            offer(s, vertex[mid], latOf(mid), lonOf(mid));
+        }
+        if (hi - lo == 1) {
+            return;
+        }
+
+        // Visit the side of the split the query is on first, then the other side only
+        // if the pruning box still reaches across the splitting line.
+        double diff = depth % 2 == 0 ? dLat : dLon;
+        int nearLo = diff < 0 ? lo : mid + 1;
+        int nearHi = diff < 0 ? mid : hi;
+        int farLo = diff < 0 ? mid + 1 : lo;
+        int farHi = diff < 0 ? hi : mid;
+        search(s, nearLo, nearHi, depth + 1);
+        double radius = depth % 2 == 0 ? s.latRadius : s.lonRadius;
+        if (Math.abs(diff) <= radius) {
+            search(s, farLo, farHi, depth + 1);
+        }
+    }
+
+    private void offer(Search s, int v, double vLat, double vLon) {
+        // Same argument order as the old linear scan so distances match bit for bit
+        double dist = GraphDB.distance(vLon, vLat, s.qLon, s.qLat);
+        if (s.size == s.k) {
+            double worst = s.bestDist[0];
+            if (dist > worst || (dist == worst && v > s.bestVertex[0])) {
+                return;
+            }
+            removeWorst(s);
+        }
+
+        // Sift the new pair up the max-heap
+        int pos = s.size;
+        s.size++;
+        while (pos > 0) {
+            int parent = (pos - 1) >>> 1;
+            if (!worse(dist, v, s.bestDist[parent], s.bestVertex[parent])) {
+                break;
+            }
+            s.bestDist[pos] = s.bestDist[parent];
+            s.bestVertex[pos] = s.bestVertex[parent];
+            pos = parent;
+        }
+        s.bestDist[pos] = dist;
+        s.bestVertex[pos] = v;
+
+        if (s.size == s.k) {
+            updateRadius(s, s.bestDist[0]);
+        }
+    }
+
+    private static void removeWorst(Search s) {
+        s.size--;
+        double dist = s.bestDist[s.size];
+        int v = s.bestVertex[s.size];
+        int pos = 0;
+        while (true) {
+            int child = 2 * pos + 1;
+            if (child >= s.size) {
+                break;
+            }
+            if (child + 1 < s.size && worse(s.bestDist[child + 1], s.bestVertex[child + 1],
+                    s.bestDist[child], s.bestVertex[child])) {
+                child++;
+            }
+            if (!worse(s.bestDist[child], s.bestVertex[child], dist, v)) {
+                break;
+            }
+            s.bestDist[pos] = s.bestDist[child];
+            s.bestVertex[pos] = s.bestVertex[child];
+            pos = child;
+        }
+        s.bestDist[pos] = dist;
+        s.bestVertex[pos] = v;
+    }
+
+    private static boolean worse(double d1, int v1, double d2, int v2) {
+        return d1 > d2 || (d1 == d2 && v1 > v2);
+    }
+
+    /**
+     * Shrinks the pruning box to the degrees a point can differ from the query by and
+     * still be within dist miles.
+     */
+    private void updateRadius(Search s, double dist) {
+        double angle = dist / EARTH_RADIUS * SLACK;
+        s.latRadius = Math.toDegrees(angle);
+
+        // sin^2(angle/2) >= cos(qLat) cos(lat) sin^2(dLon/2) >= cos(qLat) minCos sin^2(dLon/2)
+        double cosProduct = s.cosQLat * minCosLat;
+        double sinHalf = Math.sin(Math.min(angle, Math.PI) / 2);
+        if (cosProduct <= 0 || sinHalf >= Math.sqrt(cosProduct)) {
+            s.lonRadius = Double.POSITIVE_INFINITY;
+        } else {
+            s.lonRadius = Math.toDegrees(2 * Math.asin(sinHalf / Math.sqrt(cosProduct)));
+        }
+    }
+}
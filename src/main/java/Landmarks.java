@@ -0,0 +1,461 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Landmark distance tables for A* (ALT: A*, landmarks and the triangle inequality) over a
+ * GraphDB, for one Metric. For a few landmark vertices L, the tables hold the best
+ * distance from L to every vertex and from every vertex to L. By the triangle inequality,
+ * the distance from v to t is at least d(L, t) - d(L, v) and at least d(v, L) - d(t, L),
+ * and the best of these bounds over all landmarks is a much tighter A* heuristic than
+ * great-circle distance wherever the roads wind, so the search settles far fewer
+ * vertices.
+ * <p>
+ * Landmarks work best at the edge of the map, behind the places routes go to. They are
+ * picked either farthest-first (each one as far as possible from those before it) or by
+ * the avoid strategy, which grows a shortest path tree from a random vertex and puts the
+ * next landmark at the leaf of the part of the tree the current bounds cover worst.
+ * After the landmarks are picked, the tables are computed on several threads
+ * (WORKERS_PROPERTY), two Dijkstra searches per landmark.
+ * <p>
+ * Each distance is stored in 16 bits, as a whole number of units rounded down; a bound
+ * then subtracts one unit to make up for the rounding, so it stays a lower bound. The
+ * tables are written next to the OSM file (see main), and GraphDB.load attaches them
+ * to the graph if they were built for the same graph.
+ */
+class Landmarks {
+    /**
+     * System property for the number of threads that compute the tables. Defaults to the
+     * number of cores.
+     */
+    static final String WORKERS_PROPERTY = "bearmaps.alt.workers";
+    /** How many landmarks main picks when not told. */
+    static final int DEFAULT_COUNT = 16;
+
+    /** How landmarks are picked. */
+    enum Selection {
+        FARTHEST, AVOID
+    }
+
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int MAGIC = 0x424D414C; // "BMAL"
+    /** Bump whenever the layout below changes so old tables are rebuilt. */
+    static final int VERSION = 2;
+    /** The stored distance of a vertex that can't be reached from or can't reach a
+     * landmark. */
+    private static final char UNREACHABLE = Character.MAX_VALUE;
+    /** Tries at picking a root for the avoid strategy before settling for fewer
+     * landmarks. */
+    private static final int AVOID_TRIES = 20;
+
+    final Metric metric;
+    /* The landmark vertices. */
+    final int[] vertices;
+    /* How much of the metric one stored unit is. */
+    final double unit;
+    /* from[v * k + i] is the distance from landmark i to vertex v, and to[v * k + i] the
+     * distance from v to landmark i, where k is the number of landmarks, in units rounded
+     * down, or UNREACHABLE. A vertex's distances sit together, as a bound reads them all. */
+    final char[] from;
+    final char[] to;
+    /* The fingerprint of the graph these were built for (see GraphDB.fingerprint). */
+    final long graphFingerprint;
+
+    private Landmarks(Metric metric, int[] vertices, double unit, char[] from, char[] to,
+                      long graphFingerprint) {
+        this.metric = metric;
+        this.vertices = vertices;
+        this.unit = unit;
+        this.from = from;
+        this.to = to;
+        this.graphFingerprint = graphFingerprint;
+    }
+
+    /**
+     * Returns a lower bound on the distance by metric from vertex v to vertex t.
+     */
+    double lowerBound(int v, int t) {
+        int k = vertices.length;
+        int best = 0;
+        for (int i = 0, vi = v * k, ti = t * k; i < k; i++, vi++, ti++) {
+            int fromV = from[vi];
+            int fromT = from[ti];
+            if (fromV != UNREACHABLE && fromT != UNREACHABLE) {
+                best = Math.max(best, fromT - fromV - 1);
+            }
+            int toV = to[vi];
+            int toT = to[ti];
+            if (toV != UNREACHABLE && toT != UNREACHABLE) {
+                best = Math.max(best, toV - toT - 1);
+            }
+        }
+        return best * unit;
+    }
+
+    /**
+     * Returns a lower bound on the distance from vertex v to any of the targets, where
+     * finishing at target j costs an extra targetDist[j].
+     */
+    double lowerBound(int v, int[] targets, double[] targetDist) {
+        double bound = Double.POSITIVE_INFINITY;
+        for (int j = 0; j < targets.length; j++) {
+            bound = Math.min(bound, lowerBound(v, targets[j]) + targetDist[j]);
+        }
+        return bound;
+    }
+
+    /**
+     * Picks count landmarks in g by the given strategy and computes their tables, printing
+     * how it went if GraphDB.VERBOSE_PROPERTY is set.
+     */
+    static Landmarks build(GraphDB g, Metric metric, int count, Selection selection) {
+        long start = System.nanoTime();
+        Builder builder = new Builder(g, metric);
+        int[] vertices = selection == Selection.FARTHEST
+                ? builder.farthest(count) : builder.avoid(count);
+        long selected = System.nanoTime();
+        int workers = Math.max(1, Integer.getInteger(WORKERS_PROPERTY,
+                Runtime.getRuntime().availableProcessors()));
+        Landmarks landmarks = builder.tables(vertices, workers, g.fingerprint(metric));
+        if (GraphDB.verbose()) {
+            System.out.println(String.format("Built %d %s landmarks by %s for %d vertices: "
+                            + "picked in %.1f ms, tables on %d threads in %.1f ms (%.1f MB)",
+                    vertices.length, metric, selection, g.V(), (selected - start) / 1e6, workers,
+                    (System.nanoTime() - selected) / 1e6,
+                    4.0 * landmarks.from.length / 1e6));
+        }
+        return landmarks;
+    }
+
+    /**
+     * Returns where the tables for the given OSM file and metric live.
+     */
+    static File landmarksFile(String dbPath, Metric metric) {
+        return new File(dbPath + ".alt-" + metric.name().toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Writes the tables to file (see PreprocessedFile). The payload: the landmark count
+     * and the unit, the landmark vertices, then from and to as unsigned 16 bit numbers.
+     *
+     * @throws IOException If the file could not be written.
+     */
+    void write(File file) throws IOException {
+        PreprocessedFile.write(file, MAGIC, VERSION, metric,
+                from.length / Math.max(1, vertices.length), graphFingerprint, out -> {
+                    out.writeInt(vertices.length);
+                    out.writeDouble(unit);
+                    PreprocessedFile.writeInts(out, vertices);
+                    PreprocessedFile.writeChars(out, from);
+                    PreprocessedFile.writeChars(out, to);
+                });
+    }
+
+    /**
+     * Reads tables written by write, if they were built for routing on g by metric.
+     *
+     * @return The tables, or null if the file is missing, from another format version,
+     * fails its checksum, or was built for another metric or graph.
+     * @throws IOException If the file exists but could not be read.
+     */
+    static Landmarks read(File file, GraphDB g, Metric metric) throws IOException {
+        PreprocessedFile in = PreprocessedFile.read(file, MAGIC, VERSION, g, metric);
+        if (in == null) {
+            return null;
+        }
+        ByteBuffer buf = in.payload;
+        int k = buf.getInt();
+        double unit = buf.getDouble();
+        if (k == 0) {
+            return null;
+        }
+        int[] vertices = PreprocessedFile.readInts(buf, k);
+        char[] from = PreprocessedFile.readChars(buf, g.V() * k);
+        char[] to = PreprocessedFile.readChars(buf, g.V() * k);
+        return new Landmarks(metric, vertices, unit, from, to, in.graphFingerprint);
+    }
+
+    /**
+     * Builds landmark tables for an OSM file and writes them next to it, for
+     * GraphDB.load to pick up. Usage: Landmarks [osm file] [count] [farthest|avoid]
+     * [metric...]; by default DEFAULT_COUNT landmarks by the avoid strategy, for every
+     * metric. Set GraphDB.VERBOSE_PROPERTY to see how each build went.
+     */
+    public static void main(String[] args) throws IOException {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        int count = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_COUNT;
+        Selection selection = args.length > 2
+                ? Selection.valueOf(args[2].toUpperCase(Locale.ROOT)) : Selection.AVOID;
+        List<Metric> metrics = PreprocessedFile.metrics(args, 3);
+        GraphDB g = GraphDB.load(path);
+        for (Metric metric : metrics) {
+            File file = landmarksFile(path, metric);
+            build(g, metric, count, selection).write(file);
+            System.out.println(String.format("Wrote %s (%.1f MB)", file, file.length() / 1e6));
+        }
+    }
+
+    /* Picks landmarks and computes their tables, with Dijkstra over the whole graph
+     * forward and, through a reversed copy of the adjacency, backward. */
+    private static class Builder {
+        final GraphDB g;
+        final Metric metric;
+        final int n;
+        /* Edges into each vertex, for the backward searches. */
+        final ReverseEdges in;
+
+        Builder(GraphDB g, Metric metric) {
+            this.g = g;
+            this.metric = metric;
+            this.n = g.V();
+            this.in = g.reverseEdges();
+        }
+
+        /* Picks each landmark as far as possible from all the ones before it, starting
+         * with the vertex farthest from the middle of the map. */
+        int[] farthest(int count) {
+            double[] nearest = distances(center(), false, null, null);
+            int[] vertices = new int[count];
+            int k = 0;
+            for (; k < count; k++) {
+                int next = argmax(nearest);
+                if (next < 0 || (k > 0 && nearest[next] == 0)) {
+                    break;
+                }
+                vertices[k] = next;
+                double[] d = distances(next, false, null, null);
+                for (int v = 0; v < n; v++) {
+                    nearest[v] = k == 0 ? d[v] : Math.min(nearest[v], d[v]);
+                }
+            }
+            return Arrays.copyOf(vertices, k);
+        }
+
+        /* The avoid strategy: the first landmark is the vertex farthest from the middle
+         * of the map. For each next one, grow a shortest path tree from a random vertex,
+         * weigh each vertex by how far its distance is above the bound the landmarks so
+         * far give, and add up the weights of each subtree, leaving out subtrees that
+         * already hold a landmark. Then walk down from the root, always into the
+         * heaviest subtree, and make the leaf this ends at the next landmark. */
+        int[] avoid(int count) {
+            int center = center();
+            double[] fromCenter = distances(center, false, null, null);
+            int first = argmax(fromCenter);
+            if (count == 0 || first < 0) {
+                return new int[0];
+            }
+            List<double[]> fromTables = new ArrayList<>();
+            List<double[]> toTables = new ArrayList<>();
+            boolean[] isLandmark = new boolean[n];
+            int[] vertices = new int[count];
+            vertices[0] = first;
+            isLandmark[first] = true;
+            fromTables.add(distances(first, false, null, null));
+            toTables.add(distances(first, true, null, null));
+            int k = 1;
+
+            // Roots are drawn from the part of the map the middle can reach
+            int[] reachable = new int[n];
+            int numReachable = 0;
+            for (int v = 0; v < n; v++) {
+                if (fromCenter[v] < Double.POSITIVE_INFINITY) {
+                    reachable[numReachable++] = v;
+                }
+            }
+            Random random = new Random(61);
+            int[] parents = new int[n];
+            int[] order = new int[n];
+            double[] size = new double[n];
+            boolean[] covered = new boolean[n];
+            for (int tries = 0; k < count && tries < AVOID_TRIES * count; tries++) {
+                int root = reachable[random.nextInt(numReachable)];
+                double[] d = distances(root, false, parents, order);
+                Arrays.fill(size, 0);
+                Arrays.fill(covered, false);
+                // Leaves first: Dijkstra settles a vertex after its parent
+                for (int i = n - 1; i >= 0; i--) {
+                    int v = order[i];
+                    if (v < 0) {
+                        continue;
+                    }
+                    double bound = 0;
+                    for (int l = 0; l < k; l++) {
+                        bound = Math.max(bound, boundVia(fromTables.get(l), toTables.get(l),
+                                root, v));
+                    }
+                    size[v] += d[v] - bound;
+                    covered[v] |= isLandmark[v];
+                    int p = parents[v];
+                    if (p >= 0) {
+                        covered[p] |= covered[v];
+                        if (!covered[v]) {
+                            size[p] += size[v];
+                        }
+                    }
+                }
+                if (size[root] <= 0) {
+                    continue;
+                }
+                int leaf = root;
+                while (true) {
+                    int heaviest = -1;
+                    for (int e = g.edgeStart(leaf); e < g.edgeEnd(leaf); e++) {
+                        int w = g.edgeTarget(e);
+                        if (parents[w] == leaf && !covered[w]
+                                && (heaviest < 0 || size[w] > size[heaviest])) {
+                            heaviest = w;
+                        }
+                    }
+                    if (heaviest < 0) {
+                        break;
+                    }
+                    leaf = heaviest;
+                }
+                if (isLandmark[leaf]) {
+                    continue;
+                }
+                vertices[k++] = leaf;
+                isLandmark[leaf] = true;
+                fromTables.add(distances(leaf, false, null, null));
+                toTables.add(distances(leaf, true, null, null));
+            }
+            return Arrays.copyOf(vertices, k);
+        }
+
+        /* The triangle inequality bound on the distance from u to v through one
+         * landmark's exact tables. */
+        private double boundVia(double[] fromL, double[] toL, int u, int v) {
+            double bound = 0;
+            if (fromL[u] < Double.POSITIVE_INFINITY && fromL[v] < Double.POSITIVE_INFINITY) {
+                bound = fromL[v] - fromL[u];
+            }
+            if (toL[u] < Double.POSITIVE_INFINITY && toL[v] < Double.POSITIVE_INFINITY) {
+                bound = Math.max(bound, toL[u] - toL[v]);
+            }
+            return bound;
+        }
+
+        /* Computes both tables of every landmark, one Dijkstra search per task, and
+         * rounds them into units. */
+        Landmarks tables(int[] vertices, int workers, long graphFingerprint) {
+            int k = vertices.length;
+            double[][] exact = new double[2 * k][];
+            ExecutorService pool = Executors.newFixedThreadPool(workers);
+            try {
+                List<Future<double[]>> searches = new ArrayList<>();
+                for (int i = 0; i < 2 * k; i++) {
+                    int landmark = vertices[i / 2];
+                    boolean reverse = i % 2 == 1;
+                    searches.add(pool.submit(() -> distances(landmark, reverse, null, null)));
+                }
+                for (int i = 0; i < 2 * k; i++) {
+                    exact[i] = searches.get(i).get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while computing landmarks", e);
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Computing landmarks failed", e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+
+            // The largest distance takes the largest number that isn't UNREACHABLE
+            double max = 0;
+            for (double[] d : exact) {
+                for (int v = 0; v < n; v++) {
+                    if (d[v] < Double.POSITIVE_INFINITY) {
+                        max = Math.max(max, d[v]);
+                    }
+                }
+            }
+            double unit = max > 0 ? max / (UNREACHABLE - 1) : 1;
+            char[] from = new char[n * k];
+            char[] to = new char[n * k];
+            for (int i = 0; i < 2 * k; i++) {
+                char[] table = i % 2 == 0 ? from : to;
+                double[] d = exact[i];
+                for (int v = 0; v < n; v++) {
+                    table[v * k + i / 2] = d[v] < Double.POSITIVE_INFINITY
+                            ? (char) Math.min(UNREACHABLE - 1, (int) (d[v] / unit))
+                            : UNREACHABLE;
+                }
+            }
+            return new Landmarks(metric, vertices, unit, from, to, graphFingerprint);
+        }
+
+        /* The vertex closest to the middle of the map's bounding box. */
+        private int center() {
+            double minLat = Double.POSITIVE_INFINITY;
+            double maxLat = Double.NEGATIVE_INFINITY;
+            double minLon = Double.POSITIVE_INFINITY;
+            double maxLon = Double.NEGATIVE_INFINITY;
+            for (int v = 0; v < n; v++) {
+                minLat = Math.min(minLat, g.latAt(v));
+                maxLat = Math.max(maxLat, g.latAt(v));
+                minLon = Math.min(minLon, g.lonAt(v));
+                maxLon = Math.max(maxLon, g.lonAt(v));
+            }
+            return g.closestIndex((minLon + maxLon) / 2, (minLat + maxLat) / 2);
+        }
+
+        /* The vertex with the largest finite value in d, or -1 if there is none. */
+        private int argmax(double[] d) {
+            int best = -1;
+            for (int v = 0; v < n; v++) {
+                if (d[v] < Double.POSITIVE_INFINITY && (best < 0 || d[v] > d[best])) {
+                    best = v;
+                }
+            }
+            return best;
+        }
+
+        /* Dijkstra from source over the whole graph, along edges in reverse if reverse is
+         * set. Returns the distances, infinity where it can't get. If parents isn't null
+         * it is filled in with the shortest path tree (-1 for the root and unreached
+         * vertices), and order with the vertices in the order they were settled,
+         * followed by -1s. */
+        double[] distances(int source, boolean reverse, int[] parents, int[] order) {
+            double[] dist = new double[n];
+            Arrays.fill(dist, Double.POSITIVE_INFINITY);
+            if (parents != null) {
+                Arrays.fill(parents, -1);
+                Arrays.fill(order, -1);
+            }
+            VertexHeap fringe = new VertexHeap(n);
+            dist[source] = 0;
+            fringe.push(source, 0);
+            int settled = 0;
+            while (!fringe.isEmpty()) {
+                int v = fringe.pop();
+                if (order != null) {
+                    order[settled] = v;
+                }
+                settled++;
+                int first = reverse ? in.offsets[v] : g.edgeStart(v);
+                int end = reverse ? in.offsets[v + 1] : g.edgeEnd(v);
+                for (int i = first; i < end; i++) {
+                    int w = reverse ? in.sources[i] : g.edgeTarget(i);
+                    double d = dist[v] + g.weight(metric, reverse ? in.edges[i] : i);
+                    if (d < dist[w]) {
+                        dist[w] = d;
+                        fringe.push(w, d);
+                        if (parents != null) {
+                            parents[w] = v;
+                        }
+                    }
+                }
+            }
+            return dist;
+        }
+    }
+}
@@ -48,7 +48,9 @@ public class MapServer {
     private static final String IMG_ROOT = "../library-sp18/data/proj3_imgs/";
     /**
      * The OSM XML file path. Downloaded from <a href="http://download.bbbike.org/osm/">here</a>
-     * using custom region selection.
+     * using custom region selection. Either an XML (.osm.xml) or PBF (.osm.pbf) extract,
+     * optionally compressed with gzip (.gz) or bzip2 (.bz2). Not used if regional shards
+     * are configured with ShardedGraph.SHARDS_PROPERTY.
      **/
     private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
     /**
@@ -65,10 +67,24 @@ public class MapServer {
      * Each route request to the server will have the following parameters
      * as keys in the params map.<br>
      * start_lat : start point latitude,<br> start_lon : start point longitude,<br>
-     * end_lat : end point latitude, <br>end_lon : end point longitude.
+     * end_lat : end point latitude, <br>end_lon : end point longitude.<br>
+     * Optionally, snap=edge snaps the points onto the nearest road instead of the nearest
+     * intersection, by=time finds the fastest route (Metric.TRAVEL_TIME) instead of
+     * the shortest, and search=bidirectional searches from both ends at once,
+     * search=ch in the graph's contraction hierarchy, search=alt with the graph's
+     * landmarks and search=overlay over its customized overlay (Router.SearchMode). The
+     * response reports how many vertices the search settled.
      **/
     private static final String[] REQUIRED_ROUTE_REQUEST_PARAMS = {"start_lat", "start_lon",
         "end_lat", "end_lon"};
+    /**
+     * Admin requests, only accepted from this machine:<br>
+     * /admin/reload?path=... : load a new graph from an OSM file in the background and
+     * swap it in when ready (path defaults to OSM_DB_PATH),<br>
+     * /admin/reload?change=... : the same for the current graph plus an OsmChange file,<br>
+     * /admin/status : the current graph and the progress and timings of reloads.
+     **/
+    private static final String ADMIN_PATH = "/admin";
 
     /**
      * The result of rastering must be a map containing all of the
@@ -78,8 +94,16 @@ public class MapServer {
         "raster_ul_lat", "raster_lr_lon", "raster_lr_lat", "depth", "query_success"};
 
     private static Rasterer rasterer;
-    private static GraphDB graph;
-    private static List<Long> route = new LinkedList<>();
+    /* The graph requests are answered from; /admin/reload swaps it. Handlers take
+     * graphs.current() once, so a request never sees two versions. */
+    private static GraphReloader graphs;
+    /* Set instead when the map is split into regional shards (see ShardedGraph); each
+     * route then gets a graph of the shards it needs. */
+    private static ShardedGraph shards;
+    /* The last route found, as dense vertex numbers, and the graph version they belong to,
+     * so drawing it needs no id lookups even after a swap. Requests build their own route
+     * and publish it here in one write. */
+    private static volatile DrawnRoute drawnRoute = new DrawnRoute(null, new int[0]);
     /* Define any static variables here. Do not define any instance variables of MapServer. */
 
 
@@ -89,10 +113,22 @@ public class MapServer {
      * This is for testing purposes, and you may fail tests otherwise.
      **/
     public static void initialize() {
-        graph = new GraphDB(OSM_DB_PATH);
+        shards = ShardedGraph.fromProperties();
+        graphs = new GraphReloader(shards != null ? shards.graph() : GraphDB.load(OSM_DB_PATH));
         rasterer = new Rasterer();
     }
 
+    /** A route to draw: vertices of graph, in order. */
+    private static class DrawnRoute {
+        final GraphDB graph;
+        final int[] vertices;
+
+        DrawnRoute(GraphDB graph, int[] vertices) {
+            this.graph = graph;
+            this.vertices = vertices;
+        }
+    }
+
     public static void main(String[] args) {
         initialize();
         staticFileLocation("/page");
@@ -131,13 +167,46 @@ public class MapServer {
         get("/route", (req, res) -> {
             HashMap<String, Double> params =
                     getRequestParams(req, REQUIRED_ROUTE_REQUEST_PARAMS);
-            route = Router.shortestPath(graph, params.get("start_lon"), params.get("start_lat"),
-                    params.get("end_lon"), params.get("end_lat"));
-            String directions = getDirectionsText();
+            GraphDB graph = shards != null
+                    ? shards.graphFor(params.get("start_lon"), params.get("start_lat"),
+                            params.get("end_lon"), params.get("end_lat"))
+                    : graphs.current();
+            Metric metric = "time".equals(req.queryParams("by"))
+                    ? Metric.TRAVEL_TIME : Metric.DISTANCE;
+            Router.SearchMode mode = Router.SearchMode.UNIDIRECTIONAL;
+            if ("bidirectional".equals(req.queryParams("search"))) {
+                mode = Router.SearchMode.BIDIRECTIONAL;
+            } else if ("ch".equals(req.queryParams("search"))) {
+                mode = Router.SearchMode.CONTRACTION_HIERARCHY;
+            } else if ("alt".equals(req.queryParams("search"))) {
+                mode = Router.SearchMode.LANDMARKS;
+            } else if ("overlay".equals(req.queryParams("search"))) {
+                mode = Router.SearchMode.OVERLAY;
+            }
+            Router.SearchStats stats = new Router.SearchStats();
+            int[] routeVertices;
+            if ("edge".equals(req.queryParams("snap"))) {
+                PhantomNode start = graph.snapToEdge(params.get("start_lon"),
+                        params.get("start_lat"));
+                PhantomNode end = graph.snapToEdge(params.get("end_lon"), params.get("end_lat"));
+                routeVertices = Router.shortestPathVertices(graph, metric, mode, start, end,
+                        stats);
+            } else {
+                routeVertices = Router.shortestPathVertices(graph, metric, mode,
+                        params.get("start_lon"), params.get("start_lat"),
+                        params.get("end_lon"), params.get("end_lat"), stats);
+            }
+            List<Long> route = new LinkedList<>();
+            for (int v : routeVertices) {
+                route.add(graph.id(v));
+            }
+            drawnRoute = new DrawnRoute(graph, routeVertices);
+            String directions = getDirectionsText(graph, route);
             Map<String, Object> routeParams = new HashMap<>();
             routeParams.put("routing_success", !route.isEmpty());
             routeParams.put("directions_success", directions.length() > 0);
             routeParams.put("directions", directions);
+            routeParams.put("settled_nodes", stats.settled);
             Gson gson = new Gson();
             return gson.toJson(routeParams);
         });
@@ -164,6 +233,32 @@ public class MapServer {
             }
         });
 
+        /* Admin endpoints for swapping in a new graph while the server keeps running. */
+        get(ADMIN_PATH + "/reload", (req, res) -> {
+            checkLocal(req);
+            if (shards != null) {
+                halt(HALT_RESPONSE, "Shards are loaded on demand, not reloaded.");
+            }
+            String change = req.queryParams("change");
+            String path = req.queryParams("path");
+            boolean started;
+            try {
+                started = change != null ? graphs.applyChange(change)
+                        : graphs.reload(path != null ? path : OSM_DB_PATH);
+            } catch (IllegalArgumentException e) {
+                halt(HALT_RESPONSE, e.getMessage());
+                return null;
+            }
+            Map<String, Object> status = graphs.status();
+            status.put("started", started);
+            return new Gson().toJson(status);
+        });
+
+        get(ADMIN_PATH + "/status", (req, res) -> {
+            checkLocal(req);
+            return new Gson().toJson(graphs.status());
+        });
+
         /* Define map application redirect */
         get("/", (request, response) -> {
             response.redirect("/map.html", 301);
@@ -197,6 +292,16 @@ public class MapServer {
         return params;
     }
 
+    /**
+     * Halts the request unless it came from this machine.
+     */
+    private static void checkLocal(spark.Request req) {
+        String ip = req.ip();
+        if (!"127.0.0.1".equals(ip) && !"0:0:0:0:0:0:0:1".equals(ip) && !"::1".equals(ip)) {
+            halt(HALT_RESPONSE, "Admin requests are only accepted locally.");
+        }
+    }
+
     /**
      * Writes the images corresponding to rasteredImgParams to the output stream.
      * In Spring 2016, students had to do this on their own, but in 2017,
@@ -232,18 +337,22 @@ public class MapServer {
 
         final double wdpp = (lrlon - ullon) / img.getWidth();
         final double hdpp = (ullat - lrlat) / img.getHeight();
-        if (route != null && !route.isEmpty()) {
+        DrawnRoute drawn = drawnRoute;
+        int[] routeVertices = drawn.vertices;
+        GraphDB graph = drawn.graph;
+        if (routeVertices.length > 0) {
             Graphics2D g2d = (Graphics2D) graphic;
             g2d.setColor(MapServer.ROUTE_STROKE_COLOR);
             g2d.setStroke(new BasicStroke(MapServer.ROUTE_STROKE_WIDTH_PX,
                     BasicStroke.CAP_ROUND, BasicStroke.JOIN_ROUND));
-            route.stream().reduce((v, w) -> {
-                g2d.drawLine((int) ((graph.lon(v) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(v)) * (1 / hdpp)),
-                             (int) ((graph.lon(w) - ullon) * (1 / wdpp)),
-                             (int) ((ullat - graph.lat(w)) * (1 / hdpp)));
-                return w;
-            });
+            for (int i = 1; i < routeVertices.length; i++) {
+                int v = routeVertices[i - 1];
+                int w = routeVertices[i];
+                g2d.drawLine((int) ((graph.lonAt(v) - ullon) * (1 / wdpp)),
+                             (int) ((ullat - graph.latAt(v)) * (1 / hdpp)),
+                             (int) ((graph.lonAt(w) - ullon) * (1 / wdpp)),
+                             (int) ((ullat - graph.latAt(w)) * (1 / hdpp)));
+            }
         }
 
         rasteredImageParams.put("raster_width", img.getWidth());
@@ -274,7 +383,7 @@ public class MapServer {
      * Clear the current found route, if it exists.
      */
     public static void clearRoute() {
-        route = new LinkedList<Long>();
+        drawnRoute = new DrawnRoute(null, new int[0]);
     }
 
     /**
@@ -329,10 +438,10 @@ public class MapServer {
     }
 
     /**
-     * Takes the route of this MapServer and converts it into an HTML friendly
+     * Takes a route found on graph and converts it into an HTML friendly
      * String to be passed to the frontend.
      */
-    private static String getDirectionsText() {
+    private static String getDirectionsText(GraphDB graph, List<Long> route) {
         List<Router.NavigationDirection> directions = Router.routeDirections(graph, route);
         if (directions == null || directions.isEmpty()) {
           return "";
@@ -0,0 +1,72 @@
+/**
+ * The quantities the edges of a GraphDB are weighted by. The graph computes one float
+ * per edge for every metric when it is built (see GraphDB.weights), and Router searches
+ * by any of them. A new metric only needs its weight and a lower bound for A*.
+ */
+enum Metric {
+    /** Great-circle length of the edge, in miles. */
+    DISTANCE {
+        @Override
+        double weight(GraphDB g, int e, double miles) {
+            return miles;
+        }
+
+        @Override
+        double lowerBound(double miles) {
+            return miles;
+        }
+    },
+
+    /**
+     * Seconds it takes to drive the edge at the speed of its way (see WayTable.speed),
+     * capped at MAX_SPEED so the lower bound holds whatever the speed tags say.
+     */
+    TRAVEL_TIME {
+        @Override
+        double weight(GraphDB g, int e, double miles) {
+            return seconds(miles, Math.min(g.edgeSpeed(e), MAX_SPEED));
+        }
+
+        @Override
+        double lowerBound(double miles) {
+            return seconds(miles, MAX_SPEED);
+        }
+    };
+
+    /** The fastest speed, in km/h, TRAVEL_TIME assumes on any road. */
+    static final int MAX_SPEED = 130;
+    private static final double KM_PER_MILE = 1.609344;
+
+    /**
+     * Returns the weight of edge e of g, which leaves dense vertex u.
+     */
+    double weight(GraphDB g, int u, int e) {
+        int v = g.edgeTarget(e);
+        return weight(g, e, GraphDB.distance(g.lonAt(u), g.latAt(u), g.lonAt(v), g.latAt(v)));
+    }
+
+    /**
+     * Returns the weight of travelling the given number of miles along edge e of g, which
+     * may be all of it or part of it.
+     */
+    abstract double weight(GraphDB g, int e, double miles);
+
+    /**
+     * Returns a lower bound, in this metric, on the weight of any route covering the given
+     * great-circle distance. Router uses it as the A* heuristic.
+     */
+    abstract double lowerBound(double miles);
+
+    private static double seconds(double miles, int kmPerHour) {
+        return miles * KM_PER_MILE / kmPerHour * 3600;
+    }
+
+    /**
+     * Returns x as a float, rounded up if it isn't exact. Stored weights are never less
+     * than the exact ones, so lowerBound stays a lower bound of their sums.
+     */
+    static float roundUp(double x) {
+        float f = (float) x;
+        return f < x ? Math.nextUp(f) : f;
+    }
+}
@@ -0,0 +1,157 @@
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Two-way translation table between 64-bit OSM node ids and the dense vertex numbers
+ * 0..V-1 that GraphDB uses internally. Built once when the graph is finished; after that
+ * everything inside the graph indexes plain arrays, and OSM ids only come back out at
+ * the edges of the API. GraphDB keeps a second one for the ids of its road ways.
+ * <p>
+ * The id -> vertex direction is an open addressing table with linear probing that stores
+ * vertex + 1 in an int array (0 marks an empty slot), so lookups never box and the table
+ * costs a few bytes per node instead of a HashMap entry.
+ * <p>
+ * When a GraphPatch adds vertices, the next version's index is an overlay: a small map
+ * of the new ids in front of the unchanged table, which both versions share. Removed
+ * vertices keep their entries, and GraphDB checks for them. Once the overlay grows past
+ * an eighth of the table, withChanges builds a new table without the removed ones.
+ */
+class NodeIndex {
+    private static final int MIN_OVERLAY = 1024;
+
+    private final long[] ids;
+    private final int[] table;
+    private final int mask;
+
+    /* For an overlay, the flat index underneath and the ids added since it was built,
+     * each mapped to its vertex. Both null otherwise. */
+    private final NodeIndex base;
+    private final HashMap<Long, Integer> changes;
+
+    /**
+     * Create an index for the given ids; vertex i gets OSM id ids[i].
+     *
+     * @param ids The OSM ids in vertex order. Must not contain duplicates.
+     */
+    NodeIndex(long[] ids) {
+        this(ids, (BitSet) null);
+    }
+
+    /**
+     * Create an index for the given ids, leaving out the vertices in skip.
+     *
+     * @param ids  The OSM ids in vertex order. Must not contain duplicates, other than
+     *             of skipped vertices.
+     * @param skip Vertices whose ids should not be found, or null.
+     */
+    NodeIndex(long[] ids, BitSet skip) {
+        this.ids = ids;
+        this.base = null;
+        this.changes = null;
+        int capacity = 2;
+        while (capacity < ids.length * 2) {
+            capacity <<= 1;
+        }
+        table = new int[capacity];
+        mask = capacity - 1;
+
+        for (int v = 0; v < ids.length; v++) {
+            if (skip != null && skip.get(v)) {
+                continue;
+            }
+            int slot = slot(ids[v]);
+            while (table[slot] != 0) {
+                if (ids[table[slot] - 1] == ids[v]) {
+                    throw new IllegalArgumentException("Duplicate node id " + ids[v]);
+                }
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = v + 1;
+        }
+    }
+
+    /**
+     * Create an index for the given ids from the table of one made for the same ids (see
+     * table), e.g. one saved in a GraphSnapshot, instead of hashing them all again. The
+     * arrays are kept, not copied.
+     */
+    NodeIndex(long[] ids, int[] table) {
+        this.ids = ids;
+        this.table = table;
+        this.mask = table.length - 1;
+        this.base = null;
+        this.changes = null;
+    }
+
+    private NodeIndex(NodeIndex base, HashMap<Long, Integer> changes, long[] ids) {
+        this.ids = ids;
+        this.table = null;
+        this.mask = 0;
+        this.base = base;
+        this.changes = changes;
+    }
+
+    /**
+     * Returns the index for the next version of the graph.
+     *
+     * @param newIds  The next version's ids in vertex order; this version's ids must be
+     *                a prefix of them.
+     * @param added   The ids added since this version, mapped to their vertices.
+     * @param removed All removed vertices in the next version, or null if none.
+     */
+    NodeIndex withChanges(long[] newIds, Map<Long, Integer> added, BitSet removed) {
+        HashMap<Long, Integer> merged = changes == null ? new HashMap<>()
+                : new HashMap<>(changes);
+        merged.putAll(added);
+        NodeIndex flat = base == null ? this : base;
+        if (merged.size() > Math.max(MIN_OVERLAY, flat.size() / 8)) {
+            return new NodeIndex(newIds, removed);
+        }
+        return new NodeIndex(flat, merged, newIds);
+    }
+
+    private int slot(long id) {
+        // Fibonacci hashing spreads the mostly sequential OSM ids over the table
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    /**
+     * Returns the dense vertex number of an OSM id, or -1 if the id is not in the graph.
+     */
+    int indexOf(long id) {
+        if (changes != null) {
+            Integer v = changes.get(id);
+            return v != null ? v : base.indexOf(id);
+        }
+        int slot = slot(id);
+        while (table[slot] != 0) {
+            int v = table[slot] - 1;
+            if (ids[v] == id) {
+                return v;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the OSM id of dense vertex v.
+     */
+    long idOf(int v) {
+        return ids[v];
+    }
+
+    int size() {
+        return ids.length;
+    }
+
+    /**
+     * Returns the hash table, for saving with the graph and handing back to the
+     * constructor; null for an overlay. Must not be modified.
+     */
+    int[] table() {
+        return table;
+    }
+}
@@ -0,0 +1,94 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * The coordinates, CSR offsets and targets, and edge weights of a GraphDB, kept outside
+ * the Java heap (see GraphDB.OFF_HEAP_PROPERTY). They are either direct buffers filled
+ * from the arrays the graph was built in, or views straight into a memory-mapped
+ * GraphSnapshot. Either way the garbage collector never has to scan or copy them, so the
+ * heap only holds the ids, the indexes and per-request state.
+ * <p>
+ * Buffers are only ever read with absolute gets, which don't touch their position, so
+ * any number of threads can share them.
+ */
+class OffHeapArrays {
+    /* Coordinates in degrees, or if the graph is fixed-point, fixedLats and fixedLons
+     * instead; the other pair is null. */
+    final DoubleBuffer lats;
+    final DoubleBuffer lons;
+    final IntBuffer fixedLats;
+    final IntBuffer fixedLons;
+    final IntBuffer offsets;
+    final IntBuffer targets;
+    /* Per Metric, filled in by GraphDB once the rest is in place. */
+    final FloatBuffer[] weights = new FloatBuffer[Metric.values().length];
+
+    OffHeapArrays(DoubleBuffer lats, DoubleBuffer lons, IntBuffer fixedLats,
+                  IntBuffer fixedLons, IntBuffer offsets, IntBuffer targets) {
+        this.lats = lats;
+        this.lons = lons;
+        this.fixedLats = fixedLats;
+        this.fixedLons = fixedLons;
+        this.offsets = offsets;
+        this.targets = targets;
+    }
+
+    double latAt(int v) {
+        return lats != null ? lats.get(v) : GraphDB.fromFixedPoint(fixedLats.get(v));
+    }
+
+    double lonAt(int v) {
+        return lons != null ? lons.get(v) : GraphDB.fromFixedPoint(fixedLons.get(v));
+    }
+
+    /**
+     * Returns how many bytes the buffers take up.
+     */
+    long bytes() {
+        long bytes = 4L * (offsets.capacity() + targets.capacity());
+        bytes += lats != null ? 8L * (lats.capacity() + lons.capacity())
+                : 4L * (fixedLats.capacity() + fixedLons.capacity());
+        for (FloatBuffer w : weights) {
+            bytes += w == null ? 0 : 4L * w.capacity();
+        }
+        return bytes;
+    }
+
+    /* Direct buffers holding a copy of values, positioned back at the start. */
+
+    static IntBuffer direct(int[] values) {
+        IntBuffer buffer = allocate(4L * values.length).asIntBuffer();
+        buffer.put(values);
+        buffer.rewind();
+        return buffer;
+    }
+
+    static DoubleBuffer direct(double[] values) {
+        DoubleBuffer buffer = allocate(8L * values.length).asDoubleBuffer();
+        buffer.put(values);
+        buffer.rewind();
+        return buffer;
+    }
+
+    static FloatBuffer direct(float[] values) {
+        FloatBuffer buffer = allocate(4L * values.length).asFloatBuffer();
+        buffer.put(values);
+        buffer.rewind();
+        return buffer;
+    }
+
+    static FloatBuffer directFloats(int length) {
+        return allocate(4L * length).asFloatBuffer();
+    }
+
+    private static ByteBuffer allocate(long bytes) {
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Graph array of " + bytes
+                    + " bytes is too big for one buffer");
+        }
+        return ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    }
+}
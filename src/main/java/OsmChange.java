@@ -0,0 +1,138 @@
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+
+/**
+ * The parts of an OsmChange (.osc) file that matter to the road graph: nodes and road
+ * ways that were created, modified or deleted. Relations are ignored, and so are ways
+ * that aren't roads by GraphBuildingHandler's rules, except that a road modified into
+ * something else counts as deleted. If the file touches the same id more than once,
+ * the last action wins. GraphPatch applies the result to a GraphDB.
+ * See <a href="https://wiki.openstreetmap.org/wiki/OsmChange">OsmChange</a>.
+ */
+class OsmChange {
+    /** Created or modified nodes and their new coordinates, as {lat, lon}. */
+    final LinkedHashMap<Long, double[]> nodes = new LinkedHashMap<>();
+    /** Deleted nodes. */
+    final LinkedHashSet<Long> deletedNodes = new LinkedHashSet<>();
+    /** Created or modified road ways and the ids of their nodes. */
+    final LinkedHashMap<Long, long[]> roads = new LinkedHashMap<>();
+    /** The tags of the roads in roads. */
+    final HashMap<Long, WayTags> roadTags = new HashMap<>();
+    /** Deleted ways, and ways modified so that they are no longer roads. */
+    final LinkedHashSet<Long> deletedWays = new LinkedHashSet<>();
+
+    /**
+     * Reads an OsmChange file, which may be compressed (see CompressedInput).
+     *
+     * @param file The .osc file.
+     * @return Its changes.
+     * @throws IOException If the file can't be read or isn't valid XML.
+     */
+    static OsmChange read(File file) throws IOException {
+        try (InputStream in = CompressedInput.open(file)) {
+            return read(in);
+        }
+    }
+
+    /**
+     * Reads OsmChange XML from in, leaving it open.
+     */
+    static OsmChange read(InputStream in) throws IOException {
+        OsmChange change = new OsmChange();
+        try {
+            SAXParser parser = SAXParserFactory.newInstance().newSAXParser();
+            parser.parse(in, change.new Handler());
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IOException("Bad OsmChange file", e);
+        }
+        return change;
+    }
+
+    int size() {
+        return nodes.size() + deletedNodes.size() + roads.size() + deletedWays.size();
+    }
+
+    private class Handler extends DefaultHandler {
+        /* The action block we are in: "create", "modify" or "delete". */
+        private String action = "";
+        private long wayId;
+        private boolean inWay;
+        private WayTags tags;
+        private final ArrayList<Long> refs = new ArrayList<>();
+
+        @Override
+        public void startElement(String uri, String localName, String qName,
+                                 Attributes attributes) {
+            switch (qName) {
+                case "create":
+                case "modify":
+                case "delete":
+                    action = qName;
+                    break;
+                case "node":
+                    long id = Long.parseLong(attributes.getValue("id"));
+                    if (action.equals("delete")) {
+                        nodes.remove(id);
+                        deletedNodes.add(id);
+                    } else {
+                        deletedNodes.remove(id);
+                        nodes.put(id, new double[]{
+                            Double.parseDouble(attributes.getValue("lat")),
+                            Double.parseDouble(attributes.getValue("lon"))});
+                    }
+                    break;
+                case "way":
+                    inWay = true;
+                    wayId = Long.parseLong(attributes.getValue("id"));
+                    tags = new WayTags();
+                    refs.clear();
+                    break;
+                case "nd":
+                    if (inWay) {
+                        refs.add(Long.parseLong(attributes.getValue("ref")));
+                    }
+                    break;
+                case "tag":
+                    if (inWay) {
+                        tags.tag(attributes.getValue("k"), attributes.getValue("v"));
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        @Override
+        public void endElement(String uri, String localName, String qName) {
+            if (!qName.equals("way")) {
+                return;
+            }
+            inWay = false;
+            if (!action.equals("delete") && tags.isRoad() && refs.size() >= 2) {
+                long[] wayRefs = new long[refs.size()];
+                for (int i = 0; i < wayRefs.length; i++) {
+                    wayRefs[i] = refs.get(i);
+                }
+                deletedWays.remove(wayId);
+                roads.put(wayId, wayRefs);
+                roadTags.put(wayId, tags);
+            } else {
+                roads.remove(wayId);
+                roadTags.remove(wayId);
+                deletedWays.add(wayId);
+            }
+        }
+    }
+}
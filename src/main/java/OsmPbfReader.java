@@ -0,0 +1,592 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads OSM extracts in the PBF format (.osm.pbf). See
+ * <a href="https://wiki.openstreetmap.org/wiki/PBF_Format">the PBF format</a>.
+ * <p>
+ * A PBF file is a sequence of blobs, each a length-prefixed BlobHeader followed by a
+ * Blob holding one zlib compressed (or raw) PrimitiveBlock of up to 8000 nodes or ways,
+ * with its own string table. The calling thread reads the blobs off the stream one after
+ * another, while a pool of workers inflates and decodes them independently into
+ * OsmPipeline.ParsedBatches: coordinates worked out, ways that aren't roads dropped.
+ * The batches are then replayed, in file order, into the GraphBuildingHandler, so the
+ * graph is built exactly as if the same data had been read from XML.
+ * <p>
+ * The protocol buffer messages are decoded by hand from the few fields we need; every
+ * other field is skipped. Only zlib and uncompressed blobs are supported.
+ */
+class OsmPbfReader {
+    private static final int MAX_BLOB_HEADER_SIZE = 64 * 1024;
+    private static final int MAX_BLOB_SIZE = 32 * 1024 * 1024;
+    /** Blobs allowed to be decoding or waiting to be built at once. */
+    private static final int MAX_IN_FLIGHT = 64;
+    private static final Set<String> SUPPORTED_FEATURES =
+            new HashSet<>(Arrays.asList("OsmSchema-V0.6", "DenseNodes"));
+
+    private final GraphBuildingHandler handler;
+    private final int numWorkers;
+
+    final OsmPipeline.StageStats readStats = new OsmPipeline.StageStats("read");
+    final OsmPipeline.StageStats decodeStats = new OsmPipeline.StageStats("decode");
+    final OsmPipeline.StageStats buildStats = new OsmPipeline.StageStats("build");
+
+    /**
+     * Create a reader that builds into the given handler.
+     *
+     * @param handler    The handler whose callbacks build the graph.
+     * @param numWorkers How many threads decode blobs; 0 decodes on the calling thread.
+     */
+    OsmPbfReader(GraphBuildingHandler handler, int numWorkers) {
+        this.handler = handler;
+        this.numWorkers = Math.max(0, numWorkers);
+    }
+
+    /**
+     * Reads a PBF stream into the handler. How each stage did is left in the stage stats,
+     * and printed with GraphDB.VERBOSE_PROPERTY set.
+     *
+     * @param input The PBF data.
+     * @throws IOException If reading fails, or the data is malformed or uses features we
+     *                     don't support.
+     */
+    void run(InputStream input) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(input, 1 << 16));
+        ExecutorService pool = numWorkers == 0 ? null
+                : Executors.newFixedThreadPool(numWorkers, r -> {
+                    Thread t = new Thread(r, "osm-pbf-decode");
+                    t.setDaemon(true);
+                    return t;
+                });
+        ArrayDeque<Future<OsmPipeline.ParsedBatch>> pending = new ArrayDeque<>();
+        int numBlobs = 0;
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                Blob blob = readBlob(in);
+                if (blob == null) {
+                    readStats.add(0, System.nanoTime() - start, 0);
+                    break;
+                }
+                readStats.add(1, System.nanoTime() - start, 0);
+                numBlobs++;
+
+                if (blob.type.equals("OSMHeader")) {
+                    checkHeader(uncompress(blob.data));
+                } else if (blob.type.equals("OSMData")) {
+                    if (pool == null) {
+                        build(decode(blob.data));
+                    } else {
+                        if (pending.size() >= MAX_IN_FLIGHT) {
+                            build(pending.removeFirst().get());
+                        }
+                        pending.addLast(pool.submit(() -> decode(blob.data)));
+                    }
+                }
+                // Any other blob type is one we don't know about, and is skipped
+            }
+            while (!pending.isEmpty()) {
+                build(pending.removeFirst().get());
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while reading PBF", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new IOException("PBF decoding failed", cause);
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
+        if (GraphDB.verbose()) {
+            System.out.println("OSM PBF ingestion of " + numBlobs + " blobs with " + numWorkers
+                    + " decode workers:");
+            System.out.println("  " + readStats);
+            System.out.println("  " + decodeStats);
+            System.out.println("  " + buildStats);
+        }
+    }
+
+    private void build(OsmPipeline.ParsedBatch batch) {
+        long start = System.nanoTime();
+        batch.apply(handler);
+        buildStats.add(batch.numItems, System.nanoTime() - start, 0);
+    }
+
+    /** A blob as read from the file: its type and still compressed contents. */
+    private static class Blob {
+        final String type;
+        final byte[] data;
+
+        Blob(String type, byte[] data) {
+            this.type = type;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Reads the next BlobHeader and Blob, or returns null at the end of the stream.
+     */
+    private static Blob readBlob(DataInputStream in) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        int headerLength = first << 24 | in.readUnsignedByte() << 16
+                | in.readUnsignedByte() << 8 | in.readUnsignedByte();
+        if (headerLength < 0 || headerLength > MAX_BLOB_HEADER_SIZE) {
+            throw new IOException("Bad PBF blob header length " + headerLength);
+        }
+        byte[] header = new byte[headerLength];
+        in.readFully(header);
+
+        String type = null;
+        long dataSize = -1;
+        Proto p = new Proto(header, 0, headerLength);
+        while (p.next()) {
+            if (p.field == 1) {
+                type = p.string();
+            } else if (p.field == 3) {
+                dataSize = p.varint();
+            } else {
+                p.skip();
+            }
+        }
+        if (type == null || dataSize < 0 || dataSize > MAX_BLOB_SIZE) {
+            throw new IOException("Bad PBF blob header (type " + type + ", size "
+                    + dataSize + ")");
+        }
+        byte[] data = new byte[(int) dataSize];
+        in.readFully(data);
+        return new Blob(type, data);
+    }
+
+    /**
+     * Returns the contents of a Blob message, inflating them if need be.
+     */
+    private static byte[] uncompress(byte[] blob) throws IOException {
+        int rawSize = -1;
+        int zlibStart = -1;
+        int zlibEnd = -1;
+        Proto p = new Proto(blob, 0, blob.length);
+        while (p.next()) {
+            switch (p.field) {
+                case 1:
+                    int start = p.bytes();
+                    return Arrays.copyOfRange(blob, start, p.pos);
+                case 2:
+                    rawSize = (int) p.varint();
+                    break;
+                case 3:
+                    zlibStart = p.bytes();
+                    zlibEnd = p.pos;
+                    break;
+                case 4:
+                case 5:
+                case 6:
+                case 7:
+                    throw new IOException("Unsupported PBF blob compression (Blob field "
+                            + p.field + ")");
+                default:
+                    p.skip();
+            }
+        }
+        if (zlibStart < 0 || rawSize < 0 || rawSize > MAX_BLOB_SIZE) {
+            throw new IOException("PBF blob has no data");
+        }
+
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(blob, zlibStart, zlibEnd - zlibStart);
+            byte[] raw = new byte[rawSize];
+            int n = 0;
+            while (n < rawSize && !inflater.finished()) {
+                int inflated = inflater.inflate(raw, n, rawSize - n);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += inflated;
+            }
+            if (n != rawSize) {
+                throw new IOException("PBF blob inflated to " + n + " bytes, expected "
+                        + rawSize);
+            }
+            return raw;
+        } catch (DataFormatException e) {
+            throw new IOException("Corrupt zlib data in PBF blob", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Checks that a HeaderBlock doesn't require anything we can't read.
+     */
+    private static void checkHeader(byte[] block) throws IOException {
+        Proto p = new Proto(block, 0, block.length);
+        while (p.next()) {
+            if (p.field == 4) {
+                String feature = p.string();
+                if (!SUPPORTED_FEATURES.contains(feature)) {
+                    throw new IOException("Unsupported PBF feature " + feature);
+                }
+            } else {
+                p.skip();
+            }
+        }
+    }
+
+    /**
+     * Decodes one OSMData blob into a batch. Runs on the worker threads.
+     */
+    private OsmPipeline.ParsedBatch decode(byte[] blob) throws IOException {
+        long start = System.nanoTime();
+        byte[] b = uncompress(blob);
+
+        // The groups come before the granularity and offsets they use, so find
+        // everything first and decode the groups after
+        StringTable strings = null;
+        Proto[] groups = new Proto[4];
+        int numGroups = 0;
+        int granularity = 100;
+        long latOffset = 0;
+        long lonOffset = 0;
+        Proto block = new Proto(b, 0, b.length);
+        while (block.next()) {
+            switch (block.field) {
+                case 1:
+                    strings = new StringTable(block.message());
+                    break;
+                case 2:
+                    if (numGroups == groups.length) {
+                        groups = Arrays.copyOf(groups, numGroups * 2);
+                    }
+                    groups[numGroups++] = block.message();
+                    break;
+                case 17:
+                    granularity = (int) block.varint();
+                    break;
+                case 19:
+                    latOffset = block.varint();
+                    break;
+                case 20:
+                    lonOffset = block.varint();
+                    break;
+                default:
+                    block.skip();
+            }
+        }
+        if (strings == null) {
+            throw new IOException("PBF block has no string table");
+        }
+
+        OsmPipeline.ParsedBatch batch = new OsmPipeline.ParsedBatch(0);
+        for (int i = 0; i < numGroups; i++) {
+            Proto group = groups[i];
+            while (group.next()) {
+                switch (group.field) {
+                    case 1:
+                        node(group.message(), batch, granularity, latOffset, lonOffset);
+                        break;
+                    case 2:
+                        denseNodes(group.message(), batch, granularity, latOffset, lonOffset);
+                        break;
+                    case 3:
+                        way(group.message(), batch, strings);
+                        break;
+                    default:
+                        group.skip();
+                }
+            }
+        }
+        decodeStats.add(batch.numItems, System.nanoTime() - start, 0);
+        return batch;
+    }
+
+    /**
+     * Converts a coordinate stored as offset + granularity * value nanodegrees to
+     * degrees. The nanodegrees are an exact integer, so dividing once by 1e9 rounds once,
+     * and gives the same double as parsing the decimal coordinate from an XML extract.
+     */
+    static double degrees(long offset, int granularity, long value) {
+        return (offset + granularity * value) / 1e9;
+    }
+
+    private static void node(Proto node, OsmPipeline.ParsedBatch batch, int granularity,
+                             long latOffset, long lonOffset) throws IOException {
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        while (node.next()) {
+            if (node.field == 1) {
+                id = node.sint();
+            } else if (node.field == 8) {
+                lat = node.sint();
+            } else if (node.field == 9) {
+                lon = node.sint();
+            } else {
+                node.skip();
+            }
+        }
+        batch.addNode(id, degrees(latOffset, granularity, lat),
+                degrees(lonOffset, granularity, lon));
+        batch.numItems++;
+    }
+
+    private static void denseNodes(Proto dense, OsmPipeline.ParsedBatch batch, int granularity,
+                                   long latOffset, long lonOffset) throws IOException {
+        Proto ids = null;
+        Proto lats = null;
+        Proto lons = null;
+        while (dense.next()) {
+            if (dense.field == 1) {
+                ids = dense.message();
+            } else if (dense.field == 8) {
+                lats = dense.message();
+            } else if (dense.field == 9) {
+                lons = dense.message();
+            } else {
+                dense.skip();
+            }
+        }
+        if (ids == null || lats == null || lons == null) {
+            throw new IOException("PBF dense nodes without ids or coordinates");
+        }
+
+        // All three are delta coded
+        long id = 0;
+        long lat = 0;
+        long lon = 0;
+        while (ids.hasMore()) {
+            id += ids.sint();
+            lat += lats.sint();
+            lon += lons.sint();
+            batch.addNode(id, degrees(latOffset, granularity, lat),
+                    degrees(lonOffset, granularity, lon));
+            batch.numItems++;
+        }
+    }
+
+    private static void way(Proto way, OsmPipeline.ParsedBatch batch, StringTable strings)
+            throws IOException {
+        long id = 0;
+        Proto keys = null;
+        Proto vals = null;
+        Proto refs = null;
+        while (way.next()) {
+            if (way.field == 1) {
+                id = way.varint();
+            } else if (way.field == 2) {
+                keys = way.message();
+            } else if (way.field == 3) {
+                vals = way.message();
+            } else if (way.field == 8) {
+                refs = way.message();
+            } else {
+                way.skip();
+            }
+        }
+
+        // Classify the way before decoding its refs, as most ways aren't roads
+        boolean isRoad = false;
+        int numTags = 0;
+        if (keys != null && vals != null) {
+            Proto k = keys.rewind();
+            Proto v = vals.rewind();
+            while (k.hasMore()) {
+                String key = strings.get(k.varint());
+                String value = strings.get(v.varint());
+                numTags++;
+                if (key.equals("highway") && GraphBuildingHandler.isAllowedHighway(value)) {
+                    isRoad = true;
+                }
+            }
+        }
+        batch.numItems += 1 + numTags;
+        if (!isRoad) {
+            return;
+        }
+
+        if (refs != null) {
+            long ref = 0;
+            while (refs.hasMore()) {
+                ref += refs.sint();
+                batch.addRef(ref);
+                batch.numItems++;
+            }
+        }
+        while (keys.hasMore()) {
+            batch.addTag(strings.get(keys.varint()), strings.get(vals.varint()));
+        }
+        batch.endWay(id);
+    }
+
+    /** A block's string table, decoded to Strings as they are first used. */
+    private static class StringTable {
+        private final byte[] buf;
+        private int[] starts = new int[256];
+        private int[] ends = new int[256];
+        private String[] strings;
+        private int size;
+
+        StringTable(Proto table) throws IOException {
+            buf = table.buf;
+            while (table.next()) {
+                if (table.field == 1) {
+                    if (size == starts.length) {
+                        starts = Arrays.copyOf(starts, size * 2);
+                        ends = Arrays.copyOf(ends, size * 2);
+                    }
+                    starts[size] = table.bytes();
+                    ends[size] = table.pos;
+                    size++;
+                } else {
+                    table.skip();
+                }
+            }
+            strings = new String[size];
+        }
+
+        String get(long index) throws IOException {
+            if (index < 0 || index >= size) {
+                throw new IOException("PBF string index " + index + " out of range");
+            }
+            int i = (int) index;
+            if (strings[i] == null) {
+                strings[i] = new String(buf, starts[i], ends[i] - starts[i],
+                        StandardCharsets.UTF_8);
+            }
+            return strings[i];
+        }
+    }
+
+    /**
+     * Cursor over the protocol buffer encoding of one message, or of a packed repeated
+     * field, in buf[start, limit). For a message, next() moves to each field in turn;
+     * then read its value with the method for its type, or skip() it.
+     */
+    private static class Proto {
+        final byte[] buf;
+        final int start;
+        final int limit;
+        int pos;
+        int field;
+        int wireType;
+
+        Proto(byte[] buf, int start, int limit) {
+            this.buf = buf;
+            this.start = start;
+            this.limit = limit;
+            this.pos = start;
+        }
+
+        boolean hasMore() {
+            return pos < limit;
+        }
+
+        /** Moves to the next field of the message; false once there are none left. */
+        boolean next() throws IOException {
+            if (pos >= limit) {
+                return false;
+            }
+            long key = varint();
+            field = (int) (key >>> 3);
+            wireType = (int) (key & 7);
+            return true;
+        }
+
+        long varint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                if (pos >= limit) {
+                    throw new IOException("Truncated PBF varint");
+                }
+                byte b = buf[pos++];
+                value |= (long) (b & 0x7f) << shift;
+                if (b >= 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed PBF varint");
+        }
+
+        /** A zigzag encoded signed varint. */
+        long sint() throws IOException {
+            long value = varint();
+            return (value >>> 1) ^ -(value & 1);
+        }
+
+        /** Skips over a length-delimited value, returning where it starts; it ends at pos. */
+        int bytes() throws IOException {
+            if (wireType != 2) {
+                throw new IOException("PBF field " + field + " has wire type " + wireType
+                        + ", expected a length-delimited value");
+            }
+            long length = varint();
+            if (length < 0 || length > limit - pos) {
+                throw new IOException("PBF field " + field + " overruns its message");
+            }
+            int valueStart = pos;
+            pos += (int) length;
+            return valueStart;
+        }
+
+        /** A cursor over the embedded message or packed field at this field. */
+        Proto message() throws IOException {
+            int valueStart = bytes();
+            return new Proto(buf, valueStart, pos);
+        }
+
+        String string() throws IOException {
+            int valueStart = bytes();
+            return new String(buf, valueStart, pos - valueStart, StandardCharsets.UTF_8);
+        }
+
+        /** A fresh cursor over the same bytes, back at the start. */
+        Proto rewind() {
+            return new Proto(buf, start, limit);
+        }
+
+        void skip() throws IOException {
+            switch (wireType) {
+                case 0:
+                    varint();
+                    break;
+                case 1:
+                    pos += 8;
+                    break;
+                case 2:
+                    bytes();
+                    break;
+                case 5:
+                    pos += 4;
+                    break;
+                default:
+                    throw new IOException("Unsupported PBF wire type " + wireType);
+            }
+            if (pos > limit) {
+                throw new IOException("PBF field " + field + " overruns its message");
+            }
+        }
+    }
+}
@@ -0,0 +1,537 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Multi-threaded OSM ingestion. Reading an extract is split into three stages that run
+ * at the same time and hand work to each other in batches through bounded queues:
+ * <ol>
+ * <li>tokenize: one thread runs an OsmXmlScanner over the XML and copies the raw bytes
+ * of the attributes we care about into batches. A way never straddles two batches.</li>
+ * <li>parse: a pool of workers turns the bytes into numbers and strings and classifies
+ * each way against the allowed highway types, dropping ways that aren't roads before
+ * anyone parses their node refs.</li>
+ * <li>build: the calling thread replays the parsed batches, in their original order,
+ * into the usual GraphBuildingHandler callbacks.</li>
+ * </ol>
+ * Because the build stage sees exactly the sequence of nodes and roads a single-threaded
+ * scan would, the resulting graph is identical. At most MAX_IN_FLIGHT batches are between the
+ * tokenizer and the builder at any time, which bounds memory however uneven the workers
+ * are. Each stage times how long it spends working and waiting, and run() reports the
+ * per-stage throughput.
+ */
+class OsmPipeline {
+    /** Elements (nodes, plus the nds and tags of ways) per batch. */
+    private static final int BATCH_SIZE = 4096;
+    /** Batches allowed between the tokenizer and the builder at once. */
+    private static final int MAX_IN_FLIGHT = 64;
+
+    private static final byte NODE = 0;
+    private static final byte WAY = 1;
+
+    /** Sentinel telling a worker to stop; each worker then reports it is done. */
+    private static final RawBatch END_OF_INPUT = new RawBatch(-1);
+    private static final ParsedBatch WORKER_DONE = new ParsedBatch(-1);
+
+    private final GraphBuildingHandler handler;
+    private final int numWorkers;
+
+    private final BlockingQueue<RawBatch> rawBatches = new ArrayBlockingQueue<>(MAX_IN_FLIGHT);
+    private final BlockingQueue<ParsedBatch> parsedBatches =
+            new ArrayBlockingQueue<>(MAX_IN_FLIGHT);
+    private final Semaphore inFlight = new Semaphore(MAX_IN_FLIGHT);
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+
+    final StageStats tokenizeStats = new StageStats("tokenize");
+    final StageStats parseStats = new StageStats("parse");
+    final StageStats buildStats = new StageStats("build");
+
+    /**
+     * Create a pipeline that builds into the given handler.
+     *
+     * @param handler    The handler whose callbacks build the graph.
+     * @param numWorkers How many parse workers to run.
+     */
+    OsmPipeline(GraphBuildingHandler handler, int numWorkers) {
+        this.handler = handler;
+        this.numWorkers = Math.max(1, numWorkers);
+    }
+
+    /**
+     * The number of parse workers to use when none is configured: whatever cores are
+     * left over after the tokenizer and builder threads.
+     */
+    static int defaultWorkers() {
+        return Math.max(1, Runtime.getRuntime().availableProcessors() - 2);
+    }
+
+    /** Work counters for one stage of the pipeline. */
+    static class StageStats {
+        final String name;
+        long items;
+        long busyNanos;
+        long waitNanos;
+
+        StageStats(String name) {
+            this.name = name;
+        }
+
+        synchronized void add(long numItems, long busy, long wait) {
+            items += numItems;
+            busyNanos += busy;
+            waitNanos += wait;
+        }
+
+        @Override
+        public synchronized String toString() {
+            double busyMs = busyNanos / 1e6;
+            double perSecond = busyNanos == 0 ? 0 : items / (busyNanos / 1e9);
+            return String.format("%-8s %10d elements, %8.1f ms busy (%.0f/s), %8.1f ms waiting",
+                    name, items, busyMs, perSecond, waitNanos / 1e6);
+        }
+    }
+
+    /* Stage 1 output: the raw attribute values of a run of elements, copied one after
+     * another into bytes, with value i at bytes[ends[i - 1] .. ends[i]). Nodes are stored
+     * as id, lat, lon; ways as their id, then nd refs, then tag k, v pairs. */
+    private static class RawBatch {
+        final int seq;
+        byte[] kinds = new byte[256];
+        int[] refCounts = new int[256];
+        int[] tagCounts = new int[256];
+        int numElements;
+        byte[] bytes = new byte[BATCH_SIZE * 16];
+        int numBytes;
+        int[] ends = new int[BATCH_SIZE * 2];
+        int numValues;
+        int size;
+
+        RawBatch(int seq) {
+            this.seq = seq;
+        }
+
+        void addElement(byte kind) {
+            if (numElements == kinds.length) {
+                kinds = Arrays.copyOf(kinds, numElements * 2);
+                refCounts = Arrays.copyOf(refCounts, numElements * 2);
+                tagCounts = Arrays.copyOf(tagCounts, numElements * 2);
+            }
+            kinds[numElements] = kind;
+            refCounts[numElements] = 0;
+            tagCounts[numElements] = 0;
+            numElements++;
+            size++;
+        }
+
+        void addValue(byte[] buf, int start, int end) {
+            int length = end - start;
+            if (numBytes + length > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, numBytes + length));
+            }
+            System.arraycopy(buf, start, bytes, numBytes, length);
+            numBytes += length;
+            if (numValues == ends.length) {
+                ends = Arrays.copyOf(ends, numValues * 2);
+            }
+            ends[numValues] = numBytes;
+            numValues++;
+        }
+
+        int start(int value) {
+            return value == 0 ? 0 : ends[value - 1];
+        }
+    }
+
+    /**
+     * Decoded elements ready to replay into a GraphBuildingHandler: numbers parsed and
+     * ways that aren't roads already dropped. Elements are kept in input order in kinds;
+     * node i and way j are the i-th NODE and j-th WAY in it. Also produced by OsmPbfReader.
+     */
+    static class ParsedBatch {
+        final int seq;
+        byte[] kinds = new byte[64];
+        int numElements;
+        long[] nodeIds = new long[64];
+        double[] lats = new double[64];
+        double[] lons = new double[64];
+        int numNodes;
+        long[] refs = new long[64];
+        int numRefs;
+        String[] tags = new String[64];
+        int numTags;
+        long[] wayIds = new long[16];
+        int[] wayRefEnds = new int[16];
+        int[] wayTagEnds = new int[16];
+        int numWays;
+        /** Elements read to produce this batch, counting each nd and tag, for StageStats. */
+        int numItems;
+
+        ParsedBatch(int seq) {
+            this.seq = seq;
+        }
+
+        private void addKind(byte kind) {
+            if (numElements == kinds.length) {
+                kinds = Arrays.copyOf(kinds, numElements * 2);
+            }
+            kinds[numElements++] = kind;
+        }
+
+        void addNode(long id, double lat, double lon) {
+            if (numNodes == nodeIds.length) {
+                nodeIds = Arrays.copyOf(nodeIds, numNodes * 2);
+                lats = Arrays.copyOf(lats, numNodes * 2);
+                lons = Arrays.copyOf(lons, numNodes * 2);
+            }
+            nodeIds[numNodes] = id;
+            lats[numNodes] = lat;
+            lons[numNodes] = lon;
+            numNodes++;
+            addKind(NODE);
+        }
+
+        /** Adds a node ref to the way being added; finish the way with endWay. */
+        void addRef(long ref) {
+            if (numRefs == refs.length) {
+                refs = Arrays.copyOf(refs, numRefs * 2);
+            }
+            refs[numRefs++] = ref;
+        }
+
+        /** Adds a tag to the way being added; finish the way with endWay. */
+        void addTag(String k, String v) {
+            if (numTags + 2 > tags.length) {
+                tags = Arrays.copyOf(tags, tags.length * 2);
+            }
+            tags[numTags++] = k;
+            tags[numTags++] = v;
+        }
+
+        /** Finishes way id, made of the refs and tags added since the last one. */
+        void endWay(long id) {
+            if (numWays == wayRefEnds.length) {
+                wayIds = Arrays.copyOf(wayIds, numWays * 2);
+                wayRefEnds = Arrays.copyOf(wayRefEnds, numWays * 2);
+                wayTagEnds = Arrays.copyOf(wayTagEnds, numWays * 2);
+            }
+            wayIds[numWays] = id;
+            wayRefEnds[numWays] = numRefs;
+            wayTagEnds[numWays] = numTags;
+            numWays++;
+            addKind(WAY);
+        }
+
+        /** Replays the batch into handler, in input order. */
+        void apply(GraphBuildingHandler handler) {
+            int node = 0;
+            int way = 0;
+            int ref = 0;
+            int tag = 0;
+            for (int i = 0; i < numElements; i++) {
+                if (kinds[i] == NODE) {
+                    handler.node(nodeIds[node], lats[node], lons[node]);
+                    node++;
+                } else {
+                    handler.startWay(wayIds[way]);
+                    for (; ref < wayRefEnds[way]; ref++) {
+                        handler.wayNode(refs[ref]);
+                    }
+                    for (; tag < wayTagEnds[way]; tag += 2) {
+                        handler.wayTag(tags[tag], tags[tag + 1]);
+                    }
+                    handler.endWay();
+                    way++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads an OSM XML stream through the pipeline into the handler. How each stage did
+     * is left in the stage stats, and printed with GraphDB.VERBOSE_PROPERTY set.
+     *
+     * @param input The OSM XML.
+     * @throws IOException If reading fails, the XML is malformed, or a worker thread fails.
+     */
+    void run(InputStream input) throws IOException {
+        Thread tokenizer = new Thread(() -> tokenize(input), "osm-tokenize");
+        tokenizer.setDaemon(true);
+        tokenizer.start();
+        for (int i = 0; i < numWorkers; i++) {
+            Thread worker = new Thread(this::parseBatches, "osm-parse-" + i);
+            worker.setDaemon(true);
+            worker.start();
+        }
+
+        try {
+            build();
+        } catch (InterruptedException e) {
+            fail(e);
+        }
+
+        // If any stage failed, the others have drained and stopped by now
+        Throwable t = failure.get();
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        } else if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        } else if (t instanceof Error) {
+            throw (Error) t;
+        } else if (t != null) {
+            throw new IOException("OSM ingestion failed", t);
+        }
+        if (GraphDB.verbose()) {
+            System.out.println("OSM ingestion with " + numWorkers + " parse workers:");
+            System.out.println("  " + tokenizeStats);
+            System.out.println("  " + parseStats);
+            System.out.println("  " + buildStats);
+        }
+    }
+
+    /**
+     * Records the first failure. After that the stages stop doing real work, but keep
+     * passing batches along until the end so nobody is left blocked on a queue.
+     */
+    private void fail(Throwable t) {
+        failure.compareAndSet(null, t);
+    }
+
+    /* ---------------- Stage 1: tokenize ---------------- */
+
+    private void tokenize(InputStream input) {
+        Tokenizer tokenizer = new Tokenizer();
+        long start = System.nanoTime();
+        try {
+            new OsmXmlScanner(input, tokenizer).scan();
+            tokenizer.flush();
+        } catch (IOException | RuntimeException e) {
+            fail(e);
+        } finally {
+            tokenizeStats.add(0, System.nanoTime() - start - tokenizer.waitNanos,
+                    tokenizer.waitNanos);
+            try {
+                for (int i = 0; i < numWorkers; i++) {
+                    rawBatches.put(END_OF_INPUT);
+                }
+            } catch (InterruptedException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /** Scanner listener that only copies attribute bytes into RawBatches. */
+    private class Tokenizer implements OsmXmlScanner.Listener {
+        private RawBatch batch;
+        private int nextSeq;
+        private long waitNanos;
+
+        Tokenizer() {
+            batch = new RawBatch(nextSeq++);
+        }
+
+        @Override
+        public void node(byte[] buf, int idStart, int idEnd, int latStart, int latEnd,
+                         int lonStart, int lonEnd) throws IOException {
+            maybeFlush();
+            batch.addElement(NODE);
+            batch.addValue(buf, idStart, idEnd);
+            batch.addValue(buf, latStart, latEnd);
+            batch.addValue(buf, lonStart, lonEnd);
+        }
+
+        @Override
+        public void startWay(byte[] buf, int idStart, int idEnd) throws IOException {
+            maybeFlush();
+            batch.addElement(WAY);
+            batch.addValue(buf, idStart, idEnd);
+        }
+
+        @Override
+        public void wayNode(byte[] buf, int refStart, int refEnd) {
+            // Refs go before tags in the values, as the way's nds come first
+            batch.refCounts[batch.numElements - 1]++;
+            batch.addValue(buf, refStart, refEnd);
+            batch.size++;
+        }
+
+        @Override
+        public void wayTag(byte[] buf, int kStart, int kEnd, int vStart, int vEnd) {
+            batch.tagCounts[batch.numElements - 1]++;
+            batch.addValue(buf, kStart, kEnd);
+            batch.addValue(buf, vStart, vEnd);
+            batch.size++;
+        }
+
+        @Override
+        public void endWay() {
+        }
+
+        private void maybeFlush() throws IOException {
+            if (batch.size >= BATCH_SIZE) {
+                flush();
+            }
+        }
+
+        void flush() throws IOException {
+            if (batch.numElements == 0) {
+                return;
+            }
+            if (failure.get() != null) {
+                throw new IOException("OSM ingestion stopped after a failure");
+            }
+            long start = System.nanoTime();
+            try {
+                inFlight.acquire();
+                rawBatches.put(batch);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            waitNanos += System.nanoTime() - start;
+            tokenizeStats.add(batch.size, 0, 0);
+            batch = new RawBatch(nextSeq++);
+        }
+    }
+
+    /* ---------------- Stage 2: parse ---------------- */
+
+    private void parseBatches() {
+        OsmXmlScanner.StringCache strings = new OsmXmlScanner.StringCache();
+        long busy = 0;
+        long wait = 0;
+        long items = 0;
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                RawBatch raw = rawBatches.take();
+                long taken = System.nanoTime();
+                wait += taken - start;
+                if (raw == END_OF_INPUT) {
+                    break;
+                }
+                if (failure.get() != null) {
+                    inFlight.release();
+                    continue;
+                }
+                ParsedBatch parsed;
+                try {
+                    parsed = parse(raw, strings);
+                } catch (RuntimeException e) {
+                    fail(e);
+                    inFlight.release();
+                    continue;
+                }
+                items += raw.size;
+                long parsedAt = System.nanoTime();
+                busy += parsedAt - taken;
+                parsedBatches.put(parsed);
+                wait += System.nanoTime() - parsedAt;
+            }
+        } catch (InterruptedException e) {
+            fail(e);
+        } finally {
+            parseStats.add(items, busy, wait);
+            try {
+                parsedBatches.put(WORKER_DONE);
+            } catch (InterruptedException e) {
+                fail(e);
+            }
+        }
+    }
+
+    private static ParsedBatch parse(RawBatch raw, OsmXmlScanner.StringCache strings) {
+        ParsedBatch parsed = new ParsedBatch(raw.seq);
+        parsed.numItems = raw.size;
+        byte[] b = raw.bytes;
+        String[] tags = new String[16];
+        int s = 0;
+        for (int i = 0; i < raw.numElements; i++) {
+            if (raw.kinds[i] == NODE) {
+                parsed.addNode(OsmXmlScanner.parseLong(b, raw.start(s), raw.ends[s]),
+                        OsmXmlScanner.parseDouble(b, raw.start(s + 1), raw.ends[s + 1]),
+                        OsmXmlScanner.parseDouble(b, raw.start(s + 2), raw.ends[s + 2]));
+                s += 3;
+                continue;
+            }
+
+            long wayId = OsmXmlScanner.parseLong(b, raw.start(s), raw.ends[s]);
+            int refStart = s + 1;
+            int tagStart = refStart + raw.refCounts[i];
+            int tagEnd = tagStart + 2 * raw.tagCounts[i];
+            s = tagEnd;
+            if (tags.length < tagEnd - tagStart) {
+                tags = new String[tagEnd - tagStart];
+            }
+            boolean isRoad = false;
+            for (int t = tagStart; t < tagEnd; t += 2) {
+                String k = strings.get(b, raw.start(t), raw.ends[t]);
+                String v = strings.get(b, raw.start(t + 1), raw.ends[t + 1]);
+                tags[t - tagStart] = k;
+                tags[t - tagStart + 1] = v;
+                if (k.equals("highway") && GraphBuildingHandler.isAllowedHighway(v)) {
+                    isRoad = true;
+                }
+            }
+            if (!isRoad) {
+                // Not a road, so the builder would ignore it anyway
+                continue;
+            }
+            for (int r = refStart; r < tagStart; r++) {
+                parsed.addRef(OsmXmlScanner.parseLong(b, raw.start(r), raw.ends[r]));
+            }
+            for (int t = 0; t < tagEnd - tagStart; t += 2) {
+                parsed.addTag(tags[t], tags[t + 1]);
+            }
+            parsed.endWay(wayId);
+        }
+        return parsed;
+    }
+
+    /* ---------------- Stage 3: build ---------------- */
+
+    private void build() throws InterruptedException {
+        // Batches can come back from the workers out of order; hold early ones here
+        HashMap<Integer, ParsedBatch> pending = new HashMap<>();
+        int nextSeq = 0;
+        int workersDone = 0;
+        long busy = 0;
+        long wait = 0;
+        long items = 0;
+
+        while (workersDone < numWorkers) {
+            long start = System.nanoTime();
+            ParsedBatch batch = parsedBatches.take();
+            long taken = System.nanoTime();
+            wait += taken - start;
+            if (batch == WORKER_DONE) {
+                workersDone++;
+                continue;
+            }
+            if (failure.get() != null) {
+                inFlight.release(pending.size() + 1);
+                pending.clear();
+                continue;
+            }
+            pending.put(batch.seq, batch);
+            while ((batch = pending.remove(nextSeq)) != null) {
+                try {
+                    batch.apply(handler);
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+                items += batch.numItems;
+                inFlight.release();
+                nextSeq++;
+            }
+            busy += System.nanoTime() - taken;
+        }
+        buildStats.add(items, busy, wait);
+        if (!pending.isEmpty() && failure.get() == null) {
+            fail(new IllegalStateException("Missing batch " + nextSeq));
+        }
+    }
+}
@@ -0,0 +1,527 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Byte-level scanner for OSM XML, used instead of a general purpose SAX parser. It only
+ * understands the part of XML that OSM files use: elements with quoted attributes,
+ * comments, processing instructions, CDATA and a DOCTYPE (all skipped), and the five
+ * predefined entities plus character references in attribute values.
+ * <p>
+ * The scanner reads the input into one reusable buffer and reports the node, way, nd and
+ * tag elements to a Listener as offsets into that buffer, so nothing is allocated per
+ * element. Listeners turn the bytes they care about into numbers with parseLong and
+ * parseDouble, which read straight from the buffer, and into strings with a
+ * StringCache. HandlerListener does that to drive the usual GraphBuildingHandler
+ * callbacks; OsmPipeline copies the bytes off to its worker threads instead.
+ */
+class OsmXmlScanner {
+    private static final int INITIAL_BUFFER = 1 << 16;
+
+    /**
+     * Receives the elements the scanner finds. Each (start, end) pair is a half-open range
+     * of buf holding an attribute value exactly as written (entities not yet decoded),
+     * and is only valid until the callback returns. A missing attribute is reported as
+     * an empty range.
+     */
+    interface Listener {
+        void node(byte[] buf, int idStart, int idEnd, int latStart, int latEnd,
+                  int lonStart, int lonEnd) throws IOException;
+
+        void startWay(byte[] buf, int idStart, int idEnd) throws IOException;
+
+        void wayNode(byte[] buf, int refStart, int refEnd) throws IOException;
+
+        void wayTag(byte[] buf, int kStart, int kEnd, int vStart, int vEnd) throws IOException;
+
+        void endWay() throws IOException;
+    }
+
+    private final InputStream in;
+    private final Listener listener;
+    private byte[] buf = new byte[INITIAL_BUFFER];
+    private int pos;
+    private int limit;
+    /** Offset in the input of buf[0], for error messages. */
+    private long bufferOffset;
+    private boolean eof;
+    private boolean inWay;
+
+    /* Attribute value ranges of the element being scanned, by the attribute we want. */
+    private final int[] starts = new int[ATTRIBUTES.length];
+    private final int[] ends = new int[ATTRIBUTES.length];
+    private static final byte[][] ATTRIBUTES = {
+        bytes("id"), bytes("lat"), bytes("lon"), bytes("ref"), bytes("k"), bytes("v")};
+    private static final int ID = 0;
+    private static final int LAT = 1;
+    private static final int LON = 2;
+    private static final int REF = 3;
+    private static final int K = 4;
+    private static final int V = 5;
+
+    private static final byte[] NODE = bytes("node");
+    private static final byte[] WAY = bytes("way");
+    private static final byte[] ND = bytes("nd");
+    private static final byte[] TAG = bytes("tag");
+
+    OsmXmlScanner(InputStream in, Listener listener) {
+        this.in = in;
+        this.listener = listener;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * Scans the whole input, reporting elements to the listener as they are found.
+     *
+     * @throws IOException If reading fails or the input is not well-formed enough to scan.
+     */
+    void scan() throws IOException {
+        while (true) {
+            // Skip text up to the next tag
+            int lt = indexOf((byte) '<', pos);
+            while (lt < 0) {
+                pos = limit;
+                if (!fill()) {
+                    return;
+                }
+                lt = indexOf((byte) '<', pos);
+            }
+            pos = lt;
+
+            if (startsWith("<!--")) {
+                skipPast("-->");
+            } else if (startsWith("<![CDATA[")) {
+                skipPast("]]>");
+            } else if (startsWith("<?") || startsWith("<!")) {
+                pos = tagEnd() + 1;
+            } else {
+                int end = tagEnd();
+                element(pos + 1, end);
+                pos = end + 1;
+            }
+        }
+    }
+
+    /**
+     * Handles the element whose tag runs from buf[start] (just after the '<') to
+     * buf[end] (the '>').
+     */
+    private void element(int start, int end) throws IOException {
+        boolean closing = buf[start] == '/';
+        if (closing) {
+            start++;
+        }
+        int nameEnd = start;
+        while (nameEnd < end && !isSpace(buf[nameEnd]) && buf[nameEnd] != '/') {
+            nameEnd++;
+        }
+        boolean selfClosing = buf[end - 1] == '/';
+
+        if (closing) {
+            if (matches(start, nameEnd, WAY)) {
+                inWay = false;
+                listener.endWay();
+            }
+        } else if (matches(start, nameEnd, NODE)) {
+            inWay = false;
+            attributes(nameEnd, end);
+            listener.node(buf, starts[ID], ends[ID], starts[LAT], ends[LAT],
+                    starts[LON], ends[LON]);
+        } else if (matches(start, nameEnd, WAY)) {
+            inWay = true;
+            attributes(nameEnd, end);
+            listener.startWay(buf, starts[ID], ends[ID]);
+            if (selfClosing) {
+                inWay = false;
+                listener.endWay();
+            }
+        } else if (inWay && matches(start, nameEnd, ND)) {
+            attributes(nameEnd, end);
+            listener.wayNode(buf, starts[REF], ends[REF]);
+        } else if (inWay && matches(start, nameEnd, TAG)) {
+            attributes(nameEnd, end);
+            listener.wayTag(buf, starts[K], ends[K], starts[V], ends[V]);
+        }
+    }
+
+    /**
+     * Records the value ranges of the attributes we want between buf[from] and the '>'
+     * at buf[end].
+     */
+    private void attributes(int from, int end) throws IOException {
+        Arrays.fill(starts, 0);
+        Arrays.fill(ends, 0);
+        int i = from;
+        while (true) {
+            while (i < end && (isSpace(buf[i]) || buf[i] == '/')) {
+                i++;
+            }
+            if (i >= end) {
+                return;
+            }
+            int nameStart = i;
+            while (i < end && buf[i] != '=' && !isSpace(buf[i])) {
+                i++;
+            }
+            int nameEnd = i;
+            while (i < end && buf[i] != '"' && buf[i] != '\'') {
+                i++;
+            }
+            if (i >= end) {
+                throw error("Attribute without a quoted value", nameStart);
+            }
+            byte quote = buf[i];
+            int valueStart = i + 1;
+            i = valueStart;
+            while (i < end && buf[i] != quote) {
+                i++;
+            }
+            if (i >= end) {
+                throw error("Unterminated attribute value", valueStart);
+            }
+            for (int a = 0; a < ATTRIBUTES.length; a++) {
+                if (matches(nameStart, nameEnd, ATTRIBUTES[a])) {
+                    starts[a] = valueStart;
+                    ends[a] = i;
+                    break;
+                }
+            }
+            i++;
+        }
+    }
+
+    /**
+     * Returns the position of the '>' that closes the tag starting at pos, reading more
+     * input as needed. Quoted attribute values may contain '>'.
+     */
+    private int tagEnd() throws IOException {
+        int i = pos + 1;
+        byte quote = 0;
+        while (true) {
+            if (i >= limit) {
+                int scanned = i - pos;
+                if (!fill()) {
+                    throw error("Unexpected end of input inside a tag", pos);
+                }
+                i = pos + scanned;
+                continue;
+            }
+            byte b = buf[i];
+            if (quote != 0) {
+                if (b == quote) {
+                    quote = 0;
+                }
+            } else if (b == '"' || b == '\'') {
+                quote = b;
+            } else if (b == '>') {
+                return i;
+            }
+            i++;
+        }
+    }
+
+    private void skipPast(String terminator) throws IOException {
+        byte[] t = bytes(terminator);
+        int i = pos;
+        while (true) {
+            if (i + t.length > limit) {
+                int scanned = i - pos;
+                if (!fill()) {
+                    throw error("Unterminated " + terminator, pos);
+                }
+                i = pos + scanned;
+                continue;
+            }
+            if (matches(i, i + t.length, t)) {
+                pos = i + t.length;
+                return;
+            }
+            i++;
+        }
+    }
+
+    private boolean startsWith(String prefix) throws IOException {
+        while (limit - pos < prefix.length()) {
+            if (!fill()) {
+                return false;
+            }
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (buf[pos + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Reads more input, keeping everything from pos on. Returns false at end of input.
+     */
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            bufferOffset += pos;
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) {
+            eof = true;
+            return false;
+        }
+        limit += n;
+        return true;
+    }
+
+    private int indexOf(byte b, int from) {
+        for (int i = from; i < limit; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private boolean matches(int start, int end, byte[] word) {
+        if (end - start != word.length) {
+            return false;
+        }
+        for (int i = 0; i < word.length; i++) {
+            if (buf[start + i] != word[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSpace(byte b) {
+        return b == ' ' || b == '\n' || b == '\t' || b == '\r';
+    }
+
+    private IOException error(String message, int at) {
+        return new IOException(message + " at byte " + (bufferOffset + at));
+    }
+
+    /* ---------------- Reading values straight from the bytes ---------------- */
+
+    /** Powers of ten that are exact as doubles. */
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    /**
+     * Parses the decimal integer in buf[start, end), like Long.parseLong.
+     */
+    static long parseLong(byte[] buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        if (i == end || end - i > 18) {
+            // Empty, or long enough that it might overflow: let the JDK decide
+            return Long.parseLong(new String(buf, start, end - start, StandardCharsets.US_ASCII));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            int digit = buf[i] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Not a number: "
+                        + new String(buf, start, end - start, StandardCharsets.US_ASCII));
+            }
+            value = value * 10 + digit;
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Parses the decimal number in buf[start, end), giving exactly the same double as
+     * Double.parseDouble. Plain decimals with at most 15 significant digits, which covers
+     * OSM coordinates, are read by scaling the digits as an integer by an exact power of
+     * ten: both are exact doubles, so the single division is correctly rounded. Anything
+     * else goes through Double.parseDouble.
+     */
+    static double parseDouble(byte[] buf, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (buf[i] == '-' || buf[i] == '+')) {
+            negative = buf[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int fractionDigits = 0;
+        boolean seenPoint = false;
+        boolean simple = i < end;
+        for (; i < end; i++) {
+            byte b = buf[i];
+            if (b >= '0' && b <= '9') {
+                if (mantissa != 0 || b != '0') {
+                    digits++;
+                }
+                mantissa = mantissa * 10 + (b - '0');
+                if (seenPoint) {
+                    fractionDigits++;
+                }
+            } else if (b == '.' && !seenPoint) {
+                seenPoint = true;
+            } else {
+                simple = false;
+                break;
+            }
+        }
+        if (!simple || digits > 15 || fractionDigits >= POWERS_OF_TEN.length) {
+            return Double.parseDouble(new String(buf, start, end - start,
+                    StandardCharsets.US_ASCII));
+        }
+        double value = mantissa / POWERS_OF_TEN[fractionDigits];
+        return negative ? -value : value;
+    }
+
+    /**
+     * Decodes an attribute value: UTF-8, with XML entities and character references
+     * replaced.
+     */
+    static String decode(byte[] buf, int start, int end) {
+        int amp = -1;
+        for (int i = start; i < end; i++) {
+            if (buf[i] == '&') {
+                amp = i;
+                break;
+            }
+        }
+        String raw = new String(buf, start, end - start, StandardCharsets.UTF_8);
+        if (amp < 0) {
+            return raw;
+        }
+
+        StringBuilder sb = new StringBuilder(raw.length());
+        int i = 0;
+        while (i < raw.length()) {
+            char c = raw.charAt(i);
+            int semi = c == '&' ? raw.indexOf(';', i) : -1;
+            if (semi < 0) {
+                sb.append(c);
+                i++;
+                continue;
+            }
+            String entity = raw.substring(i + 1, semi);
+            if (entity.equals("amp")) {
+                sb.append('&');
+            } else if (entity.equals("lt")) {
+                sb.append('<');
+            } else if (entity.equals("gt")) {
+                sb.append('>');
+            } else if (entity.equals("quot")) {
+                sb.append('"');
+            } else if (entity.equals("apos")) {
+                sb.append('\'');
+            } else if (entity.startsWith("#x")) {
+                sb.appendCodePoint(Integer.parseInt(entity.substring(2), 16));
+            } else if (entity.startsWith("#")) {
+                sb.appendCodePoint(Integer.parseInt(entity.substring(1)));
+            } else {
+                sb.append(raw, i, semi + 1);
+            }
+            i = semi + 1;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Remembers the strings made from recently seen byte ranges, so the handful of tag
+     * keys and highway types that make up most of a file are only decoded once. Not
+     * thread safe; give each thread its own.
+     */
+    static class StringCache {
+        private static final int SLOTS = 1024;
+        private static final int MAX_LENGTH = 32;
+        private final byte[][] keys = new byte[SLOTS][];
+        private final String[] values = new String[SLOTS];
+
+        String get(byte[] buf, int start, int end) {
+            int length = end - start;
+            if (length > MAX_LENGTH) {
+                return decode(buf, start, end);
+            }
+            int h = length;
+            for (int i = start; i < end; i++) {
+                h = 31 * h + buf[i];
+            }
+            int slot = (h ^ (h >>> 16)) & (SLOTS - 1);
+            byte[] key = keys[slot];
+            if (key != null && key.length == length) {
+                boolean same = true;
+                for (int i = 0; i < length; i++) {
+                    if (key[i] != buf[start + i]) {
+                        same = false;
+                        break;
+                    }
+                }
+                if (same) {
+                    return values[slot];
+                }
+            }
+            String value = decode(buf, start, end);
+            keys[slot] = Arrays.copyOfRange(buf, start, end);
+            values[slot] = value;
+            return value;
+        }
+    }
+
+    /**
+     * Listener that parses the values and feeds them to a GraphBuildingHandler, for
+     * reading a file on a single thread.
+     */
+    static class HandlerListener implements Listener {
+        private final GraphBuildingHandler handler;
+        private final StringCache strings = new StringCache();
+
+        HandlerListener(GraphBuildingHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void node(byte[] buf, int idStart, int idEnd, int latStart, int latEnd,
+                         int lonStart, int lonEnd) {
+            handler.node(parseLong(buf, idStart, idEnd), parseDouble(buf, latStart, latEnd),
+                    parseDouble(buf, lonStart, lonEnd));
+        }
+
+        @Override
+        public void startWay(byte[] buf, int idStart, int idEnd) {
+            handler.startWay(parseLong(buf, idStart, idEnd));
+        }
+
+        @Override
+        public void wayNode(byte[] buf, int refStart, int refEnd) {
+            handler.wayNode(parseLong(buf, refStart, refEnd));
+        }
+
+        @Override
+        public void wayTag(byte[] buf, int kStart, int kEnd, int vStart, int vEnd) {
+            handler.wayTag(strings.get(buf, kStart, kEnd), strings.get(buf, vStart, vEnd));
+        }
+
+        @Override
+        public void endWay() {
+            handler.endWay();
+        }
+    }
+}
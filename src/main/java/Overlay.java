@@ -0,0 +1,303 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The overlay graph of customizable route planning: a CellPartition of a GraphDB
+ * customized with one set of edge weights. For every cell, at every level, it holds a
+ * clique: the best distance inside the cell from each of its boundary vertices to each
+ * other one.
+ * <p>
+ * Customization works up from the lowest level. A level 0 clique comes from a Dijkstra
+ * search inside the cell from each boundary vertex; a higher level's from searches over
+ * the level below, along the cliques of the cells inside it and the edges between them.
+ * The cells of a level are independent of each other, so they are customized on
+ * several threads (WORKERS_PROPERTY). Nothing about the partition changes, so new
+ * weights, say with some roads closed or rush hour speeds, take one customization.
+ * <p>
+ * A query is a Dijkstra search that only goes into detail near its ends. Inside the
+ * lowest level cells of the start and destination it follows the edges of the graph;
+ * elsewhere it uses the highest level whose cell holds neither end, crossing that cell
+ * in one step of its clique. Those steps are unpacked into edges afterwards by searching
+ * the cell again, one level down at a time.
+ */
+class Overlay {
+    /**
+     * System property for the number of threads that customize cells. Defaults to the
+     * number of cores.
+     */
+    static final String WORKERS_PROPERTY = "bearmaps.crp.workers";
+
+    final CellPartition partition;
+    final GraphDB g;
+    /* The weight of each edge of g. */
+    final float[] weights;
+    /* cliques[l][partition.cliqueOffsets[l][c] + i * k + j] is the best distance inside
+     * cell c of level l from its boundary vertex i to its boundary vertex j, where k is
+     * its number of boundary vertices; infinity if there is no way inside the cell. */
+    final double[][] cliques;
+
+    private Overlay(CellPartition partition, GraphDB g, float[] weights, double[][] cliques) {
+        this.partition = partition;
+        this.g = g;
+        this.weights = weights;
+        this.cliques = cliques;
+    }
+
+    /**
+     * Computes the cliques of every cell for routing on g with the given edge weights,
+     * printing how it went if GraphDB.VERBOSE_PROPERTY is set. See CellPartition.customize.
+     */
+    static Overlay customize(CellPartition partition, GraphDB g, float[] weights) {
+        long start = System.nanoTime();
+        int levels = partition.levels();
+        double[][] cliques = new double[levels][];
+        for (int l = 0; l < levels; l++) {
+            cliques[l] = new double[partition.cliqueOffsets[l][partition.cells(l)]];
+        }
+        Overlay overlay = new Overlay(partition, g, weights, cliques);
+        int workers = Math.max(1, Integer.getInteger(WORKERS_PROPERTY,
+                Runtime.getRuntime().availableProcessors()));
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        try {
+            // A level's cliques are built from the ones below, so one level at a time
+            for (int l = 0; l < levels; l++) {
+                int level = l;
+                List<Future<?>> cells = new ArrayList<>();
+                for (int c = 0; c < partition.cells(l); c++) {
+                    int cell = c;
+                    cells.add(pool.submit(() -> overlay.customizeCell(level, cell)));
+                }
+                for (Future<?> cell : cells) {
+                    cell.get();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while customizing", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Customizing failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        long entries = 0;
+        for (double[] clique : cliques) {
+            entries += clique.length;
+        }
+        if (GraphDB.verbose()) {
+            System.out.println(String.format("Customized %d levels of cliques (%d distances, "
+                            + "%.1f MB) on %d threads in %.1f ms", levels, entries,
+                    8 * entries / 1e6, workers, (System.nanoTime() - start) / 1e6));
+        }
+        return overlay;
+    }
+
+    /* Fills in the clique of one cell, searching inside it from each boundary vertex. */
+    private void customizeCell(int level, int cell) {
+        int first = partition.boundaryOffsets[level][cell];
+        int k = partition.boundaryOffsets[level][cell + 1] - first;
+        int[] boundary = partition.boundaryVertices[level];
+        int clique = partition.cliqueOffsets[level][cell];
+        for (int i = 0; i < k; i++) {
+            try (SearchWorkspace workspace = SearchWorkspace.borrow(g.V())) {
+                searchCell(level, cell, boundary[first + i], -1, workspace);
+                for (int j = 0; j < k; j++) {
+                    cliques[level][clique + i * k + j] = workspace.dist(boundary[first + j]);
+                }
+            }
+        }
+    }
+
+    /* Dijkstra from source inside the given cell of the given level, over the level
+     * below (the edges of the graph for level 0), until target is settled or, for target
+     * -1, everything in the cell that can be reached is. */
+    private void searchCell(int level, int cell, int source, int target,
+                            SearchWorkspace workspace) {
+        VertexHeap fringe = workspace.heap;
+        workspace.reach(source, 0, -1);
+        fringe.push(source, 0);
+        while (!fringe.isEmpty()) {
+            int v = fringe.pop();
+            if (v == target) {
+                return;
+            }
+            relax(v, workspace.dist(v), level - 1, level, cell, workspace);
+        }
+    }
+
+    /* Relaxes the arcs of u, at distance d, at the given level: for level -1 the edges of
+     * the graph, otherwise u's clique in its cell at that level and the edges leaving that
+     * cell. If withinLevel isn't -1, only vertices in cell within of that level are
+     * reached. */
+    private void relax(int u, double d, int level, int withinLevel, int within,
+                       SearchWorkspace workspace) {
+        VertexHeap fringe = workspace.heap;
+        int cell = -1;
+        if (level >= 0) {
+            cell = partition.cell(level, u);
+            int i = partition.boundaryIndex[level][u];
+            if (i >= 0) {
+                int first = partition.boundaryOffsets[level][cell];
+                int k = partition.boundaryOffsets[level][cell + 1] - first;
+                int row = partition.cliqueOffsets[level][cell] + i * k;
+                int[] boundary = partition.boundaryVertices[level];
+                double[] clique = cliques[level];
+                for (int j = 0; j < k; j++) {
+                    int x = boundary[first + j];
+                    double dx = d + clique[row + j];
+                    if (dx < workspace.dist(x)) {
+                        workspace.reach(x, dx, u);
+                        fringe.push(x, dx);
+                    }
+                }
+            }
+        }
+        for (int e = g.edgeStart(u); e < g.edgeEnd(u); e++) {
+            int w = g.edgeTarget(e);
+            if (level >= 0 && partition.cell(level, w) == cell) {
+                // The clique already covers the ways through the cell
+                continue;
+            }
+            if (withinLevel >= 0 && partition.cell(withinLevel, w) != within) {
+                continue;
+            }
+            double dw = d + weights[e];
+            if (dw < workspace.dist(w)) {
+                workspace.reach(w, dw, u);
+                fringe.push(w, dw);
+            }
+        }
+    }
+
+    /**
+     * Finds the best route from any of the sources to any of the targets by the
+     * customized weights, where source i starts with sourceDist[i] already travelled and
+     * finishing at target j costs an extra targetDist[j], as for Router. If stats isn't
+     * null, records in it how many vertices the search settled (not counting unpacking).
+     *
+     * @return The vertices of the route, from a source to a target, or an empty array if
+     * no target can be reached.
+     */
+    int[] route(int[] sources, double[] sourceDist, int[] targets, double[] targetDist,
+                Router.SearchStats stats) {
+        // The cells holding an end, at each level
+        int[][] endCells = new int[partition.levels()][sources.length + targets.length];
+        for (int l = 0; l < partition.levels(); l++) {
+            for (int i = 0; i < sources.length; i++) {
+                endCells[l][i] = partition.cell(l, sources[i]);
+            }
+            for (int j = 0; j < targets.length; j++) {
+                endCells[l][sources.length + j] = partition.cell(l, targets[j]);
+            }
+        }
+
+        double best = Double.POSITIVE_INFINITY;
+        int bestTarget = -1;
+        int settled = 0;
+        int[] steps;
+        try (SearchWorkspace workspace = SearchWorkspace.borrow(g.V())) {
+            VertexHeap fringe = workspace.heap;
+            for (int i = 0; i < sources.length; i++) {
+                if (sourceDist[i] < workspace.dist(sources[i])) {
+                    workspace.reach(sources[i], sourceDist[i], -1);
+                    fringe.push(sources[i], sourceDist[i]);
+                }
+            }
+            while (!fringe.isEmpty() && fringe.minKey() < best) {
+                int v = fringe.pop();
+                settled++;
+                double d = workspace.dist(v);
+                for (int j = 0; j < targets.length; j++) {
+                    if (v == targets[j] && d + targetDist[j] < best) {
+                        best = d + targetDist[j];
+                        bestTarget = v;
+                    }
+                }
+                relax(v, d, queryLevel(v, endCells), -1, -1, workspace);
+            }
+            if (stats != null) {
+                stats.settled = settled;
+            }
+            if (bestTarget < 0) {
+                System.out.println("No valid path to that destination; try flying");
+                return new int[0];
+            }
+            int length = 0;
+            for (int v = bestTarget; v != -1; v = workspace.parent(v)) {
+                length++;
+            }
+            steps = new int[length];
+            for (int v = bestTarget; v != -1; v = workspace.parent(v)) {
+                steps[--length] = v;
+            }
+        }
+
+        Path path = new Path();
+        path.add(steps[0]);
+        for (int i = 1; i < steps.length; i++) {
+            unpack(steps[i - 1], steps[i], queryLevel(steps[i - 1], endCells), path);
+        }
+        return path.toArray();
+    }
+
+    /* The highest level at which v's cell holds no end of the query, or -1 if there is
+     * none. */
+    private int queryLevel(int v, int[][] endCells) {
+        for (int l = partition.levels() - 1; l >= 0; l--) {
+            int cell = partition.cell(l, v);
+            boolean holdsEnd = false;
+            for (int endCell : endCells[l]) {
+                holdsEnd |= endCell == cell;
+            }
+            if (!holdsEnd) {
+                return l;
+            }
+        }
+        return -1;
+    }
+
+    /* Adds the vertices after u of a step from u to v that was taken at the given level:
+     * just v for an edge of the graph, the route through the cell for a clique. */
+    private void unpack(int u, int v, int level, Path path) {
+        if (level < 0 || partition.cell(level, u) != partition.cell(level, v)) {
+            path.add(v);
+            return;
+        }
+        int[] steps;
+        try (SearchWorkspace workspace = SearchWorkspace.borrow(g.V())) {
+            searchCell(level, partition.cell(level, u), u, v, workspace);
+            int length = 0;
+            for (int x = v; x != -1; x = workspace.parent(x)) {
+                length++;
+            }
+            steps = new int[length];
+            for (int x = v; x != -1; x = workspace.parent(x)) {
+                steps[--length] = x;
+            }
+        }
+        for (int i = 1; i < steps.length; i++) {
+            unpack(steps[i - 1], steps[i], level - 1, path);
+        }
+    }
+
+    /* A growable list of vertices, for unpacking a route into. */
+    private static class Path {
+        private int[] vertices = new int[64];
+        private int size;
+
+        void add(int v) {
+            if (size == vertices.length) {
+                vertices = Arrays.copyOf(vertices, 2 * size);
+            }
+            vertices[size++] = v;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(vertices, size);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+/**
+ * A point snapped onto a road segment rather than onto an intersection. It sits on the
+ * edge between dense vertices u and v of a GraphDB, a fraction t of the way from u to v,
+ * and is not a vertex of the graph itself. Router seeds a search from both u and v (or
+ * finishes it at either of them), charging the part of the edge between the phantom and
+ * that endpoint.
+ */
+class PhantomNode {
+    /** Endpoints of the edge the point was snapped onto. */
+    final int u;
+    final int v;
+    /** How far along the edge the point is, 0 at u and 1 at v. */
+    final double t;
+    /** Coordinates of the snapped point. */
+    final double lat;
+    final double lon;
+    /** Great-circle distance in miles from the snapped point to u and to v. */
+    final double distToU;
+    final double distToV;
+    /** Great-circle distance in miles from the original query point to the snapped point. */
+    final double snapDistance;
+
+    PhantomNode(GraphDB g, int u, int v, double t, double queryLon, double queryLat) {
+        this.u = u;
+        this.v = v;
+        this.t = t;
+        this.lat = g.latAt(u) + t * (g.latAt(v) - g.latAt(u));
+        this.lon = g.lonAt(u) + t * (g.lonAt(v) - g.lonAt(u));
+        this.distToU = GraphDB.distance(g.lonAt(u), g.latAt(u), lon, lat);
+        this.distToV = GraphDB.distance(lon, lat, g.lonAt(v), g.latAt(v));
+        this.snapDistance = GraphDB.distance(queryLon, queryLat, lon, lat);
+    }
+
+    /**
+     * Returns true if this point and other lie on the same (undirected) edge.
+     */
+    boolean sameEdge(PhantomNode other) {
+        return (u == other.u && v == other.v) || (u == other.v && v == other.u);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("PhantomNode(%d-%d, t=%.3f)", u, v, t);
+    }
+}
@@ -0,0 +1,177 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * The file framing of the routing preprocessing that is built offline for one Metric and
+ * attached to a graph by GraphDB.load: ContractionHierarchy, Landmarks and HubLabels.
+ * Each of them writes and reads its own payload; this puts it in a file it can trust.
+ * <p>
+ * Layout (big endian): a fixed size header with the format's magic number and version,
+ * the metric ordinal, the vertex count and fingerprint (see GraphDB.fingerprint) of the
+ * graph the payload was built for, the payload length and a CRC32 of the payload. Then
+ * the payload. Files are written to a temporary file first and moved into place, like a
+ * GraphSnapshot, so a server starting up at the same time never sees half of one.
+ */
+class PreprocessedFile {
+    private static final int HEADER_BYTES = 4 + 4 + 4 + 4 + 8 + 8 + 8;
+
+    /** Writes the payload of a file. */
+    interface Payload {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    /* The payload of a file that passed its checks, positioned at its start, and the
+     * fingerprint of the graph it was built for. */
+    final ByteBuffer payload;
+    final long graphFingerprint;
+
+    private PreprocessedFile(ByteBuffer payload, long graphFingerprint) {
+        this.payload = payload;
+        this.graphFingerprint = graphFingerprint;
+    }
+
+    /**
+     * Writes payload to file, framed for the given format and for the graph it was built
+     * for.
+     *
+     * @throws IOException If the file could not be written.
+     */
+    static void write(File file, int magic, int version, Metric metric, int vertices,
+                      long graphFingerprint, Payload payload) throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(0);
+            raf.seek(HEADER_BYTES);
+
+            CRC32 crc = new CRC32();
+            DataOutputStream out = new DataOutputStream(new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(raf.getChannel()), 1 << 16),
+                    crc));
+            payload.write(out);
+            out.flush();
+            long payloadBytes = raf.length() - HEADER_BYTES;
+
+            raf.seek(0);
+            raf.writeInt(magic);
+            raf.writeInt(version);
+            raf.writeInt(metric.ordinal());
+            raf.writeInt(vertices);
+            raf.writeLong(graphFingerprint);
+            raf.writeLong(payloadBytes);
+            raf.writeLong(crc.getValue());
+        }
+        Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Maps a file written by write and checks it was written in the given format, for
+     * routing on g by metric. The graph's fingerprint is only worked out once the cheaper
+     * checks pass.
+     *
+     * @return The file, or null if it is missing, of another format or version, fails its
+     * checksum, or was built for another metric or graph.
+     * @throws IOException If the file exists but could not be read.
+     */
+    static PreprocessedFile read(File file, int magic, int version, GraphDB g, Metric metric)
+            throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        try (FileChannel channel = FileChannel.open(file.toPath())) {
+            if (channel.size() < HEADER_BYTES) {
+                return null;
+            }
+            // The mapping stays valid once the channel is closed
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != magic || buf.getInt() != version
+                    || buf.getInt() != metric.ordinal() || buf.getInt() != g.V()) {
+                return null;
+            }
+            long graphFingerprint = buf.getLong();
+            long payloadBytes = buf.getLong();
+            long checksum = buf.getLong();
+            if (payloadBytes != channel.size() - HEADER_BYTES
+                    || graphFingerprint != g.fingerprint(metric)) {
+                return null;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(buf.duplicate());
+            if (crc.getValue() != checksum) {
+                return null;
+            }
+            return new PreprocessedFile(buf.slice(), graphFingerprint);
+        }
+    }
+
+    static void writeInts(DataOutputStream out, int[] values) throws IOException {
+        for (int x : values) {
+            out.writeInt(x);
+        }
+    }
+
+    static void writeDoubles(DataOutputStream out, double[] values) throws IOException {
+        for (double x : values) {
+            out.writeDouble(x);
+        }
+    }
+
+    static void writeChars(DataOutputStream out, char[] values) throws IOException {
+        for (char x : values) {
+            out.writeChar(x);
+        }
+    }
+
+    /* Bulk reads out of a payload, each moving buf past what it read. */
+
+    static int[] readInts(ByteBuffer buf, int count) {
+        int[] values = new int[count];
+        buf.asIntBuffer().get(values);
+        buf.position(buf.position() + 4 * count);
+        return values;
+    }
+
+    static double[] readDoubles(ByteBuffer buf, int count) {
+        double[] values = new double[count];
+        buf.asDoubleBuffer().get(values);
+        buf.position(buf.position() + 8 * count);
+        return values;
+    }
+
+    static char[] readChars(ByteBuffer buf, int count) {
+        char[] values = new char[count];
+        buf.asCharBuffer().get(values);
+        buf.position(buf.position() + 2 * count);
+        return values;
+    }
+
+    /**
+     * Returns the metrics named by args from index from on, for the mains that build
+     * these files; every metric if none are named.
+     */
+    static List<Metric> metrics(String[] args, int from) {
+        List<Metric> metrics = new ArrayList<>();
+        for (int i = from; i < args.length; i++) {
+            metrics.add(Metric.valueOf(args[i].toUpperCase(Locale.ROOT)));
+        }
+        if (metrics.isEmpty()) {
+            metrics.addAll(Arrays.asList(Metric.values()));
+        }
+        return metrics;
+    }
+}
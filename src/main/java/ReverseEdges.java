@@ -0,0 +1,35 @@
+import java.util.Arrays;
+
+/**
+ * The edges of a GraphDB turned around, for searches that run backward from the
+ * destination. In CSR form like the graph's own: the edges into vertex v are
+ * edges[offsets[v]] up to (but not including) edges[offsets[v + 1]], as edge numbers of
+ * the graph, coming from sources at the same positions. Since they are edge numbers,
+ * the weights by any metric are read from the graph (GraphDB.weight).
+ */
+class ReverseEdges {
+    final int[] offsets;
+    final int[] sources;
+    final int[] edges;
+
+    ReverseEdges(GraphDB g) {
+        int n = g.V();
+        offsets = new int[n + 1];
+        for (int e = 0; e < g.E(); e++) {
+            offsets[g.edgeTarget(e) + 1]++;
+        }
+        for (int v = 0; v < n; v++) {
+            offsets[v + 1] += offsets[v];
+        }
+        sources = new int[g.E()];
+        edges = new int[g.E()];
+        int[] next = Arrays.copyOf(offsets, n);
+        for (int v = 0; v < n; v++) {
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                int i = next[g.edgeTarget(e)]++;
+                sources[i] = v;
+                edges[i] = e;
+            }
+        }
+    }
+}
@@ -1,8 +1,8 @@
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.ArrayList;
 import java.util.LinkedList;
-import java.util.PriorityQueue;
-import java.util.HashMap;
+import java.util.NoSuchElementException;
 import java.util.List;
 import java.util.Objects;
 
@@ -28,116 +28,442 @@ public class Router {
     // Start by implementing Dijkstra's Algorithm
     public static List<Long> shortestPath(GraphDB g, double stlon, double stlat,
                                           double destlon, double destlat) {
+        return toIds(g, shortestPathVertices(g, stlon, stlat, destlon, destlat));
+    }
+
+    /**
+     * Same as shortestPath, but returns the route as dense vertex numbers of g
+     * (see GraphDB.index) so callers that go on to look up coordinates can skip
+     * the OSM id translation.
+     *
+     * @return The dense vertex numbers in the order visited on the shortest path, or an
+     * empty array if the destination cannot be reached.
+     */
+    static int[] shortestPathVertices(GraphDB g, double stlon, double stlat,
+                                      double destlon, double destlat) {
+        return shortestPathVertices(g, Metric.DISTANCE, stlon, stlat, destlon, destlat);
+    }
+
+    /**
+     * Same as shortestPathVertices, but finds the best route by the given metric, such as
+     * Metric.TRAVEL_TIME for the fastest route instead of the shortest.
+     */
+    static int[] shortestPathVertices(GraphDB g, Metric metric, double stlon, double stlat,
+                                      double destlon, double destlat) {
+        return shortestPathVertices(g, metric, SearchMode.UNIDIRECTIONAL,
+                stlon, stlat, destlon, destlat, null);
+    }
+
+    /**
+     * Same as shortestPathVertices, but searching the given way, and if stats isn't null,
+     * recording in it how much searching it took.
+     */
+    static int[] shortestPathVertices(GraphDB g, Metric metric, SearchMode mode,
+                                      double stlon, double stlat, double destlon,
+                                      double destlat, SearchStats stats) {
+        return shortestPathVertices(g, metric, mode, g.closestIndex(stlon, stlat),
+                g.closestIndex(destlon, destlat), stats);
+    }
+
+    /**
+     * Same as shortestPathVertices, but between two vertices given by their dense
+     * numbers in g.
+     */
+    static int[] shortestPathVertices(GraphDB g, Metric metric, SearchMode mode,
+                                      int startID, int endID, SearchStats stats) {
+        return search(g, metric, mode, new int[]{startID}, new double[]{0},
+                new int[]{endID}, new double[]{0}, g.lonAt(startID), g.latAt(startID),
+                g.lonAt(endID), g.latAt(endID), stats);
+    }
+
+    /**
+     * Return the shortest path between two points that have been snapped onto roads
+     * (see GraphDB.snapToEdge) rather than onto intersections. The search starts from
+     * both ends of the start point's edge and may finish at either end of the
+     * destination's edge, each charged the part of the edge it skips.
+     *
+     * @param g     The graph to use.
+     * @param start The snapped start location.
+     * @param end   The snapped destination location.
+     * @return A list of node id's in the order visited on the shortest path. The snapped
+     * points themselves are not nodes, so the list starts and ends at the intersections
+     * next to them. If both points are on the same road segment and the best route is
+     * straight along it, the list is that segment's two ends in the direction of travel.
+     */
+    static List<Long> shortestPath(GraphDB g, PhantomNode start, PhantomNode end) {
+        return toIds(g, shortestPathVertices(g, start, end));
+    }
+
+    /**
+     * Same as shortestPath(g, start, end), but returns dense vertex numbers of g.
+     */
+    static int[] shortestPathVertices(GraphDB g, PhantomNode start, PhantomNode end) {
+        return shortestPathVertices(g, Metric.DISTANCE, start, end);
+    }
+
+    /**
+     * Same as shortestPathVertices(g, start, end), but by the given metric. The parts of
+     * the snapped edges are charged at their edge's rate.
+     */
+    static int[] shortestPathVertices(GraphDB g, Metric metric, PhantomNode start,
+                                      PhantomNode end) {
+        return shortestPathVertices(g, metric, SearchMode.UNIDIRECTIONAL, start, end, null);
+    }
+
+    /**
+     * Same as shortestPathVertices(g, metric, start, end), but searching the given way,
+     * and if stats isn't null, recording in it how much searching it took.
+     */
+    static int[] shortestPathVertices(GraphDB g, Metric metric, SearchMode mode,
+                                      PhantomNode start, PhantomNode end, SearchStats stats) {
+        if (start.sameEdge(end)) {
+            // Going straight along the shared segment can't be beaten, the detour
+            // through either end has to come back along the same segment
+            if (stats != null) {
+                stats.settled = 0;
+            }
+            return start.t <= end.t ? new int[]{start.u, start.v} : new int[]{start.v, start.u};
+        }
+        int startEdge = g.edgeBetween(start.u, start.v);
+        int endEdge = g.edgeBetween(end.u, end.v);
+        return search(g, metric, mode, new int[]{start.u, start.v},
+                new double[]{metric.weight(g, startEdge, start.distToU),
+                    metric.weight(g, startEdge, start.distToV)},
+                new int[]{end.u, end.v},
+                new double[]{metric.weight(g, endEdge, end.distToU),
+                    metric.weight(g, endEdge, end.distToV)},
+                start.lon, start.lat, end.lon, end.lat, stats);
+    }
+
+    private static List<Long> toIds(GraphDB g, int[] path) {
+        // Only the public output goes back to OSM ids
+        LinkedList<Long> optimalPath = new LinkedList<>();
+        for (int v : path) {
+            optimalPath.add(g.id(v));
+        }
+        return optimalPath;
+    }
+
+    /**
+     * A* by the given metric from any of the sources to any of the targets, reading the
+     * edge weights GraphDB precomputed for it. Source i starts with sourceDist[i] already
+     * travelled, and finishing at target j costs an extra targetDist[j]. The heuristic
+     * is the metric's lower bound for the great-circle distance to (goalLon, goalLat),
+     * which must be no more than the cost from there to any target plus its targetDist,
+     * tightened by the graph's Landmarks in LANDMARKS mode; a bidirectional search
+     * likewise needs (startLon, startLat) for the way back.
+     *
+     * @return The dense vertices of the best route, from a source to a target, or an
+     * empty array if no target can be reached.
+     */
+    private static int[] search(GraphDB g, Metric metric, SearchMode mode,
+                                int[] sources, double[] sourceDist,
+                                int[] targets, double[] targetDist,
+                                double startLon, double startLat,
+                                double goalLon, double goalLat, SearchStats stats) {
         // @Source JHug's approach 2 to A* was extremely helpful in building this out!
         // Also the slides on Dijsktra's pseudocode.
 
-        long startID = g.closest(stlon, stlat);
-        long endID = g.closest(destlon, destlat);
-
-        // Needed to create a special class, NodeComparable, such that
-        // we could use a PQ implementation w/ distance as comparable
-        // --much like in HW 4
-        PriorityQueue<NodeComparable> fringe = new PriorityQueue<>();
-        fringe.add(new NodeComparable(startID, 0));
+        // The workspace tracks distance from the start to each vertex (infinity means it's
+        // never been checked) and the vertex we got there from, same idea as edgeTo.
+        // Nothing in it is allocated or cleared per search.
+        if (mode == SearchMode.CONTRACTION_HIERARCHY) {
+            ContractionHierarchy ch = g.contractionHierarchy(metric);
+            if (ch != null) {
+                return ch.route(sources, sourceDist, targets, targetDist, stats);
+            }
+            mode = SearchMode.BIDIRECTIONAL;
+        }
+        if (mode == SearchMode.OVERLAY) {
+            return g.overlay(metric).route(sources, sourceDist, targets, targetDist, stats);
+        }
+        Landmarks landmarks = null;
+        if (mode == SearchMode.LANDMARKS) {
+            landmarks = g.landmarks(metric);
+        }
+        if (mode == SearchMode.BIDIRECTIONAL) {
+            try (SearchWorkspace forward = SearchWorkspace.borrow(g.V());
+                 SearchWorkspace backward = SearchWorkspace.borrow(g.V())) {
+                return bidirectionalSearch(g, metric, sources, sourceDist, targets,
+                        targetDist, startLon, startLat, goalLon, goalLat, stats,
+                        forward, backward);
+            }
+        }
+        try (SearchWorkspace workspace = SearchWorkspace.borrow(g.V())) {
+            return search(g, metric, sources, sourceDist, targets, targetDist,
+                    goalLon, goalLat, landmarks, stats, workspace);
+        }
+    }
 
-        // Same idea as edgeTo
-        HashMap<Long, Long> bestPath = new HashMap<>();
+    private static int[] search(GraphDB g, Metric metric, int[] sources, double[] sourceDist,
+                                int[] targets, double[] targetDist,
+                                double goalLon, double goalLat, Landmarks landmarks,
+                                SearchStats stats, SearchWorkspace workspace) {
+        // Keyed by distance so far plus heuristic; a better route to a vertex already in
+        // the fringe lowers its key instead of adding it again
+        VertexHeap fringe = workspace.heap;
+        float[] weight = g.weights(metric);
+        for (int i = 0; i < sources.length; i++) {
+            int s = sources[i];
+            if (sourceDist[i] < workspace.dist(s)) {
+                workspace.reach(s, sourceDist[i], -1);
+                fringe.push(s, sourceDist[i] + estimate(g, metric, s, targets, targetDist,
+                        goalLon, goalLat, landmarks));
+            }
+        }
 
-        // Tracks distance from starting node to where we are
-        // in algorithm iteration.
-        HashMap<Long, Double> distTo = new HashMap<>();
-        distTo.put(startID, 0.0);
+        // Best complete route found so far, and the target it finishes at
+        double best = Double.POSITIVE_INFINITY;
+        int bestTarget = -1;
+        int settled = 0;
 
         // A* Algorithm implementation:
-        while (true) {
-            // Get smallest element in fringe
-            NodeComparable v = fringe.peek();
-
+        while (!fringe.isEmpty()) {
+            // Get smallest element in fringe; once nothing left can beat the best
+            // route we have, we're done
+            double key = fringe.minKey();
+            if (key >= best) {
+                break;
+            }
+            int v = fringe.pop();
+            settled++;
+            double distToV = workspace.dist(v);
             // Iterate through its adjacent neighbours
-            for (long w : g.adj.get(v.id)) {
-                double distanceFromStart = distTo.get(v.id)
-                        + distance(g.lat(v.id), g.lon(v.id), g.lat(w), g.lon(w));
-//                System.out.println(distTo.get(w));
-
-                // Check if the distance from start is better OR if there is a null value (meaning
-                // it's never been checked)
-                if ((distTo.get(w) == null) || (distanceFromStart < distTo.get(w))) {
-                    distTo.put(w, distanceFromStart);
-//                    System.out.println(v.id);
-                    bestPath.put(w, v.id);
-
-                    // don't forget to add heuristic (aka g.distance(endID, w))
-                    fringe.add(new NodeComparable(w, distanceFromStart + g.distance(endID, w)));
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                int w = g.edgeTarget(e);
+                double distanceFromStart = distToV
+                        + (weight != null ? weight[e] : g.weight(metric, e));
+
+                // Check if the distance from start is better
+                if (distanceFromStart < workspace.dist(w)) {
+                    workspace.reach(w, distanceFromStart, v);
+
+                    // don't forget to add heuristic (aka distance from end to w)
+                    fringe.push(w, distanceFromStart + estimate(g, metric, w, targets,
+                            targetDist, goalLon, goalLat, landmarks));
                 }
             }
-            // Remove node if we have considered it
-            // NOTE: there are some roads that do NOT
-            // connect to others so we must handle it w catch-try
-            try {
-                fringe.remove();
-            } catch (NullPointerException e) {
-                System.out.println("No valid path to that destination; try flying");
-            }
 
             // End iteration if we hit the end
-            if (v.id == endID) {
+            for (int i = 0; i < targets.length; i++) {
+                if (v == targets[i] && distToV + targetDist[i] < best) {
+                    best = distToV + targetDist[i];
+                    bestTarget = v;
+                }
+            }
+            if (key >= best) {
                 break;
             }
-            // remove was here (in case weird error but its ok i think)
+        }
+        if (stats != null) {
+            stats.settled = settled;
+        }
+
+        if (bestTarget < 0) {
+            // Some roads do NOT connect to others
+            System.out.println("No valid path to that destination; try flying");
+            return new int[0];
         }
 
         // Now need to go backwards through our best list until
         // we hit the starting node. This gives us desired path
-        LinkedList<Long> optimalPath = new LinkedList<>();
-        optimalPath.addFirst(endID);
-        long previousNode = bestPath.get(endID);
-        while (previousNode != startID) {
-            optimalPath.addFirst(previousNode);
-            previousNode = bestPath.get(previousNode);
+        int length = 0;
+        for (int v = bestTarget; v != -1; v = workspace.parent(v)) {
+            length++;
+        }
+        int[] optimalPath = new int[length];
+        for (int v = bestTarget; v != -1; v = workspace.parent(v)) {
+            length--;
+            optimalPath[length] = v;
         }
-        optimalPath.addFirst(startID);
         return optimalPath;
     }
 
+    /**
+     * The same search as A* from both ends at once: forward from the sources, and
+     * backward from the targets along edges in reverse, meeting somewhere in the middle.
+     * <p>
+     * Each side steers by the average of the two heuristics: forward by
+     * p(v) = (toGoal(v) - fromStart(v)) / 2 and backward by -p(v), where toGoal and
+     * fromStart are the metric's lower bounds for the great-circle distances to the goal
+     * and from the start. Unlike using each side's own heuristic, these are consistent
+     * with each other (they sum to zero), so as with plain A* a vertex is final once it
+     * is settled, and the search can stop as soon as the smallest keys of the two fringes
+     * add up to no less than the best route found so far: any better route would have
+     * to pass through a vertex that neither side has settled, and would cost at least
+     * that much. Whichever side has the smaller fringe goes next.
+     */
+    private static int[] bidirectionalSearch(GraphDB g, Metric metric,
+                                             int[] sources, double[] sourceDist,
+                                             int[] targets, double[] targetDist,
+                                             double startLon, double startLat,
+                                             double goalLon, double goalLat,
+                                             SearchStats stats, SearchWorkspace forward,
+                                             SearchWorkspace backward) {
+        float[] weight = g.weights(metric);
+
+        // Best complete route found so far, and the vertex the two sides meet at on it
+        double best = Double.POSITIVE_INFINITY;
+        int meet = -1;
+        for (int i = 0; i < sources.length; i++) {
+            int s = sources[i];
+            if (sourceDist[i] < forward.dist(s)) {
+                forward.reach(s, sourceDist[i], -1);
+                forward.heap.push(s, sourceDist[i]
+                        + potential(g, metric, s, startLon, startLat, goalLon, goalLat));
+            }
+        }
+        for (int i = 0; i < targets.length; i++) {
+            int t = targets[i];
+            if (targetDist[i] < backward.dist(t)) {
+                backward.reach(t, targetDist[i], -1);
+                backward.heap.push(t, targetDist[i]
+                        - potential(g, metric, t, startLon, startLat, goalLon, goalLat));
+                if (forward.dist(t) + targetDist[i] < best) {
+                    best = forward.dist(t) + targetDist[i];
+                    meet = t;
+                }
+            }
+        }
+
+        int settled = 0;
+        while (!forward.heap.isEmpty() && !backward.heap.isEmpty()
+                && forward.heap.minKey() + backward.heap.minKey() < best) {
+            boolean isForward = forward.heap.size() <= backward.heap.size();
+            SearchWorkspace side = isForward ? forward : backward;
+            SearchWorkspace other = isForward ? backward : forward;
+            int v = side.heap.pop();
+            settled++;
+            double distToV = side.dist(v);
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                int w = g.edgeTarget(e);
+                double edgeWeight = isForward
+                        ? (weight != null ? weight[e] : g.weight(metric, e))
+                        : reverseWeight(g, metric, weight, v, w);
+                double distToW = distToV + edgeWeight;
+                if (distToW < side.dist(w)) {
+                    side.reach(w, distToW, v);
+                    double p = potential(g, metric, w, startLon, startLat, goalLon, goalLat);
+                    side.heap.push(w, distToW + (isForward ? p : -p));
+                    if (distToW + other.dist(w) < best) {
+                        best = distToW + other.dist(w);
+                        meet = w;
+                    }
+                }
+            }
+        }
+        if (stats != null) {
+            stats.settled = settled;
+        }
 
-    /* Need this for our PQ to actually work with the ID -> distance tuple
-    /* Idea sourced from our lecture on D's Algo & HW4*/
-    private static class NodeComparable implements Comparable<NodeComparable> {
-        long id;
-        double dist;
+        if (meet < 0) {
+            // Some roads do NOT connect to others
+            System.out.println("No valid path to that destination; try flying");
+            return new int[0];
+        }
 
-        NodeComparable(long id, double dist) {
-            this.id = id;
-            this.dist = dist;
+        // Back from the meeting vertex to a source, then on from it to a target
+        int length = 0;
+        for (int v = meet; v != -1; v = forward.parent(v)) {
+            length++;
         }
+        int firstHalf = length;
+        for (int v = backward.parent(meet); v != -1; v = backward.parent(v)) {
+            length++;
+        }
+        int[] optimalPath = new int[length];
+        int i = firstHalf;
+        for (int v = meet; v != -1; v = forward.parent(v)) {
+            optimalPath[--i] = v;
+        }
+        i = firstHalf;
+        for (int v = backward.parent(meet); v != -1; v = backward.parent(v)) {
+            optimalPath[i++] = v;
+        }
+        return optimalPath;
+    }
 
-        @Override
-        public int compareTo(NodeComparable otherNode) {
-            if (this.dist > otherNode.dist) {
-                return 1;
-            } else if (this.dist == otherNode.dist) {
-                return 0;
-            } else {
-                return -1;
+    /* The A* heuristic at v: the great-circle bound, raised to the landmark bound if
+     * there are landmarks. Both are lower bounds, so their max is too. Rounding makes
+     * the landmark bound slightly inconsistent, which the search copes with by reopening
+     * vertices it finds a better route to. */
+    private static double estimate(GraphDB g, Metric metric, int v, int[] targets,
+                                   double[] targetDist, double goalLon, double goalLat,
+                                   Landmarks landmarks) {
+        double bound = metric.lowerBound(GraphDB.distance(goalLon, goalLat,
+                g.lonAt(v), g.latAt(v)));
+        if (landmarks != null) {
+            bound = Math.max(bound, landmarks.lowerBound(v, targets, targetDist));
+        }
+        return bound;
+    }
+
+    /* The forward potential of v for bidirectional search; the backward one is its
+     * negative. */
+    private static double potential(GraphDB g, Metric metric, int v, double startLon,
+                                    double startLat, double goalLon, double goalLat) {
+        double lon = g.lonAt(v);
+        double lat = g.latAt(v);
+        return (metric.lowerBound(GraphDB.distance(goalLon, goalLat, lon, lat))
+                - metric.lowerBound(GraphDB.distance(startLon, startLat, lon, lat))) / 2;
+    }
+
+    /* The weight of going from u to v, for a backward search crossing the edge the other
+     * way. Every road has an edge each way, but with repeats between the same two vertices
+     * the forward search would take the lightest, so this does too. */
+    private static double reverseWeight(GraphDB g, Metric metric, float[] weight, int v,
+                                        int u) {
+        double lightest = Double.POSITIVE_INFINITY;
+        for (int e = g.edgeStart(u); e < g.edgeEnd(u); e++) {
+            if (g.edgeTarget(e) == v) {
+                lightest = Math.min(lightest, weight != null ? weight[e] : g.weight(metric, e));
             }
         }
+        return lightest;
     }
 
-    private static double distance(double lat1, double lon1, double lat2, double lon2) {
-        // Added to support distance for coordinates NOT in a graph
-        double phi1 = Math.toRadians(lat1);
-        double phi2 = Math.toRadians(lat2);
-        double dphi = Math.toRadians(lat2 - lat1);
-        double dlambda = Math.toRadians(lon2 - lon1);
-
-        double a = Math.sin(dphi / 2.0) * Math.sin(dphi / 2.0);
-        a += Math.cos(phi1) * Math.cos(phi2) * Math.sin(dlambda / 2.0) * Math.sin(dlambda / 2.0);
-        double c = 2 * Math.atan2(Math.sqrt(a), Math.sqrt(1 - a));
-        return 3963 * c;
+    /**
+     * How a route is searched for. All find a best route, but on long routes a
+     * bidirectional search settles far fewer vertices, and a contraction hierarchy
+     * fewer still.
+     */
+    enum SearchMode {
+        /** A* from the start towards the destination. */
+        UNIDIRECTIONAL,
+        /** A* from both ends at once, meeting in the middle. */
+        BIDIRECTIONAL,
+        /**
+         * Upward searches in the graph's ContractionHierarchy for the metric; falls back
+         * to BIDIRECTIONAL if the graph has none.
+         */
+        CONTRACTION_HIERARCHY,
+        /**
+         * A* from the start with the graph's Landmarks for the metric tightening the
+         * heuristic; plain UNIDIRECTIONAL if the graph has none.
+         */
+        LANDMARKS,
+        /**
+         * Dijkstra over the graph's Overlay for the metric, customizing one first if the
+         * graph has none.
+         */
+        OVERLAY
     }
 
+    /**
+     * How much work a search did, for comparing search modes.
+     */
+    static class SearchStats {
+        /** Vertices taken off the fringe, on both sides for a bidirectional search. */
+        int settled;
+    }
+
+
     /**
      * Create the list of directions corresponding to a route on the graph.
+     * A new direction starts wherever the name of the way changes; its turn is the
+     * change in bearing from the last segment of the previous way to the first segment
+     * of the new one. Ways without a name are called "", and segments whose way isn't
+     * known are on NavigationDirection.UNKNOWN_ROAD.
      *
      * @param g     The graph to use.
      * @param route The route to translate into directions. Each element
@@ -146,7 +472,40 @@ public class Router {
      * route.
      */
     public static List<NavigationDirection> routeDirections(GraphDB g, List<Long> route) {
-        return null; // FIXME
+        int[] path = new int[route.size()];
+        int i = 0;
+        for (long id : route) {
+            path[i] = g.index(id);
+            if (path[i] < 0) {
+                throw new NoSuchElementException("No vertex with id " + id);
+            }
+            i++;
+        }
+
+        List<NavigationDirection> directions = new ArrayList<>();
+        NavigationDirection current = null;
+        double lastBearing = 0;
+        for (i = 1; i < path.length; i++) {
+            int u = path[i - 1];
+            int v = path[i];
+            int e = g.edgeBetween(u, v);
+            String way = e >= 0 ? g.edgeName(e) : null;
+            if (way == null) {
+                way = NavigationDirection.UNKNOWN_ROAD;
+            }
+            double bearing = GraphDB.bearing(g.lonAt(u), g.latAt(u), g.lonAt(v), g.latAt(v));
+            if (current == null || !current.way.equals(way)) {
+                current = new NavigationDirection();
+                current.direction = directions.isEmpty() ? NavigationDirection.START
+                        : NavigationDirection.turn(bearing - lastBearing);
+                current.way = way;
+                directions.add(current);
+            }
+            current.distance += GraphDB.distance(g.lonAt(u), g.latAt(u), g.lonAt(v),
+                    g.latAt(v));
+            lastBearing = bearing;
+        }
+        return directions;
     }
 
 
@@ -222,6 +581,25 @@ public class Router {
                     DIRECTIONS[direction], way, distance);
         }
 
+        /**
+         * Returns the direction for a change of bearing, in degrees clockwise: straight
+         * within 15 degrees either way, slight up to 30, a turn up to 100, and sharp
+         * beyond that.
+         */
+        static int turn(double degrees) {
+            double relative = ((degrees % 360) + 540) % 360 - 180;
+            double angle = Math.abs(relative);
+            boolean left = relative < 0;
+            if (angle <= 15) {
+                return STRAIGHT;
+            } else if (angle <= 30) {
+                return left ? SLIGHT_LEFT : SLIGHT_RIGHT;
+            } else if (angle <= 100) {
+                return left ? LEFT : RIGHT;
+            }
+            return left ? SHARP_LEFT : SHARP_RIGHT;
+        }
+
         /**
          * Takes the string representation of a navigation direction and converts it into
          * a Navigation Direction object.
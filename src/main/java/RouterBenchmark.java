@@ -0,0 +1,229 @@
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares routing on the same map with vertices in OSM file order and in Hilbert curve
+ * order (see GraphDB.HILBERT_ORDER_PROPERTY). Both graphs answer the same random
+ * queries, which must give the same routes, and for each order it prints the time per
+ * query along with how far apart in the arrays the two ends of an edge are, which is
+ * what decides whether following the edge touches a new cache line. Then it answers the
+ * queries again with bidirectional search, with a contraction hierarchy, with
+ * landmarks and over a customized overlay, all built for the Hilbert order graph (see
+ * Router.SearchMode), and compares the time and vertices settled per query. Last, it
+ * looks up the length of each route in hub labels built on the hierarchy's order (see
+ * HubLabels).
+ * <p>
+ * Usage: RouterBenchmark [osm file] [queries]. Run it with the same heap and flags for
+ * both orders (it does that itself); for actual cache miss counts, run it under a
+ * profiler such as perf with one order at a time.
+ */
+public class RouterBenchmark {
+    private static final String OSM_DB_PATH = "../library-sp18/data/berkeley-2018.osm.xml";
+    private static final int WARMUP_ROUNDS = 2;
+
+    public static void main(String[] args) {
+        String path = args.length > 0 ? args[0] : OSM_DB_PATH;
+        int numQueries = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+
+        GraphDB fileOrder = build(path, false);
+        GraphDB hilbertOrder = build(path, true);
+
+        double[][] queries = queries(fileOrder, numQueries, new Random(61));
+        hilbertOrder.hierarchies[Metric.DISTANCE.ordinal()] =
+                ContractionHierarchy.build(hilbertOrder, Metric.DISTANCE);
+        hilbertOrder.landmarks[Metric.DISTANCE.ordinal()] = Landmarks.build(hilbertOrder,
+                Metric.DISTANCE, Landmarks.DEFAULT_COUNT, Landmarks.Selection.AVOID);
+        hilbertOrder.overlay(Metric.DISTANCE);
+        Router.SearchMode uni = Router.SearchMode.UNIDIRECTIONAL;
+        Router.SearchMode bi = Router.SearchMode.BIDIRECTIONAL;
+        Router.SearchMode ch = Router.SearchMode.CONTRACTION_HIERARCHY;
+        Router.SearchMode alt = Router.SearchMode.LANDMARKS;
+        Router.SearchMode overlay = Router.SearchMode.OVERLAY;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            run(fileOrder, queries, uni);
+            run(hilbertOrder, queries, uni);
+            run(hilbertOrder, queries, bi);
+            run(hilbertOrder, queries, ch);
+            run(hilbertOrder, queries, alt);
+            run(hilbertOrder, queries, overlay);
+        }
+        long[][] fileRoutes = new long[numQueries][];
+        long[][] hilbertRoutes = new long[numQueries][];
+        long[][] bidirectionalRoutes = new long[numQueries][];
+        long[][] hierarchyRoutes = new long[numQueries][];
+        long[][] landmarkRoutes = new long[numQueries][];
+        long[][] overlayRoutes = new long[numQueries][];
+        long[] settled = new long[5];
+        double fileMs = run(fileOrder, queries, uni, fileRoutes, settled, 0);
+        double hilbertMs = run(hilbertOrder, queries, uni, hilbertRoutes, settled, 0);
+        double bidirectionalMs = run(hilbertOrder, queries, bi, bidirectionalRoutes,
+                settled, 1);
+        double hierarchyMs = run(hilbertOrder, queries, ch, hierarchyRoutes, settled, 2);
+        double landmarkMs = run(hilbertOrder, queries, alt, landmarkRoutes, settled, 3);
+        double overlayMs = run(hilbertOrder, queries, overlay, overlayRoutes, settled, 4);
+
+        int different = 0;
+        for (int i = 0; i < numQueries; i++) {
+            if (!Arrays.equals(fileRoutes[i], hilbertRoutes[i])) {
+                different++;
+            }
+        }
+        report("file order", fileOrder, fileMs, numQueries);
+        report("hilbert order", hilbertOrder, hilbertMs, numQueries);
+        System.out.println(String.format("Speedup %.2fx; %d of %d routes differ",
+                fileMs / hilbertMs, different, numQueries));
+
+        // settled[0] counts both unidirectional runs
+        System.out.println(String.format("Unidirectional %8.3f ms/query, %8.1f settled/query",
+                hilbertMs / numQueries, settled[0] / 2.0 / numQueries));
+        compare("Bidirectional", hilbertRoutes, hilbertMs, bidirectionalRoutes,
+                bidirectionalMs, settled[1]);
+        compare("Hierarchy", hilbertRoutes, hilbertMs, hierarchyRoutes, hierarchyMs,
+                settled[2]);
+        compare("Landmarks", hilbertRoutes, hilbertMs, landmarkRoutes, landmarkMs,
+                settled[3]);
+        compare("Overlay", hilbertRoutes, hilbertMs, overlayRoutes, overlayMs, settled[4]);
+
+        HubLabels labels = HubLabels.build(hilbertOrder, Metric.DISTANCE);
+        int[] starts = new int[numQueries];
+        int[] ends = new int[numQueries];
+        for (int i = 0; i < numQueries; i++) {
+            starts[i] = hilbertOrder.closestIndex(queries[i][0], queries[i][1]);
+            ends[i] = hilbertOrder.closestIndex(queries[i][2], queries[i][3]);
+        }
+        double[] lengths = new double[numQueries];
+        for (int round = 0; round <= WARMUP_ROUNDS; round++) {
+            for (int i = 0; i < numQueries; i++) {
+                lengths[i] = labels.distance(starts[i], ends[i]);
+            }
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < numQueries; i++) {
+            lengths[i] = labels.distance(starts[i], ends[i]);
+        }
+        double labelMs = (System.nanoTime() - start) / 1e6;
+        int differentLengths = 0;
+        for (int i = 0; i < numQueries; i++) {
+            double expected = length(hilbertOrder, hilbertRoutes[i]);
+            if (Math.abs(lengths[i] - expected) > 1e-9 * Math.max(1, expected)) {
+                differentLengths++;
+            }
+        }
+        System.out.println(String.format("%-14s %8.4f ms/query", "Hub labels",
+                labelMs / numQueries));
+        System.out.println(String.format("Speedup %.2fx; %d of %d lengths differ",
+                hilbertMs / labelMs, differentLengths, numQueries));
+    }
+
+    /* The length of a route given as OSM ids; infinity for no route. */
+    private static double length(GraphDB g, long[] route) {
+        if (route.length == 0) {
+            return Double.POSITIVE_INFINITY;
+        }
+        double length = 0;
+        for (int i = 1; i < route.length; i++) {
+            int u = g.index(route[i - 1]);
+            int v = g.index(route[i]);
+            double lightest = Double.POSITIVE_INFINITY;
+            for (int e = g.edgeStart(u); e < g.edgeEnd(u); e++) {
+                if (g.edgeTarget(e) == v) {
+                    lightest = Math.min(lightest, g.weight(Metric.DISTANCE, e));
+                }
+            }
+            length += lightest;
+        }
+        return length;
+    }
+
+    /* Prints how a search mode did against unidirectional search on the same graph. */
+    private static void compare(String name, long[][] baseRoutes, double baseMs,
+                                long[][] routes, double ms, long settled) {
+        int numQueries = routes.length;
+        int different = 0;
+        for (int i = 0; i < numQueries; i++) {
+            if (!Arrays.equals(baseRoutes[i], routes[i])) {
+                different++;
+            }
+        }
+        System.out.println(String.format("%-14s %8.3f ms/query, %8.1f settled/query", name,
+                ms / numQueries, (double) settled / numQueries));
+        System.out.println(String.format("Speedup %.2fx; %d of %d routes differ",
+                baseMs / ms, different, numQueries));
+    }
+
+    private static GraphDB build(String path, boolean hilbert) {
+        System.setProperty(GraphDB.HILBERT_ORDER_PROPERTY, Boolean.toString(hilbert));
+        long start = System.nanoTime();
+        GraphDB g = new GraphDB(path);
+        System.out.println(String.format("Built %s graph in %.1f ms",
+                hilbert ? "hilbert order" : "file order", (System.nanoTime() - start) / 1e6));
+        return g;
+    }
+
+    /* Random start and end points inside the graph's bounding box, as
+     * {start lon, start lat, end lon, end lat}. */
+    private static double[][] queries(GraphDB g, int n, Random random) {
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        for (int v = 0; v < g.V(); v++) {
+            minLat = Math.min(minLat, g.latAt(v));
+            maxLat = Math.max(maxLat, g.latAt(v));
+            minLon = Math.min(minLon, g.lonAt(v));
+            maxLon = Math.max(maxLon, g.lonAt(v));
+        }
+        double[][] queries = new double[n][];
+        for (int i = 0; i < n; i++) {
+            queries[i] = new double[]{
+                minLon + random.nextDouble() * (maxLon - minLon),
+                minLat + random.nextDouble() * (maxLat - minLat),
+                minLon + random.nextDouble() * (maxLon - minLon),
+                minLat + random.nextDouble() * (maxLat - minLat)};
+        }
+        return queries;
+    }
+
+    private static double run(GraphDB g, double[][] queries, Router.SearchMode mode) {
+        return run(g, queries, mode, new long[queries.length][], new long[1], 0);
+    }
+
+    /* Routes every query, recording the routes as OSM ids and adding the vertices
+     * settled to settled[counter]; returns the total ms. */
+    private static double run(GraphDB g, double[][] queries, Router.SearchMode mode,
+                              long[][] routes, long[] settled, int counter) {
+        Router.SearchStats stats = new Router.SearchStats();
+        long start = System.nanoTime();
+        for (int i = 0; i < queries.length; i++) {
+            double[] q = queries[i];
+            int[] path = Router.shortestPathVertices(g, Metric.DISTANCE, mode,
+                    q[0], q[1], q[2], q[3], stats);
+            settled[counter] += stats.settled;
+            routes[i] = new long[path.length];
+            for (int j = 0; j < path.length; j++) {
+                routes[i][j] = g.id(path[j]);
+            }
+        }
+        return (System.nanoTime() - start) / 1e6;
+    }
+
+    private static void report(String name, GraphDB g, double ms, int numQueries) {
+        // A double coordinate is 8 bytes, so vertices less than 8 apart share a cache
+        // line or sit in neighbouring ones
+        long near = 0;
+        long[] gaps = new long[g.E()];
+        for (int v = 0; v < g.V(); v++) {
+            for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                gaps[e] = Math.abs(g.edgeTarget(e) - v);
+                if (gaps[e] < 8) {
+                    near++;
+                }
+            }
+        }
+        Arrays.sort(gaps);
+        System.out.println(String.format("%-14s %8.3f ms/query, median edge gap %7d vertices,"
+                        + " %5.1f%% of edges within 8", name, ms / numQueries,
+                gaps.length == 0 ? 0 : gaps[gaps.length / 2],
+                gaps.length == 0 ? 0 : 100.0 * near / gaps.length));
+    }
+}
@@ -0,0 +1,101 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedDeque;
+
+/**
+ * The per-vertex state of one graph search: the best distance found to each vertex, the
+ * vertex it was reached from, and the fringe. The arrays are sized to the graph and
+ * reused by search after search, so a search allocates next to nothing.
+ * <p>
+ * Instead of refilling the arrays between searches, each entry is stamped with the
+ * search (generation) that wrote it, and entries with an older stamp read as unreached.
+ * Starting a new search is then a counter increment, however big the graph.
+ * <p>
+ * Workspaces are borrowed from a shared pool for the length of a search and given back
+ * by close(), so concurrent requests each get their own, and the pool only grows to
+ * the number of searches that have ever run at once (keeping at most MAX_POOLED).
+ * A borrowed workspace belongs to the borrowing thread until it is closed.
+ */
+class SearchWorkspace implements AutoCloseable {
+    /** How many idle workspaces the pool keeps; more are left to the garbage collector. */
+    private static final int MAX_POOLED = Runtime.getRuntime().availableProcessors() * 2;
+    private static final ConcurrentLinkedDeque<SearchWorkspace> POOL =
+            new ConcurrentLinkedDeque<>();
+
+    private double[] dist = new double[0];
+    private int[] parent = new int[0];
+    private int[] stamp = new int[0];
+    /* The stamp of the current search; entries with any other read as unreached. */
+    int generation;
+    /** The fringe, emptied at the start of each search. */
+    final VertexHeap heap = new VertexHeap(0);
+
+    private SearchWorkspace() {
+    }
+
+    /**
+     * Returns a workspace from the pool (or a new one), ready for a search over vertices
+     * 0 up to numVertices. Close it when the search is done.
+     */
+    static SearchWorkspace borrow(int numVertices) {
+        SearchWorkspace workspace = POOL.pollFirst();
+        if (workspace == null) {
+            workspace = new SearchWorkspace();
+        }
+        workspace.begin(numVertices);
+        return workspace;
+    }
+
+    /**
+     * Gives the workspace back to the pool. It must not be used afterwards.
+     */
+    @Override
+    public void close() {
+        if (POOL.size() < MAX_POOLED) {
+            // Most recently used first, as its arrays are likeliest to still be in cache
+            POOL.offerFirst(this);
+        }
+    }
+
+    /* Readies the workspace for a new search over vertices 0 up to numVertices. */
+    void begin(int numVertices) {
+        if (numVertices > stamp.length) {
+            dist = new double[numVertices];
+            parent = new int[numVertices];
+            stamp = new int[numVertices];
+            generation = 0;
+        }
+        heap.ensureCapacity(numVertices);
+        heap.clear();
+        generation++;
+        if (generation == Integer.MAX_VALUE) {
+            // Once every couple of billion searches, really start over
+            Arrays.fill(stamp, 0);
+            generation = 1;
+        }
+    }
+
+    /**
+     * Returns the best distance found to v in this search, or infinity if none.
+     */
+    double dist(int v) {
+        return stamp[v] == generation ? dist[v] : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Returns the vertex v was reached from in this search, or -1 if it is a source or
+     * hasn't been reached.
+     */
+    int parent(int v) {
+        return stamp[v] == generation ? parent[v] : -1;
+    }
+
+    /**
+     * Records that v can be reached at distance d, coming from vertex from (-1 for a
+     * source).
+     */
+    void reach(int v, double d, int from) {
+        dist[v] = d;
+        parent[v] = from;
+        stamp[v] = generation;
+    }
+}
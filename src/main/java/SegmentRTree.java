@@ -0,0 +1,408 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Packed R-tree over the road segments (edges) of a GraphDB, used to snap a point onto
+ * the nearest road instead of the nearest intersection.
+ * <p>
+ * The tree is bulk loaded with Sort-Tile-Recursive (STR): segments are sorted into tiles
+ * by the longitude, then the latitude, of their centres and packed NODE_CAPACITY at a
+ * time into leaves. The same is done to the leaves to get the next level up, and so on
+ * until there is a single root. Every level is kept in flat arrays, and each node records
+ * the range of the level below (or of the segment arrays) that it covers.
+ * <p>
+ * Nearest queries are best-first: a heap of nodes and segments ordered by their distance
+ * to the query point, so the first segment popped is the nearest one. Distances use an
+ * equirectangular projection centred on the query point. That is accurate to well under
+ * a foot at city scale, and the box and segment distances use the same projection, so
+ * pruning is exact for it.
+ * <p>
+ * After a GraphPatch the next version's tree comes from withChanges, the same way as
+ * for KdTree: the packed levels are shared, segments touching a changed vertex are
+ * skipped, and the current segments at those vertices are checked one by one. The
+ * best of those only has to beat the heap, so the search can stop as soon as the heap
+ * has nothing closer.
+ */
+class SegmentRTree {
+    private static final int NODE_CAPACITY = 16;
+    private static final int MIN_OVERLAY = 1024;
+    private static final double MILES_PER_DEGREE = 3963 * Math.PI / 180;
+
+    private final GraphDB g;
+    /** Segment i joins dense vertices segU[i] and segV[i]; stored in STR order. */
+    private final int[] segU;
+    private final int[] segV;
+
+    /* levels.get(0) holds the leaves; the last level holds only the root. */
+    private final List<Level> levels;
+
+    /* Changes since the tree was built: packed segments with an end in stale are
+     * skipped, and segment i of the overlay joins extraU[i] and extraV[i]. stale is
+     * null and the extras empty for a freshly built tree. */
+    private final BitSet stale;
+    private final int[] extraU;
+    private final int[] extraV;
+
+    private static class Level {
+        double[] minLat;
+        double[] maxLat;
+        double[] minLon;
+        double[] maxLon;
+        /** Node i covers children first[i] .. first[i] + count[i] - 1 of the level below. */
+        int[] first;
+        int[] count;
+
+        Level(int n) {
+            minLat = new double[n];
+            maxLat = new double[n];
+            minLon = new double[n];
+            maxLon = new double[n];
+            first = new int[n];
+            count = new int[n];
+        }
+
+        int size() {
+            return first.length;
+        }
+    }
+
+    /**
+     * Builds a tree over every edge of g, counting each undirected road segment once.
+     */
+    SegmentRTree(GraphDB g) {
+        this.g = g;
+        this.levels = new ArrayList<>();
+        this.stale = null;
+        this.extraU = new int[0];
+        this.extraV = new int[0];
+        int numSegments = 0;
+        for (int u = 0; u < g.V(); u++) {
+            for (int e = g.edgeStart(u); e < g.edgeEnd(u); e++) {
+                if (u < g.edgeTarget(e)) {
+                    numSegments++;
+                }
+            }
+        }
+
+        Level segments = new Level(numSegments);
+        int[] us = new int[numSegments];
+        int[] vs = new int[numSegments];
+        int i = 0;
+        for (int u = 0; u < g.V(); u++) {
+            for (int e = g.edgeStart(u); e < g.edgeEnd(u); e++) {
+                int v = g.edgeTarget(e);
+                if (u < v) {
+                    us[i] = u;
+                    vs[i] = v;
+                    segments.minLat[i] = Math.min(g.latAt(u), g.latAt(v));
+                    segments.maxLat[i] = Math.max(g.latAt(u), g.latAt(v));
+                    segments.minLon[i] = Math.min(g.lonAt(u), g.lonAt(v));
+                    segments.maxLon[i] = Math.max(g.lonAt(u), g.lonAt(v));
+                    i++;
+                }
+            }
+        }
+
+        // Pack the segments into leaves, then keep packing each level into the next
+        int[] order = strOrder(segments);
+        segU = new int[numSegments];
+        segV = new int[numSegments];
+        for (i = 0; i < numSegments; i++) {
+            segU[i] = us[order[i]];
+            segV[i] = vs[order[i]];
+        }
+        Level below = permute(segments, order);
+        do {
+            Level level = pack(below);
+            levels.add(level);
+            if (level.size() <= 1) {
+                break;
+            }
+            order = strOrder(level);
+            Level sorted = permute(level, order);
+            levels.set(levels.size() - 1, sorted);
+            below = sorted;
+        } while (true);
+    }
+
+    private SegmentRTree(SegmentRTree base, GraphDB g, BitSet stale, int[] extraU,
+                         int[] extraV) {
+        this.g = g;
+        this.segU = base.segU;
+        this.segV = base.segV;
+        this.levels = base.levels;
+        this.stale = stale;
+        this.extraU = extraU;
+        this.extraV = extraV;
+    }
+
+    /**
+     * Returns a tree for g, the graph this tree was built for after a GraphPatch.
+     *
+     * @param g       The patched graph.
+     * @param changed The vertices whose edges or coordinates the patch changed.
+     */
+    SegmentRTree withChanges(GraphDB g, int[] changed) {
+        BitSet newStale = stale == null ? new BitSet() : (BitSet) stale.clone();
+        for (int v : changed) {
+            newStale.set(v);
+        }
+        // Every segment at a stale vertex, once: from its lower end if both are stale
+        int count = 0;
+        for (int u = newStale.nextSetBit(0); u >= 0; u = newStale.nextSetBit(u + 1)) {
+            for (int e = g.edgeStart(u); e < g.edgeEnd(u); e++) {
+                int v = g.edgeTarget(e);
+                if (u < v || (u > v && !newStale.get(v))) {
+                    count++;
+                }
+            }
+        }
+        if (count > Math.max(MIN_OVERLAY, segU.length / 16)) {
+            return new SegmentRTree(g);
+        }
+
+        int[] us = new int[count];
+        int[] vs = new int[count];
+        int i = 0;
+        for (int u = newStale.nextSetBit(0); u >= 0; u = newStale.nextSetBit(u + 1)) {
+            for (int e = g.edgeStart(u); e < g.edgeEnd(u); e++) {
+                int v = g.edgeTarget(e);
+                if (u < v || (u > v && !newStale.get(v))) {
+                    us[i] = Math.min(u, v);
+                    vs[i] = Math.max(u, v);
+                    i++;
+                }
+            }
+        }
+        return new SegmentRTree(this, g, newStale, us, vs);
+    }
+
+    int size() {
+        return segU.length + extraU.length;
+    }
+
+    /**
+     * Sort-Tile-Recursive order of the boxes in level: sorted into vertical slabs by
+     * centre longitude, and by centre latitude within each slab.
+     */
+    private static int[] strOrder(Level level) {
+        int n = level.size();
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> level.minLon[i] + level.maxLon[i]));
+
+        int numNodes = (n + NODE_CAPACITY - 1) / NODE_CAPACITY;
+        int numSlabs = (int) Math.ceil(Math.sqrt(numNodes));
+        int slabSize = numSlabs * NODE_CAPACITY;
+        for (int start = 0; start < n; start += slabSize) {
+            Arrays.sort(order, start, Math.min(n, start + slabSize),
+                    Comparator.comparingDouble(i -> level.minLat[i] + level.maxLat[i]));
+        }
+
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    /**
+     * Returns level with its entries rearranged into the given order.
+     */
+    private static Level permute(Level level, int[] order) {
+        Level result = new Level(order.length);
+        for (int i = 0; i < order.length; i++) {
+            int j = order[i];
+            result.minLat[i] = level.minLat[j];
+            result.maxLat[i] = level.maxLat[j];
+            result.minLon[i] = level.minLon[j];
+            result.maxLon[i] = level.maxLon[j];
+            result.first[i] = level.first[j];
+            result.count[i] = level.count[j];
+        }
+        return result;
+    }
+
+    /**
+     * Groups consecutive runs of NODE_CAPACITY entries of below into parent nodes.
+     */
+    private static Level pack(Level below) {
+        int n = below.size();
+        Level level = new Level(Math.max(1, (n + NODE_CAPACITY - 1) / NODE_CAPACITY));
+        for (int node = 0; node < level.size(); node++) {
+            int first = node * NODE_CAPACITY;
+            int last = Math.min(n, first + NODE_CAPACITY);
+            level.first[node] = first;
+            level.count[node] = last - first;
+            level.minLat[node] = Double.POSITIVE_INFINITY;
+            level.maxLat[node] = Double.NEGATIVE_INFINITY;
+            level.minLon[node] = Double.POSITIVE_INFINITY;
+            level.maxLon[node] = Double.NEGATIVE_INFINITY;
+            for (int i = first; i < last; i++) {
+                level.minLat[node] = Math.min(level.minLat[node], below.minLat[i]);
+                level.maxLat[node] = Math.max(level.maxLat[node], below.maxLat[i]);
+                level.minLon[node] = Math.min(level.minLon[node], below.minLon[i]);
+                level.maxLon[node] = Math.max(level.maxLon[node], below.maxLon[i]);
+            }
+        }
+        return level;
+    }
+
+    /**
+     * Snaps the given point onto the nearest road segment.
+     *
+     * @return The snapped point, or null if the graph has no edges.
+     */
+    PhantomNode nearest(double lon, double lat) {
+        if (segU.length == 0 && extraU.length == 0) {
+            return null;
+        }
+        double lonScale = MILES_PER_DEGREE * Math.cos(Math.toRadians(lat));
+
+        int bestExtra = -1;
+        double bestExtraT = 0;
+        double bestExtraDist = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < extraU.length; i++) {
+            double t = closestFraction(extraU[i], extraV[i], lon, lat, lonScale);
+            double d = segmentDistance(extraU[i], extraV[i], t, lon, lat, lonScale);
+            if (d < bestExtraDist) {
+                bestExtra = i;
+                bestExtraT = t;
+                bestExtraDist = d;
+            }
+        }
+        if (segU.length == 0) {
+            return new PhantomNode(g, extraU[bestExtra], extraV[bestExtra], bestExtraT,
+                    lon, lat);
+        }
+
+        // Heap entries are (level + 1) << 32 | index for nodes, and just the index for
+        // segments, keyed by squared projected distance to the query
+        QueueHeap heap = new QueueHeap();
+        int top = levels.size() - 1;
+        heap.push(boxDistance(levels.get(top), 0, lon, lat, lonScale), (long) (top + 1) << 32);
+        while (heap.size > 0 && heap.keys[0] < bestExtraDist) {
+            long item = heap.pop();
+            int levelNumber = (int) (item >>> 32) - 1;
+            int index = (int) item;
+            if (levelNumber < 0) {
+                double t = closestFraction(segU[index], segV[index], lon, lat, lonScale);
+                return new PhantomNode(g, segU[index], segV[index], t, lon, lat);
+            }
+
+            Level level = levels.get(levelNumber);
+            int first = level.first[index];
+            int last = first + level.count[index];
+            for (int child = first; child < last; child++) {
+                if (levelNumber == 0) {
+                    if (stale != null && (stale.get(segU[child]) || stale.get(segV[child]))) {
+                        continue;
+                    }
+                    double t = closestFraction(segU[child], segV[child], lon, lat, lonScale);
+                    heap.push(segmentDistance(segU[child], segV[child], t, lon, lat, lonScale),
+                            child);
+                } else {
+                    Level below = levels.get(levelNumber - 1);
+                    heap.push(boxDistance(below, child, lon, lat, lonScale),
+                            (long) levelNumber << 32 | child);
+                }
+            }
+        }
+        if (bestExtra < 0) {
+            return null;
+        }
+        return new PhantomNode(g, extraU[bestExtra], extraV[bestExtra], bestExtraT, lon, lat);
+    }
+
+    private static double boxDistance(Level level, int i, double lon, double lat,
+                                      double lonScale) {
+        double dLon = Math.max(0, Math.max(level.minLon[i] - lon, lon - level.maxLon[i]));
+        double dLat = Math.max(0, Math.max(level.minLat[i] - lat, lat - level.maxLat[i]));
+        double x = dLon * lonScale;
+        double y = dLat * MILES_PER_DEGREE;
+        return x * x + y * y;
+    }
+
+    /**
+     * Returns how far along the segment from u to v (0 at u, 1 at v) its closest point to
+     * the query lies, in the projection around the query point.
+     */
+    private double closestFraction(int u, int v, double lon, double lat, double lonScale) {
+        double ax = (g.lonAt(u) - lon) * lonScale;
+        double ay = (g.latAt(u) - lat) * MILES_PER_DEGREE;
+        double dx = (g.lonAt(v) - lon) * lonScale - ax;
+        double dy = (g.latAt(v) - lat) * MILES_PER_DEGREE - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared == 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(1, -(ax * dx + ay * dy) / lengthSquared));
+    }
+
+    private double segmentDistance(int u, int v, double t, double lon, double lat,
+                                   double lonScale) {
+        double pLon = g.lonAt(u) + t * (g.lonAt(v) - g.lonAt(u));
+        double pLat = g.latAt(u) + t * (g.latAt(v) - g.latAt(u));
+        double x = (pLon - lon) * lonScale;
+        double y = (pLat - lat) * MILES_PER_DEGREE;
+        return x * x + y * y;
+    }
+
+    /** Minimal binary min-heap of (double key, long item) pairs for nearest(). */
+    private static class QueueHeap {
+        double[] keys = new double[64];
+        long[] items = new long[64];
+        int size;
+
+        void push(double key, long item) {
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                items = Arrays.copyOf(items, size * 2);
+            }
+            int pos = size;
+            size++;
+            while (pos > 0) {
+                int parent = (pos - 1) >>> 1;
+                if (keys[parent] <= key) {
+                    break;
+                }
+                keys[pos] = keys[parent];
+                items[pos] = items[parent];
+                pos = parent;
+            }
+            keys[pos] = key;
+            items[pos] = item;
+        }
+
+        long pop() {
+            long top = items[0];
+            size--;
+            double key = keys[size];
+            long item = items[size];
+            int pos = 0;
+            while (true) {
+                int child = 2 * pos + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && keys[child + 1] < keys[child]) {
+                    child++;
+                }
+                if (keys[child] >= key) {
+                    break;
+                }
+                keys[pos] = keys[child];
+                items[pos] = items[child];
+                pos = child;
+            }
+            keys[pos] = key;
+            items[pos] = item;
+            return top;
+        }
+    }
+}
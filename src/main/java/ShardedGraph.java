@@ -0,0 +1,468 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A road graph made of several regional OSM extracts (shards), for covering an area too
+ * big to keep in memory all at once. Each shard is an ordinary GraphDB with its own
+ * arrays and snapshot. Extracts that meet share the nodes on their border, recognized by
+ * OSM id, and that is where the shards are stitched together.
+ * <p>
+ * Every shard is loaded once at startup, which also writes their snapshots and finds
+ * their bounding boxes and border nodes; at most maxLoaded of them load at once, and only
+ * their ids are kept of the ones past the first maxLoaded. After that at most maxLoaded
+ * shards are kept in memory. graphFor(...) loads the shards a query's bounding box
+ * touches (from their snapshots, which is fast), evicting the least recently used
+ * others, and returns the loaded shards stitched into one GraphDB, so Router and the
+ * spatial indexes work on it unchanged. The stitched graph is only rebuilt when the set
+ * of loaded shards changes, and it is immutable, so a request keeps the one it was
+ * handed.
+ * <p>
+ * Loading and stitching happen outside the lock, so requests whose shards are in memory
+ * don't wait behind one that is loading. Each shard is loaded by one request at a time;
+ * two requests may stitch the same shards at once, and the last to finish is kept.
+ * <p>
+ * A route that leaves the query's box for a shard that isn't loaded won't be found; the
+ * box is widened by BOX_MARGIN to make that unlikely. Stitching costs time and memory
+ * linear in the loaded shards.
+ */
+class ShardedGraph {
+    /**
+     * System property listing the shard OSM files, separated by commas. Any format
+     * GraphDB.load reads.
+     */
+    static final String SHARDS_PROPERTY = "bearmaps.shards";
+    /** System property for the most shards to keep loaded; defaults to all of them. */
+    static final String MAX_LOADED_PROPERTY = "bearmaps.shards.maxLoaded";
+    /** Degrees a query's bounding box is widened by when picking shards. */
+    static final double BOX_MARGIN = 0.02;
+
+    /** One regional extract. */
+    private static class Shard {
+        final String path;
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        /* Vertices whose node is in another shard too. */
+        BitSet border = new BitSet();
+        /* Null while evicted. Guarded by the ShardedGraph, like lastUsed; loads of this
+         * shard are serialized on the shard itself. */
+        GraphDB graph;
+        long lastUsed;
+
+        Shard(String path) {
+            this.path = path;
+        }
+
+        boolean intersects(double lon1, double lat1, double lon2, double lat2) {
+            return minLon <= lon2 && lon1 <= maxLon && minLat <= lat2 && lat1 <= maxLat;
+        }
+
+        /* Squared distance in degrees from the box to a point; 0 inside. */
+        double distance(double lon, double lat) {
+            double dLon = Math.max(0, Math.max(minLon - lon, lon - maxLon));
+            double dLat = Math.max(0, Math.max(minLat - lat, lat - maxLat));
+            return dLon * dLon + dLat * dLat;
+        }
+    }
+
+    private final List<Shard> shards = new ArrayList<>();
+    private final int maxLoaded;
+    private long clock;
+
+    /* The loaded shards stitched together, and which shards those were. */
+    private GraphDB stitched;
+    private BitSet stitchedShards = new BitSet();
+
+    /**
+     * Loads the shards, at most maxLoaded at a time, and works out where they meet.
+     *
+     * @param paths     The OSM files of the shards.
+     * @param maxLoaded The most shards to keep in memory after startup; at least 1.
+     */
+    ShardedGraph(List<String> paths, int maxLoaded) {
+        this.maxLoaded = Math.max(1, maxLoaded);
+        for (String path : paths) {
+            shards.add(new Shard(path));
+        }
+
+        long start = System.nanoTime();
+        // The ids of every shard's vertices, to find the nodes shards have in common
+        long[][] ids = new long[shards.size()][];
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(shards.size(),
+                Math.min(this.maxLoaded, Math.max(1, OsmPipeline.defaultWorkers()))));
+        try {
+            List<Future<?>> loads = new ArrayList<>();
+            for (int s = 0; s < shards.size(); s++) {
+                int shard = s;
+                loads.add(pool.submit(() -> {
+                    ids[shard] = scan(shard);
+                }));
+            }
+            for (Future<?> load : loads) {
+                load.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading shards", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Loading a shard failed", e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+
+        // A node is in one shard at most once, so an id seen twice is on a border
+        int total = 0;
+        for (long[] shardIds : ids) {
+            total += shardIds.length;
+        }
+        long[] all = new long[total];
+        int at = 0;
+        for (long[] shardIds : ids) {
+            System.arraycopy(shardIds, 0, all, at, shardIds.length);
+            at += shardIds.length;
+        }
+        Arrays.sort(all);
+        HashSet<Long> shared = new HashSet<>();
+        for (int i = 1; i < all.length; i++) {
+            if (all[i] == all[i - 1]) {
+                shared.add(all[i]);
+            }
+        }
+        int borderNodes = 0;
+        for (int s = 0; s < shards.size(); s++) {
+            Shard shard = shards.get(s);
+            for (int v = 0; v < ids[s].length; v++) {
+                if (shared.contains(ids[s][v])) {
+                    shard.border.set(v);
+                }
+            }
+            borderNodes += shard.border.cardinality();
+        }
+        if (GraphDB.verbose()) {
+            System.out.println(String.format("Loaded %d shards with %d border vertices in "
+                    + "%.1f ms", shards.size(), borderNodes, (System.nanoTime() - start) / 1e6));
+        }
+    }
+
+    /* Loads shard s at startup, finds its bounding box and keeps it in memory if it is
+     * one of the first maxLoaded. Returns the ids of its vertices, by vertex number. */
+    private long[] scan(int s) {
+        Shard shard = shards.get(s);
+        GraphDB g = GraphDB.load(shard.path);
+        long[] ids = new long[g.V()];
+        for (int v = 0; v < g.V(); v++) {
+            ids[v] = g.id(v);
+            if (g.isRemoved(v)) {
+                continue;
+            }
+            shard.minLat = Math.min(shard.minLat, g.latAt(v));
+            shard.maxLat = Math.max(shard.maxLat, g.latAt(v));
+            shard.minLon = Math.min(shard.minLon, g.lonAt(v));
+            shard.maxLon = Math.max(shard.maxLon, g.lonAt(v));
+        }
+        if (s < maxLoaded) {
+            // The rest come back from their snapshots when used
+            synchronized (this) {
+                shard.graph = g;
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * Returns the shards listed in SHARDS_PROPERTY, or null if it isn't set.
+     */
+    static ShardedGraph fromProperties() {
+        String list = System.getProperty(SHARDS_PROPERTY);
+        if (list == null || list.trim().isEmpty()) {
+            return null;
+        }
+        List<String> paths = new ArrayList<>();
+        for (String path : list.split(",")) {
+            if (!path.trim().isEmpty()) {
+                paths.add(path.trim());
+            }
+        }
+        return new ShardedGraph(paths, Integer.getInteger(MAX_LOADED_PROPERTY, paths.size()));
+    }
+
+    int size() {
+        return shards.size();
+    }
+
+    /**
+     * Returns the number of shards in memory right now.
+     */
+    synchronized int loadedCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            if (shard.graph != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Returns a graph covering a route between the two points: the shards their bounding
+     * box touches (or, for a point outside all shards, the nearest one), stitched
+     * together with whatever else is loaded.
+     */
+    GraphDB graphFor(double lon1, double lat1, double lon2, double lat2) {
+        double minLon = Math.min(lon1, lon2) - BOX_MARGIN;
+        double maxLon = Math.max(lon1, lon2) + BOX_MARGIN;
+        double minLat = Math.min(lat1, lat2) - BOX_MARGIN;
+        double maxLat = Math.max(lat1, lat2) + BOX_MARGIN;
+        BitSet needed = new BitSet();
+        for (int s = 0; s < shards.size(); s++) {
+            if (shards.get(s).intersects(minLon, minLat, maxLon, maxLat)) {
+                needed.set(s);
+            }
+        }
+        needed.set(nearest(lon1, lat1));
+        needed.set(nearest(lon2, lat2));
+
+        // Hold on to the needed graphs, in case another request evicts them meanwhile
+        GraphDB[] held = new GraphDB[shards.size()];
+        for (int s = needed.nextSetBit(0); s >= 0; s = needed.nextSetBit(s + 1)) {
+            held[s] = load(s, needed);
+        }
+        return stitchLoaded(held);
+    }
+
+    /**
+     * Returns the loaded shards stitched together.
+     */
+    GraphDB graph() {
+        return stitchLoaded(new GraphDB[shards.size()]);
+    }
+
+    /* Returns shard s, loading it if it isn't in memory and evicting others not in
+     * needed to make room. */
+    private GraphDB load(int s, BitSet needed) {
+        Shard shard = shards.get(s);
+        synchronized (shard) {
+            synchronized (this) {
+                shard.lastUsed = ++clock;
+                if (shard.graph != null) {
+                    return shard.graph;
+                }
+            }
+            long start = System.nanoTime();
+            GraphDB g = GraphDB.load(shard.path);
+            if (GraphDB.verbose()) {
+                System.out.println(String.format("Loaded shard %s in %.1f ms", shard.path,
+                        (System.nanoTime() - start) / 1e6));
+            }
+            synchronized (this) {
+                evictFor(needed);
+                shard.graph = g;
+            }
+            return g;
+        }
+    }
+
+    private int nearest(double lon, double lat) {
+        int best = 0;
+        for (int s = 1; s < shards.size(); s++) {
+            if (shards.get(s).distance(lon, lat) < shards.get(best).distance(lon, lat)) {
+                best = s;
+            }
+        }
+        return best;
+    }
+
+    /* Makes room for one more shard, evicting the least recently used one not needed. */
+    private void evictFor(BitSet needed) {
+        while (loadedCount() >= maxLoaded) {
+            Shard victim = null;
+            for (int s = 0; s < shards.size(); s++) {
+                Shard shard = shards.get(s);
+                if (shard.graph != null && !needed.get(s)
+                        && (victim == null || shard.lastUsed < victim.lastUsed)) {
+                    victim = shard;
+                }
+            }
+            if (victim == null) {
+                // Everything loaded is needed; go over budget rather than fail the query
+                return;
+            }
+            victim.graph = null;
+            if (GraphDB.verbose()) {
+                System.out.println("Evicted shard " + victim.path);
+            }
+        }
+    }
+
+    /* Returns the loaded shards, and those with a graph in held, stitched together. */
+    private GraphDB stitchLoaded(GraphDB[] held) {
+        BitSet loaded = new BitSet();
+        List<Shard> hot = new ArrayList<>();
+        List<GraphDB> graphs = new ArrayList<>();
+        synchronized (this) {
+            for (int s = 0; s < shards.size(); s++) {
+                GraphDB g = shards.get(s).graph != null ? shards.get(s).graph : held[s];
+                if (g != null) {
+                    loaded.set(s);
+                    hot.add(shards.get(s));
+                    graphs.add(g);
+                }
+            }
+            if (stitched != null && loaded.equals(stitchedShards)) {
+                return stitched;
+            }
+        }
+        long start = System.nanoTime();
+        GraphDB g = hot.size() == 1 ? graphs.get(0) : stitch(hot, graphs);
+        if (GraphDB.verbose()) {
+            System.out.println(String.format("Stitched %d shards (%d vertices) in %.1f ms",
+                    hot.size(), g.liveVertexCount(), (System.nanoTime() - start) / 1e6));
+        }
+        synchronized (this) {
+            stitched = g;
+            stitchedShards = loaded;
+        }
+        return g;
+    }
+
+    /**
+     * Joins the given shards into one graph. A border node becomes a single vertex with
+     * the edges from every shard it is in, except that an edge between two border nodes
+     * that an earlier shard already had is not added again: overlapping extracts tend
+     * to both contain the roads that cross the border.
+     *
+     * @param graphs The graph of each shard in hot.
+     */
+    private static GraphDB stitch(List<Shard> hot, List<GraphDB> graphs) {
+        // Number the vertices shard by shard, border nodes only the first time around
+        HashMap<Long, Integer> borderVertex = new HashMap<>();
+        int[][] vertexOf = new int[hot.size()][];
+        int n = 0;
+        for (int s = 0; s < hot.size(); s++) {
+            GraphDB g = graphs.get(s);
+            int[] map = new int[g.V()];
+            for (int v = 0; v < g.V(); v++) {
+                if (g.isRemoved(v)) {
+                    map[v] = -1;
+                } else if (hot.get(s).border.get(v)) {
+                    Integer first = borderVertex.putIfAbsent(g.id(v), n);
+                    map[v] = first != null ? first : n++;
+                } else {
+                    map[v] = n++;
+                }
+            }
+            vertexOf[s] = map;
+        }
+
+        long[] ids = new long[n];
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        int[] degree = new int[n];
+        HashMap<Integer, ArrayList<Integer>> borderLists = new HashMap<>();
+        for (int s = 0; s < hot.size(); s++) {
+            GraphDB g = graphs.get(s);
+            int[] map = vertexOf[s];
+            for (int v = 0; v < g.V(); v++) {
+                int m = map[v];
+                if (m < 0) {
+                    continue;
+                }
+                ids[m] = g.id(v);
+                lats[m] = g.latAt(v);
+                lons[m] = g.lonAt(v);
+                if (!hot.get(s).border.get(v)) {
+                    degree[m] = g.edgeEnd(v) - g.edgeStart(v);
+                    continue;
+                }
+                ArrayList<Integer> list = borderLists.computeIfAbsent(m, k -> new ArrayList<>());
+                ArrayList<Integer> earlier = new ArrayList<>(list);
+                for (int e = g.edgeStart(v); e < g.edgeEnd(v); e++) {
+                    int w = map[g.edgeTarget(e)];
+                    if (!earlier.remove(Integer.valueOf(w))) {
+                        list.add(w);
+                    }
+                }
+                degree[m] = list.size();
+            }
+        }
+
+        int[] offsets = new int[n + 1];
+        for (int m = 0; m < n; m++) {
+            offsets[m + 1] = offsets[m] + degree[m];
+        }
+        int[] targets = new int[offsets[n]];
+        for (int s = 0; s < hot.size(); s++) {
+            GraphDB g = graphs.get(s);
+            int[] map = vertexOf[s];
+            for (int v = 0; v < g.V(); v++) {
+                int m = map[v];
+                if (m < 0 || hot.get(s).border.get(v)) {
+                    continue;
+                }
+                int e = offsets[m];
+                for (int f = g.edgeStart(v); f < g.edgeEnd(v); f++) {
+                    targets[e++] = map[g.edgeTarget(f)];
+                }
+            }
+        }
+        for (Map.Entry<Integer, ArrayList<Integer>> entry : borderLists.entrySet()) {
+            int e = offsets[entry.getKey()];
+            for (int w : entry.getValue()) {
+                targets[e++] = w;
+            }
+        }
+
+        // Ways in more than one shard are kept once, from the first
+        int maxWays = 0;
+        int maxWayRefs = 0;
+        for (GraphDB g : graphs) {
+            maxWays += g.wayIds.length;
+            maxWayRefs += g.wayRefs.length;
+        }
+        long[] wayIds = new long[maxWays];
+        int[] wayOffsets = new int[maxWays + 1];
+        int[] wayRefs = new int[maxWayRefs];
+        int numWays = 0;
+        int numWayRefs = 0;
+        HashSet<Long> seenWays = new HashSet<>();
+        WayTable.Builder table = new WayTable.Builder();
+        HashMap<String, LinkedList<double[]>> locations = new HashMap<>();
+        for (int s = 0; s < hot.size(); s++) {
+            GraphDB g = graphs.get(s);
+            int[] map = vertexOf[s];
+            for (int way = 0; way < g.wayIds.length; way++) {
+                if ((g.removedWays != null && g.removedWays.get(way))
+                        || !seenWays.add(g.wayIds[way])) {
+                    continue;
+                }
+                wayIds[numWays] = g.wayIds[way];
+                wayOffsets[numWays] = numWayRefs;
+                table.add(g.wayTable, way);
+                numWays++;
+                for (int r = g.wayOffsets[way]; r < g.wayOffsets[way + 1]; r++) {
+                    wayRefs[numWayRefs++] = g.wayRefs[r] < 0 ? -1 : map[g.wayRefs[r]];
+                }
+            }
+            for (Map.Entry<String, LinkedList<double[]>> location : g.locations.entrySet()) {
+                locations.computeIfAbsent(location.getKey(), k -> new LinkedList<>())
+                        .addAll(location.getValue());
+            }
+        }
+        wayOffsets[numWays] = numWayRefs;
+
+        return new GraphDB(ids, lats, lons, offsets, targets, Arrays.copyOf(wayIds, numWays),
+                Arrays.copyOf(wayOffsets, numWays + 1), Arrays.copyOf(wayRefs, numWayRefs),
+                table.build(), null, locations);
+    }
+}
@@ -0,0 +1,161 @@
+import java.util.Arrays;
+
+/**
+ * Indexed 4-ary min-heap of dense vertex numbers keyed by doubles, for the graph searches
+ * in Router. Unlike a java.util.PriorityQueue of objects it holds each vertex at most
+ * once and lowers a vertex's key in place when a search finds a better route to it
+ * (decrease-key), so the heap never fills up with stale entries and a search allocates
+ * nothing per edge. A 4-ary heap is shallower than a binary one, and the four children of
+ * an entry sit next to each other in the arrays, which suits the many decrease-keys and
+ * few pops of a road network search.
+ * <p>
+ * A heap is sized for a graph once and then reused by search after search; clear() only
+ * touches the entries still in it. Not thread safe.
+ */
+class VertexHeap {
+    private static final int ARITY = 4;
+
+    /* Vertices in heap order, and the key of each; position[v] is where vertex v is in
+     * them, or -1 if it isn't in the heap. */
+    private int[] vertices;
+    private double[] keys;
+    private int[] position;
+    private int size;
+
+    /**
+     * Creates an empty heap for vertices 0 up to (but not including) numVertices.
+     */
+    VertexHeap(int numVertices) {
+        vertices = new int[Math.max(16, numVertices)];
+        keys = new double[vertices.length];
+        position = new int[numVertices];
+        Arrays.fill(position, -1);
+    }
+
+    /**
+     * Makes room for vertices up to numVertices, e.g. for a newer version of the graph.
+     */
+    void ensureCapacity(int numVertices) {
+        if (numVertices > position.length) {
+            int old = position.length;
+            position = Arrays.copyOf(position, numVertices);
+            Arrays.fill(position, old, numVertices, -1);
+            vertices = Arrays.copyOf(vertices, Math.max(vertices.length, numVertices));
+            keys = Arrays.copyOf(keys, vertices.length);
+        }
+    }
+
+    boolean isEmpty() {
+        return size == 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(int v) {
+        return position[v] >= 0;
+    }
+
+    /**
+     * Returns the smallest key in the heap, which must not be empty.
+     */
+    double minKey() {
+        return keys[0];
+    }
+
+    /**
+     * Adds v with the given key, or if v is already in the heap, lowers its key to key.
+     * A key higher than v's current one is ignored.
+     *
+     * @return True if v was added or its key lowered.
+     */
+    boolean push(int v, double key) {
+        int pos = position[v];
+        if (pos < 0) {
+            pos = size++;
+        } else if (key >= keys[pos]) {
+            return false;
+        }
+        siftUp(pos, v, key);
+        return true;
+    }
+
+    /**
+     * Adds v with the given key, or if v is already in the heap, changes its key to key,
+     * whether that is lower or higher.
+     */
+    void set(int v, double key) {
+        int pos = position[v];
+        if (pos < 0 || key < keys[pos]) {
+            push(v, key);
+        } else {
+            siftDown(pos, v, key);
+        }
+    }
+
+    /**
+     * Removes and returns the vertex with the smallest key. The heap must not be empty.
+     */
+    int pop() {
+        int top = vertices[0];
+        position[top] = -1;
+        size--;
+        if (size > 0) {
+            siftDown(0, vertices[size], keys[size]);
+        }
+        return top;
+    }
+
+    /**
+     * Empties the heap.
+     */
+    void clear() {
+        for (int i = 0; i < size; i++) {
+            position[vertices[i]] = -1;
+        }
+        size = 0;
+    }
+
+    /* Puts (v, key) at pos or above it, moving larger parents down. */
+    private void siftUp(int pos, int v, double key) {
+        while (pos > 0) {
+            int parent = (pos - 1) / ARITY;
+            if (keys[parent] <= key) {
+                break;
+            }
+            place(pos, vertices[parent], keys[parent]);
+            pos = parent;
+        }
+        place(pos, v, key);
+    }
+
+    /* Puts (v, key) at pos or below it, moving smaller children up. */
+    private void siftDown(int pos, int v, double key) {
+        while (true) {
+            int first = ARITY * pos + 1;
+            if (first >= size) {
+                break;
+            }
+            int best = first;
+            int end = Math.min(first + ARITY, size);
+            for (int child = first + 1; child < end; child++) {
+                if (keys[child] < keys[best]) {
+                    best = child;
+                }
+            }
+            if (keys[best] >= key) {
+                break;
+            }
+            place(pos, vertices[best], keys[best]);
+            pos = best;
+        }
+        place(pos, v, key);
+    }
+
+    private void place(int pos, int v, double key) {
+        vertices[pos] = v;
+        keys[pos] = key;
+        position[v] = pos;
+    }
+}
@@ -0,0 +1,157 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * What a GraphDB keeps about each road way besides its nodes: the name, speed limit,
+ * highway class and flags (see WayTags), one primitive column each, indexed by way
+ * number (the same numbers as GraphDB.wayIds). Each distinct name is stored once in a
+ * string pool and the names column holds its position there, so a map where thousands
+ * of ways are called "Residential Street" pays for the string once. Edges find their
+ * way through GraphDB.edgeWays, so nothing here is per edge.
+ * <p>
+ * A table never changes once built; Builder makes new ones, either from scratch or by
+ * appending to an existing table.
+ */
+class WayTable {
+    /* The name pool, and each way's position in it, or -1 if the way has no name. */
+    final String[] strings;
+    final int[] names;
+    /* The maxspeed tag in km/h, 0 if the way has none. */
+    final short[] maxSpeeds;
+    /* GraphBuildingHandler.highwayClass of each way, -1 if unknown. */
+    final byte[] classes;
+    /* WayTags flag bits. */
+    final byte[] flags;
+
+    WayTable(String[] strings, int[] names, short[] maxSpeeds, byte[] classes, byte[] flags) {
+        this.strings = strings;
+        this.names = names;
+        this.maxSpeeds = maxSpeeds;
+        this.classes = classes;
+        this.flags = flags;
+    }
+
+    /**
+     * Returns the number of ways in the table.
+     */
+    int size() {
+        return names.length;
+    }
+
+    /**
+     * Returns the name of the given way, or "" if it has none.
+     */
+    String name(int way) {
+        return names[way] >= 0 ? strings[names[way]] : "";
+    }
+
+    /**
+     * Returns the speed in km/h to expect on the given way: its speed limit if it has
+     * one, or else the typical speed of its class.
+     */
+    int speed(int way) {
+        return maxSpeeds[way] > 0 ? maxSpeeds[way] : WayTags.classSpeed(classes[way]);
+    }
+
+    /**
+     * Returns true if the given way has the WayTags flag bit set.
+     */
+    boolean hasFlag(int way, int flag) {
+        return (flags[way] & flag) != 0;
+    }
+
+    /**
+     * Returns roughly how many bytes the table takes up, strings included.
+     */
+    long bytes() {
+        long bytes = 8L * names.length + 8L * strings.length;
+        for (String s : strings) {
+            bytes += 40 + 2L * s.length();
+        }
+        return bytes;
+    }
+
+    /**
+     * Collects ways for a new WayTable, interning their names as it goes.
+     */
+    static class Builder {
+        private final ArrayList<String> strings = new ArrayList<>();
+        private final HashMap<String, Integer> pool = new HashMap<>();
+        private int[] names;
+        private short[] maxSpeeds;
+        private byte[] classes;
+        private byte[] flags;
+        private int size;
+
+        Builder() {
+            names = new int[16];
+            maxSpeeds = new short[16];
+            classes = new byte[16];
+            flags = new byte[16];
+        }
+
+        /**
+         * Starts from the ways of base, keeping their numbers, so that added ways are
+         * numbered after them.
+         */
+        Builder(WayTable base) {
+            size = base.size();
+            int capacity = Math.max(16, size + size / 8);
+            names = Arrays.copyOf(base.names, capacity);
+            maxSpeeds = Arrays.copyOf(base.maxSpeeds, capacity);
+            classes = Arrays.copyOf(base.classes, capacity);
+            flags = Arrays.copyOf(base.flags, capacity);
+            for (String s : base.strings) {
+                pool.put(s, strings.size());
+                strings.add(s);
+            }
+        }
+
+        /**
+         * Adds a way with the given tags and returns its way number.
+         */
+        int add(WayTags tags) {
+            return add(tags.name, tags.maxSpeed, tags.highwayClass, tags.flags);
+        }
+
+        /**
+         * Adds a copy of way number way of table and returns its number here.
+         */
+        int add(WayTable table, int way) {
+            String name = table.names[way] >= 0 ? table.strings[table.names[way]] : null;
+            return add(name, table.maxSpeeds[way], table.classes[way], table.flags[way]);
+        }
+
+        private int add(String name, int maxSpeed, int highwayClass, int wayFlags) {
+            if (size == names.length) {
+                int capacity = size * 2;
+                names = Arrays.copyOf(names, capacity);
+                maxSpeeds = Arrays.copyOf(maxSpeeds, capacity);
+                classes = Arrays.copyOf(classes, capacity);
+                flags = Arrays.copyOf(flags, capacity);
+            }
+            names[size] = name == null ? -1 : intern(name);
+            maxSpeeds[size] = (short) Math.min(maxSpeed, Short.MAX_VALUE);
+            classes[size] = (byte) highwayClass;
+            flags[size] = (byte) wayFlags;
+            return size++;
+        }
+
+        private int intern(String s) {
+            Integer i = pool.get(s);
+            if (i == null) {
+                i = strings.size();
+                pool.put(s, i);
+                strings.add(s);
+            }
+            return i;
+        }
+
+        WayTable build() {
+            return new WayTable(strings.toArray(new String[0]), Arrays.copyOf(names, size),
+                    Arrays.copyOf(maxSpeeds, size), Arrays.copyOf(classes, size),
+                    Arrays.copyOf(flags, size));
+        }
+    }
+}
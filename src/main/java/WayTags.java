@@ -0,0 +1,114 @@
+/**
+ * The tags of one OSM way that the graph keeps: its name, speed limit, highway class
+ * and flags. GraphBuildingHandler and OsmChange feed it a way's tags one at a time, and
+ * WayTable stores the result for every road.
+ * See <a href="https://wiki.openstreetmap.org/wiki/Key:maxspeed">maxspeed</a> and
+ * <a href="https://wiki.openstreetmap.org/wiki/Key:oneway">oneway</a>.
+ */
+class WayTags {
+    /** Flag: traffic may only go from the way's first node towards its last. */
+    static final int ONEWAY = 1;
+    /** Flag: traffic may only go from the way's last node towards its first. */
+    static final int ONEWAY_REVERSE = 2;
+    /** Flag: the way is part of a roundabout. */
+    static final int ROUNDABOUT = 4;
+
+    /**
+     * Typical speeds in km/h for roads of each highway class (see
+     * GraphBuildingHandler.highwayClass), used when a way has no usable maxspeed tag.
+     */
+    private static final int[] CLASS_SPEEDS = {
+        100, // motorway
+        80,  // trunk
+        65,  // primary
+        55,  // secondary
+        50,  // tertiary
+        40,  // unclassified
+        40,  // residential
+        10,  // living_street
+        60,  // motorway_link
+        50,  // trunk_link
+        50,  // primary_link
+        45,  // secondary_link
+        40,  // tertiary_link
+    };
+    /** Speed in km/h for a way whose class isn't known. */
+    static final int DEFAULT_SPEED = 40;
+
+    /** The name tag, or null if there is none. */
+    String name;
+    /** The maxspeed tag in km/h, or 0 if there is none or it isn't a number. */
+    int maxSpeed;
+    /** The highway class, or -1 if the way isn't a road we route on. */
+    int highwayClass = -1;
+    /** ONEWAY, ONEWAY_REVERSE and ROUNDABOUT bits. */
+    int flags;
+
+    /**
+     * Takes in one tag of the way.
+     */
+    void tag(String k, String v) {
+        switch (k) {
+            case "highway":
+                highwayClass = GraphBuildingHandler.highwayClass(v);
+                break;
+            case "name":
+                name = v;
+                break;
+            case "maxspeed":
+                maxSpeed = parseMaxSpeed(v);
+                break;
+            case "oneway":
+                if (v.equals("yes") || v.equals("true") || v.equals("1")) {
+                    flags |= ONEWAY;
+                } else if (v.equals("-1") || v.equals("reverse")) {
+                    flags |= ONEWAY_REVERSE;
+                }
+                break;
+            case "junction":
+                if (v.equals("roundabout")) {
+                    flags |= ROUNDABOUT;
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Returns true if the way is a road we route on.
+     */
+    boolean isRoad() {
+        return highwayClass >= 0;
+    }
+
+    /**
+     * Returns a maxspeed value in km/h, or 0 if it doesn't start with a number (such as
+     * "none", "signals" or "walk"). Values in mph or knots are converted; only the
+     * whole number part is used.
+     */
+    static int parseMaxSpeed(String v) {
+        int digits = 0;
+        while (digits < v.length() && digits < 4 && Character.isDigit(v.charAt(digits))) {
+            digits++;
+        }
+        if (digits == 0) {
+            return 0;
+        }
+        double speed = Integer.parseInt(v.substring(0, digits));
+        if (v.contains("mph")) {
+            speed *= 1.609344;
+        } else if (v.contains("knots")) {
+            speed *= 1.852;
+        }
+        return (int) Math.round(speed);
+    }
+
+    /**
+     * Returns the typical speed in km/h of a road of the given highway class.
+     */
+    static int classSpeed(int highwayClass) {
+        return highwayClass >= 0 && highwayClass < CLASS_SPEEDS.length
+                ? CLASS_SPEEDS[highwayClass] : DEFAULT_SPEED;
+    }
+}
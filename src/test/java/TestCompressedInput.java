@@ -0,0 +1,150 @@
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests that the tiny graph builds the same from gzip and bzip2 compressed files as from
+ * the plain XML, whatever the files are called.
+ */
+public class TestCompressedInput {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static final String PBF_PATH_TINY = "../library-sp18/data/tiny-clean.osm.pbf";
+
+    private static final double[][] POINTS = {
+        {0.1, 38.1}, {0.2, 38.2}, {0.4, 38.1}, {0.4, 38.6}, {0.5, 38.5}, {0.6, 38.3},
+        {0.6, 38.6}, {0.45, 38.2}
+    };
+
+    private static GraphDB plain;
+    private static byte[] xml;
+    private static File dir;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        plain = new GraphDB(OSM_DB_PATH_TINY);
+        xml = Files.readAllBytes(Paths.get(OSM_DB_PATH_TINY));
+        dir = Files.createTempDirectory("compressed").toFile();
+        dir.deleteOnExit();
+        initialized = true;
+    }
+
+    private static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new GZIPOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] bzip2(byte[] data) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (OutputStream out = new BZip2CompressorOutputStream(bytes)) {
+            out.write(data);
+        }
+        return bytes.toByteArray();
+    }
+
+    /* Writes data to a file of the given name in the temporary directory. */
+    private static File write(String name, byte[] data) throws IOException {
+        File file = new File(dir, name);
+        file.deleteOnExit();
+        Files.write(file.toPath(), data);
+        return file;
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        try (InputStream in = CompressedInput.open(file)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                bytes.write(buffer, 0, n);
+            }
+            return bytes.toByteArray();
+        }
+    }
+
+    private static void assertSameGraph(GraphDB expected, GraphDB actual) {
+        assertEquals(expected.V(), actual.V());
+        assertEquals(expected.E(), actual.E());
+        for (int v = 0; v < expected.V(); v++) {
+            assertEquals(expected.id(v), actual.id(v));
+            assertEquals(expected.latAt(v), actual.latAt(v), 1e-7);
+            assertEquals(expected.lonAt(v), actual.lonAt(v), 1e-7);
+            assertEquals(expected.edgeStart(v), actual.edgeStart(v));
+        }
+        for (int e = 0; e < expected.E(); e++) {
+            assertEquals(expected.edgeTarget(e), actual.edgeTarget(e));
+            assertEquals(expected.edgeName(e), actual.edgeName(e));
+        }
+        for (double[] from : POINTS) {
+            for (double[] to : POINTS) {
+                assertEquals(Router.shortestPath(expected, from[0], from[1], to[0], to[1]),
+                        Router.shortestPath(actual, from[0], from[1], to[0], to[1]));
+            }
+        }
+    }
+
+    @Test
+    public void testDetect() throws Exception {
+        byte[] gz = gzip(xml);
+        byte[] bz2 = bzip2(xml);
+        assertEquals(CompressedInput.Format.GZIP, CompressedInput.detect(gz, gz.length));
+        assertEquals(CompressedInput.Format.BZIP2, CompressedInput.detect(bz2, bz2.length));
+        assertEquals(CompressedInput.Format.NONE, CompressedInput.detect(xml, xml.length));
+        // Too short to tell
+        assertEquals(CompressedInput.Format.NONE, CompressedInput.detect(gz, 1));
+        assertEquals(CompressedInput.Format.NONE, CompressedInput.detect(bz2, 2));
+    }
+
+    @Test
+    public void testOpen() throws Exception {
+        assertArrayEquals(xml, readAll(write("open.osm.xml.gz", gzip(xml))));
+        assertArrayEquals(xml, readAll(write("open.osm.xml.bz2", bzip2(xml))));
+        assertArrayEquals(xml, readAll(write("open.osm.xml", xml)));
+        assertArrayEquals(new byte[0], readAll(write("empty.osm.xml.gz", new byte[0])));
+    }
+
+    @Test
+    public void testGzip() throws Exception {
+        File file = write("tiny.osm.xml.gz", gzip(xml));
+        assertSameGraph(plain, new GraphDB(file.getPath()));
+    }
+
+    @Test
+    public void testBzip2() throws Exception {
+        File file = write("tiny.osm.xml.bz2", bzip2(xml));
+        assertSameGraph(plain, new GraphDB(file.getPath()));
+    }
+
+    @Test
+    public void testMisleadingExtension() throws Exception {
+        // The first bytes decide, not the name
+        assertSameGraph(plain, new GraphDB(write("gzip.osm.xml.bz2", gzip(xml)).getPath()));
+        assertSameGraph(plain, new GraphDB(write("bzip2.osm.xml.gz", bzip2(xml)).getPath()));
+        assertSameGraph(plain, new GraphDB(write("bzip2.osm.xml", bzip2(xml)).getPath()));
+        assertSameGraph(plain, new GraphDB(write("plain.osm.xml.gz", xml).getPath()));
+    }
+
+    @Test
+    public void testCompressedPbf() throws Exception {
+        byte[] pbf = Files.readAllBytes(Paths.get(PBF_PATH_TINY));
+        assertSameGraph(plain, new GraphDB(write("tiny.osm.pbf.gz", gzip(pbf)).getPath()));
+        assertSameGraph(plain, new GraphDB(write("tiny.osm.pbf.bz2", bzip2(pbf)).getPath()));
+    }
+}
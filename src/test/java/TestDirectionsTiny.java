@@ -0,0 +1,108 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests the driving directions on the tiny graph, where Top Street and Side Avenue meet
+ * at 66 and an unnamed road branches off Side Avenue at 63 towards 55.
+ */
+public class TestDirectionsTiny {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    private static double distance(long v, long w) {
+        return graphTiny.distance(v, w);
+    }
+
+    private static void assertDirection(int direction, String way, double distance,
+                                        Router.NavigationDirection actual) {
+        assertEquals(Router.NavigationDirection.DIRECTIONS[direction],
+                Router.NavigationDirection.DIRECTIONS[actual.direction]);
+        assertEquals(way, actual.way);
+        assertEquals(distance, actual.distance, 1e-9);
+    }
+
+    @Test
+    public void testOneWay() {
+        List<Router.NavigationDirection> directions =
+                Router.routeDirections(graphTiny, Arrays.asList(22L, 46L, 66L));
+        assertEquals(1, directions.size());
+        assertDirection(Router.NavigationDirection.START, "Top Street",
+                distance(22, 46) + distance(46, 66), directions.get(0));
+    }
+
+    @Test
+    public void testTurnLeft() {
+        // North up Side Avenue, then west along Top Street
+        List<Router.NavigationDirection> directions =
+                Router.routeDirections(graphTiny, Arrays.asList(41L, 63L, 66L, 46L));
+        assertEquals(2, directions.size());
+        assertDirection(Router.NavigationDirection.START, "Side Avenue",
+                distance(41, 63) + distance(63, 66), directions.get(0));
+        assertDirection(Router.NavigationDirection.LEFT, "Top Street",
+                distance(66, 46), directions.get(1));
+        assertEquals("Turn left on Top Street and continue for "
+                        + String.format("%.3f", distance(66, 46)) + " miles.",
+                directions.get(1).toString());
+    }
+
+    @Test
+    public void testUnnamedWay() {
+        // South down Side Avenue, then back north-west onto the road without a name
+        List<Router.NavigationDirection> directions =
+                Router.routeDirections(graphTiny, Arrays.asList(66L, 63L, 55L));
+        assertEquals(2, directions.size());
+        assertDirection(Router.NavigationDirection.START, "Side Avenue", distance(66, 63),
+                directions.get(0));
+        assertDirection(Router.NavigationDirection.SHARP_RIGHT, "", distance(63, 55),
+                directions.get(1));
+    }
+
+    @Test
+    public void testUnknownRoad() {
+        // There is no road from 11 to 41
+        List<Router.NavigationDirection> directions =
+                Router.routeDirections(graphTiny, Arrays.asList(22L, 11L, 41L));
+        assertEquals(2, directions.size());
+        assertEquals("Top Street", directions.get(0).way);
+        assertEquals(Router.NavigationDirection.UNKNOWN_ROAD, directions.get(1).way);
+    }
+
+    @Test
+    public void testShortRoutes() {
+        assertEquals(0, Router.routeDirections(graphTiny, Arrays.asList(22L)).size());
+        assertEquals(0, Router.routeDirections(graphTiny, Arrays.<Long>asList()).size());
+    }
+
+    @Test
+    public void testTurn() {
+        assertEquals(Router.NavigationDirection.STRAIGHT,
+                Router.NavigationDirection.turn(10));
+        assertEquals(Router.NavigationDirection.STRAIGHT,
+                Router.NavigationDirection.turn(355));
+        assertEquals(Router.NavigationDirection.SLIGHT_RIGHT,
+                Router.NavigationDirection.turn(20));
+        assertEquals(Router.NavigationDirection.SLIGHT_LEFT,
+                Router.NavigationDirection.turn(-20));
+        assertEquals(Router.NavigationDirection.RIGHT, Router.NavigationDirection.turn(90));
+        assertEquals(Router.NavigationDirection.LEFT, Router.NavigationDirection.turn(-450));
+        assertEquals(Router.NavigationDirection.SHARP_RIGHT,
+                Router.NavigationDirection.turn(150));
+        assertEquals(Router.NavigationDirection.SHARP_LEFT,
+                Router.NavigationDirection.turn(210));
+    }
+}
@@ -0,0 +1,213 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests GraphCompactor by patching the tiny graph until enough of it is removed to be
+ * worth compacting, and comparing the compacted graph with one built from scratch out of
+ * the changed OSM file, before and after a trip through a GraphSnapshot.
+ */
+public class TestGraphCompactor {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    /* Creates node 77 and way 4 through it, cuts way 1 short of 66 and deletes way 3
+     * along with node 55, which was only on that way. */
+    private static final String CHANGE = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osmChange version=\"0.6\" generator=\"hand\">\n"
+            + "  <create>\n"
+            + "    <node id=\"77\" lat=\"38.4\" lon=\"0.3\"/>\n"
+            + "    <way id=\"4\">\n"
+            + "      <nd ref=\"22\"/>\n"
+            + "      <nd ref=\"77\"/>\n"
+            + "      <nd ref=\"63\"/>\n"
+            + "      <tag k=\"highway\" v=\"residential\"/>\n"
+            + "    </way>\n"
+            + "  </create>\n"
+            + "  <modify>\n"
+            + "    <way id=\"1\">\n"
+            + "      <nd ref=\"11\"/>\n"
+            + "      <nd ref=\"22\"/>\n"
+            + "      <nd ref=\"46\"/>\n"
+            + "      <tag k=\"highway\" v=\"residential\"/>\n"
+            + "      <tag k=\"name\" v=\"Top Street\"/>\n"
+            + "    </way>\n"
+            + "  </modify>\n"
+            + "  <delete>\n"
+            + "    <way id=\"3\"/>\n"
+            + "    <node id=\"55\"/>\n"
+            + "  </delete>\n"
+            + "</osmChange>\n";
+
+    /* The tiny graph with CHANGE applied. */
+    private static final String CHANGED = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osm version=\"0.6\" generator=\"hand\">\n"
+            + "  <node id=\"11\" lat=\"38.1\" lon=\"0.1\"/>\n"
+            + "  <node id=\"22\" lat=\"38.2\" lon=\"0.2\"/>\n"
+            + "  <node id=\"41\" lat=\"38.1\" lon=\"0.4\"/>\n"
+            + "  <node id=\"46\" lat=\"38.6\" lon=\"0.4\"/>\n"
+            + "  <node id=\"63\" lat=\"38.3\" lon=\"0.6\"/>\n"
+            + "  <node id=\"66\" lat=\"38.6\" lon=\"0.6\"/>\n"
+            + "  <node id=\"77\" lat=\"38.4\" lon=\"0.3\"/>\n"
+            + "  <way id=\"1\">\n"
+            + "    <nd ref=\"11\"/>\n"
+            + "    <nd ref=\"22\"/>\n"
+            + "    <nd ref=\"46\"/>\n"
+            + "    <tag k=\"highway\" v=\"residential\"/>\n"
+            + "    <tag k=\"name\" v=\"Top Street\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"2\">\n"
+            + "    <nd ref=\"41\"/>\n"
+            + "    <nd ref=\"63\"/>\n"
+            + "    <nd ref=\"66\"/>\n"
+            + "    <tag k=\"highway\" v=\"primary\"/>\n"
+            + "    <tag k=\"name\" v=\"Side Avenue\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"4\">\n"
+            + "    <nd ref=\"22\"/>\n"
+            + "    <nd ref=\"77\"/>\n"
+            + "    <nd ref=\"63\"/>\n"
+            + "    <tag k=\"highway\" v=\"residential\"/>\n"
+            + "  </way>\n"
+            + "</osm>\n";
+
+    /* Points to snap and route between: on, near and well away from the roads. */
+    private static final double[][] POINTS = {
+        {0.1, 38.1}, {0.2, 38.2}, {0.4, 38.1}, {0.4, 38.6}, {0.5, 38.5}, {0.6, 38.3},
+        {0.6, 38.6}, {0.3, 38.4}, {0.25, 38.3}, {0.45, 38.2}, {0.55, 38.45}, {-1.0, 40.0}
+    };
+
+    private static GraphDB base;
+    private static GraphDB patched;
+    private static GraphDB compacted;
+    private static GraphDB rebuilt;
+    private static GraphDB restored;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        File dir = Files.createTempDirectory("graphcompactor").toFile();
+        File change = new File(dir, "change.osc");
+        File changed = new File(dir, "changed.osm.xml");
+        File snapshot = GraphSnapshot.snapshotFile(changed.getPath());
+        Files.write(change.toPath(), CHANGE.getBytes(StandardCharsets.UTF_8));
+        Files.write(changed.toPath(), CHANGED.getBytes(StandardCharsets.UTF_8));
+
+        base = new GraphDB(OSM_DB_PATH_TINY);
+        patched = GraphPatch.apply(base, OsmChange.read(change));
+        compacted = GraphCompactor.compact(patched);
+        rebuilt = new GraphDB(changed.getPath());
+        GraphSnapshot.write(compacted, snapshot, changed);
+        restored = GraphSnapshot.read(snapshot, changed);
+        change.delete();
+        changed.delete();
+        snapshot.delete();
+        dir.delete();
+        initialized = true;
+    }
+
+    /* The vertex ids in vertex number order. */
+    private static List<Long> ids(GraphDB g) {
+        List<Long> ids = new ArrayList<>();
+        for (int v = 0; v < g.V(); v++) {
+            ids.add(g.id(v));
+        }
+        return ids;
+    }
+
+    /* The neighbours of each vertex by id. */
+    private static TreeMap<Long, Set<Long>> adjacency(GraphDB g) {
+        TreeMap<Long, Set<Long>> adjacency = new TreeMap<>();
+        for (long v : g.vertices()) {
+            Set<Long> neighbours = new TreeSet<>();
+            for (long w : g.adjacent(v)) {
+                neighbours.add(w);
+            }
+            adjacency.put(v, neighbours);
+        }
+        return adjacency;
+    }
+
+    /* The node ids and name of each way, by way id. */
+    private static TreeMap<Long, List<Object>> ways(GraphDB g) {
+        TreeMap<Long, List<Object>> ways = new TreeMap<>();
+        for (int way = 0; way < g.wayIds.length; way++) {
+            List<Object> nodes = new ArrayList<>();
+            for (int i = g.wayOffsets[way]; i < g.wayOffsets[way + 1]; i++) {
+                nodes.add(g.wayRefs[i] < 0 ? -1L : g.id(g.wayRefs[i]));
+            }
+            nodes.add(g.wayTable.name(way));
+            assertNull(ways.put(g.wayIds[way], nodes));
+        }
+        return ways;
+    }
+
+    /* The route between every pair of POINTS. */
+    private static List<List<Long>> routes(GraphDB g) {
+        List<List<Long>> routes = new ArrayList<>();
+        for (double[] from : POINTS) {
+            for (double[] to : POINTS) {
+                routes.add(Router.shortestPath(g, from[0], from[1], to[0], to[1]));
+            }
+        }
+        return routes;
+    }
+
+    @Test
+    public void testWorthCompacting() {
+        assertFalse(GraphCompactor.worthCompacting(base));
+        // Node 55 and the old entries of ways 1 and 3 are marked removed
+        assertTrue(GraphCompactor.worthCompacting(patched));
+        assertFalse(GraphCompactor.worthCompacting(compacted));
+    }
+
+    @Test
+    public void testRemovedAreGone() {
+        assertNull(compacted.removed);
+        assertNull(compacted.removedWays);
+        assertEquals(rebuilt.V(), compacted.V());
+        assertEquals(compacted.V(), compacted.liveVertexCount());
+        assertFalse(ids(compacted).contains(55L));
+        assertEquals(ways(rebuilt), ways(compacted));
+        assertEquals(patched.version, compacted.version);
+    }
+
+    @Test
+    public void testLikeFreshParse() {
+        // The new node keeps the number the patch gave it, so only the sets match
+        assertEquals(new TreeSet<>(ids(rebuilt)), new TreeSet<>(ids(compacted)));
+        assertEquals(adjacency(rebuilt), adjacency(compacted));
+        assertEquals(rebuilt.E(), compacted.E());
+        for (long v : rebuilt.vertices()) {
+            assertEquals(rebuilt.lon(v), compacted.lon(v), 1e-9);
+            assertEquals(rebuilt.lat(v), compacted.lat(v), 1e-9);
+        }
+        assertEquals(routes(rebuilt), routes(compacted));
+        assertEquals(routes(patched), routes(compacted));
+    }
+
+    @Test
+    public void testSnapshot() {
+        assertNotNull(restored);
+        assertEquals(ids(compacted), ids(restored));
+        assertEquals(adjacency(compacted), adjacency(restored));
+        assertEquals(ways(compacted), ways(restored));
+        assertEquals(routes(compacted), routes(restored));
+    }
+}
@@ -0,0 +1,208 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests GraphPatch by applying a small OsmChange to the tiny graph and comparing the
+ * result with a graph built from scratch out of the changed OSM file.
+ */
+public class TestGraphPatch {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    /* Creates node 77 and way 4 through it, moves node 41, cuts way 1 short of 66 and
+     * deletes way 3 along with node 55, which was only on that way. */
+    private static final String CHANGE = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osmChange version=\"0.6\" generator=\"hand\">\n"
+            + "  <create>\n"
+            + "    <node id=\"77\" lat=\"38.4\" lon=\"0.3\"/>\n"
+            + "    <way id=\"4\">\n"
+            + "      <nd ref=\"22\"/>\n"
+            + "      <nd ref=\"77\"/>\n"
+            + "      <nd ref=\"63\"/>\n"
+            + "      <tag k=\"highway\" v=\"residential\"/>\n"
+            + "    </way>\n"
+            + "  </create>\n"
+            + "  <modify>\n"
+            + "    <node id=\"41\" lat=\"38.15\" lon=\"0.35\"/>\n"
+            + "    <way id=\"1\">\n"
+            + "      <nd ref=\"11\"/>\n"
+            + "      <nd ref=\"22\"/>\n"
+            + "      <nd ref=\"46\"/>\n"
+            + "      <tag k=\"highway\" v=\"residential\"/>\n"
+            + "      <tag k=\"name\" v=\"Top Street\"/>\n"
+            + "    </way>\n"
+            + "  </modify>\n"
+            + "  <delete>\n"
+            + "    <way id=\"3\"/>\n"
+            + "    <node id=\"55\"/>\n"
+            + "  </delete>\n"
+            + "</osmChange>\n";
+
+    /* The tiny graph with CHANGE applied. */
+    private static final String CHANGED = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osm version=\"0.6\" generator=\"hand\">\n"
+            + "  <node id=\"11\" lat=\"38.1\" lon=\"0.1\"/>\n"
+            + "  <node id=\"22\" lat=\"38.2\" lon=\"0.2\"/>\n"
+            + "  <node id=\"41\" lat=\"38.15\" lon=\"0.35\"/>\n"
+            + "  <node id=\"46\" lat=\"38.6\" lon=\"0.4\"/>\n"
+            + "  <node id=\"63\" lat=\"38.3\" lon=\"0.6\"/>\n"
+            + "  <node id=\"66\" lat=\"38.6\" lon=\"0.6\"/>\n"
+            + "  <node id=\"77\" lat=\"38.4\" lon=\"0.3\"/>\n"
+            + "  <way id=\"1\">\n"
+            + "    <nd ref=\"11\"/>\n"
+            + "    <nd ref=\"22\"/>\n"
+            + "    <nd ref=\"46\"/>\n"
+            + "    <tag k=\"highway\" v=\"residential\"/>\n"
+            + "    <tag k=\"name\" v=\"Top Street\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"2\">\n"
+            + "    <nd ref=\"41\"/>\n"
+            + "    <nd ref=\"63\"/>\n"
+            + "    <nd ref=\"66\"/>\n"
+            + "    <tag k=\"highway\" v=\"primary\"/>\n"
+            + "    <tag k=\"name\" v=\"Side Avenue\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"4\">\n"
+            + "    <nd ref=\"22\"/>\n"
+            + "    <nd ref=\"77\"/>\n"
+            + "    <nd ref=\"63\"/>\n"
+            + "    <tag k=\"highway\" v=\"residential\"/>\n"
+            + "  </way>\n"
+            + "</osm>\n";
+
+    /* Points to snap and route between: on, near and well away from the roads. */
+    private static final double[][] POINTS = {
+        {0.1, 38.1}, {0.2, 38.2}, {0.35, 38.15}, {0.4, 38.6}, {0.5, 38.5}, {0.6, 38.3},
+        {0.6, 38.6}, {0.3, 38.4}, {0.25, 38.3}, {0.45, 38.2}, {0.55, 38.45}, {-1.0, 40.0}
+    };
+
+    private static GraphDB base;
+    private static GraphDB patched;
+    private static GraphDB rebuilt;
+    private static GraphDB untouched;
+    private static TreeMap<Long, Set<Long>> baseAdjacency;
+    private static List<List<Long>> baseRoutes;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        File dir = Files.createTempDirectory("graphpatch").toFile();
+        File change = new File(dir, "change.osc");
+        File changed = new File(dir, "changed.osm.xml");
+        Files.write(change.toPath(), CHANGE.getBytes(StandardCharsets.UTF_8));
+        Files.write(changed.toPath(), CHANGED.getBytes(StandardCharsets.UTF_8));
+
+        base = new GraphDB(OSM_DB_PATH_TINY);
+        // Build the base's indexes first, so the patch layers its own over them
+        base.snapToEdge(0.3, 38.3);
+        baseAdjacency = adjacency(base);
+        baseRoutes = routes(base);
+
+        patched = GraphPatch.apply(base, OsmChange.read(change));
+        rebuilt = new GraphDB(changed.getPath());
+        untouched = new GraphDB(OSM_DB_PATH_TINY);
+        change.delete();
+        changed.delete();
+        dir.delete();
+        initialized = true;
+    }
+
+    /* The neighbours of each vertex by id. */
+    private static TreeMap<Long, Set<Long>> adjacency(GraphDB g) {
+        TreeMap<Long, Set<Long>> adjacency = new TreeMap<>();
+        for (long v : g.vertices()) {
+            Set<Long> neighbours = new TreeSet<>();
+            for (long w : g.adjacent(v)) {
+                neighbours.add(w);
+            }
+            adjacency.put(v, neighbours);
+        }
+        return adjacency;
+    }
+
+    /* The route between every pair of POINTS. */
+    private static List<List<Long>> routes(GraphDB g) {
+        List<List<Long>> routes = new ArrayList<>();
+        for (double[] from : POINTS) {
+            for (double[] to : POINTS) {
+                routes.add(Router.shortestPath(g, from[0], from[1], to[0], to[1]));
+            }
+        }
+        return routes;
+    }
+
+    @Test
+    public void testVerticesAndAdjacency() {
+        assertEquals(adjacency(rebuilt), adjacency(patched));
+        assertEquals(rebuilt.liveVertexCount(), patched.liveVertexCount());
+        assertEquals(rebuilt.E(), patched.E());
+        for (long v : rebuilt.vertices()) {
+            assertEquals(rebuilt.lon(v), patched.lon(v), 1e-9);
+            assertEquals(rebuilt.lat(v), patched.lat(v), 1e-9);
+        }
+        assertTrue(patched.version > base.version);
+    }
+
+    @Test
+    public void testClosestAndSnapToEdge() {
+        for (double[] point : POINTS) {
+            assertEquals(rebuilt.closest(point[0], point[1]),
+                    patched.closest(point[0], point[1]));
+            PhantomNode expected = rebuilt.snapToEdge(point[0], point[1]);
+            PhantomNode actual = patched.snapToEdge(point[0], point[1]);
+            assertEquals(expected.lon, actual.lon, 1e-9);
+            assertEquals(expected.lat, actual.lat, 1e-9);
+            assertEquals(expected.snapDistance, actual.snapDistance, 1e-9);
+            if (expected.t <= 0 || expected.t >= 1) {
+                // Snapped onto a vertex, which any of its edges may have given
+                continue;
+            }
+            Set<Long> expectedEnds = new TreeSet<>();
+            expectedEnds.add(rebuilt.id(expected.u));
+            expectedEnds.add(rebuilt.id(expected.v));
+            Set<Long> actualEnds = new TreeSet<>();
+            actualEnds.add(patched.id(actual.u));
+            actualEnds.add(patched.id(actual.v));
+            assertEquals(expectedEnds, actualEnds);
+        }
+    }
+
+    @Test
+    public void testRoutes() {
+        assertEquals(routes(rebuilt), routes(patched));
+        // The new way is the only road from 22 to 63 now that 66 is off Top Street
+        List<Long> expected = new ArrayList<>();
+        expected.add(22L);
+        expected.add(77L);
+        expected.add(63L);
+        expected.add(66L);
+        assertEquals(expected, Router.shortestPath(patched, 0.2, 38.2, 0.6, 38.6));
+    }
+
+    @Test
+    public void testBaseUntouched() {
+        assertEquals(baseAdjacency, adjacency(base));
+        assertEquals(adjacency(untouched), adjacency(base));
+        assertEquals(baseRoutes, routes(base));
+        assertEquals(routes(untouched), routes(base));
+        for (long v : untouched.vertices()) {
+            assertEquals(untouched.lon(v), base.lon(v), 1e-9);
+            assertEquals(untouched.lat(v), base.lat(v), 1e-9);
+        }
+        assertEquals(55L, base.closest(0.5, 38.5));
+    }
+}
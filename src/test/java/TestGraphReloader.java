@@ -0,0 +1,144 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests GraphReloader on the tiny graph: swapping in a reloaded or patched graph,
+ * turning away a reload while another runs, and carrying on after one fails.
+ */
+public class TestGraphReloader {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    /* Creates node 77 and way 4 through it. */
+    private static final String CHANGE = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osmChange version=\"0.6\" generator=\"hand\">\n"
+            + "  <create>\n"
+            + "    <node id=\"77\" lat=\"38.4\" lon=\"0.3\"/>\n"
+            + "    <way id=\"4\">\n"
+            + "      <nd ref=\"22\"/>\n"
+            + "      <nd ref=\"77\"/>\n"
+            + "      <nd ref=\"63\"/>\n"
+            + "      <tag k=\"highway\" v=\"residential\"/>\n"
+            + "    </way>\n"
+            + "  </create>\n"
+            + "</osmChange>\n";
+
+    private static File osm;
+    private static File change;
+    private static File broken;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        // Copied, so the snapshot a reload writes lands in the temporary directory
+        File dir = Files.createTempDirectory("graphreloader").toFile();
+        dir.deleteOnExit();
+        osm = new File(dir, "tiny.osm.xml");
+        Files.copy(Paths.get(OSM_DB_PATH_TINY), osm.toPath());
+        change = new File(dir, "change.osc");
+        Files.write(change.toPath(), CHANGE.getBytes(StandardCharsets.UTF_8));
+        broken = new File(dir, "broken.osc");
+        Files.write(broken.toPath(), "not xml".getBytes(StandardCharsets.UTF_8));
+        for (File f : new File[]{osm, GraphSnapshot.snapshotFile(osm.getPath()), change,
+            broken}) {
+            f.deleteOnExit();
+        }
+        initialized = true;
+    }
+
+    /* Waits for the running reload to finish and returns how it went. */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> await(GraphReloader reloader) throws Exception {
+        long deadline = System.currentTimeMillis() + 30000;
+        while (Boolean.TRUE.equals(reloader.status().get("reloading"))) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("Reload still running");
+            }
+            Thread.sleep(5);
+        }
+        return (Map<String, Object>) reloader.status().get("last");
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        GraphDB before = new GraphDB(OSM_DB_PATH_TINY);
+        GraphReloader reloader = new GraphReloader(before);
+        assertSame(before, reloader.current());
+        assertTrue(reloader.reload(osm.getPath()));
+        assertEquals("done", await(reloader).get("outcome"));
+        assertNotSame(before, reloader.current());
+        assertEquals(1L, reloader.status().get("generation"));
+        assertEquals(before.liveVertexCount(), reloader.current().liveVertexCount());
+        assertEquals(Router.shortestPath(before, 0.1, 38.1, 0.6, 38.6),
+                Router.shortestPath(reloader.current(), 0.1, 38.1, 0.6, 38.6));
+    }
+
+    @Test
+    public void testApplyChange() throws Exception {
+        GraphDB before = new GraphDB(OSM_DB_PATH_TINY);
+        GraphReloader reloader = new GraphReloader(before);
+        assertTrue(reloader.applyChange(change.getPath()));
+        assertEquals("done", await(reloader).get("outcome"));
+        GraphDB after = reloader.current();
+        assertEquals(before.liveVertexCount() + 1, after.liveVertexCount());
+        assertEquals(22L, (long) Router.shortestPath(after, 0.2, 38.2, 0.3, 38.4).get(0));
+        assertTrue(after.version > before.version);
+    }
+
+    @Test
+    public void testOneAtATime() throws Exception {
+        GraphReloader reloader = new GraphReloader(new GraphDB(OSM_DB_PATH_TINY));
+        assertTrue(reloader.reload(osm.getPath()));
+        assertFalse(reloader.reload(osm.getPath()));
+        assertFalse(reloader.applyChange(change.getPath()));
+        assertEquals("done", await(reloader).get("outcome"));
+        assertEquals(1L, reloader.status().get("generation"));
+        // Turned away while busy, but free again once it is done
+        assertTrue(reloader.applyChange(change.getPath()));
+        assertEquals("done", await(reloader).get("outcome"));
+        assertEquals(2L, reloader.status().get("generation"));
+    }
+
+    @Test
+    public void testRecoversFromFailure() throws Exception {
+        GraphDB before = new GraphDB(OSM_DB_PATH_TINY);
+        GraphReloader reloader = new GraphReloader(before);
+        assertTrue(reloader.applyChange(broken.getPath()));
+        Map<String, Object> last = await(reloader);
+        assertEquals("failed", last.get("outcome"));
+        assertTrue(String.valueOf(last.get("error")).contains("Bad OsmChange file"));
+        assertSame(before, reloader.current());
+        assertEquals(0L, reloader.status().get("generation"));
+
+        assertTrue(reloader.applyChange(change.getPath()));
+        assertEquals("done", await(reloader).get("outcome"));
+        assertEquals(before.liveVertexCount() + 1, reloader.current().liveVertexCount());
+        assertEquals(1L, reloader.status().get("generation"));
+    }
+
+    @Test
+    public void testMissingFile() {
+        GraphReloader reloader = new GraphReloader(new GraphDB(OSM_DB_PATH_TINY));
+        try {
+            reloader.reload(new File(osm.getParentFile(), "missing.osm.xml").getPath());
+            fail("Reloaded a missing file");
+        } catch (IllegalArgumentException e) {
+            assertFalse(Boolean.TRUE.equals(reloader.status().get("reloading")));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that a GraphSnapshot of the tiny graph reads back as the same graph, and that a
+ * damaged, outdated or stale snapshot is ignored.
+ */
+public class TestGraphSnapshot {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    /* Points to route between: the vertices and a few places off the roads. */
+    private static final double[][] POINTS = {
+        {0.1, 38.1}, {0.2, 38.2}, {0.4, 38.1}, {0.4, 38.6}, {0.5, 38.5}, {0.6, 38.3},
+        {0.6, 38.6}, {0.3, 38.4}, {0.45, 38.2}, {-1.0, 40.0}
+    };
+
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    private File dir;
+    private File source;
+    private File snapshot;
+
+    @Before
+    public void setUp() throws Exception {
+        if (!initialized) {
+            graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+            initialized = true;
+        }
+        // A copy of the OSM file, so the tests can change it under the snapshot
+        dir = Files.createTempDirectory("snapshot").toFile();
+        dir.deleteOnExit();
+        source = new File(dir, "tiny-clean.osm.xml");
+        source.deleteOnExit();
+        Files.copy(new File(OSM_DB_PATH_TINY).toPath(), source.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        snapshot = GraphSnapshot.snapshotFile(source.getPath());
+        snapshot.deleteOnExit();
+        GraphSnapshot.write(graphTiny, snapshot, source);
+    }
+
+    private static List<List<Long>> routes(GraphDB g) {
+        List<List<Long>> routes = new ArrayList<>();
+        for (double[] from : POINTS) {
+            for (double[] to : POINTS) {
+                routes.add(Router.shortestPath(g, from[0], from[1], to[0], to[1]));
+            }
+        }
+        return routes;
+    }
+
+    /* Overwrites the bytes of file at position with bytes. */
+    private static void overwrite(File file, long position, byte[] bytes) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(position);
+            raf.write(bytes);
+        }
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        GraphDB g = GraphSnapshot.read(snapshot, source);
+        assertNotNull(g);
+        assertEquals(graphTiny.V(), g.V());
+        assertEquals(graphTiny.E(), g.E());
+        for (int v = 0; v < g.V(); v++) {
+            assertEquals(graphTiny.id(v), g.id(v));
+            assertEquals(graphTiny.latAt(v), g.latAt(v), 0);
+            assertEquals(graphTiny.lonAt(v), g.lonAt(v), 0);
+            assertEquals(graphTiny.edgeStart(v), g.edgeStart(v));
+            assertEquals(graphTiny.edgeEnd(v), g.edgeEnd(v));
+            assertEquals(v, g.index(g.id(v)));
+        }
+        for (int e = 0; e < g.E(); e++) {
+            assertEquals(graphTiny.edgeTarget(e), g.edgeTarget(e));
+            assertEquals(graphTiny.edgeWay(e), g.edgeWay(e));
+            assertEquals(graphTiny.edgeName(e), g.edgeName(e));
+            assertEquals(graphTiny.edgeSpeed(e), g.edgeSpeed(e));
+            for (Metric metric : Metric.values()) {
+                assertEquals(graphTiny.weight(metric, e), g.weight(metric, e), 0);
+            }
+        }
+        assertArrayEquals(graphTiny.wayIds, g.wayIds);
+        assertArrayEquals(graphTiny.wayOffsets, g.wayOffsets);
+        assertArrayEquals(graphTiny.wayRefs, g.wayRefs);
+        for (Metric metric : Metric.values()) {
+            assertEquals(graphTiny.fingerprint(metric), g.fingerprint(metric));
+        }
+        assertEquals(graphTiny.locations.keySet(), g.locations.keySet());
+        assertEquals(routes(graphTiny), routes(g));
+        for (double[] point : POINTS) {
+            assertEquals(graphTiny.closest(point[0], point[1]), g.closest(point[0], point[1]));
+        }
+    }
+
+    @Test
+    public void testLoadWritesSnapshot() throws Exception {
+        assertTrue(snapshot.delete());
+        GraphDB parsed = GraphDB.load(source.getPath());
+        assertTrue(snapshot.isFile());
+        GraphDB loaded = GraphDB.load(source.getPath());
+        assertEquals(routes(parsed), routes(loaded));
+        assertEquals(routes(graphTiny), routes(loaded));
+    }
+
+    @Test
+    public void testMissing() throws Exception {
+        assertNull(GraphSnapshot.read(new File(dir, "missing.snapshot"), source));
+    }
+
+    @Test
+    public void testTruncated() throws Exception {
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "rw")) {
+            raf.setLength(raf.length() - 1);
+        }
+        assertNull(GraphSnapshot.read(snapshot, source));
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "rw")) {
+            raf.setLength(10);
+        }
+        assertNull(GraphSnapshot.read(snapshot, source));
+    }
+
+    @Test
+    public void testChecksum() throws Exception {
+        long last = snapshot.length() - 1;
+        byte[] b = new byte[1];
+        try (RandomAccessFile raf = new RandomAccessFile(snapshot, "r")) {
+            raf.seek(last);
+            b[0] = (byte) ~raf.readByte();
+        }
+        overwrite(snapshot, last, b);
+        assertNull(GraphSnapshot.read(snapshot, source));
+    }
+
+    @Test
+    public void testVersion() throws Exception {
+        // The version follows the four byte magic number
+        overwrite(snapshot, 4, new byte[]{0, 0, 0, (byte) (GraphSnapshot.VERSION + 1)});
+        assertNull(GraphSnapshot.read(snapshot, source));
+    }
+
+    @Test
+    public void testSourceTouched() throws Exception {
+        assertTrue(source.setLastModified(source.lastModified() - 60_000));
+        assertNull(GraphSnapshot.read(snapshot, source));
+    }
+
+    @Test
+    public void testSourceLength() throws Exception {
+        long modified = source.lastModified();
+        try (RandomAccessFile raf = new RandomAccessFile(source, "rw")) {
+            raf.seek(raf.length());
+            raf.write('\n');
+        }
+        assertTrue(source.setLastModified(modified));
+        assertNull(GraphSnapshot.read(snapshot, source));
+        // Once rewritten for the changed file it is good again
+        GraphSnapshot.write(graphTiny, snapshot, source);
+        assertNotNull(GraphSnapshot.read(snapshot, source));
+    }
+}
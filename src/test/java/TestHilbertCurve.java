@@ -0,0 +1,191 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests HilbertCurve: that the curve visits every cell of a small grid once, a step at a
+ * time, that sorting keeps each id with its coordinates, and that a graph numbered in
+ * curve order (GraphDB.HILBERT_ORDER_PROPERTY) routes like one numbered by OSM id.
+ */
+public class TestHilbertCurve {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    /* Points to route between: on, near and well away from the roads. */
+    private static final double[][] POINTS = {
+        {0.1, 38.1}, {0.2, 38.2}, {0.4, 38.1}, {0.4, 38.6}, {0.5, 38.5}, {0.6, 38.3},
+        {0.6, 38.6}, {0.3, 38.4}, {0.25, 38.3}, {0.45, 38.2}, {0.55, 38.45}, {-1.0, 40.0}
+    };
+
+    private static GraphDB graphTiny;
+    private static GraphDB graphHilbert;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        String hilbert = System.getProperty(GraphDB.HILBERT_ORDER_PROPERTY);
+        System.setProperty(GraphDB.HILBERT_ORDER_PROPERTY, "true");
+        try {
+            graphHilbert = new GraphDB(OSM_DB_PATH_TINY);
+        } finally {
+            if (hilbert == null) {
+                System.clearProperty(GraphDB.HILBERT_ORDER_PROPERTY);
+            } else {
+                System.setProperty(GraphDB.HILBERT_ORDER_PROPERTY, hilbert);
+            }
+        }
+        initialized = true;
+    }
+
+    /* The cell of each point of a bounding box cut up the way HilbertCurve.sort does. */
+    private static long[] cells(double[] lats, double[] lons) {
+        double minLat = Double.POSITIVE_INFINITY;
+        double maxLat = Double.NEGATIVE_INFINITY;
+        double minLon = Double.POSITIVE_INFINITY;
+        double maxLon = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < lats.length; i++) {
+            minLat = Math.min(minLat, lats[i]);
+            maxLat = Math.max(maxLat, lats[i]);
+            minLon = Math.min(minLon, lons[i]);
+            maxLon = Math.max(maxLon, lons[i]);
+        }
+        int cells = (1 << HilbertCurve.ORDER) - 1;
+        long[] indexes = new long[lats.length];
+        for (int i = 0; i < lats.length; i++) {
+            int x = (int) ((lons[i] - minLon) * cells / (maxLon - minLon));
+            int y = (int) ((lats[i] - minLat) * cells / (maxLat - minLat));
+            indexes[i] = HilbertCurve.index(x, y);
+        }
+        return indexes;
+    }
+
+    @Test
+    public void testBijection() {
+        for (int order = 1; order <= 5; order++) {
+            int side = 1 << order;
+            int[][] cellAt = new int[side * side][];
+            for (int x = 0; x < side; x++) {
+                for (int y = 0; y < side; y++) {
+                    long d = HilbertCurve.index(order, x, y);
+                    assertTrue(d >= 0 && d < side * side);
+                    assertEquals(null, cellAt[(int) d]);
+                    cellAt[(int) d] = new int[]{x, y};
+                }
+            }
+            assertEquals(0, cellAt[0][0]);
+            assertEquals(0, cellAt[0][1]);
+            assertEquals(side - 1, cellAt[side * side - 1][0]);
+            assertEquals(0, cellAt[side * side - 1][1]);
+            for (int d = 1; d < side * side; d++) {
+                int step = Math.abs(cellAt[d][0] - cellAt[d - 1][0])
+                        + Math.abs(cellAt[d][1] - cellAt[d - 1][1]);
+                assertEquals(1, step);
+            }
+        }
+    }
+
+    @Test
+    public void testFullOrder() {
+        // The corner of the full grid is a small grid of its own, visited first
+        int side = 1 << 4;
+        for (int x = 0; x < side; x++) {
+            for (int y = 0; y < side; y++) {
+                long d = HilbertCurve.index(x, y);
+                assertTrue(d < side * side);
+            }
+        }
+        int last = (1 << HilbertCurve.ORDER) - 1;
+        assertEquals((1L << 2 * HilbertCurve.ORDER) - 1, HilbertCurve.index(last, 0));
+    }
+
+    @Test
+    public void testSort() {
+        Random random = new Random(17);
+        int n = 500;
+        long[] ids = new long[n];
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        Map<Long, double[]> points = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            ids[i] = 1000 + 7L * i;
+            // Every fifth point on top of the one before, so some share a cell
+            lats[i] = i % 5 == 4 ? lats[i - 1] : 37.8 + random.nextDouble() * 0.1;
+            lons[i] = i % 5 == 4 ? lons[i - 1] : -122.3 + random.nextDouble() * 0.1;
+            points.put(ids[i], new double[]{lats[i], lons[i]});
+        }
+
+        HilbertCurve.sort(ids, lats, lons);
+        Map<Long, Integer> seen = new HashMap<>();
+        for (int i = 0; i < n; i++) {
+            assertEquals(null, seen.put(ids[i], i));
+            double[] point = points.get(ids[i]);
+            assertEquals(point[0], lats[i], 0);
+            assertEquals(point[1], lons[i], 0);
+        }
+        assertEquals(n, seen.size());
+        long[] cells = cells(lats, lons);
+        for (int i = 1; i < n; i++) {
+            assertTrue(cells[i - 1] <= cells[i]);
+            if (cells[i - 1] == cells[i]) {
+                // Same cell, so still in the order they came in
+                assertTrue(ids[i - 1] < ids[i]);
+            }
+        }
+    }
+
+    @Test
+    public void testGraphOrder() {
+        int n = graphHilbert.V();
+        assertEquals(graphTiny.V(), n);
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        for (int v = 0; v < n; v++) {
+            lats[v] = graphHilbert.latAt(v);
+            lons[v] = graphHilbert.lonAt(v);
+            long id = graphHilbert.id(v);
+            assertEquals(graphTiny.lat(id), graphHilbert.lat(id), 1e-9);
+            assertEquals(graphTiny.lon(id), graphHilbert.lon(id), 1e-9);
+        }
+        long[] cells = cells(lats, lons);
+        for (int v = 1; v < n; v++) {
+            assertTrue(cells[v - 1] <= cells[v]);
+        }
+    }
+
+    @Test
+    public void testRoutes() {
+        List<List<Long>> expected = new ArrayList<>();
+        List<List<Long>> actual = new ArrayList<>();
+        for (double[] from : POINTS) {
+            for (double[] to : POINTS) {
+                expected.add(Router.shortestPath(graphTiny, from[0], from[1], to[0], to[1]));
+                actual.add(Router.shortestPath(graphHilbert, from[0], from[1], to[0], to[1]));
+            }
+        }
+        assertEquals(expected, actual);
+        for (long v : graphTiny.vertices()) {
+            List<Long> neighbours = new ArrayList<>();
+            for (long w : graphTiny.adjacent(v)) {
+                neighbours.add(w);
+            }
+            List<Long> hilbertNeighbours = new ArrayList<>();
+            for (long w : graphHilbert.adjacent(v)) {
+                hilbertNeighbours.add(w);
+            }
+            neighbours.sort(null);
+            hilbertNeighbours.sort(null);
+            assertEquals(neighbours, hilbertNeighbours);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests KdTree nearest and k-nearest queries on the tiny graph against a linear scan of
+ * the vertices, on a grid of points over the graph and well beyond it.
+ */
+public class TestKdTree {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    /* Nodes 1 and 2 at the same spot, on two roads, so a query there has a tie. */
+    private static final String TIES = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osm version=\"0.6\" generator=\"hand\">\n"
+            + "  <node id=\"3\" lat=\"38.0\" lon=\"0.0\"/>\n"
+            + "  <node id=\"2\" lat=\"38.5\" lon=\"0.5\"/>\n"
+            + "  <node id=\"1\" lat=\"38.5\" lon=\"0.5\"/>\n"
+            + "  <node id=\"4\" lat=\"39.0\" lon=\"1.0\"/>\n"
+            + "  <way id=\"10\">\n"
+            + "    <nd ref=\"3\"/>\n"
+            + "    <nd ref=\"2\"/>\n"
+            + "    <tag k=\"highway\" v=\"residential\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"11\">\n"
+            + "    <nd ref=\"1\"/>\n"
+            + "    <nd ref=\"4\"/>\n"
+            + "    <tag k=\"highway\" v=\"residential\"/>\n"
+            + "  </way>\n"
+            + "</osm>\n";
+
+    private static GraphDB graphTiny;
+    private static GraphDB graphTies;
+    private static List<double[]> points;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        File ties = File.createTempFile("ties", ".osm.xml");
+        Files.write(ties.toPath(), TIES.getBytes(StandardCharsets.UTF_8));
+        graphTies = new GraphDB(ties.getPath());
+        ties.delete();
+
+        // The tiny graph spans 0.1 to 0.6 longitude and 38.1 to 38.6 latitude
+        points = new ArrayList<>();
+        for (int i = 0; i <= 22; i++) {
+            for (int j = 0; j <= 22; j++) {
+                points.add(new double[]{-0.2 + 0.05 * i, 37.8 + 0.05 * j});
+            }
+        }
+        points.add(new double[]{-122.26, 37.87});
+        points.add(new double[]{0.35, -60.0});
+        points.add(new double[]{179.0, 38.3});
+        initialized = true;
+    }
+
+    /* All live vertices of g, closest to the point first, ties by vertex number. */
+    private static int[] linearScan(GraphDB g, double lon, double lat) {
+        List<Integer> vertices = new ArrayList<>();
+        for (int v = 0; v < g.V(); v++) {
+            if (!g.isRemoved(v)) {
+                vertices.add(v);
+            }
+        }
+        vertices.sort((v, w) -> {
+            int byDistance = Double.compare(
+                    GraphDB.distance(lon, lat, g.lonAt(v), g.latAt(v)),
+                    GraphDB.distance(lon, lat, g.lonAt(w), g.latAt(w)));
+            return byDistance != 0 ? byDistance : Integer.compare(v, w);
+        });
+        int[] sorted = new int[vertices.size()];
+        for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = vertices.get(i);
+        }
+        return sorted;
+    }
+
+    @Test
+    public void testNearest() {
+        KdTree tree = new KdTree(graphTiny);
+        assertEquals(graphTiny.V(), tree.size());
+        for (double[] p : points) {
+            int expected = linearScan(graphTiny, p[0], p[1])[0];
+            assertEquals(expected, tree.nearest(p[0], p[1]));
+            assertEquals(expected, graphTiny.closestIndex(p[0], p[1]));
+        }
+    }
+
+    @Test
+    public void testKNearest() {
+        KdTree tree = new KdTree(graphTiny);
+        for (double[] p : points) {
+            int[] expected = linearScan(graphTiny, p[0], p[1]);
+            for (int k = 1; k <= expected.length; k++) {
+                assertArrayEquals(Arrays.copyOf(expected, k), tree.nearest(p[0], p[1], k));
+            }
+            // Asking for more than there are gives them all
+            assertArrayEquals(expected, tree.nearest(p[0], p[1], expected.length + 3));
+            assertEquals(0, tree.nearest(p[0], p[1], 0).length);
+        }
+    }
+
+    @Test
+    public void testTies() {
+        KdTree tree = new KdTree(graphTies);
+        int lower = Math.min(graphTies.index(1), graphTies.index(2));
+        int higher = Math.max(graphTies.index(1), graphTies.index(2));
+        // At the shared spot, and anywhere else the two are the nearest
+        double[][] queries = {{0.5, 38.5}, {0.45, 38.55}, {0.52, 38.4}, {0.6, 38.5}};
+        for (double[] q : queries) {
+            assertEquals(lower, tree.nearest(q[0], q[1]));
+            assertArrayEquals(new int[]{lower, higher}, tree.nearest(q[0], q[1], 2));
+            assertArrayEquals(linearScan(graphTies, q[0], q[1]),
+                    tree.nearest(q[0], q[1], graphTies.V()));
+        }
+    }
+
+    @Test
+    public void testSavedOrder() {
+        KdTree tree = new KdTree(graphTiny);
+        // As a GraphSnapshot hands it back
+        KdTree restored = new KdTree(graphTiny, tree.order());
+        for (double[] p : points) {
+            assertArrayEquals(tree.nearest(p[0], p[1], 3), restored.nearest(p[0], p[1], 3));
+        }
+    }
+}
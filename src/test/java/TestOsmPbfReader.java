@@ -0,0 +1,100 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests that the tiny graph reads the same from PBF as from XML, and that a PBF file cut
+ * off partway fails with an IOException.
+ */
+public class TestOsmPbfReader {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static final String PBF_PATH_TINY = "../library-sp18/data/tiny-clean.osm.pbf";
+
+    private static final double[][] POINTS = {
+        {0.1, 38.1}, {0.2, 38.2}, {0.4, 38.1}, {0.4, 38.6}, {0.5, 38.5}, {0.6, 38.3},
+        {0.6, 38.6}, {0.45, 38.2}
+    };
+
+    private static GraphDB fromXml;
+    private static GraphDB fromPbf;
+    private static byte[] pbf;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        fromXml = new GraphDB(OSM_DB_PATH_TINY);
+        fromPbf = new GraphDB(PBF_PATH_TINY);
+        pbf = Files.readAllBytes(Paths.get(PBF_PATH_TINY));
+        initialized = true;
+    }
+
+    @Test
+    public void testSameAsXml() {
+        assertEquals(fromXml.V(), fromPbf.V());
+        assertEquals(fromXml.E(), fromPbf.E());
+        for (int v = 0; v < fromXml.V(); v++) {
+            assertEquals(fromXml.id(v), fromPbf.id(v));
+            assertEquals(fromXml.latAt(v), fromPbf.latAt(v), 1e-7);
+            assertEquals(fromXml.lonAt(v), fromPbf.lonAt(v), 1e-7);
+            assertEquals(fromXml.edgeStart(v), fromPbf.edgeStart(v));
+        }
+        for (int e = 0; e < fromXml.E(); e++) {
+            assertEquals(fromXml.edgeTarget(e), fromPbf.edgeTarget(e));
+            assertEquals(fromXml.edgeName(e), fromPbf.edgeName(e));
+            assertEquals(fromXml.edgeSpeed(e), fromPbf.edgeSpeed(e));
+        }
+        for (double[] from : POINTS) {
+            for (double[] to : POINTS) {
+                assertEquals(Router.shortestPath(fromXml, from[0], from[1], to[0], to[1]),
+                        Router.shortestPath(fromPbf, from[0], from[1], to[0], to[1]));
+            }
+        }
+        List<Long> expected = new ArrayList<>();
+        expected.add(41L);
+        expected.add(63L);
+        expected.add(66L);
+        expected.add(46L);
+        assertEquals(expected, Router.shortestPath(fromPbf, 0.4, 38.1, 0.4, 38.6));
+    }
+
+    /* Reads the first length bytes of the tiny PBF file, which should fail. */
+    private static void assertTruncatedFails(int length, int workers) {
+        byte[] truncated = Arrays.copyOf(pbf, length);
+        // The reader must give up before it builds anything into this
+        GraphBuildingHandler handler = new GraphBuildingHandler(new GraphDB(0, 0));
+        try {
+            new OsmPbfReader(handler, workers).run(new ByteArrayInputStream(truncated));
+            fail("Read " + length + " of " + pbf.length + " bytes without an error");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testTruncatedBlobHeader() {
+        assertTruncatedFails(2, 0);
+        assertTruncatedFails(10, 0);
+    }
+
+    @Test
+    public void testTruncatedBlob() {
+        // Partway into the OSMHeader blob, and into the first OSMData blob
+        assertTruncatedFails(40, 0);
+        assertTruncatedFails(150, 0);
+        // The last blob, while a worker has the one before it
+        assertTruncatedFails(pbf.length - 1, 2);
+    }
+}
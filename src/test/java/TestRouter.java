@@ -44,6 +44,26 @@ public class TestRouter {
         }
     }
 
+    @Test
+    public void testShortestPathBidirectional() throws Exception {
+        List<Map<String, Double>> testParams = paramsFromFile();
+        List<List<Long>> expectedResults = resultsFromFile();
+
+        for (int i = 0; i < NUM_TESTS; i++) {
+            Map<String, Double> params = testParams.get(i);
+            int[] vertices = Router.shortestPathVertices(graph, Metric.DISTANCE,
+                    Router.SearchMode.BIDIRECTIONAL, params.get("start_lon"),
+                    params.get("start_lat"), params.get("end_lon"), params.get("end_lat"),
+                    null);
+            List<Long> actual = new ArrayList<>();
+            for (int v : vertices) {
+                actual.add(graph.id(v));
+            }
+            assertEquals("Bidirectional search did not match the expected results",
+                    expectedResults.get(i), actual);
+        }
+    }
+
     private List<Map<String, Double>> paramsFromFile() throws Exception {
         List<String> lines = Files.readAllLines(Paths.get(PARAMS_FILE), Charset.defaultCharset());
         List<Map<String, Double>> testParams = new ArrayList<>();
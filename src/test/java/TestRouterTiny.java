@@ -1,10 +1,18 @@
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.List;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Created by hug, 4/9/2018. Basic tests for A* on the tiny graph.
@@ -12,7 +20,13 @@ import static org.junit.Assert.assertEquals;
  */
 public class TestRouterTiny {
     private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    /* Routes from 22 to 66, 22 to 11, 41 to 46 and 66 to 55. */
+    private static final double[][] QUERIES = {{0.2, 38.2, 0.6, 38.6}, {0.2, 38.2, 0.1, 38.1},
+        {0.4, 38.1, 0.4, 38.6}, {0.6, 38.6, 0.5, 38.5}};
     private static GraphDB graphTiny;
+    /* The tiny graph with node 41 moved: the same vertices, but other edge weights. */
+    private static GraphDB graphMoved;
+    private static File dir;
     private static boolean initialized = false;
 
     @Before
@@ -21,9 +35,41 @@ public class TestRouterTiny {
             return;
         }
         graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        dir = Files.createTempDirectory("routertiny").toFile();
+        dir.deleteOnExit();
+        String moved = new String(Files.readAllBytes(Paths.get(OSM_DB_PATH_TINY)),
+                StandardCharsets.UTF_8).replace("lat=\"38.1\" lon=\"0.4\"",
+                "lat=\"38.15\" lon=\"0.35\"");
+        File movedFile = tempFile("moved.osm.xml");
+        Files.write(movedFile.toPath(), moved.getBytes(StandardCharsets.UTF_8));
+        graphMoved = new GraphDB(movedFile.getPath());
         initialized = true;
     }
 
+    private static File tempFile(String name) {
+        File file = new File(dir, name);
+        file.deleteOnExit();
+        return file;
+    }
+
+    /* Checks that each of QUERIES routes by metric in mode along the path plain A* takes. */
+    private static void assertSameAsAStar(Metric metric, Router.SearchMode mode) {
+        for (double[] q : QUERIES) {
+            Router.SearchStats stats = new Router.SearchStats();
+            int[] actual = Router.shortestPathVertices(graphTiny, metric, mode,
+                    q[0], q[1], q[2], q[3], stats);
+            int[] expected = Router.shortestPathVertices(graphTiny, metric,
+                    q[0], q[1], q[2], q[3]);
+            assertArrayEquals(expected, actual);
+            assertTrue(stats.settled > 0);
+        }
+    }
+
+    /* A metric other than metric, for files built for the wrong one. */
+    private static Metric otherMetric(Metric metric) {
+        return Metric.values()[(metric.ordinal() + 1) % Metric.values().length];
+    }
+
     @Test
     public void test22to66() {
         List<Long> actual = Router.shortestPath(graphTiny, 0.2, 38.2, 0.6, 38.6);
@@ -63,4 +109,207 @@ public class TestRouterTiny {
         expected.add(55L);
         assertEquals(expected, actual);
     }
+
+    @Test
+    public void testBidirectional() {
+        for (Metric metric : Metric.values()) {
+            assertSameAsAStar(metric, Router.SearchMode.BIDIRECTIONAL);
+        }
+    }
+
+    @Test
+    public void testContractionHierarchy() {
+        for (Metric metric : Metric.values()) {
+            graphTiny.hierarchies[metric.ordinal()] =
+                    ContractionHierarchy.build(graphTiny, metric);
+        }
+        try {
+            for (Metric metric : Metric.values()) {
+                assertSameAsAStar(metric, Router.SearchMode.CONTRACTION_HIERARCHY);
+            }
+        } finally {
+            graphTiny.hierarchies = new ContractionHierarchy[Metric.values().length];
+        }
+    }
+
+    @Test
+    public void testContractionHierarchyFile() throws Exception {
+        for (Metric metric : Metric.values()) {
+            ContractionHierarchy built = ContractionHierarchy.build(graphTiny, metric);
+            File file = tempFile("tiny.ch-" + metric);
+            built.write(file);
+            ContractionHierarchy read = ContractionHierarchy.read(file, graphTiny, metric);
+            assertNotNull(read);
+            assertArrayEquals(built.rank, read.rank);
+            assertArrayEquals(built.upOffsets, read.upOffsets);
+            assertArrayEquals(built.upTargets, read.upTargets);
+            assertArrayEquals(built.upWeights, read.upWeights, 0);
+            assertArrayEquals(built.upMiddles, read.upMiddles);
+            assertArrayEquals(built.downOffsets, read.downOffsets);
+            assertArrayEquals(built.downSources, read.downSources);
+            assertArrayEquals(built.downWeights, read.downWeights, 0);
+            assertArrayEquals(built.downMiddles, read.downMiddles);
+            assertEquals(built.graphFingerprint, read.graphFingerprint);
+            // Not for another graph with the same vertices, nor for another metric
+            assertNull(ContractionHierarchy.read(file, graphMoved, metric));
+            assertNull(ContractionHierarchy.read(file, graphTiny, otherMetric(metric)));
+        }
+        assertNull(ContractionHierarchy.read(tempFile("missing.ch"), graphTiny,
+                Metric.DISTANCE));
+    }
+
+    @Test
+    public void testLandmarks() {
+        try {
+            for (Landmarks.Selection selection : Landmarks.Selection.values()) {
+                for (Metric metric : Metric.values()) {
+                    Landmarks landmarks = Landmarks.build(graphTiny, metric, 3, selection);
+                    graphTiny.landmarks[metric.ordinal()] = landmarks;
+                    assertSameAsAStar(metric, Router.SearchMode.LANDMARKS);
+                    for (double[] q : QUERIES) {
+                        int[] expected = Router.shortestPathVertices(graphTiny, metric,
+                                q[0], q[1], q[2], q[3]);
+                        // The bound may not overestimate the route
+                        double length = 0;
+                        for (int i = 1; i < expected.length; i++) {
+                            length += graphTiny.weight(metric,
+                                    graphTiny.edgeBetween(expected[i - 1], expected[i]));
+                        }
+                        assertTrue(landmarks.lowerBound(expected[0],
+                                expected[expected.length - 1]) <= length + 1e-9);
+                    }
+                }
+            }
+        } finally {
+            graphTiny.landmarks = new Landmarks[Metric.values().length];
+        }
+    }
+
+    @Test
+    public void testLandmarksFile() throws Exception {
+        for (Metric metric : Metric.values()) {
+            Landmarks built = Landmarks.build(graphTiny, metric, 3, Landmarks.Selection.AVOID);
+            File file = tempFile("tiny.alt-" + metric);
+            built.write(file);
+            Landmarks read = Landmarks.read(file, graphTiny, metric);
+            assertNotNull(read);
+            assertArrayEquals(built.vertices, read.vertices);
+            assertEquals(built.unit, read.unit, 0);
+            assertArrayEquals(built.from, read.from);
+            assertArrayEquals(built.to, read.to);
+            assertEquals(built.graphFingerprint, read.graphFingerprint);
+            assertNull(Landmarks.read(file, graphMoved, metric));
+            assertNull(Landmarks.read(file, graphTiny, otherMetric(metric)));
+        }
+    }
+
+    @Test
+    public void testHubLabels() {
+        List<Long> vertices = new ArrayList<>();
+        for (long v : graphTiny.vertices()) {
+            vertices.add(v);
+        }
+        for (Metric metric : Metric.values()) {
+            // Without labels, routeDistance searches
+            double[][] expected = new double[vertices.size()][vertices.size()];
+            for (int i = 0; i < vertices.size(); i++) {
+                for (int j = 0; j < vertices.size(); j++) {
+                    expected[i][j] = graphTiny.routeDistance(metric, vertices.get(i),
+                            vertices.get(j));
+                }
+            }
+            graphTiny.hubLabels[metric.ordinal()] = HubLabels.build(graphTiny, metric);
+            try {
+                for (int i = 0; i < vertices.size(); i++) {
+                    for (int j = 0; j < vertices.size(); j++) {
+                        assertEquals(expected[i][j], graphTiny.routeDistance(metric,
+                                vertices.get(i), vertices.get(j)), 1e-9);
+                    }
+                }
+            } finally {
+                graphTiny.hubLabels = new HubLabels[Metric.values().length];
+            }
+        }
+    }
+
+    @Test
+    public void testHubLabelsFile() throws Exception {
+        for (Metric metric : Metric.values()) {
+            HubLabels built = HubLabels.build(graphTiny, metric);
+            File file = tempFile("tiny.hl-" + metric);
+            built.write(file);
+            HubLabels read = HubLabels.read(file, graphTiny, metric);
+            assertNotNull(read);
+            assertArrayEquals(built.outOffsets, read.outOffsets);
+            assertArrayEquals(built.outHubs, read.outHubs);
+            assertArrayEquals(built.outDists, read.outDists, 0);
+            assertArrayEquals(built.inOffsets, read.inOffsets);
+            assertArrayEquals(built.inHubs, read.inHubs);
+            assertArrayEquals(built.inDists, read.inDists, 0);
+            assertEquals(built.graphFingerprint, read.graphFingerprint);
+            assertNull(HubLabels.read(file, graphMoved, metric));
+            assertNull(HubLabels.read(file, graphTiny, otherMetric(metric)));
+        }
+    }
+
+    @Test
+    public void testOverlay() {
+        // Cells small enough for the tiny graph to have two levels
+        graphTiny.cellPartition = CellPartition.build(graphTiny, 2, 4);
+        assertEquals(2, graphTiny.cellPartition.levels());
+        try {
+            for (Metric metric : Metric.values()) {
+                for (double[] q : QUERIES) {
+                    int[] actual = Router.shortestPathVertices(graphTiny, metric,
+                            Router.SearchMode.OVERLAY, q[0], q[1], q[2], q[3], null);
+                    int[] expected = Router.shortestPathVertices(graphTiny, metric,
+                            q[0], q[1], q[2], q[3]);
+                    assertEquals(length(metric, expected), length(metric, actual), 1e-9);
+                    assertEquals(expected[0], actual[0]);
+                    assertEquals(expected[expected.length - 1], actual[actual.length - 1]);
+                }
+            }
+
+            // The tiny graph is a tree, so closing an edge of a route cuts it off until
+            // the overlay is customized with the edge open again
+            double[] q = QUERIES[0];
+            int[] open = Router.shortestPathVertices(graphTiny, Metric.DISTANCE,
+                    Router.SearchMode.OVERLAY, q[0], q[1], q[2], q[3], null);
+            // Edge by edge, as weights(metric) is null when the graph is off the heap
+            float[] weights = new float[graphTiny.E()];
+            for (int e = 0; e < weights.length; e++) {
+                weights[e] = graphTiny.weight(Metric.DISTANCE, e);
+            }
+            float[] closed = weights.clone();
+            for (int e = graphTiny.edgeStart(open[0]); e < graphTiny.edgeEnd(open[0]); e++) {
+                if (graphTiny.edgeTarget(e) == open[1]) {
+                    closed[e] = Float.POSITIVE_INFINITY;
+                }
+            }
+            graphTiny.customize(Metric.DISTANCE, closed);
+            assertEquals(0, Router.shortestPathVertices(graphTiny, Metric.DISTANCE,
+                    Router.SearchMode.OVERLAY, q[0], q[1], q[2], q[3], null).length);
+            graphTiny.customize(Metric.DISTANCE, weights);
+            assertArrayEquals(open, Router.shortestPathVertices(graphTiny, Metric.DISTANCE,
+                    Router.SearchMode.OVERLAY, q[0], q[1], q[2], q[3], null));
+        } finally {
+            graphTiny.cellPartition = null;
+            graphTiny.overlays = new Overlay[Metric.values().length];
+        }
+    }
+
+    private double length(Metric metric, int[] path) {
+        double length = 0;
+        for (int i = 1; i < path.length; i++) {
+            double lightest = Double.POSITIVE_INFINITY;
+            for (int e = graphTiny.edgeStart(path[i - 1]); e < graphTiny.edgeEnd(path[i - 1]);
+                 e++) {
+                if (graphTiny.edgeTarget(e) == path[i]) {
+                    lightest = Math.min(lightest, graphTiny.weight(metric, e));
+                }
+            }
+            length += lightest;
+        }
+        return length;
+    }
 }
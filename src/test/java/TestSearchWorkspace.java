@@ -0,0 +1,86 @@
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that SearchWorkspace forgets the last search at the start of each new one: when
+ * only the generation moves on, when it wraps around at Integer.MAX_VALUE, and when the
+ * workspace grows for a bigger graph.
+ */
+public class TestSearchWorkspace {
+    private static final int VERTICES = 10;
+
+    private static void assertUnreached(SearchWorkspace workspace, int numVertices) {
+        for (int v = 0; v < numVertices; v++) {
+            assertEquals(Double.POSITIVE_INFINITY, workspace.dist(v), 0);
+            assertEquals(-1, workspace.parent(v));
+        }
+        assertTrue(workspace.heap.isEmpty());
+    }
+
+    @Test
+    public void testBegin() {
+        try (SearchWorkspace workspace = SearchWorkspace.borrow(VERTICES)) {
+            assertUnreached(workspace, VERTICES);
+            workspace.reach(3, 1.5, -1);
+            workspace.reach(4, 2.5, 3);
+            workspace.heap.push(4, 2.5);
+            assertEquals(1.5, workspace.dist(3), 0);
+            assertEquals(-1, workspace.parent(3));
+            assertEquals(2.5, workspace.dist(4), 0);
+            assertEquals(3, workspace.parent(4));
+
+            int generation = workspace.generation;
+            workspace.begin(VERTICES);
+            assertEquals(generation + 1, workspace.generation);
+            assertUnreached(workspace, VERTICES);
+            assertFalse(workspace.heap.contains(4));
+        }
+    }
+
+    @Test
+    public void testWrap() {
+        try (SearchWorkspace workspace = SearchWorkspace.borrow(VERTICES)) {
+            // Reached in generation 1, the one the wrap starts over from
+            workspace.generation = 0;
+            workspace.begin(VERTICES);
+            assertEquals(1, workspace.generation);
+            workspace.reach(2, 7, -1);
+
+            workspace.generation = Integer.MAX_VALUE - 2;
+            workspace.begin(VERTICES);
+            workspace.reach(5, 3, 2);
+            assertEquals(3, workspace.dist(5), 0);
+            workspace.begin(VERTICES);
+            assertEquals(1, workspace.generation);
+            assertUnreached(workspace, VERTICES);
+
+            workspace.reach(5, 4, -1);
+            assertEquals(4, workspace.dist(5), 0);
+            workspace.begin(VERTICES);
+            assertEquals(2, workspace.generation);
+            assertUnreached(workspace, VERTICES);
+        }
+    }
+
+    @Test
+    public void testGrow() {
+        try (SearchWorkspace workspace = SearchWorkspace.borrow(VERTICES)) {
+            workspace.reach(VERTICES - 1, 1, -1);
+            workspace.heap.push(VERTICES - 1, 1);
+            workspace.begin(3 * VERTICES);
+            assertUnreached(workspace, 3 * VERTICES);
+            workspace.reach(3 * VERTICES - 1, 2, VERTICES - 1);
+            workspace.heap.push(3 * VERTICES - 1, 2);
+            assertEquals(2, workspace.dist(3 * VERTICES - 1), 0);
+            assertEquals(VERTICES - 1, workspace.parent(3 * VERTICES - 1));
+            assertEquals(3 * VERTICES - 1, workspace.heap.pop());
+
+            // Smaller again keeps the bigger arrays, and still forgets
+            workspace.begin(VERTICES);
+            assertUnreached(workspace, 3 * VERTICES);
+        }
+    }
+}
@@ -0,0 +1,124 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests SegmentRTree snapping on the tiny graph against a scan of every road segment, on
+ * a grid of points over the graph and well beyond it. Distances are measured the way the
+ * tree measures them, in an equirectangular projection around the query point.
+ */
+public class TestSegmentRTree {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static final double MILES_PER_DEGREE = 3963 * Math.PI / 180;
+
+    private static GraphDB graphTiny;
+    private static List<double[]> points;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+
+        // The tiny graph spans 0.1 to 0.6 longitude and 38.1 to 38.6 latitude
+        points = new ArrayList<>();
+        for (int i = 0; i <= 22; i++) {
+            for (int j = 0; j <= 22; j++) {
+                points.add(new double[]{-0.2 + 0.05 * i, 37.8 + 0.05 * j});
+            }
+        }
+        points.add(new double[]{-122.26, 37.87});
+        points.add(new double[]{0.35, -60.0});
+        points.add(new double[]{5.0, 38.35});
+        initialized = true;
+    }
+
+    /* The squared projected distance from the query to the point at (lon, lat). */
+    private static double distance(double lon, double lat, double qLon, double qLat) {
+        double x = (lon - qLon) * MILES_PER_DEGREE * Math.cos(Math.toRadians(qLat));
+        double y = (lat - qLat) * MILES_PER_DEGREE;
+        return x * x + y * y;
+    }
+
+    /* The point of the segment from u to v closest to the query, as {lon, lat}. */
+    private static double[] closestPoint(int u, int v, double qLon, double qLat) {
+        double lonScale = MILES_PER_DEGREE * Math.cos(Math.toRadians(qLat));
+        double ax = (graphTiny.lonAt(u) - qLon) * lonScale;
+        double ay = (graphTiny.latAt(u) - qLat) * MILES_PER_DEGREE;
+        double dx = (graphTiny.lonAt(v) - qLon) * lonScale - ax;
+        double dy = (graphTiny.latAt(v) - qLat) * MILES_PER_DEGREE - ay;
+        double t = Math.max(0, Math.min(1, -(ax * dx + ay * dy) / (dx * dx + dy * dy)));
+        return new double[]{graphTiny.lonAt(u) + t * (graphTiny.lonAt(v) - graphTiny.lonAt(u)),
+            graphTiny.latAt(u) + t * (graphTiny.latAt(v) - graphTiny.latAt(u))};
+    }
+
+    @Test
+    public void testSnapToEdge() {
+        SegmentRTree tree = new SegmentRTree(graphTiny);
+        for (double[] p : points) {
+            List<double[]> nearest = new ArrayList<>();
+            for (int u = 0; u < graphTiny.V(); u++) {
+                for (int e = graphTiny.edgeStart(u); e < graphTiny.edgeEnd(u); e++) {
+                    nearest.add(closestPoint(u, graphTiny.edgeTarget(e), p[0], p[1]));
+                }
+            }
+            double best = Double.POSITIVE_INFINITY;
+            for (double[] point : nearest) {
+                best = Math.min(best, distance(point[0], point[1], p[0], p[1]));
+            }
+            double tolerance = 1e-9 * Math.max(1, best);
+            // Where segments meet, several give the same point; another point as close
+            // is a tie either may win
+            double[] bestPoint = null;
+            boolean unique = true;
+            for (double[] point : nearest) {
+                if (distance(point[0], point[1], p[0], p[1]) - best > tolerance) {
+                    continue;
+                }
+                if (bestPoint == null) {
+                    bestPoint = point;
+                } else if (Math.abs(point[0] - bestPoint[0]) > 1e-12
+                        || Math.abs(point[1] - bestPoint[1]) > 1e-12) {
+                    unique = false;
+                }
+            }
+
+            PhantomNode snapped = tree.nearest(p[0], p[1]);
+            assertNotNull(snapped);
+            assertTrue(graphTiny.edgeBetween(snapped.u, snapped.v) >= 0);
+            assertTrue(snapped.t >= 0 && snapped.t <= 1);
+            assertEquals(best, distance(snapped.lon, snapped.lat, p[0], p[1]), tolerance);
+            if (unique) {
+                assertEquals(bestPoint[0], snapped.lon, 1e-9);
+                assertEquals(bestPoint[1], snapped.lat, 1e-9);
+            }
+            assertEquals(GraphDB.distance(p[0], p[1], snapped.lon, snapped.lat),
+                    snapped.snapDistance, 1e-9);
+        }
+    }
+
+    @Test
+    public void testOnTheRoad() {
+        SegmentRTree tree = new SegmentRTree(graphTiny);
+        // Halfway along Top Street between 22 and 46, and right on vertex 63
+        PhantomNode halfway = tree.nearest(0.3, 38.4);
+        assertEquals(0, halfway.snapDistance, 1e-9);
+        assertEquals(0.5, halfway.t, 1e-9);
+        long[] ends = {graphTiny.id(halfway.u), graphTiny.id(halfway.v)};
+        assertTrue(ends[0] == 22 && ends[1] == 46 || ends[0] == 46 && ends[1] == 22);
+
+        PhantomNode vertex = tree.nearest(0.6, 38.3);
+        assertEquals(0, vertex.snapDistance, 1e-9);
+        int at = vertex.t == 0 ? vertex.u : vertex.v;
+        assertTrue(vertex.t == 0 || vertex.t == 1);
+        assertEquals(63, graphTiny.id(at));
+    }
+}
@@ -0,0 +1,158 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests ShardedGraph on the tiny graph split into two overlapping extracts: Top Street
+ * in the west one, and Side Avenue and its branch in the east one, along with the end of
+ * Top Street from 46 to 66, as an extract with whole ways at its border would have it.
+ */
+public class TestShardedGraph {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+
+    private static final String WEST = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osm version=\"0.6\" generator=\"hand\">\n"
+            + "  <node id=\"11\" lat=\"38.1\" lon=\"0.1\"/>\n"
+            + "  <node id=\"22\" lat=\"38.2\" lon=\"0.2\"/>\n"
+            + "  <node id=\"46\" lat=\"38.6\" lon=\"0.4\"/>\n"
+            + "  <node id=\"66\" lat=\"38.6\" lon=\"0.6\"/>\n"
+            + "  <way id=\"1\">\n"
+            + "    <nd ref=\"11\"/>\n"
+            + "    <nd ref=\"22\"/>\n"
+            + "    <nd ref=\"46\"/>\n"
+            + "    <nd ref=\"66\"/>\n"
+            + "    <tag k=\"highway\" v=\"residential\"/>\n"
+            + "    <tag k=\"name\" v=\"Top Street\"/>\n"
+            + "  </way>\n"
+            + "</osm>\n";
+
+    private static final String EAST = "<?xml version='1.0' encoding='UTF-8'?>\n"
+            + "<osm version=\"0.6\" generator=\"hand\">\n"
+            + "  <node id=\"41\" lat=\"38.1\" lon=\"0.4\"/>\n"
+            + "  <node id=\"46\" lat=\"38.6\" lon=\"0.4\"/>\n"
+            + "  <node id=\"55\" lat=\"38.5\" lon=\"0.5\"/>\n"
+            + "  <node id=\"63\" lat=\"38.3\" lon=\"0.6\"/>\n"
+            + "  <node id=\"66\" lat=\"38.6\" lon=\"0.6\"/>\n"
+            + "  <way id=\"1\">\n"
+            + "    <nd ref=\"46\"/>\n"
+            + "    <nd ref=\"66\"/>\n"
+            + "    <tag k=\"highway\" v=\"residential\"/>\n"
+            + "    <tag k=\"name\" v=\"Top Street\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"2\">\n"
+            + "    <nd ref=\"41\"/>\n"
+            + "    <nd ref=\"63\"/>\n"
+            + "    <nd ref=\"66\"/>\n"
+            + "    <tag k=\"highway\" v=\"primary\"/>\n"
+            + "    <tag k=\"name\" v=\"Side Avenue\"/>\n"
+            + "  </way>\n"
+            + "  <way id=\"3\">\n"
+            + "    <nd ref=\"63\"/>\n"
+            + "    <nd ref=\"55\"/>\n"
+            + "    <tag k=\"highway\" v=\"tertiary\"/>\n"
+            + "  </way>\n"
+            + "</osm>\n";
+
+    /* The vertices, then two points off the roads. */
+    private static final double[][] POINTS = {
+        {0.1, 38.1}, {0.2, 38.2}, {0.4, 38.1}, {0.4, 38.6}, {0.5, 38.5}, {0.6, 38.3},
+        {0.6, 38.6}, {0.45, 38.2}, {0.3, 38.45}
+    };
+
+    private static GraphDB graphTiny;
+    private static List<String> paths;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        File dir = Files.createTempDirectory("shards").toFile();
+        dir.deleteOnExit();
+        paths = new ArrayList<>();
+        for (String[] shard : new String[][]{{"west.osm.xml", WEST}, {"east.osm.xml", EAST}}) {
+            File file = new File(dir, shard[0]);
+            file.deleteOnExit();
+            // Loading the shards writes their snapshots
+            GraphSnapshot.snapshotFile(file.getPath()).deleteOnExit();
+            Files.write(file.toPath(), shard[1].getBytes(StandardCharsets.UTF_8));
+            paths.add(file.getPath());
+        }
+        initialized = true;
+    }
+
+    private static void assertSameRoute(ShardedGraph shards, double[] from, double[] to) {
+        GraphDB g = shards.graphFor(from[0], from[1], to[0], to[1]);
+        assertEquals(Router.shortestPath(graphTiny, from[0], from[1], to[0], to[1]),
+                Router.shortestPath(g, from[0], from[1], to[0], to[1]));
+    }
+
+    @Test
+    public void testStitchedRoutes() {
+        ShardedGraph shards = new ShardedGraph(paths, 2);
+        assertEquals(2, shards.loadedCount());
+        GraphDB g = shards.graph();
+        // The border nodes 46 and 66 and the road between them are only there once
+        assertEquals(graphTiny.liveVertexCount(), g.liveVertexCount());
+        assertEquals(graphTiny.E(), g.E());
+        for (double[] from : POINTS) {
+            for (double[] to : POINTS) {
+                assertSameRoute(shards, from, to);
+            }
+        }
+        assertEquals(Arrays.asList(22L, 46L, 66L, 63L, 55L),
+                Router.shortestPath(g, 0.2, 38.2, 0.5, 38.5));
+    }
+
+    @Test
+    public void testEviction() {
+        ShardedGraph shards = new ShardedGraph(paths, 1);
+        assertEquals(1, shards.loadedCount());
+        // Only the west shard covers 11 and 22, so the east one is evicted if loaded
+        assertSameRoute(shards, POINTS[0], POINTS[1]);
+        assertEquals(1, shards.loadedCount());
+        // A route across both needs both, budget or not
+        assertSameRoute(shards, POINTS[1], POINTS[4]);
+        assertEquals(2, shards.loadedCount());
+        // Only the vertices, which snap the same whichever shards are loaded
+        for (int i = 0; i < 7; i++) {
+            for (int j = 0; j < 7; j++) {
+                assertSameRoute(shards, POINTS[i], POINTS[j]);
+            }
+        }
+    }
+
+    @Test
+    public void testConcurrentQueries() throws Exception {
+        ShardedGraph shards = new ShardedGraph(paths, 1);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> queries = new ArrayList<>();
+            for (int i = 0; i < 64; i++) {
+                double[] from = POINTS[i % 7];
+                double[] to = POINTS[(i * 5 + 3) % 7];
+                queries.add(pool.submit(() -> assertSameRoute(shards, from, to)));
+            }
+            for (Future<?> query : queries) {
+                query.get();
+            }
+        } finally {
+            pool.shutdown();
+        }
+        assertTrue(shards.loadedCount() <= 2);
+    }
+}
@@ -0,0 +1,131 @@
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests VertexHeap against a java.util.PriorityQueue under random pushes, key changes and
+ * pops. The queue can't change a key in place, so it gets a new entry instead and skips
+ * the entries that are out of date when they come up.
+ */
+public class TestVertexHeap {
+    private static final int VERTICES = 200;
+
+    /* A heap and the queue it is checked against. Queue entries are {key, vertex, entry
+     * number}; current holds the live entry of each vertex in the queue. */
+    private final VertexHeap heap = new VertexHeap(VERTICES);
+    private final PriorityQueue<double[]> queue = new PriorityQueue<>(
+            (a, b) -> Double.compare(a[0], b[0]));
+    private final Map<Integer, double[]> current = new HashMap<>();
+    private int entries;
+
+    private void push(int v, double key) {
+        double[] old = current.get(v);
+        boolean lowered = old == null || key < old[0];
+        assertEquals(lowered, heap.push(v, key));
+        if (lowered) {
+            add(v, key);
+        }
+    }
+
+    private void set(int v, double key) {
+        heap.set(v, key);
+        add(v, key);
+    }
+
+    private void add(int v, double key) {
+        double[] entry = {key, v, entries++};
+        current.put(v, entry);
+        queue.add(entry);
+    }
+
+    /* Pops both, checking they agree on the smallest key. On ties either vertex may come
+     * first, so the vertex the heap gives only has to have that key in the queue. */
+    private int pop() {
+        while (current.get((int) queue.peek()[1]) != queue.peek()) {
+            queue.poll();
+        }
+        double key = queue.peek()[0];
+        assertEquals(key, heap.minKey(), 0);
+        int v = heap.pop();
+        double[] entry = current.remove(v);
+        assertEquals(key, entry[0], 0);
+        assertFalse(heap.contains(v));
+        assertEquals(current.size(), heap.size());
+        return v;
+    }
+
+    @Test
+    public void testAgainstPriorityQueue() {
+        Random random = new Random(19);
+        for (int round = 0; round < 20000; round++) {
+            int v = random.nextInt(VERTICES);
+            // Whole keys, so there are plenty of ties
+            double key = random.nextInt(500);
+            int op = random.nextInt(10);
+            if (op < 5) {
+                push(v, key);
+            } else if (op < 7 && current.containsKey(v)) {
+                // Lower a key that is in the heap, as a search finding a better route
+                push(v, current.get(v)[0] - 1 - random.nextInt(50));
+            } else if (op < 8) {
+                set(v, key);
+            } else if (!heap.isEmpty()) {
+                pop();
+            }
+            assertEquals(current.containsKey(v), heap.contains(v));
+            assertEquals(current.size(), heap.size());
+        }
+        double last = Double.NEGATIVE_INFINITY;
+        while (!heap.isEmpty()) {
+            double key = heap.minKey();
+            assertTrue(key >= last);
+            last = key;
+            pop();
+        }
+        assertTrue(current.isEmpty());
+    }
+
+    @Test
+    public void testClear() {
+        for (int v = 0; v < VERTICES; v += 3) {
+            push(v, VERTICES - v);
+        }
+        pop();
+        heap.clear();
+        current.clear();
+        queue.clear();
+        assertTrue(heap.isEmpty());
+        for (int v = 0; v < VERTICES; v++) {
+            assertFalse(heap.contains(v));
+        }
+        // And it works as new afterwards
+        push(5, 2.5);
+        push(7, 1.5);
+        push(5, 0.5);
+        assertEquals(5, pop());
+        assertEquals(7, pop());
+        assertTrue(heap.isEmpty());
+    }
+
+    @Test
+    public void testEnsureCapacity() {
+        push(VERTICES - 1, 3);
+        heap.ensureCapacity(2 * VERTICES);
+        assertTrue(heap.contains(VERTICES - 1));
+        for (int v = VERTICES; v < 2 * VERTICES; v++) {
+            assertFalse(heap.contains(v));
+            push(v, v);
+        }
+        assertEquals(VERTICES - 1, pop());
+        for (int v = VERTICES; v < 2 * VERTICES; v++) {
+            assertEquals(v, pop());
+        }
+    }
+}
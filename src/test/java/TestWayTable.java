@@ -0,0 +1,115 @@
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the way tags the graph keeps: parsing maxspeed values, and the names interned
+ * into a WayTable's string pool.
+ */
+public class TestWayTable {
+    private static final String OSM_DB_PATH_TINY = "../library-sp18/data/tiny-clean.osm.xml";
+    private static GraphDB graphTiny;
+    private static boolean initialized = false;
+
+    @Before
+    public void setUp() throws Exception {
+        if (initialized) {
+            return;
+        }
+        graphTiny = new GraphDB(OSM_DB_PATH_TINY);
+        initialized = true;
+    }
+
+    private static WayTags tags(String... keysAndValues) {
+        WayTags tags = new WayTags();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            tags.tag(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return tags;
+    }
+
+    @Test
+    public void testParseMaxSpeed() {
+        assertEquals(50, WayTags.parseMaxSpeed("50"));
+        assertEquals(60, WayTags.parseMaxSpeed("60 km/h"));
+        assertEquals(50, WayTags.parseMaxSpeed("50;30"));
+        // 30 mph is 48.3 km/h, 25 mph 40.2 and 20 knots 37.0
+        assertEquals(48, WayTags.parseMaxSpeed("30 mph"));
+        assertEquals(40, WayTags.parseMaxSpeed("25mph"));
+        assertEquals(37, WayTags.parseMaxSpeed("20 knots"));
+        assertEquals(0, WayTags.parseMaxSpeed("none"));
+        assertEquals(0, WayTags.parseMaxSpeed("signals"));
+        assertEquals(0, WayTags.parseMaxSpeed("walk"));
+        assertEquals(0, WayTags.parseMaxSpeed(""));
+    }
+
+    @Test
+    public void testSpeed() {
+        WayTable.Builder builder = new WayTable.Builder();
+        int limited = builder.add(tags("highway", "residential", "maxspeed", "30 mph"));
+        int unlimited = builder.add(tags("highway", "motorway", "maxspeed", "none"));
+        int untagged = builder.add(tags("highway", "primary"));
+        WayTable table = builder.build();
+        assertEquals(48, table.speed(limited));
+        // "none" is no limit we can use, so the class speed stands in
+        assertEquals(WayTags.classSpeed(GraphBuildingHandler.highwayClass("motorway")),
+                table.speed(unlimited));
+        assertEquals(WayTags.classSpeed(GraphBuildingHandler.highwayClass("primary")),
+                table.speed(untagged));
+        assertEquals(WayTags.DEFAULT_SPEED, WayTags.classSpeed(-1));
+    }
+
+    @Test
+    public void testFlags() {
+        assertEquals(WayTags.ONEWAY, tags("oneway", "yes").flags);
+        assertEquals(WayTags.ONEWAY_REVERSE, tags("oneway", "-1").flags);
+        assertEquals(0, tags("oneway", "no").flags);
+        assertEquals(WayTags.ROUNDABOUT, tags("junction", "roundabout").flags);
+        assertTrue(tags("highway", "residential").isRoad());
+        assertFalse(tags("highway", "footway").isRoad());
+    }
+
+    @Test
+    public void testInterning() {
+        WayTable.Builder builder = new WayTable.Builder();
+        int a = builder.add(tags("highway", "residential", "name", "Residential Street"));
+        int b = builder.add(tags("highway", "residential", "name", "Main Street"));
+        int c = builder.add(tags("highway", "residential",
+                "name", new String("Residential Street")));
+        int d = builder.add(tags("highway", "residential"));
+        WayTable table = builder.build();
+        assertEquals(2, table.strings.length);
+        assertEquals(table.names[a], table.names[c]);
+        assertTrue(table.name(a) == table.name(c));
+        assertEquals("Main Street", table.name(b));
+        assertEquals(-1, table.names[d]);
+        assertEquals("", table.name(d));
+
+        // Appending keeps the old ways' numbers and the pool
+        WayTable.Builder more = new WayTable.Builder(table);
+        int e = more.add(tags("highway", "primary", "name", "Main Street"));
+        int f = more.add(table, a);
+        WayTable appended = more.build();
+        assertEquals(4, e);
+        assertEquals(5, f);
+        assertEquals(2, appended.strings.length);
+        assertEquals(appended.names[b], appended.names[e]);
+        assertEquals(appended.names[a], appended.names[f]);
+        assertEquals("Residential Street", appended.name(a));
+    }
+
+    @Test
+    public void testTinyGraph() {
+        // Three ways, two of them named
+        assertEquals(3, graphTiny.wayTable.size());
+        assertEquals(2, graphTiny.wayTable.strings.length);
+        for (int e = 0; e < graphTiny.E(); e++) {
+            int way = graphTiny.edgeWay(e);
+            assertEquals(graphTiny.wayTable.name(way), graphTiny.edgeName(e));
+            assertEquals(graphTiny.wayTable.speed(way), graphTiny.edgeSpeed(e));
+        }
+    }
+}